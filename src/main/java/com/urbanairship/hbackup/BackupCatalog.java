@@ -0,0 +1,305 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A sorted list of the files in a store, split into compressed blocks of entries with an index of the first
+ * path in each block, so the entries for one path, or for every path under a prefix, can be read from a
+ * few block-sized ranges of the catalog instead of listing the store. The index is stored at the end of
+ * the catalog, followed by a fixed-size footer giving the offset where the index starts:
+ * <pre>
+ *   [blocks...] [index] [footer: index start (long), FOOTER_MAGIC (int)]
+ * </pre>
+ * A catalog is written once, in path order, by a {@link Writer}, and never changed. Paths are ordered by
+ * String.compareTo().
+ */
+public class BackupCatalog {
+    public static final int FOOTER_LENGTH = 12;
+    private static final int INDEX_MAGIC = 0x48424358;  // "HBCX"
+    private static final int FOOTER_MAGIC = 0x48424346; // "HBCF"
+    // Entries are added to a block until it's about this long before compression
+    private static final int BLOCK_TARGET_BYTES = 64 * 1024;
+
+    public static class Entry {
+        public final String relativePath;
+        public final String key; // The object holding the file
+        public final long length; // Of the source file
+        public final long mtime; // Of the source file
+        public final long storedLength; // Of the object, which is different if it's compressed
+        public final String compression; // As in the object's metadata, or "" if it isn't compressed
+        public final String checksum; // The file's XOR checksum, or "" if it isn't known
+        public final String etag; // The object's ETag, or "" if it isn't known
+
+        public Entry(String relativePath, String key, long length, long mtime, long storedLength,
+                String compression, String checksum, String etag) {
+            this.relativePath = relativePath;
+            this.key = key;
+            this.length = length;
+            this.mtime = mtime;
+            this.storedLength = storedLength;
+            this.compression = compression == null ? "" : compression;
+            this.checksum = checksum == null ? "" : checksum;
+            this.etag = etag == null ? "" : etag;
+        }
+
+        /**
+         * @return whether the two entries describe the same version of the same object, not counting
+         * whether their checksums are known.
+         */
+        public boolean sameObject(Entry other) {
+            return relativePath.equals(other.relativePath) && key.equals(other.key) && length == other.length &&
+                    mtime == other.mtime && storedLength == other.storedLength &&
+                    compression.equals(other.compression) && etag.equals(other.etag);
+        }
+
+        public Entry withChecksum(String checksum) {
+            return new Entry(relativePath, key, length, mtime, storedLength, compression, checksum, etag);
+        }
+    }
+
+    /**
+     * Where a block of entries is in the catalog.
+     */
+    public static class Block {
+        public final String firstPath;
+        public final long offset;
+        public final int length;
+        public final int numEntries;
+
+        public Block(String firstPath, long offset, int length, int numEntries) {
+            this.firstPath = firstPath;
+            this.offset = offset;
+            this.length = length;
+            this.numEntries = numEntries;
+        }
+    }
+
+    private final List<Block> blocks = new ArrayList<Block>();
+
+    public List<Block> getBlocks() {
+        return blocks;
+    }
+
+    public long getNumEntries() {
+        long numEntries = 0;
+        for(Block block: blocks) {
+            numEntries += block.numEntries;
+        }
+        return numEntries;
+    }
+
+    /**
+     * @return the index of the only block that may hold the path, or -1 if the catalog is empty.
+     */
+    public int blockFor(String relativePath) {
+        int low = 0;
+        int high = blocks.size() - 1;
+        while(low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if(blocks.get(mid).firstPath.compareTo(relativePath) <= 0) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high;
+    }
+
+    /**
+     * @return the blocks that may hold paths starting with the prefix. They're next to each other in the
+     * catalog, so they can be read with a single ranged read.
+     */
+    public List<Block> blocksForPrefix(String prefix) {
+        List<Block> found = new ArrayList<Block>();
+        int first = blockFor(prefix);
+        if(first < 0) {
+            return found;
+        }
+        found.add(blocks.get(first));
+        for(int i=first+1; i<blocks.size() && blocks.get(i).firstPath.startsWith(prefix); i++) {
+            found.add(blocks.get(i));
+        }
+        return found;
+    }
+
+    /**
+     * @return the offset where the index starts, given the last FOOTER_LENGTH bytes of the catalog.
+     */
+    public static long parseFooter(byte[] footer) throws IOException {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(footer));
+        long indexStart = dis.readLong();
+        if(dis.readInt() != FOOTER_MAGIC) {
+            throw new IOException("Missing catalog footer, the catalog may be truncated");
+        }
+        return indexStart;
+    }
+
+    /**
+     * @param indexBytes the bytes from the start of the index up to but not including the footer.
+     */
+    public static BackupCatalog parse(byte[] indexBytes) throws IOException {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(indexBytes));
+        if(dis.readInt() != INDEX_MAGIC) {
+            throw new IOException("Bad catalog index magic number");
+        }
+        int numBlocks = dis.readInt();
+        BackupCatalog catalog = new BackupCatalog();
+        for(int i=0; i<numBlocks; i++) {
+            catalog.blocks.add(new Block(dis.readUTF(), dis.readLong(), dis.readInt(), dis.readInt()));
+        }
+        return catalog;
+    }
+
+    /**
+     * @param blockBytes the bytes of one or more blocks that are next to each other in the catalog.
+     * @param numBlocks how many blocks there are.
+     */
+    public static List<Entry> parseBlocks(byte[] blockBytes, int numBlocks) throws IOException {
+        List<Entry> entries = new ArrayList<Entry>();
+        Reader reader = new Reader(new ByteArrayInputStream(blockBytes), numBlocks);
+        Entry entry;
+        while((entry = reader.next()) != null) {
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    /**
+     * Reads the entries of consecutive blocks in order, without holding more than one block in memory.
+     */
+    public static class Reader {
+        private final DataInputStream in;
+        private int blocksLeft;
+        private DataInputStream block = null;
+        private int blockEntriesLeft = 0;
+
+        /**
+         * @param in the catalog's bytes, starting at the start of a block.
+         */
+        public Reader(InputStream in, int numBlocks) {
+            this.in = new DataInputStream(in);
+            this.blocksLeft = numBlocks;
+        }
+
+        /**
+         * @return the next entry, or null after the last block.
+         */
+        public Entry next() throws IOException {
+            while(blockEntriesLeft == 0) {
+                if(blocksLeft == 0) {
+                    return null;
+                }
+                byte[] compressed = new byte[in.readInt()];
+                in.readFully(compressed);
+                block = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(compressed)));
+                blockEntriesLeft = block.readInt();
+                blocksLeft--;
+            }
+            blockEntriesLeft--;
+            return new Entry(block.readUTF(), block.readUTF(), block.readLong(), block.readLong(),
+                    block.readLong(), block.readUTF(), block.readUTF(), block.readUTF());
+        }
+    }
+
+    /**
+     * Writes a catalog, given its entries in path order.
+     */
+    public static class Writer {
+        private final DataOutputStream out;
+        private final BackupCatalog index = new BackupCatalog();
+        private long offset = 0;
+        private String lastPath = null;
+
+        // The block being filled
+        private final ByteArrayOutputStream blockBytes = new ByteArrayOutputStream(BLOCK_TARGET_BYTES * 2);
+        private final DataOutputStream block = new DataOutputStream(blockBytes);
+        private String blockFirstPath = null;
+        private int blockNumEntries = 0;
+
+        public Writer(OutputStream out) {
+            this.out = new DataOutputStream(out);
+        }
+
+        public void add(Entry entry) throws IOException {
+            if(lastPath != null && entry.relativePath.compareTo(lastPath) <= 0) {
+                throw new IllegalArgumentException("Catalog entries must be added in path order, but " +
+                        entry.relativePath + " came after " + lastPath);
+            }
+            lastPath = entry.relativePath;
+            if(blockFirstPath == null) {
+                blockFirstPath = entry.relativePath;
+            }
+            block.writeUTF(entry.relativePath);
+            block.writeUTF(entry.key);
+            block.writeLong(entry.length);
+            block.writeLong(entry.mtime);
+            block.writeLong(entry.storedLength);
+            block.writeUTF(entry.compression);
+            block.writeUTF(entry.checksum);
+            block.writeUTF(entry.etag);
+            blockNumEntries++;
+            if(blockBytes.size() >= BLOCK_TARGET_BYTES) {
+                finishBlock();
+            }
+        }
+
+        /**
+         * Each block is stored as its compressed length, then the compressed count of entries and entries.
+         */
+        private void finishBlock() throws IOException {
+            if(blockNumEntries == 0) {
+                return;
+            }
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(blockBytes.size() / 2);
+            DataOutputStream dos = new DataOutputStream(new DeflaterOutputStream(compressed));
+            dos.writeInt(blockNumEntries);
+            blockBytes.writeTo(dos);
+            dos.close();
+            out.writeInt(compressed.size());
+            compressed.writeTo(out);
+            int length = 4 + compressed.size();
+            index.blocks.add(new Block(blockFirstPath, offset, length, blockNumEntries));
+            offset += length;
+            blockBytes.reset();
+            blockFirstPath = null;
+            blockNumEntries = 0;
+        }
+
+        /**
+         * Write the last block, the index and the footer, and close the stream.
+         */
+        public void close() throws IOException {
+            finishBlock();
+            long indexStart = offset;
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(index.blocks.size());
+            for(Block b: index.blocks) {
+                out.writeUTF(b.firstPath);
+                out.writeLong(b.offset);
+                out.writeInt(b.length);
+                out.writeInt(b.numEntries);
+            }
+            out.writeLong(indexStart);
+            out.writeInt(FOOTER_MAGIC);
+            out.close();
+        }
+
+        public long getNumEntries() {
+            return index.getNumEntries() + blockNumEntries;
+        }
+    }
+}
@@ -0,0 +1,274 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+/**
+ * A process-wide pool of transfer buffers, so copy loops and checksum reads reuse a bounded set of
+ * buffers instead of allocating new ones for every chunk and every retry. Buffers come in power of two
+ * size classes from MIN_BUFFER_SIZE up, and the total size of all buffers the pool has allocated, free
+ * or in use, never goes over the configured maximum. Free buffers of one size class are dropped to make
+ * room for another when needed.
+ *
+ * The buffers are heap buffers. Every consumer here reads through an InputStream into a byte array
+ * (XorInputStream, jets3t, the Hadoop streams), so a direct buffer would only add a copy.
+ */
+public class BufferPool {
+    private static final Logger log = LogManager.getLogger(BufferPool.class);
+
+    public static final int MIN_BUFFER_SIZE = 64 * 1024;
+    public static final int MAX_BUFFER_SIZE = 1 << 30;
+    public static final long MIN_MAX_BYTES = 1024 * 1024;
+    public static final int COPY_BUFFER_SIZE = MIN_BUFFER_SIZE;
+
+    private static final int NUM_CLASSES = Integer.numberOfTrailingZeros(MAX_BUFFER_SIZE) -
+            Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE) + 1;
+
+    private static final BufferPool instance = new BufferPool(HBackupConfig.DEFAULT_BUFFER_POOL_MAX_BYTES);
+
+    private final Deque<ByteBuffer>[] freeBuffers;
+    private long maxBytes;
+    private long bytesAllocated = 0;
+    private long bytesInUse = 0;
+    private long peakBytesInUse = 0;
+    private long numAcquired = 0;
+    private long numReused = 0;
+    private long numWaits = 0;
+    private long numRefused = 0;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    BufferPool(long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.freeBuffers = new Deque[NUM_CLASSES];
+        for(int i=0; i<NUM_CLASSES; i++) {
+            freeBuffers[i] = new ArrayDeque<ByteBuffer>();
+        }
+    }
+
+    public static BufferPool getInstance() {
+        return instance;
+    }
+
+    /**
+     * Change the most memory the pool may hold. If it's already holding more, it shrinks as buffers are
+     * returned.
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        dropFreeBuffers(0);
+        notifyAll();
+    }
+
+    /**
+     * Get a buffer of at least minSize bytes, waiting for other buffers to be released if the pool is full.
+     * The buffer must be given back with release().
+     */
+    public synchronized ByteBuffer acquire(int minSize) throws InterruptedException {
+        int sizeClass = sizeClass(minSize);
+        int size = MIN_BUFFER_SIZE << sizeClass;
+        if(size > maxBytes) {
+            throw new IllegalArgumentException("Requested buffer of " + minSize + " bytes is bigger than the " +
+                    "buffer pool limit of " + maxBytes);
+        }
+        boolean waited = false;
+        ByteBuffer buf;
+        while((buf = take(sizeClass, maxBytes)) == null) {
+            if(!waited) {
+                numWaits++;
+                waited = true;
+            }
+            wait();
+        }
+        return buf;
+    }
+
+    /**
+     * Get a buffer of at least minSize bytes if one is available right away, for callers that would hold
+     * it for a long time. These buffers may only use three quarters of the pool, so that there's always
+     * room for copy buffers, which are held briefly.
+     * @return the buffer, or null if the pool is too full.
+     */
+    public synchronized ByteBuffer tryAcquire(long minSize) {
+        if(minSize > MAX_BUFFER_SIZE) {
+            numRefused++;
+            return null;
+        }
+        ByteBuffer buf = take(sizeClass((int)minSize), maxBytes - maxBytes / 4);
+        if(buf == null) {
+            numRefused++;
+        }
+        return buf;
+    }
+
+    public synchronized void release(ByteBuffer buf) {
+        int size = buf.capacity();
+        bytesInUse -= size;
+        if(bytesAllocated > maxBytes) {
+            bytesAllocated -= size; // Shrinking after setMaxBytes(), let this one go
+        } else {
+            buf.clear();
+            freeBuffers[sizeClass(size)].push(buf);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Copy a stream to another with a pooled buffer, like IOUtils.copyLarge().
+     * @return the number of bytes copied.
+     */
+    public long copy(InputStream is, OutputStream os) throws IOException {
+        ByteBuffer buf = acquireCopyBuffer();
+        try {
+            byte[] b = buf.array();
+            long copied = 0;
+            int bytesRead;
+            while((bytesRead = is.read(b)) != -1) {
+                os.write(b, 0, bytesRead);
+                copied += bytesRead;
+            }
+            return copied;
+        } finally {
+            release(buf);
+        }
+    }
+
+    /**
+     * Read a stream until it ends, throwing the data away, for callers that only need what a wrapping
+     * stream computes along the way, like a checksum.
+     * @return the number of bytes read.
+     */
+    public long drain(InputStream is) throws IOException {
+        ByteBuffer buf = acquireCopyBuffer();
+        try {
+            byte[] b = buf.array();
+            long total = 0;
+            int bytesRead;
+            while((bytesRead = is.read(b)) != -1) {
+                total += bytesRead;
+            }
+            return total;
+        } finally {
+            release(buf);
+        }
+    }
+
+    /**
+     * Get a COPY_BUFFER_SIZE buffer, converting an interrupt into an IOException like a blocking read would.
+     */
+    public ByteBuffer acquireCopyBuffer() throws IOException {
+        try {
+            return acquire(COPY_BUFFER_SIZE);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * @return a free buffer of the size class, or a new one if that keeps total allocation under the
+     * limit, or null.
+     */
+    private ByteBuffer take(int sizeClass, long limit) {
+        int size = MIN_BUFFER_SIZE << sizeClass;
+        if(bytesInUse + size > limit) {
+            return null;
+        }
+        ByteBuffer buf = freeBuffers[sizeClass].poll();
+        if(buf != null) {
+            numReused++;
+        } else {
+            if(bytesAllocated + size > maxBytes) {
+                dropFreeBuffers(size);
+            }
+            if(bytesAllocated + size > maxBytes) {
+                return null;
+            }
+            buf = ByteBuffer.allocate(size);
+            bytesAllocated += size;
+        }
+        numAcquired++;
+        bytesInUse += size;
+        peakBytesInUse = Math.max(peakBytesInUse, bytesInUse);
+        return buf;
+    }
+
+    /**
+     * Let go of free buffers, largest first, until there's room to allocate the given number of bytes.
+     */
+    private void dropFreeBuffers(int bytesNeeded) {
+        for(int i=NUM_CLASSES-1; i>=0 && bytesAllocated + bytesNeeded > maxBytes; i--) {
+            while(!freeBuffers[i].isEmpty() && bytesAllocated + bytesNeeded > maxBytes) {
+                bytesAllocated -= freeBuffers[i].pop().capacity();
+            }
+        }
+    }
+
+    private static int sizeClass(int minSize) {
+        if(minSize <= MIN_BUFFER_SIZE) {
+            return 0;
+        }
+        if(minSize > MAX_BUFFER_SIZE) {
+            throw new IllegalArgumentException("Can't pool buffers bigger than " + MAX_BUFFER_SIZE);
+        }
+        // The smallest power of two that's >= minSize, relative to MIN_BUFFER_SIZE
+        return 32 - Integer.numberOfLeadingZeros(minSize - 1) - Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE);
+    }
+
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized long getBytesAllocated() {
+        return bytesAllocated;
+    }
+
+    public synchronized long getBytesInUse() {
+        return bytesInUse;
+    }
+
+    public synchronized long getPeakBytesInUse() {
+        return peakBytesInUse;
+    }
+
+    /**
+     * @return how many buffers have been handed out, whether new or reused.
+     */
+    public synchronized long getNumAcquired() {
+        return numAcquired;
+    }
+
+    public synchronized long getNumReused() {
+        return numReused;
+    }
+
+    /**
+     * @return how many acquire() calls had to wait for a buffer to be released.
+     */
+    public synchronized long getNumWaits() {
+        return numWaits;
+    }
+
+    /**
+     * @return how many tryAcquire() calls got no buffer.
+     */
+    public synchronized long getNumRefused() {
+        return numRefused;
+    }
+
+    public synchronized void logStats() {
+        log.info("Buffer pool:       " + bytesAllocated + " of " + maxBytes + " bytes allocated, peak " +
+                peakBytesInUse + " in use, " + numReused + " of " + numAcquired + " buffers reused, " +
+                numWaits + " waits");
+    }
+}
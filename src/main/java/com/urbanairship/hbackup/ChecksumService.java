@@ -6,6 +6,7 @@ package com.urbanairship.hbackup;
 
 import java.io.IOException;
 import java.net.URI;
+import java.util.List;
 
 public abstract class ChecksumService {
     public static ChecksumService forUri(URI uri, HBackupConfig conf) throws IOException {
@@ -21,4 +22,21 @@ public abstract class ChecksumService {
     public abstract void storeChecksum(String relativePath, String hexChecksum) throws IOException;
     
     public abstract String getChecksum(String relativePath) throws IOException;
+    
+    /**
+     * Store the hex MD5 of each part of a file as it was sent to the sink, in part order. A file sent
+     * in a single piece has a single part.
+     */
+    public abstract void storePartDigests(String relativePath, List<String> hexMd5s) throws IOException;
+    
+    /**
+     * @return the part MD5s stored by {@link #storePartDigests(String, List)}, or null if none were stored.
+     */
+    public abstract List<String> getPartDigests(String relativePath) throws IOException;
+    
+    /**
+     * Forget the part MD5s stored for a file, for when it's sent in a way that doesn't record them.
+     * Does nothing if none were stored.
+     */
+    public abstract void deletePartDigests(String relativePath) throws IOException;
 }
@@ -5,12 +5,15 @@ Copyright 2012 Urban Airship and Contributors
 package com.urbanairship.hbackup;
 
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
 
 /**
- * Runs a RetryableChunk, retrying if an IOException occurs, then writes its checksum.
+ * Runs a RetryableChunk, retrying if an IOException occurs, then writes its checksum. With a
+ * ChunkWatchdog, a hedged attempt may run alongside, and whichever attempt succeeds first completes the
+ * chunk.
  */
 public class ChunkRetryer implements Runnable {
     private static Logger log = LogManager.getLogger(ChunkRetryer.class);
@@ -18,6 +21,8 @@ public class ChunkRetryer implements Runnable {
     private final FileTransferState file;
     private final RetryableChunk retryableRunnable;
     private final ChecksumService checksumService;
+    private final ChunkWatchdog watchdog; // Null if attempts aren't watched
+    private final AtomicBoolean finished = new AtomicBoolean(false);
 
     private int numRetries;
 
@@ -26,8 +31,9 @@ public class ChunkRetryer implements Runnable {
      * This is a set of HBFiles for which a transfer exception occurred.
      */
     public ChunkRetryer(FileTransferState file, RetryableChunk retryableRunnable, 
-            ChecksumService checksumService, int numRetries, Stats stats) {
+            ChecksumService checksumService, int numRetries, Stats stats, ChunkWatchdog watchdog) {
         this.file = file;
+        this.watchdog = watchdog;
         this.retryableRunnable = retryableRunnable;
         this.numRetries = numRetries;
         this.checksumService = checksumService;
@@ -45,20 +51,27 @@ public class ChunkRetryer implements Runnable {
         StreamingXor checksum;
         // Keep retrying until the chunk doesn't throw an exception (success) or we run out of retries.
         int tryNum = 0;
-        while(true) {
+        while(!finished.get()) {
             try {
-                checksum = retryableRunnable.run();
-                if(file.chunkSuccess(checksum)) {
-                    // This was the last chunk. Commit all chunks.
-                    retryableRunnable.commitAllChunks();
-                    file.fileCommitted();
-                    if(checksumService != null) {
-                        saveChecksum();
-                    }
+                if(watchdog != null) {
+                    checksum = watchdog.run(this, retryableRunnable);
+                } else {
+                    checksum = retryableRunnable.run();
                 }
+                succeeded(checksum);
                 break;
             } catch (IOException e) {
+                if(finished.get()) {
+                    log.debug("Chunk attempt failed after a hedged attempt finished the chunk: " + relativePath);
+                    return;
+                }
                 if(tryNum >= numRetries) {
+                    if(watchdog != null && awaitHedges()) {
+                        return; // A hedged attempt finished the chunk after all
+                    }
+                    if(!finished.compareAndSet(false, true)) {
+                        return;
+                    }
                     log.error("Exhausted retries for chunk belonging to file " + 
                             relativePath, e);
                     file.chunkError(e);
@@ -71,6 +84,63 @@ public class ChunkRetryer implements Runnable {
         }
     }
     
+    /**
+     * Called by the watchdog when a hedged attempt of this chunk succeeds.
+     * @return whether the hedged attempt was first, and completed the chunk.
+     */
+    boolean hedgeSucceeded(StreamingXor checksum) {
+        return succeeded(checksum);
+    }
+    
+    String getRelativePath() {
+        return file.getSourceFile().getRelativePath();
+    }
+    
+    /**
+     * Complete the chunk, unless another attempt already did.
+     * @return whether this call completed the chunk.
+     */
+    private boolean succeeded(StreamingXor checksum) {
+        if(!finished.compareAndSet(false, true)) {
+            return false;
+        }
+        try {
+            if(file.chunkSuccess(checksum)) {
+                // This was the last chunk. Commit all chunks.
+                try {
+                    retryableRunnable.commitAllChunks();
+                } catch (IOException e) {
+                    log.error("Failed committing file " + getRelativePath(), e);
+                    file.commitFailed(e);
+                    return true;
+                }
+                file.fileCommitted();
+                if(checksumService != null) {
+                    saveChecksum();
+                }
+            }
+            return true;
+        } finally {
+            // Stop any other attempts once the file's state is final, so they don't return before that
+            if(watchdog != null) {
+                watchdog.chunkFinished(this);
+            }
+        }
+    }
+    
+    /**
+     * Wait for hedged attempts of this chunk to finish.
+     * @return whether one of them completed the chunk.
+     */
+    private boolean awaitHedges() {
+        try {
+            watchdog.awaitHedges(this);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return finished.get();
+    }
+    
     private void saveChecksum() {
         // Use the same number for retries for saving the checksum as for saving the the files,
         // because whatever.
@@ -0,0 +1,176 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+/**
+ * Hands chunks to an executor in an order that spreads source reads across hosts. At most maxRunning
+ * chunks are given to the executor at once, and the rest wait here. Each running chunk is counted
+ * against the least busy host holding its data, and no host is counted more than maxPerHost times. When
+ * a slot frees up, the waiting chunk whose least busy host (then rack) has the fewest running chunks goes
+ * next, with ties going to the chunk that's waited longest. Chunks with unknown locations can always run.
+ */
+public class ChunkScheduler {
+    private static final Logger log = LogManager.getLogger(ChunkScheduler.class);
+
+    private final Executor executor;
+    private final int maxRunning;
+    private final int maxPerHost;
+
+    // Guarded by "this"
+    private final Deque<Task> pending = new ArrayDeque<Task>();
+    private final Map<String,Integer> hostLoad = new HashMap<String,Integer>();
+    private final Map<String,Integer> rackLoad = new HashMap<String,Integer>();
+    private int running = 0;
+
+    private class Task implements Runnable {
+        final Runnable runnable;
+        final List<String> locations;
+        String host = null; // The host and rack it's counted against while running
+        String rack = null;
+
+        Task(Runnable runnable, List<String> locations) {
+            this.runnable = runnable;
+            this.locations = locations;
+        }
+
+        @Override
+        public void run() {
+            try {
+                runnable.run();
+            } finally {
+                finished(this);
+            }
+        }
+    }
+
+    public ChunkScheduler(Executor executor, int maxRunning, int maxPerHost) {
+        this.executor = executor;
+        this.maxRunning = maxRunning;
+        this.maxPerHost = maxPerHost;
+    }
+
+    /**
+     * @param locations "/rack/host" paths of the hosts that have the chunk's data, or empty if unknown.
+     */
+    public synchronized void submit(Runnable runnable, List<String> locations) {
+        pending.add(new Task(runnable, locations == null ? Collections.<String>emptyList() : locations));
+        dispatch();
+    }
+
+    /**
+     * Wait until every submitted chunk has finished.
+     */
+    public synchronized void awaitIdle() throws InterruptedException {
+        while(running > 0 || !pending.isEmpty()) {
+            wait();
+        }
+    }
+
+    private synchronized void finished(Task task) {
+        running--;
+        if(task.host != null) {
+            decrement(hostLoad, task.host);
+            decrement(rackLoad, task.rack);
+        }
+        dispatch();
+        notifyAll();
+    }
+
+    private void dispatch() {
+        while(running < maxRunning && !pending.isEmpty()) {
+            Task next = pickNext();
+            if(next == null) {
+                return; // Everything waiting is on busy hosts
+            }
+            running++;
+            if(next.host != null) {
+                increment(hostLoad, next.host);
+                increment(rackLoad, next.rack);
+                log.debug("Scheduling chunk on " + next.host + ", " + hostLoad.get(next.host) +
+                        " chunks running there");
+            }
+            executor.execute(next);
+        }
+    }
+
+    /**
+     * Remove and return the best pending task to run, or null if none can run yet.
+     */
+    private Task pickNext() {
+        Task best = null;
+        String bestHost = null;
+        int bestHostLoad = Integer.MAX_VALUE;
+        int bestRackLoad = Integer.MAX_VALUE;
+        for(Iterator<Task> it = pending.iterator(); it.hasNext();) {
+            Task task = it.next();
+            if(task.locations.isEmpty()) {
+                it.remove();
+                return task;
+            }
+            for(String location: task.locations) {
+                String host = hostOf(location);
+                int load = get(hostLoad, host);
+                int rackLoadHere = get(rackLoad, rackOf(location));
+                if(load >= maxPerHost) {
+                    continue;
+                }
+                if(load < bestHostLoad || (load == bestHostLoad && rackLoadHere < bestRackLoad)) {
+                    best = task;
+                    bestHost = location;
+                    bestHostLoad = load;
+                    bestRackLoad = rackLoadHere;
+                }
+            }
+            if(bestHostLoad == 0 && bestRackLoad == 0) {
+                break; // Can't do better than an idle host on an idle rack
+            }
+        }
+        if(best != null) {
+            pending.remove(best);
+            best.host = hostOf(bestHost);
+            best.rack = rackOf(bestHost);
+        }
+        return best;
+    }
+
+    static String hostOf(String location) {
+        return location.substring(location.lastIndexOf('/') + 1);
+    }
+
+    static String rackOf(String location) {
+        int slash = location.lastIndexOf('/');
+        return slash <= 0 ? "" : location.substring(0, slash);
+    }
+
+    private static int get(Map<String,Integer> loads, String key) {
+        Integer load = loads.get(key);
+        return load == null ? 0 : load;
+    }
+
+    private static void increment(Map<String,Integer> loads, String key) {
+        loads.put(key, get(loads, key) + 1);
+    }
+
+    private static void decrement(Map<String,Integer> loads, String key) {
+        int load = get(loads, key) - 1;
+        if(load <= 0) {
+            loads.remove(key);
+        } else {
+            loads.put(key, load);
+        }
+    }
+}
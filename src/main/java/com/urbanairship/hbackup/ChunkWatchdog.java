@@ -0,0 +1,395 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+/**
+ * Watches running chunk attempts to cut the long tail of a backup run, where a few chunks crawl along on
+ * a bad connection while everything else is done.
+ *
+ * Progress is measured as bytes read from the source, which the sink pulls as fast as it can send them.
+ * An attempt that reads less than stallBytesPerSec over a window of stallSeconds while it has a source
+ * stream open is stalled: its source streams start throwing, so the sink's request fails and ChunkRetryer
+ * retries it. An attempt of a HedgeableChunk that has run longer than the given percentile of finished
+ * attempts gets a duplicate attempt (a hedge) on a separate pool of threads, and whichever finishes first
+ * completes the chunk. The loser's source streams start throwing so that it stops soon.
+ *
+ * An attempt blocked on the network without reading the source can only be interrupted by the client's
+ * own socket timeout, but it can still be beaten by a hedge.
+ */
+public class ChunkWatchdog {
+    private static final Logger log = LogManager.getLogger(ChunkWatchdog.class);
+
+    private static final long CHECK_INTERVAL_MILLIS = 1000;
+    private static final int MIN_SAMPLES = 10; // Don't hedge until this many attempts have finished
+    private static final int MAX_SAMPLES = 1000; // Only the latest attempts count toward the percentile
+
+    private final int hedgePercentile;
+    private final int maxHedges;
+    private final long stallBytesPerSec;
+    private final long stallMillis;
+    private final Stats stats;
+    private final ThreadPoolExecutor hedgeExecutor; // Null if hedging is disabled
+    private final ScheduledExecutorService checker;
+    private final ThreadLocal<Attempt> currentAttempt = new ThreadLocal<Attempt>();
+
+    // Guarded by "this"
+    private final Set<Attempt> running = new HashSet<Attempt>();
+    private final long[] durations = new long[MAX_SAMPLES]; // Millis taken by finished hedgeable attempts
+    private int numDurations = 0;
+    private int hedgesRunning = 0;
+
+    private class Attempt {
+        final ChunkRetryer owner;
+        final RetryableChunk chunk;
+        final boolean isHedge;
+        final long startMillis = System.currentTimeMillis();
+        final AtomicLong bytesRead = new AtomicLong(0);
+        volatile String abortReason = null;
+
+        // Guarded by the ChunkWatchdog
+        int streamsReading = 0;
+        long windowStartMillis = startMillis;
+        long windowStartBytes = 0;
+        boolean hedged = false;
+
+        Attempt(ChunkRetryer owner, RetryableChunk chunk, boolean isHedge) {
+            this.owner = owner;
+            this.chunk = chunk;
+            this.isHedge = isHedge;
+        }
+    }
+
+    public ChunkWatchdog(HBackupConfig conf, Stats stats) {
+        this(conf.hedgePercentile, conf.maxHedges, conf.stallBytesPerSec, conf.stallSeconds * 1000L, stats);
+    }
+
+    ChunkWatchdog(int hedgePercentile, int maxHedges, long stallBytesPerSec, long stallMillis, Stats stats) {
+        this.hedgePercentile = hedgePercentile;
+        this.maxHedges = maxHedges;
+        this.stallBytesPerSec = stallBytesPerSec;
+        this.stallMillis = stallMillis;
+        this.stats = stats;
+        if(hedgePercentile > 0 && maxHedges > 0) {
+            this.hedgeExecutor = new ThreadPoolExecutor(maxHedges, maxHedges, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), Util.daemonThreadFactory("hedge"));
+            this.hedgeExecutor.allowCoreThreadTimeOut(true);
+        } else {
+            this.hedgeExecutor = null;
+        }
+        this.checker = Executors.newSingleThreadScheduledExecutor(Util.daemonThreadFactory("chunk-watchdog"));
+        this.checker.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    check();
+                } catch (RuntimeException e) {
+                    log.error("Chunk watchdog check failed", e);
+                }
+            }
+        }, CHECK_INTERVAL_MILLIS, CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return whether the config turns on hedging or stall detection.
+     */
+    public static boolean isEnabled(HBackupConfig conf) {
+        return (conf.hedgePercentile > 0 && conf.maxHedges > 0) || conf.stallBytesPerSec > 0;
+    }
+
+    /**
+     * Wrap a source file so that reads by chunk attempts are counted as their progress.
+     */
+    public SourceFile wrap(SourceFile sourceFile) {
+        return new WatchedSourceFile(sourceFile);
+    }
+
+    /**
+     * Run an attempt of a chunk on this thread, watching its progress.
+     */
+    StreamingXor run(ChunkRetryer owner, RetryableChunk chunk) throws IOException {
+        return runAttempt(new Attempt(owner, chunk, false));
+    }
+
+    private StreamingXor runAttempt(Attempt attempt) throws IOException {
+        synchronized(this) {
+            running.add(attempt);
+        }
+        currentAttempt.set(attempt);
+        boolean succeeded = false;
+        try {
+            StreamingXor checksum = attempt.chunk.run();
+            succeeded = true;
+            return checksum;
+        } finally {
+            currentAttempt.remove();
+            synchronized(this) {
+                running.remove(attempt);
+                if(attempt.isHedge) {
+                    hedgesRunning--;
+                }
+                if(succeeded && attempt.chunk instanceof HedgeableChunk && attempt.abortReason == null) {
+                    durations[numDurations % MAX_SAMPLES] = System.currentTimeMillis() - attempt.startMillis;
+                    numDurations++;
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Stop any attempts of the owner's chunk that are still running, since the chunk is done.
+     */
+    synchronized void chunkFinished(ChunkRetryer owner) {
+        for(Attempt attempt: running) {
+            if(attempt.owner == owner && attempt.abortReason == null) {
+                attempt.abortReason = "another attempt already finished the chunk";
+            }
+        }
+    }
+
+    /**
+     * Wait for any hedged attempts of the owner's chunk to finish.
+     */
+    synchronized void awaitHedges(ChunkRetryer owner) throws InterruptedException {
+        while(true) {
+            boolean found = false;
+            for(Attempt attempt: running) {
+                if(attempt.owner == owner && attempt.isHedge) {
+                    found = true;
+                    break;
+                }
+            }
+            if(!found) {
+                return;
+            }
+            wait();
+        }
+    }
+
+    /**
+     * Stop watching and wait for hedged attempts to finish.
+     */
+    public void shutdown() throws InterruptedException {
+        checker.shutdownNow();
+        if(hedgeExecutor != null) {
+            hedgeExecutor.shutdown();
+            hedgeExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+        }
+    }
+
+    private synchronized void check() {
+        long now = System.currentTimeMillis();
+        long hedgeAfterMillis = hedgeAfterMillis();
+        for(Attempt attempt: new ArrayList<Attempt>(running)) {
+            if(attempt.abortReason != null) {
+                continue;
+            }
+            if(stallBytesPerSec > 0) {
+                checkStalled(attempt, now);
+            }
+            if(hedgeAfterMillis >= 0 && attempt.abortReason == null && !attempt.isHedge && !attempt.hedged &&
+                    attempt.chunk instanceof HedgeableChunk && now - attempt.startMillis > hedgeAfterMillis &&
+                    hedgesRunning < maxHedges) {
+                hedge(attempt);
+            }
+        }
+    }
+
+    private void checkStalled(Attempt attempt, long now) {
+        long bytes = attempt.bytesRead.get();
+        if(attempt.streamsReading == 0) {
+            // Not reading the source (starting up, or waiting for the sink to finish), so start over
+            attempt.windowStartMillis = now;
+            attempt.windowStartBytes = bytes;
+            return;
+        }
+        long elapsed = now - attempt.windowStartMillis;
+        if(elapsed < stallMillis) {
+            return;
+        }
+        long bytesPerSec = (bytes - attempt.windowStartBytes) * 1000 / elapsed;
+        if(bytesPerSec < stallBytesPerSec) {
+            log.warn("Chunk of " + attempt.owner.getRelativePath() + " stalled at " + bytesPerSec +
+                    " bytes/sec, aborting the attempt");
+            attempt.abortReason = "stalled at " + bytesPerSec + " bytes/sec";
+            stats.numStalls.incrementAndGet();
+        } else {
+            attempt.windowStartMillis = now;
+            attempt.windowStartBytes = bytes;
+        }
+    }
+
+    /**
+     * @return how long an attempt can run before it's hedged, or -1 if there's no hedging yet.
+     */
+    private long hedgeAfterMillis() {
+        if(hedgeExecutor == null || numDurations < MIN_SAMPLES) {
+            return -1;
+        }
+        long[] sorted = Arrays.copyOf(durations, Math.min(numDurations, MAX_SAMPLES));
+        Arrays.sort(sorted);
+        int index = (int)Math.ceil(hedgePercentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    private void hedge(Attempt slow) {
+        log.info("Chunk of " + slow.owner.getRelativePath() + " has run for " +
+                (System.currentTimeMillis() - slow.startMillis) + "ms, starting a hedged attempt");
+        slow.hedged = true;
+        hedgesRunning++;
+        stats.numHedges.incrementAndGet();
+        final Attempt hedge = new Attempt(slow.owner, slow.chunk, true);
+        running.add(hedge); // So awaitHedges sees it before it starts
+        hedgeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                StreamingXor checksum;
+                try {
+                    checksum = runAttempt(hedge);
+                } catch (IOException e) {
+                    log.debug("Hedged attempt for " + hedge.owner.getRelativePath() + " failed", e);
+                    return;
+                }
+                if(hedge.owner.hedgeSucceeded(checksum)) {
+                    stats.numHedgesWon.incrementAndGet();
+                }
+            }
+        });
+    }
+
+    private synchronized void streamOpened(Attempt attempt) {
+        attempt.streamsReading++;
+    }
+
+    private synchronized void streamDone(Attempt attempt) {
+        attempt.streamsReading--;
+    }
+
+    private class WatchedSourceFile implements SourceFileWrapper {
+        private final SourceFile wrapped;
+
+        WatchedSourceFile(SourceFile wrapped) {
+            this.wrapped = wrapped;
+        }
+
+        @Override
+        public SourceFile getWrapped() {
+            return wrapped;
+        }
+
+        @Override
+        public InputStream getFullInputStream() throws IOException {
+            return watch(wrapped.getFullInputStream());
+        }
+
+        @Override
+        public InputStream getPartialInputStream(long offset, long len) throws IOException {
+            return watch(wrapped.getPartialInputStream(offset, len));
+        }
+
+        private InputStream watch(InputStream is) {
+            Attempt attempt = currentAttempt.get();
+            return attempt == null ? is : new WatchedInputStream(is, attempt);
+        }
+
+        @Override
+        public String getRelativePath() {
+            return wrapped.getRelativePath();
+        }
+
+        @Override
+        public long getMTime() throws IOException {
+            return wrapped.getMTime();
+        }
+
+        @Override
+        public long getLength() {
+            return wrapped.getLength();
+        }
+    }
+
+    /**
+     * Counts bytes read toward an attempt's progress, and fails reads once the attempt is aborted.
+     */
+    private class WatchedInputStream extends FilterInputStream {
+        private final Attempt attempt;
+        private boolean reading = true;
+
+        WatchedInputStream(InputStream in, Attempt attempt) {
+            super(in);
+            this.attempt = attempt;
+            streamOpened(attempt);
+        }
+
+        private void checkAborted() throws IOException {
+            String reason = attempt.abortReason;
+            if(reason != null) {
+                throw new IOException("Chunk attempt aborted: " + reason);
+            }
+        }
+
+        private void counted(long bytesRead) {
+            if(bytesRead == -1) {
+                stopReading();
+            } else {
+                attempt.bytesRead.addAndGet(bytesRead);
+            }
+        }
+
+        private void stopReading() {
+            if(reading) {
+                reading = false;
+                streamDone(attempt);
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            checkAborted();
+            int b = in.read();
+            counted(b == -1 ? -1 : 1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            checkAborted();
+            int bytesRead = in.read(b, off, len);
+            counted(bytesRead);
+            return bytesRead;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            checkAborted();
+            long skipped = in.skip(n);
+            counted(skipped);
+            return skipped;
+        }
+
+        @Override
+        public void close() throws IOException {
+            stopReading();
+            in.close();
+        }
+    }
+}
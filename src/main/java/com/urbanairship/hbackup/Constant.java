@@ -10,4 +10,45 @@ public class Constant {
     // since it was written.
     public static String S3_SOURCE_MTIME = "hbackup.sourcemtime";
     
+    // Objects uploaded with the multipart API have their part size stored under this metadata key, so
+    // later uploads can tell where the parts of the existing object begin and end.
+    public static String S3_PART_SIZE = "hbackup.partsize";
+    
+    // The per-part MD5s of a file are stored next to its checksum, under the checksum key plus this
+    // suffix. HDFS doesn't allow ':' in file names, so this can't collide with a backed up file.
+    public static String PART_DIGESTS_SUFFIX = ":partmd5s";
+    
+    // Dedup stores keep their content-addressed chunks under this prefix of the base name. Source
+    // listings skip it, so it mustn't be used as a backed up directory name.
+    public static String DEDUP_CHUNK_PREFIX = ".hbackup-chunks/";
+    
+    // When an S3 object's length isn't the length of its source file (dedup recipes, compressed
+    // objects), the source file's length is stored in its metadata under this key.
+    public static String S3_SOURCE_LENGTH = "hbackup.sourcelength";
+    
+    // Compressed S3 objects name their format in this metadata key. Objects without it are stored as-is.
+    public static String S3_COMPRESSION = "hbackup.compression";
+    public static String COMPRESSION_DEFLATE_FRAMES = "deflate-frames";
+    
+    // Packs of small files are stored under this prefix of the base name, each with an index object
+    // whose key is the pack's key plus PACK_INDEX_SUFFIX. Source listings read the indexes instead of
+    // returning the packs themselves.
+    public static String PACK_PREFIX = ".hbackup-packs/";
+    public static String PACK_INDEX_SUFFIX = ".idx";
+    
+    // While a growing file is being tailed into S3, the multipart upload holding what's been sent so far
+    // is recorded in an object under this prefix of the base name plus the file's relative path. Source
+    // listings skip it.
+    public static String TAIL_PREFIX = ".hbackup-tails/";
+    
+    // Snapshot stores keep their content-addressed data under DEDUP_CHUNK_PREFIX like dedup stores, and
+    // each snapshot's manifest under this prefix of the base name, named by the time the snapshot was taken.
+    public static String SNAPSHOT_PREFIX = ".hbackup-snapshots/";
+    
+    // An S3 store whose keys start with a hash-derived shard records its layout in an object with this name
+    // under the base name. Stores without it use plain paths as keys.
+    public static String S3_LAYOUT_KEY = ".hbackup-layout";
+    
+    // With hbackup.catalog, an S3 sink keeps a BackupCatalog of its files in objects under this prefix
+    public static String CATALOG_PREFIX = ".hbackup-catalog/";
 }
@@ -0,0 +1,144 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The list of content-addressed chunks that make up one file in a dedup store, along with the file's
+ * length and source mtime. The dedup sink writes one of these per file and the dedup source reads them
+ * to reassemble files.
+ *
+ * The serialized form is text, one item per line:
+ * <pre>
+ *   hbackup-recipe 1
+ *   length 12345
+ *   mtime 1337000000000
+ *   [chunk hash] [chunk length]
+ *   ...
+ * </pre>
+ */
+public class DedupRecipe {
+    private static final String HEADER = "hbackup-recipe 1";
+
+    private final long mtime;
+    private final List<String> chunkHashes = new ArrayList<String>();
+    private final List<Long> chunkOffsets = new ArrayList<Long>();
+    private long length = 0;
+
+    public DedupRecipe(long mtime) {
+        this.mtime = mtime;
+    }
+
+    public void addChunk(String hash, long chunkLength) {
+        chunkHashes.add(hash);
+        chunkOffsets.add(length);
+        length += chunkLength;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public long getMTime() {
+        return mtime;
+    }
+
+    public int getNumChunks() {
+        return chunkHashes.size();
+    }
+
+    public String getChunkHash(int i) {
+        return chunkHashes.get(i);
+    }
+
+    /**
+     * @return the offset in the file of the first byte of the given chunk.
+     */
+    public long getChunkOffset(int i) {
+        return chunkOffsets.get(i);
+    }
+
+    public long getChunkLength(int i) {
+        long end = (i == chunkHashes.size() - 1) ? length : chunkOffsets.get(i+1);
+        return end - chunkOffsets.get(i);
+    }
+
+    /**
+     * @return the index of the chunk containing the byte at the given offset, which must be less
+     * than the file length.
+     */
+    public int chunkIndexForOffset(long offset) {
+        int low = 0;
+        int high = chunkOffsets.size() - 1;
+        while(low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if(chunkOffsets.get(mid) <= offset) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    public byte[] toBytes() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(HEADER).append('\n');
+        sb.append("length ").append(length).append('\n');
+        sb.append("mtime ").append(mtime).append('\n');
+        for(int i=0; i<chunkHashes.size(); i++) {
+            sb.append(chunkHashes.get(i)).append(' ').append(getChunkLength(i)).append('\n');
+        }
+        try {
+            return sb.toString().getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e); // Every JVM has UTF-8
+        }
+    }
+
+    public static DedupRecipe parse(InputStream is) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(is, "UTF-8"));
+        if(!HEADER.equals(reader.readLine())) {
+            throw new IOException("Not an hbackup recipe, or unsupported version");
+        }
+        try {
+            long length = Long.parseLong(expectField(reader.readLine(), "length"));
+            long mtime = Long.parseLong(expectField(reader.readLine(), "mtime"));
+            DedupRecipe recipe = new DedupRecipe(mtime);
+            String line;
+            while((line = reader.readLine()) != null) {
+                if(line.length() == 0) {
+                    continue;
+                }
+                String[] fields = line.split(" ");
+                if(fields.length != 2) {
+                    throw new IOException("Malformed recipe line: " + line);
+                }
+                recipe.addChunk(fields[0], Long.parseLong(fields[1]));
+            }
+            if(recipe.getLength() != length) {
+                throw new IOException("Recipe chunks add up to " + recipe.getLength() +
+                        " bytes but the recipe length is " + length);
+            }
+            return recipe;
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed number in recipe", e);
+        }
+    }
+
+    private static String expectField(String line, String name) throws IOException {
+        if(line == null || !line.startsWith(name + " ")) {
+            throw new IOException("Expected \"" + name + "\" in recipe but got: " + line);
+        }
+        return line.substring(name.length() + 1);
+    }
+}
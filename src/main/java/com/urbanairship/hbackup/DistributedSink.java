@@ -0,0 +1,32 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A sink that can split the transfer of one file among several processes, for a coordinated backup. One
+ * process starts the transfer, any processes send its chunks, and one process commits it once every chunk
+ * has been sent.
+ */
+public interface DistributedSink {
+    /**
+     * Begin a transfer of the file.
+     * @return an ID that other processes use to join the transfer.
+     */
+    public String startTransfer(SourceFile file) throws IOException;
+    
+    /**
+     * @return the file's chunks, sent as part of the given transfer. Every process gets the same chunks for
+     * the same file. Committing them does nothing, since other processes may still be sending theirs.
+     */
+    public List<RetryableChunk> getTransferChunks(SourceFile file, String transferId);
+    
+    /**
+     * Finish the transfer, once every chunk has been sent by some process.
+     */
+    public void commitTransfer(SourceFile file, String transferId) throws IOException;
+}
@@ -9,6 +9,8 @@ import java.io.IOException;
 public class FileTransferState {
     private final SourceFile sourceFile;
     private final Stats stats;
+    private final SinkStats sinkStats; // Null if not counting per sink
+    private final boolean wholeFile; // False for this process's range of a file shared with others
     private final StreamingXor combinedChecksum = new StreamingXor(); 
     
     public enum State {PENDING, ERROR, CHUNKS_COMPLETE, COMMITTED};
@@ -16,9 +18,56 @@ public class FileTransferState {
     private int chunksOutstanding;
     
     public FileTransferState(SourceFile file, int numChunks, Stats stats) {
+        this(file, numChunks, stats, null);
+    }
+    
+    public FileTransferState(SourceFile file, int numChunks, Stats stats, SinkStats sinkStats) {
+        this(file, numChunks, stats, sinkStats, true);
+    }
+    
+    /**
+     * @param wholeFile false if the chunks are only part of the file, and the rest are sent by other
+     * processes or later on, once a growing file has more. The part counts as a range sent instead of a
+     * file copied.
+     */
+    public FileTransferState(SourceFile file, int numChunks, Stats stats, SinkStats sinkStats, 
+            boolean wholeFile) {
         this.sourceFile = file;
         this.stats = stats;
+        this.sinkStats = sinkStats;
+        this.wholeFile = wholeFile;
         this.chunksOutstanding = numChunks;
+        // Keep the source's shared handle open until the last chunk is done, instead of reopening per chunk
+        SharedHandleFile sharedHandle = sharedHandle(file);
+        if(numChunks > 0 && sharedHandle != null) {
+            sharedHandle.retainHandle();
+        }
+    }
+    
+    /**
+     * @return the outermost SharedHandleFile among the file and the files it wraps, or null if none.
+     */
+    private static SharedHandleFile sharedHandle(SourceFile file) {
+        while(true) {
+            if(file instanceof SharedHandleFile) {
+                return (SharedHandleFile)file;
+            }
+            if(!(file instanceof SourceFileWrapper)) {
+                return null;
+            }
+            file = ((SourceFileWrapper)file).getWrapped();
+        }
+    }
+    
+    /**
+     * Called with the lock held after each chunk finishes, however it finished.
+     */
+    private void chunkDone() {
+        chunksOutstanding--;
+        SharedHandleFile sharedHandle = sharedHandle(sourceFile);
+        if(chunksOutstanding == 0 && sharedHandle != null) {
+            sharedHandle.releaseHandle();
+        }
     }
     
     synchronized public State getState() {
@@ -44,10 +93,14 @@ public class FileTransferState {
             stats.fileFailureExceptions.add(e);
         }
         stats.numChunksFailed.incrementAndGet();
-        chunksOutstanding--;
+        chunkDone();
         if(state != State.ERROR) { 
             state = State.ERROR;
             stats.numFilesFailed.incrementAndGet();
+            if(sinkStats != null) {
+                sinkStats.numFilesFailed.incrementAndGet();
+            }
+            recordFailedPaths();
         } 
     }
     
@@ -61,7 +114,7 @@ public class FileTransferState {
             throw new RuntimeException("Invalid state " + state);
         }
         stats.numChunksSucceeded.incrementAndGet();
-        chunksOutstanding--;
+        chunkDone();
         if(chunksOutstanding == 0) {
             state = State.CHUNKS_COMPLETE;
             return true;
@@ -75,7 +128,37 @@ public class FileTransferState {
             throw new RuntimeException("Invalid state " + state);
         }
         stats.numChunksSkipped.incrementAndGet();
-        chunksOutstanding--;
+        chunkDone();
+    }
+    
+    /**
+     * All chunks were sent, but committing them failed.
+     */
+    synchronized public void commitFailed(IOException e) {
+        if(state != State.CHUNKS_COMPLETE) {
+            throw new RuntimeException("Invalid state " + state);
+        }
+        stats.fileFailureExceptions.add(e);
+        state = State.ERROR;
+        stats.numFilesFailed.incrementAndGet();
+        if(sinkStats != null) {
+            sinkStats.numFilesFailed.incrementAndGet();
+        }
+        recordFailedPaths();
+    }
+    
+    /**
+     * Record the paths of the source files that failed, which for a pack is all the files in it.
+     */
+    private void recordFailedPaths() {
+        SourceFile file = Spool.unwrap(sourceFile);
+        if(file instanceof PackSourceFile) {
+            for(SourceFile packed: ((PackSourceFile)file).getFiles()) {
+                stats.failedPaths.add(packed.getRelativePath());
+            }
+        } else {
+            stats.failedPaths.add(file.getRelativePath());
+        }
     }
     
     synchronized public void fileCommitted() {
@@ -83,7 +166,15 @@ public class FileTransferState {
             throw new RuntimeException("Invalid state " + state);
         }
         state = State.COMMITTED;
+        if(!wholeFile) {
+            stats.numRangesSucceeded.incrementAndGet();
+            return;
+        }
         stats.numFilesSucceeded.incrementAndGet();
+        if(sinkStats != null) {
+            sinkStats.numFilesSucceeded.incrementAndGet();
+            sinkStats.numBytesSent.addAndGet(sourceFile.getLength());
+        }
     }
     
     synchronized public String getCombinedChecksum() {
@@ -4,15 +4,16 @@ Copyright 2012 Urban Airship and Contributors
 
 package com.urbanairship.hbackup;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
@@ -21,6 +22,10 @@ import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
 
 import com.urbanairship.hbackup.HBackupConfig.OptHelp;
+import com.urbanairship.hbackup.coordinator.Coordinator;
+import com.urbanairship.hbackup.coordinator.Lease;
+import com.urbanairship.hbackup.coordinator.LeaseStore;
+import com.urbanairship.hbackup.datasinks.DedupS3Sink;
 
 // TODO:
 //  Allow non-recursive S3 sources
@@ -34,22 +39,37 @@ public class HBackup implements Runnable {
     private static final Logger log = LogManager.getLogger(HBackup.class);
         
     private final Source source;
-    private final Sink sink;
+    private final List<Sink> sinks;
+    private final List<SinkStats> sinkStats;
     private final ChecksumService checksumService;
     private final HBackupConfig conf;
     private final Stats stats;
+    private final Spool spool;
     
     public HBackup(HBackupConfig conf) throws URISyntaxException, IOException {
         this.conf = conf;
         this.stats = new Stats();
         this.source = Source.forUri(new URI(conf.from), conf);
-        this.sink = Sink.forUri(new URI(conf.to), conf, stats);
-        verifyConfiguration(conf);
         if(conf.checksumUri != null) {
             this.checksumService = ChecksumService.forUri(new URI(conf.checksumUri), conf);
         } else {
             this.checksumService = null;
         }
+        // The sinks store part digests in the same checksum service that the chunks store checksums in
+        this.sinks = new ArrayList<Sink>();
+        this.sinkStats = new ArrayList<SinkStats>();
+        for(URI uri: Sink.splitUris(conf.to)) {
+            sinks.add(Sink.forUri(uri, conf, stats, checksumService));
+            sinkStats.add(new SinkStats(uri.toString()));
+        }
+        verifyConfiguration(conf);
+        BufferPool.getInstance().setMaxBytes(conf.bufferPoolMaxBytes);
+        if(conf.spoolDir != null || conf.bufferRetryMaxBytes > 0) {
+            this.spool = new Spool(conf.spoolDir != null ? new File(conf.spoolDir) : null, conf.spoolMaxBytes, 
+                    conf.spoolReadThreads, conf.bufferRetryMaxBytes, BufferPool.getInstance(), stats);
+        } else {
+            this.spool = null;
+        }
     }
     
     @Override
@@ -62,67 +82,100 @@ public class HBackup implements Runnable {
     }
     
     public void runWithCheckedExceptions() throws IOException, InterruptedException {
-        BlockingQueue<Runnable> workQueue = new LinkedBlockingQueue<Runnable>();
-        
-        ThreadPoolExecutor executor = new ThreadPoolExecutor(conf.concurrentFiles, conf.concurrentFiles, 
-                Long.MAX_VALUE, TimeUnit.SECONDS, workQueue);
-        
-        Pattern p = null;
-        if(conf.includePathsRegex != null) {
-            log.debug("Using input path filter regex: " + conf.includePathsRegex);
-            p = Pattern.compile(conf.includePathsRegex);
+        runWithCheckedExceptions(null);
+    }
+    
+    /**
+     * @param namespaceState if not null, only send files that are new or changed since the last run with
+     * this state, and only list the source's directories that changed. The source must be an
+     * IncrementalSource. Files that fail are forgotten by the state, so the next run sends them again.
+     */
+    public void runWithCheckedExceptions(NamespaceState namespaceState) throws IOException, InterruptedException {
+        long startMillis = System.currentTimeMillis();
+        if(conf.coordinatorUri != null) {
+            runCoordinated();
+        } else if(namespaceState != null) {
+            if(!(source instanceof IncrementalSource)) {
+                throw new IOException("The source " + conf.from + " can't be listed incrementally");
+            }
+            transfer(((IncrementalSource)source).getChangedFiles(namespaceState, conf.recursive), 
+                    new ArrayList<Range>());
+            for(String relativePath: stats.failedPaths) {
+                namespaceState.forgetFile(relativePath);
+            }
+            log.info("Dirs listed:       " + namespaceState.getNumDirsListed() + " (" + 
+                    namespaceState.getNumDirsUnchanged() + " unchanged dirs not listed)");
         } else {
-            log.debug("Not configured for input path pattern matching, skipping");
-        }
-        
-        // Consider all files in the source
-        for (SourceFile file: source.getFiles(conf.recursive)) {
-            // Copy the file unless it's up to date in the sink
-            try {
-                String relativePath = file.getRelativePath(); 
-                
-                // If regex file filtering is configured, check whether this file should be backed up
-                if(p != null) {
-                    if(!p.matcher(relativePath).matches()) {
-                        log.debug("Skipping file " + relativePath + " because it didn't match regex " 
-                                + conf.includePathsRegex);
-                        continue;
-                    }
-                }
-                
-                if(sink.existsAndUpToDate(file)) {
-                    log.debug("Skipping file since the target is up to date: " + file.getRelativePath());
-                    stats.numUpToDateFilesSkipped.incrementAndGet();
-                    continue;
-                }
-                
-                // Ask the sink how the file should be chunked for transfer
-                List<RetryableChunk> chunks = sink.getChunks(file);
-                
-                log.debug("Queueing file for transfer: " + file.getRelativePath());
-                FileTransferState fileState = new FileTransferState(file, chunks.size(), stats);
-                for(RetryableChunk chunk: chunks) {
-                    // Enqueue each chunk for transfer
-                    executor.execute(new ChunkRetryer(fileState, chunk, checksumService,
-                            conf.numRetries, stats));
-                }
-
-            } catch (IOException e) {
-                log.error("Skipping file " + file.getRelativePath() + " due to exception", e);
-                stats.numFilesFailed.incrementAndGet();
+            List<SourceFile> files = source.getFiles(conf.recursive);
+            if(conf.detectMoves) {
+                new MoveDetector(conf, stats, checksumService).run(files, source.getTooNewPaths(), sinks, 
+                        getSinkUris());
+            }
+            transfer(files, new ArrayList<Range>());
+            if(conf.mirror) {
+                mirror(files);
             }
+            finishRun();
         }
-       
-        executor.shutdown();
-        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
         
         log.info("Files copied:      " + stats.numFilesSucceeded.get());
         log.info("Files skipped:     " + stats.numUpToDateFilesSkipped.get());
+        if(conf.s3PackThreshold > 0) {
+            log.info("Files packed:      " + stats.numFilesPacked.get());
+        }
+        if(conf.hdfsChecksumCompare) {
+            log.info("Mtimes updated:    " + stats.numMtimesUpdated.get());
+        }
         log.info("Files failed:      " + stats.numFilesFailed.get());
+        if(conf.detectMoves) {
+            log.info("Files moved:       " + stats.numFilesMoved.get() + " (" + stats.numBytesMoved.get() + 
+                    " bytes moved within the sinks instead of sent)");
+        }
+        if(conf.coordinatorUri != null || conf.tailPathsRegex != null) {
+            log.info("Ranges sent:       " + stats.numRangesSucceeded.get() + 
+                    " (parts of files shared with other workers, or of growing files)");
+        }
+        if(conf.mirror) {
+            log.info((conf.mirrorDryRun ? "Would delete:      " : "Files deleted:     ") + 
+                    stats.numMirrorDeletes.get() + " (" + stats.numMirrorDeletesFailed.get() + " failed)");
+        }
         log.info("Chunks copied:     " + stats.numChunksSucceeded.get());
         log.info("Chunks failed:     " + stats.numChunksFailed.get());
+        if(conf.s3DeltaUpload) {
+            log.info("S3 parts copied:   " + stats.numPartsCopied.get());
+        }
+        if(hasDedupSink()) {
+            log.info("Dedup chunks new:  " + stats.numDedupChunksStored.get());
+            log.info("Dedup chunks seen: " + stats.numDedupChunksReused.get());
+        }
+        if(conf.s3Compress) {
+            log.info("Files compressed:  " + stats.numFilesCompressed.get() + " (" + 
+                    stats.numBytesCompressedFrom.get() + " bytes to " + stats.numBytesCompressedTo.get() + ")");
+        }
+        if(spool != null) {
+            log.info("Bytes spooled:     " + stats.numBytesSpooled.get() + " to disk, " + 
+                    stats.numBytesBuffered.get() + " in memory (" + 
+                    stats.numSpoolReads.get() + " retries read from spool, " + 
+                    stats.numSpoolBypasses.get() + " chunks bypassed it)");
+        }
+        if(ChunkWatchdog.isEnabled(conf)) {
+            log.info("Chunks hedged:     " + stats.numHedges.get() + " (" + stats.numHedgesWon.get() + 
+                    " hedges won), " + stats.numStalls.get() + " stalled attempts aborted");
+        }
+        BufferPool.getInstance().logStats();
+        S3Clients.getInstance().logStats();
         log.info("Checksums saved:   " + stats.numChecksumsSucceeded.get());
         log.info("Checksums unsaved: " + stats.numChecksumsFailed.get());
+        if(sinks.size() > 1) {
+            long elapsedMillis = System.currentTimeMillis() - startMillis;
+            for(SinkStats s: sinkStats) {
+                log.info("Sink " + s.uri + ": " + s.numFilesSucceeded.get() + " files copied (" + 
+                        s.numBytesSent.get() + " bytes, " + s.getBytesPerSec(elapsedMillis) + " bytes/sec), " + 
+                        s.numUpToDateFilesSkipped.get() + " skipped, " + s.numFilesFailed.get() + " failed");
+            }
+            log.info("Fan-out reads:     " + stats.numFanOutBytesRead.get() + " bytes read once for all sinks, " + 
+                    stats.numFanOutBytesReread.get() + " bytes read again");
+        }
         
         // Re-throw the first exception seen by a worker thread, if any exceptions occurred
         if(!stats.fileFailureExceptions.isEmpty()) {
@@ -131,10 +184,448 @@ public class HBackup implements Runnable {
         }
     }
     
+    /**
+     * Send files that aren't up to date in the sinks, and ranges of files shared with other workers, and
+     * wait for them to finish.
+     */
+    private void transfer(List<SourceFile> files, List<Range> ranges) throws IOException, InterruptedException {
+        Workers executor = new Workers(conf);
+        
+        // With a per-datanode cap, chunks wait in the scheduler until their datanodes aren't too busy
+        ChunkScheduler scheduler = null;
+        if(conf.maxChunksPerDatanode > 0) {
+            scheduler = new ChunkScheduler(executor, executor.getConcurrency(), conf.maxChunksPerDatanode);
+        }
+        
+        ChunkWatchdog watchdog = null;
+        if(ChunkWatchdog.isEnabled(conf)) {
+            watchdog = new ChunkWatchdog(conf, stats);
+        }
+        
+        Pattern p = includePathsPattern();
+        Pattern tailPattern = conf.tailPathsRegex == null ? null : Pattern.compile(conf.tailPathsRegex);
+        
+        // Small files waiting to be sent together, for each sink that packs them
+        List<List<SourceFile>> packFiles = new ArrayList<List<SourceFile>>();
+        long[] packBytes = new long[sinks.size()];
+        for(int i=0; i<sinks.size(); i++) {
+            packFiles.add(new ArrayList<SourceFile>());
+        }
+        
+        // Consider all files in the source
+        for (SourceFile file: files) {
+            String relativePath = file.getRelativePath(); 
+            
+            // If regex file filtering is configured, check whether this file should be backed up
+            if(p != null) {
+                if(!p.matcher(relativePath).matches()) {
+                    log.debug("Skipping file " + relativePath + " because it didn't match regex " 
+                            + conf.includePathsRegex);
+                    continue;
+                }
+            }
+            
+            // Copy the file to each sink it isn't up to date in. Each sink decides for itself, and a
+            // failure in one sink doesn't stop the others.
+            List<Integer> sinksNeedingFile = new ArrayList<Integer>();
+            for(int i=0; i<sinks.size(); i++) {
+                Sink sink = sinks.get(i);
+                try {
+                    if(sink.existsAndUpToDate(file)) {
+                        log.debug("Skipping file since the target is up to date: " + relativePath);
+                        stats.numUpToDateFilesSkipped.incrementAndGet();
+                        sinkStats.get(i).numUpToDateFilesSkipped.incrementAndGet();
+                        continue;
+                    }
+                    
+                    if(tailPattern != null && tailPattern.matcher(relativePath).matches() && 
+                            queueTail(executor, scheduler, watchdog, i, file)) {
+                        continue;
+                    }
+                    
+                    if(sink.shouldPack(file)) {
+                        packFiles.get(i).add(file);
+                        packBytes[i] += file.getLength();
+                        if(packBytes[i] >= conf.s3PackSize) {
+                            queueFile(executor, scheduler, watchdog, i, sink.makePack(packFiles.get(i)));
+                            packFiles.set(i, new ArrayList<SourceFile>());
+                            packBytes[i] = 0;
+                        }
+                        continue;
+                    }
+                    
+                    sinksNeedingFile.add(i);
+                } catch (IOException e) {
+                    log.error("Skipping file " + relativePath + " for sink " + sinkStats.get(i).uri + 
+                            " due to exception", e);
+                    stats.numFilesFailed.incrementAndGet();
+                    stats.failedPaths.add(relativePath);
+                    sinkStats.get(i).numFilesFailed.incrementAndGet();
+                }
+            }
+            
+            if(sinksNeedingFile.size() == 1) {
+                queueFile(executor, scheduler, watchdog, sinksNeedingFile.get(0), file);
+            } else if(sinksNeedingFile.size() > 1) {
+                // Read the file once, and give each sink its own view of what was read
+                Tee tee = new Tee(file, sinksNeedingFile.size(), conf.fanoutSegmentSize, 
+                        BufferPool.getInstance(), stats);
+                for(int j=0; j<sinksNeedingFile.size(); j++) {
+                    queueFile(executor, scheduler, watchdog, sinksNeedingFile.get(j), tee.getFile(j));
+                }
+            }
+        }
+        for(int i=0; i<sinks.size(); i++) {
+            if(!packFiles.get(i).isEmpty()) {
+                queueFile(executor, scheduler, watchdog, i, sinks.get(i).makePack(packFiles.get(i)));
+            }
+        }
+        for(Range range: ranges) {
+            queueRange(executor, scheduler, watchdog, range);
+        }
+       
+        if(scheduler != null) {
+            scheduler.awaitIdle();
+        }
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+        if(watchdog != null) {
+            watchdog.shutdown();
+        }
+    }
+    
     public Stats getStats() {
         return stats;
     }
+    
+    /**
+     * @return counters for each sink, in the order they're listed in hbackup.to.
+     */
+    public List<SinkStats> getSinkStats() {
+        return sinkStats;
+    }
 
+    private void queueFile(Workers executor, ChunkScheduler scheduler, ChunkWatchdog watchdog, int sinkIndex,
+            SourceFile file) {
+        Sink sink = sinks.get(sinkIndex);
+        // Packs are read into memory by the sink, so there's nothing to gain from spooling or watching them
+        if(!(file instanceof PackSourceFile)) {
+            file = wrap(file, watchdog);
+        }
+        
+        // Ask the sink how the file should be chunked for transfer
+        List<RetryableChunk> chunks = sink.getChunks(file);
+        
+        log.debug("Queueing file for transfer: " + file.getRelativePath());
+        FileTransferState fileState = new FileTransferState(file, chunks.size(), stats, 
+                sinkStats.get(sinkIndex));
+        queueChunks(executor, scheduler, watchdog, fileState, chunks, checksumService);
+    }
+    
+    /**
+     * Delete files that aren't in the source from the sinks. Files too new to back up are still in the
+     * source, so they're kept.
+     */
+    private void mirror(List<SourceFile> files) throws InterruptedException {
+        List<String> sourcePaths = new ArrayList<String>(source.getTooNewPaths());
+        for(SourceFile file: files) {
+            sourcePaths.add(file.getRelativePath());
+        }
+        new Mirror(conf, stats).run(sourcePaths, sinks, getSinkUris());
+    }
+    
+    private List<String> getSinkUris() {
+        List<String> sinkUris = new ArrayList<String>();
+        for(SinkStats s: sinkStats) {
+            sinkUris.add(s.uri);
+        }
+        return sinkUris;
+    }
+    
+    /**
+     * @return whether any sink is a dedup store, including snapshot stores, which count dedup chunks.
+     */
+    private boolean hasDedupSink() {
+        for(Sink sink: sinks) {
+            if(sink instanceof DedupS3Sink) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Tell each sink that the full run is over, for sinks that record something about the run as a whole.
+     */
+    private void finishRun() {
+        for(int i=0; i<sinks.size(); i++) {
+            try {
+                sinks.get(i).runFinished(source.getTooNewPaths(), sinkStats.get(i).numFilesFailed.get() == 0);
+            } catch (IOException e) {
+                log.error("Couldn't finish the run for sink " + sinkStats.get(i).uri, e);
+                stats.fileFailureExceptions.add(e);
+            }
+        }
+    }
+    
+    /**
+     * Queue what a sink wants to send now of a file that may still be growing. Sinks that can't tail a file
+     * leave it until it's older than hbackup.mtimeAgeMillis, like any other file.
+     * @return false if the file should be sent like any other file instead.
+     */
+    private boolean queueTail(Workers executor, ChunkScheduler scheduler, ChunkWatchdog watchdog, 
+            int sinkIndex, SourceFile file) throws IOException {
+        Sink sink = sinks.get(sinkIndex);
+        if(!(sink instanceof TailSink)) {
+            return System.currentTimeMillis() - file.getMTime() < conf.mtimeAgeMillis;
+        }
+        file = wrap(file, watchdog);
+        TailSink.Tail tail = ((TailSink)sink).getTail(file);
+        if(tail == null) {
+            return false;
+        }
+        if(!tail.chunks.isEmpty()) {
+            log.debug("Queueing " + tail.chunks.size() + " chunks of " + (tail.finished ? "finished" : "growing") + 
+                    " file " + file.getRelativePath() + " for transfer");
+            FileTransferState fileState = new FileTransferState(file, tail.chunks.size(), stats, 
+                    sinkStats.get(sinkIndex), tail.finished);
+            // Only a finished tail's chunks add up to the xor of the whole file
+            queueChunks(executor, scheduler, watchdog, fileState, tail.chunks, 
+                    tail.finished ? checksumService : null);
+        }
+        return true;
+    }
+    
+    /**
+     * Queue this worker's range of the chunks of a file shared with other workers. There's no checksum to
+     * save, since the range's xor is only part of the file's.
+     */
+    private void queueRange(Workers executor, ChunkScheduler scheduler, ChunkWatchdog watchdog, Range range) {
+        SourceFile file = wrap(range.file, watchdog);
+        List<RetryableChunk> chunks = ((DistributedSink)sinks.get(0)).getTransferChunks(file, 
+                range.item.transferId);
+        int first = Math.min(chunks.size(), range.item.firstChunk);
+        chunks = chunks.subList(first, Math.min(chunks.size(), first + range.item.numChunks));
+        
+        log.debug("Queueing chunks " + first + " to " + (first + chunks.size() - 1) + " of " + 
+                file.getRelativePath() + " for transfer");
+        range.state = new FileTransferState(file, chunks.size(), stats, null, false);
+        queueChunks(executor, scheduler, watchdog, range.state, chunks, null);
+    }
+    
+    private SourceFile wrap(SourceFile file, ChunkWatchdog watchdog) {
+        if(spool != null) {
+            file = spool.wrap(file);
+        }
+        // Outside the spool, so progress is what the sink reads, whether from the spool or the source
+        if(watchdog != null) {
+            file = watchdog.wrap(file);
+        }
+        return file;
+    }
+    
+    private void queueChunks(Workers executor, ChunkScheduler scheduler, ChunkWatchdog watchdog, 
+            FileTransferState fileState, List<RetryableChunk> chunks, ChecksumService checksumService) {
+        long length = fileState.getSourceFile().getLength();
+        long bytesPerChunk = chunks.isEmpty() ? 0 : (length + chunks.size() - 1) / chunks.size();
+        for(RetryableChunk chunk: chunks) {
+            // Enqueue each chunk for transfer
+            Runnable retryer = new ChunkRetryer(fileState, chunk, checksumService, conf.numRetries, stats, 
+                    watchdog);
+            if(spool != null) {
+                retryer = spool.wrap(retryer);
+            }
+            retryer = executor.withBytes(retryer, bytesPerChunk);
+            if(scheduler != null) {
+                List<String> locations = null;
+                if(chunk instanceof LocatedChunk) {
+                    locations = ((LocatedChunk)chunk).getLocations();
+                }
+                scheduler.submit(retryer, locations);
+            } else {
+                executor.execute(retryer);
+            }
+        }
+    }
+    
+    private Pattern includePathsPattern() {
+        if(conf.includePathsRegex != null) {
+            log.debug("Using input path filter regex: " + conf.includePathsRegex);
+            return Pattern.compile(conf.includePathsRegex);
+        } else {
+            log.debug("Not configured for input path pattern matching, skipping");
+            return null;
+        }
+    }
+    
+    /**
+     * A range of a file's chunks that this worker sends as part of a transfer shared with other workers.
+     */
+    private static class Range {
+        final SourceFile file;
+        final Lease.Item item;
+        FileTransferState state; // Set once the range is queued
+        
+        Range(SourceFile file, Lease.Item item) {
+            this.file = file;
+            this.item = item;
+        }
+    }
+    
+    /**
+     * Share the run with other processes through the lease store. One process plans the run, and each
+     * process sends the files of whatever leases it claims until every lease is done.
+     */
+    private void runCoordinated() throws IOException, InterruptedException {
+        LeaseStore store;
+        try {
+            store = LeaseStore.forUri(new URI(conf.coordinatorUri), conf);
+        } catch (URISyntaxException e) {
+            throw new IOException(e);
+        }
+        Coordinator coordinator = new Coordinator(store, conf.coordinatorRunId, 
+                TimeUnit.SECONDS.toMillis(conf.coordinatorLeaseSeconds));
+        try {
+            if(coordinator.awaitPlan()) {
+                coordinator.publish(planLeases());
+            }
+            
+            Map<String,SourceFile> files = new HashMap<String,SourceFile>();
+            for(SourceFile file: source.getFiles(conf.recursive)) {
+                files.put(file.getRelativePath(), file);
+            }
+            
+            while(!coordinator.isFinished()) {
+                Lease lease = coordinator.claimNext();
+                if(lease == null) {
+                    // The rest are held by other workers, which may yet die and let them go
+                    coordinator.sleep();
+                    continue;
+                }
+                runLease(coordinator, lease, files);
+            }
+        } finally {
+            coordinator.close();
+        }
+    }
+    
+    private void runLease(Coordinator coordinator, Lease lease, Map<String,SourceFile> files) 
+            throws IOException, InterruptedException {
+        log.debug("Running lease " + lease.getId());
+        List<SourceFile> wholeFiles = new ArrayList<SourceFile>();
+        List<Range> ranges = new ArrayList<Range>();
+        for(Lease.Item item: lease.getItems()) {
+            SourceFile file = files.get(item.relativePath);
+            if(file == null) {
+                log.warn("Skipping " + item.relativePath + " in lease " + lease.getId() + 
+                        ", it's no longer in the source");
+                continue;
+            }
+            if(item.isRange()) {
+                ranges.add(new Range(file, item));
+            } else {
+                wholeFiles.add(file);
+            }
+        }
+        
+        transfer(wholeFiles, ranges);
+        
+        // The worker that sends a file's last range commits the file
+        for(Range range: ranges) {
+            if(range.state.getState() != FileTransferState.State.COMMITTED || !coordinator.rangeDone(range.item)) {
+                continue;
+            }
+            try {
+                ((DistributedSink)sinks.get(0)).commitTransfer(range.file, range.item.transferId);
+                stats.numFilesSucceeded.incrementAndGet();
+                sinkStats.get(0).numFilesSucceeded.incrementAndGet();
+                sinkStats.get(0).numBytesSent.addAndGet(range.file.getLength());
+            } catch (IOException e) {
+                log.error("Failed committing shared transfer of " + range.file.getRelativePath(), e);
+                stats.numFilesFailed.incrementAndGet();
+                sinkStats.get(0).numFilesFailed.incrementAndGet();
+                stats.fileFailureExceptions.add(e);
+            }
+        }
+        coordinator.complete(lease);
+    }
+    
+    /**
+     * Decide which files need sending, and group them into leases of about conf.coordinatorLeaseBytes. A
+     * file bigger than that is split into ranges of its chunks, one per lease, if the sink can share its
+     * transfer among workers.
+     */
+    private List<List<Lease.Item>> planLeases() throws IOException {
+        Pattern p = includePathsPattern();
+        List<List<Lease.Item>> plan = new ArrayList<List<Lease.Item>>();
+        List<Lease.Item> current = new ArrayList<Lease.Item>();
+        long currentBytes = 0;
+        DistributedSink distributedSink = null;
+        if(sinks.size() == 1 && sinks.get(0) instanceof DistributedSink) {
+            distributedSink = (DistributedSink)sinks.get(0);
+        }
+        
+        for(SourceFile file: source.getFiles(conf.recursive)) {
+            String relativePath = file.getRelativePath();
+            if(p != null && !p.matcher(relativePath).matches()) {
+                continue;
+            }
+            if(isUpToDateEverywhere(file)) {
+                log.debug("Not planning file since the target is up to date: " + relativePath);
+                stats.numUpToDateFilesSkipped.incrementAndGet();
+                continue;
+            }
+            
+            if(distributedSink != null && file.getLength() > conf.coordinatorLeaseBytes) {
+                try {
+                    String transferId = distributedSink.startTransfer(file);
+                    int numChunks = distributedSink.getTransferChunks(file, transferId).size();
+                    int chunksPerRange = (int)Math.max(1, 
+                            numChunks * conf.coordinatorLeaseBytes / file.getLength());
+                    int numRanges = (numChunks + chunksPerRange - 1) / chunksPerRange;
+                    for(int first=0; first<numChunks; first+=chunksPerRange) {
+                        plan.add(Arrays.asList(new Lease.Item(relativePath, transferId, first, 
+                                Math.min(chunksPerRange, numChunks - first), numRanges)));
+                    }
+                } catch (IOException e) {
+                    log.error("Skipping file " + relativePath + ", couldn't start its shared transfer", e);
+                    stats.numFilesFailed.incrementAndGet();
+                    sinkStats.get(0).numFilesFailed.incrementAndGet();
+                }
+                continue;
+            }
+            
+            current.add(new Lease.Item(relativePath));
+            currentBytes += file.getLength();
+            if(currentBytes >= conf.coordinatorLeaseBytes) {
+                plan.add(current);
+                current = new ArrayList<Lease.Item>();
+                currentBytes = 0;
+            }
+        }
+        if(!current.isEmpty()) {
+            plan.add(current);
+        }
+        return plan;
+    }
+    
+    /**
+     * @return whether no sink needs the file. A sink that can't tell needs it, and the worker sending it
+     * will report the error.
+     */
+    private boolean isUpToDateEverywhere(SourceFile file) {
+        for(Sink sink: sinks) {
+            try {
+                if(!sink.existsAndUpToDate(file)) {
+                    return false;
+                }
+            } catch (IOException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
     public static void main(String[] args) throws Exception {
         if(Arrays.asList(args).contains("--usage")) {
             System.err.println(usage());
@@ -6,6 +6,8 @@ package com.urbanairship.hbackup;
 
 import java.io.File;
 import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.concurrent.TimeUnit;
 
@@ -45,6 +47,47 @@ public class HBackupConfig {
     public static final String CONF_BACKUPINTERVAL = "hbackup.intervalMins";
     public static final String CONF_STALECHECKINTERVAL = "hbackup.stalecheck.intervalMins";
     public static final String CONF_MTIME_AGE_MILLIS = "hbackup.mtimeAgeMillis";
+    public static final String CONF_VERIFYETAGS = "hbackup.checksum.verifyEtags";
+    public static final String CONF_HDFSCHECKSUMCOMPARE = "hbackup.hdfs.checksumCompare";
+    public static final String CONF_S3DELTAUPLOAD = "hbackup.s3.deltaUpload";
+    public static final String CONF_DEDUPTHREADS = "hbackup.dedup.threads";
+    public static final String CONF_S3COMPRESS = "hbackup.s3.compress";
+    public static final String CONF_S3PACKTHRESHOLD = "hbackup.s3.packThreshold";
+    public static final String CONF_S3PACKSIZE = "hbackup.s3.packSize";
+    public static final String CONF_LOCALCHUNKSIZE = "hbackup.local.chunkSize";
+    public static final String CONF_SPOOLDIR = "hbackup.spool.dir";
+    public static final String CONF_SPOOLMAXBYTES = "hbackup.spool.maxBytes";
+    public static final String CONF_SPOOLREADTHREADS = "hbackup.spool.readThreads";
+    public static final String CONF_BUFFERPOOLMAXBYTES = "hbackup.buffers.maxBytes";
+    public static final String CONF_BUFFERRETRYMAXBYTES = "hbackup.buffers.retryMaxBytes";
+    public static final String CONF_READAHEADBYTES = "hbackup.readAhead.bytes";
+    public static final String CONF_READAHEADTHREADS = "hbackup.readAhead.threads";
+    public static final String CONF_S3ALIGNTOBLOCKS = "hbackup.s3.alignToBlocks";
+    public static final String CONF_MAXCHUNKSPERDATANODE = "hbackup.hdfs.maxChunksPerDatanode";
+    public static final String CONF_HEDGEPERCENTILE = "hbackup.hedge.percentile";
+    public static final String CONF_MAXHEDGES = "hbackup.hedge.max";
+    public static final String CONF_STALLBYTESPERSEC = "hbackup.stall.minBytesPerSec";
+    public static final String CONF_STALLSECONDS = "hbackup.stall.seconds";
+    public static final String CONF_VIRTUALTHREADS = "hbackup.virtualThreads";
+    public static final String CONF_MAXREQUESTS = "hbackup.virtualThreads.maxRequests";
+    public static final String CONF_MAXBYTESINFLIGHT = "hbackup.virtualThreads.maxBytesInFlight";
+    public static final String CONF_FANOUT_SEGMENT_SIZE = "hbackup.fanout.segmentSize";
+    public static final String CONF_COORDINATOR_URI = "hbackup.coordinator.uri";
+    public static final String CONF_COORDINATOR_RUN_ID = "hbackup.coordinator.runId";
+    public static final String CONF_COORDINATOR_LEASE_SECONDS = "hbackup.coordinator.leaseSeconds";
+    public static final String CONF_COORDINATOR_LEASE_BYTES = "hbackup.coordinator.leaseBytes";
+    public static final String CONF_CONTINUOUS = "hbackup.continuous";
+    public static final String CONF_CONTINUOUS_POLLSECONDS = "hbackup.continuous.pollSeconds";
+    public static final String CONF_TAIL_PATHS_REGEX = "hbackup.tail.pathsRegex";
+    public static final String CONF_TAIL_QUIET_MILLIS = "hbackup.tail.quietMillis";
+    public static final String CONF_MIRROR = "hbackup.mirror";
+    public static final String CONF_MIRROR_DRYRUN = "hbackup.mirror.dryRun";
+    public static final String CONF_MIRROR_MAXDELETEPERCENT = "hbackup.mirror.maxDeletePercent";
+    public static final String CONF_SNAPSHOT_ID = "hbackup.snapshot.id";
+    public static final String CONF_DETECT_MOVES = "hbackup.moves";
+    public static final String CONF_MOVES_MINBYTES = "hbackup.moves.minBytes";
+    public static final String CONF_S3_KEY_SHARD_CHARS = "hbackup.s3.keyShardChars";
+    public static final String CONF_CATALOG = "hbackup.catalog";
 
     public static final int DEFAULT_CONCURRENT_FILES = 5;
     public static final long DEFAULT_S3_PART_SIZE = 100 * 1024 * 1024;
@@ -54,6 +97,43 @@ public class HBackupConfig {
     public static final int DEFAULT_CHUNKRETRIES = 4;
     public static final long DEFAULT_STALEMILLIS = TimeUnit.DAYS.toMillis(1);
     public static final long DEFAULT_MTIME_AGE_MILLIS = TimeUnit.DAYS.toMillis(1);
+    public static final boolean DEFAULT_VERIFYETAGS = false;
+    public static final boolean DEFAULT_HDFSCHECKSUMCOMPARE = false;
+    public static final boolean DEFAULT_S3DELTAUPLOAD = false;
+    public static final int DEFAULT_DEDUP_THREADS = 8;
+    public static final boolean DEFAULT_S3COMPRESS = false;
+    public static final long DEFAULT_S3_PACK_THRESHOLD = 0;
+    public static final long DEFAULT_S3_PACK_SIZE = 32 * 1024 * 1024;
+    public static final long DEFAULT_LOCAL_CHUNK_SIZE = 64 * 1024 * 1024;
+    public static final long DEFAULT_SPOOL_MAX_BYTES = 10L * 1024 * 1024 * 1024;
+    public static final int DEFAULT_SPOOL_READ_THREADS = 0;
+    public static final long DEFAULT_BUFFER_POOL_MAX_BYTES = 256L * 1024 * 1024;
+    public static final long DEFAULT_BUFFER_RETRY_MAX_BYTES = 0;
+    public static final long DEFAULT_READ_AHEAD_BYTES = 0;
+    public static final int DEFAULT_READ_AHEAD_THREADS = 16;
+    public static final boolean DEFAULT_S3ALIGNTOBLOCKS = false;
+    public static final int DEFAULT_MAX_CHUNKS_PER_DATANODE = 0;
+    public static final int DEFAULT_HEDGE_PERCENTILE = 0;
+    public static final int DEFAULT_MAX_HEDGES = 4;
+    public static final long DEFAULT_STALL_BYTES_PER_SEC = 0;
+    public static final int DEFAULT_STALL_SECONDS = 30;
+    public static final boolean DEFAULT_VIRTUAL_THREADS = false;
+    public static final int DEFAULT_MAX_REQUESTS = 1000;
+    public static final long DEFAULT_MAX_BYTES_IN_FLIGHT = 1024L * 1024 * 1024;
+    public static final long DEFAULT_FANOUT_SEGMENT_SIZE = 8L * 1024 * 1024;
+    public static final int DEFAULT_COORDINATOR_LEASE_SECONDS = 300;
+    public static final long DEFAULT_COORDINATOR_LEASE_BYTES = 1024L * 1024 * 1024;
+    public static final boolean DEFAULT_CONTINUOUS = false;
+    public static final int DEFAULT_CONTINUOUS_POLL_SECONDS = 60;
+    public static final long DEFAULT_TAIL_QUIET_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    public static final boolean DEFAULT_MIRROR = false;
+    public static final boolean DEFAULT_MIRROR_DRY_RUN = false;
+    public static final int DEFAULT_MIRROR_MAX_DELETE_PERCENT = 10;
+    public static final String DEFAULT_SNAPSHOT_ID = null;
+    public static final boolean DEFAULT_DETECT_MOVES = false;
+    public static final long DEFAULT_MOVES_MIN_BYTES = 1024 * 1024;
+    public static final int DEFAULT_S3_KEY_SHARD_CHARS = 0;
+    public static final boolean DEFAULT_CATALOG = false;
 
     // Config values
     public final String from;
@@ -75,9 +155,51 @@ public class HBackupConfig {
     public final int backupIntervalMinutes;
     public final int staleCheckIntervalMinutes;
     public final long mtimeAgeMillis;
+    public final boolean verifyEtags;
+    public final boolean hdfsChecksumCompare;
+    public final boolean s3DeltaUpload;
+    public final int dedupThreads;
+    public final boolean s3Compress;
+    public final long s3PackThreshold;
+    public final long s3PackSize;
+    public final long localChunkSize;
+    public final String spoolDir;
+    public final long spoolMaxBytes;
+    public final int spoolReadThreads;
+    public final long bufferPoolMaxBytes;
+    public final long bufferRetryMaxBytes;
+    public final long readAheadBytes;
+    public final int readAheadThreads;
+    public final boolean s3AlignToBlocks;
+    public final int maxChunksPerDatanode;
+    public final int hedgePercentile;
+    public final int maxHedges;
+    public final long stallBytesPerSec;
+    public final int stallSeconds;
+    public final boolean virtualThreads;
+    public final int maxRequests;
+    public final long maxBytesInFlight;
+    public final long fanoutSegmentSize;
+    public final String coordinatorUri;
+    public final String coordinatorRunId;
+    public final int coordinatorLeaseSeconds;
+    public final long coordinatorLeaseBytes;
+    public final boolean continuous;
+    public final int continuousPollSeconds;
+    public final String tailPathsRegex;
+    public final long tailQuietMillis;
+    public final boolean mirror;
+    public final boolean mirrorDryRun;
+    public final int mirrorMaxDeletePercent;
+    public final String snapshotId;
+    public final boolean detectMoves;
+    public final long movesMinBytes;
+    public final int s3KeyShardChars;
+    public final boolean catalog;
 
     /**
-     * See {@link #optHelps} for an explanation of the parameters.
+     * A config with the given options and every other option at its default. {@link #builder(String, String)}
+     * can set any option. See {@link #optHelps} for an explanation of the parameters.
      */
     public HBackupConfig(String from, String to, int concurrentFiles, boolean recursive, 
             String sourceS3AccessKey, String sourceS3Secret, String sinkS3AccessKey, String sinkS3Secret,
@@ -86,7 +208,86 @@ public class HBackupConfig {
             String checksumUri, int chunkRetries, String checksumS3AccessKey, String checksumS3Secret,
             String fallbackS3AccessKey, String fallbackS3Secret, long staleMillis, int backupIntervalMinutes,
             int staleCheckIntervalMinutes, long mtimeAgeMillis) {
-        
+        this(builder(from, to)
+                .concurrentFiles(concurrentFiles)
+                .recursive(recursive)
+                .sourceS3Credentials(sourceS3AccessKey, sourceS3Secret)
+                .sinkS3Credentials(sinkS3AccessKey, sinkS3Secret)
+                .s3PartSize(s3PartSize)
+                .s3MultipartThreshold(s3MultipartThreshold)
+                .hdfsSourceConf(hdfsSourceConf)
+                .hdfsSinkConf(hdfsSinkConf)
+                .mtimeCheck(mtimeCheck)
+                .includePathsRegex(includePathsRegex)
+                .checksumUri(checksumUri)
+                .numRetries(chunkRetries)
+                .checksumS3Credentials(checksumS3AccessKey, checksumS3Secret)
+                .fallbackS3Credentials(fallbackS3AccessKey, fallbackS3Secret)
+                .stalenessMillis(staleMillis)
+                .backupIntervalMinutes(backupIntervalMinutes)
+                .staleCheckIntervalMinutes(staleCheckIntervalMinutes)
+                .mtimeAgeMillis(mtimeAgeMillis));
+    }
+
+    private HBackupConfig(Builder b) {
+        this.from = b.from;
+        this.to = b.to;
+        this.concurrentFiles = b.concurrentFiles;
+        this.recursive = b.recursive;
+        this.s3PartSize = b.s3PartSize;
+        this.s3MultipartThreshold = b.s3MultipartThreshold;
+        this.hdfsSourceConf = b.hdfsSourceConf;
+        this.hdfsSinkConf = b.hdfsSinkConf;
+        this.mtimeCheck = b.mtimeCheck;
+        this.includePathsRegex = b.includePathsRegex;
+        this.checksumUri = b.checksumUri;
+        this.numRetries = b.numRetries;
+        this.stalenessMillis = b.stalenessMillis;
+        this.backupIntervalMinutes = b.backupIntervalMinutes;
+        this.staleCheckIntervalMinutes = b.staleCheckIntervalMinutes;
+        this.mtimeAgeMillis = b.mtimeAgeMillis;
+        this.verifyEtags = b.verifyEtags;
+        this.hdfsChecksumCompare = b.hdfsChecksumCompare;
+        this.s3DeltaUpload = b.s3DeltaUpload;
+        this.dedupThreads = b.dedupThreads;
+        this.s3Compress = b.s3Compress;
+        this.s3PackThreshold = b.s3PackThreshold;
+        this.s3PackSize = b.s3PackSize;
+        this.localChunkSize = b.localChunkSize;
+        this.spoolDir = b.spoolDir;
+        this.spoolMaxBytes = b.spoolMaxBytes;
+        this.spoolReadThreads = b.spoolReadThreads;
+        this.bufferPoolMaxBytes = b.bufferPoolMaxBytes;
+        this.bufferRetryMaxBytes = b.bufferRetryMaxBytes;
+        this.readAheadBytes = b.readAheadBytes;
+        this.readAheadThreads = b.readAheadThreads;
+        this.s3AlignToBlocks = b.s3AlignToBlocks;
+        this.maxChunksPerDatanode = b.maxChunksPerDatanode;
+        this.hedgePercentile = b.hedgePercentile;
+        this.maxHedges = b.maxHedges;
+        this.stallBytesPerSec = b.stallBytesPerSec;
+        this.stallSeconds = b.stallSeconds;
+        this.virtualThreads = b.virtualThreads;
+        this.maxRequests = b.maxRequests;
+        this.maxBytesInFlight = b.maxBytesInFlight;
+        this.fanoutSegmentSize = b.fanoutSegmentSize;
+        this.coordinatorUri = b.coordinatorUri;
+        this.coordinatorRunId = b.coordinatorRunId;
+        this.coordinatorLeaseSeconds = b.coordinatorLeaseSeconds;
+        this.coordinatorLeaseBytes = b.coordinatorLeaseBytes;
+        this.continuous = b.continuous;
+        this.continuousPollSeconds = b.continuousPollSeconds;
+        this.tailPathsRegex = b.tailPathsRegex;
+        this.tailQuietMillis = b.tailQuietMillis;
+        this.mirror = b.mirror;
+        this.mirrorDryRun = b.mirrorDryRun;
+        this.mirrorMaxDeletePercent = b.mirrorMaxDeletePercent;
+        this.snapshotId = b.snapshotId;
+        this.detectMoves = b.detectMoves;
+        this.movesMinBytes = b.movesMinBytes;
+        this.s3KeyShardChars = b.s3KeyShardChars;
+        this.catalog = b.catalog;
+
         if(s3PartSize < MultipartUtils.MIN_PART_SIZE || s3PartSize > MultipartUtils.MAX_OBJECT_SIZE) {
             throw new IllegalArgumentException("s3PartSize must be within the range " + 
                     MultipartUtils.MIN_PART_SIZE + " to " + MultipartUtils.MAX_OBJECT_SIZE);
@@ -96,81 +297,544 @@ public class HBackupConfig {
             throw new IllegalArgumentException("s3MultipartThreshold must be >= s3PartSize");
         }
         
-        this.from = from;
-        this.to = to;
-        this.concurrentFiles = concurrentFiles;
-        this.recursive = recursive;
-        this.s3PartSize = s3PartSize;
-        this.s3MultipartThreshold = s3MultipartThreshold;
-        this.hdfsSourceConf = hdfsSourceConf;
-        this.hdfsSinkConf = hdfsSinkConf;
-        this.mtimeCheck = mtimeCheck;
-        this.includePathsRegex = includePathsRegex;
-        this.checksumUri = checksumUri;
-        this.numRetries = chunkRetries;
-        this.stalenessMillis = staleMillis;
-        this.backupIntervalMinutes = backupIntervalMinutes;
-        this.staleCheckIntervalMinutes = staleCheckIntervalMinutes;
-        this.mtimeAgeMillis = mtimeAgeMillis;
+        if(localChunkSize <= 0) {
+            throw new IllegalArgumentException("localChunkSize must be positive");
+        }
+        
+        if(spoolDir != null && spoolMaxBytes <= 0) {
+            throw new IllegalArgumentException("spoolMaxBytes must be positive when spooling");
+        }
+        
+        if(bufferPoolMaxBytes < BufferPool.MIN_MAX_BYTES) {
+            throw new IllegalArgumentException("bufferPoolMaxBytes must be at least " + BufferPool.MIN_MAX_BYTES);
+        }
+        
+        if(readAheadBytes < 0 || readAheadBytes / 2 > BufferPool.MAX_BUFFER_SIZE) {
+            throw new IllegalArgumentException("readAheadBytes must be within the range 0 to " + 
+                    2L * BufferPool.MAX_BUFFER_SIZE);
+        }
+        
+        if(readAheadBytes > 0 && readAheadThreads <= 0) {
+            throw new IllegalArgumentException("readAheadThreads must be positive when read-ahead is enabled");
+        }
+        if(hedgePercentile < 0 || hedgePercentile >= 100) {
+            throw new IllegalArgumentException("hedgePercentile must be at least 0 and less than 100");
+        }
+        if(stallBytesPerSec > 0 && stallSeconds <= 0) {
+            throw new IllegalArgumentException("stallSeconds must be positive when stall detection is enabled");
+        }
+        if(virtualThreads && (maxRequests <= 0 || maxBytesInFlight <= 0)) {
+            throw new IllegalArgumentException("maxRequests and maxBytesInFlight must be positive with virtual threads");
+        }
+        if(fanoutSegmentSize <= 0 || fanoutSegmentSize > BufferPool.MAX_BUFFER_SIZE) {
+            throw new IllegalArgumentException("fanoutSegmentSize must be within the range 1 to " + 
+                    BufferPool.MAX_BUFFER_SIZE);
+        }
+        if(coordinatorUri != null && coordinatorRunId == null) {
+            throw new IllegalArgumentException("A coordinated backup needs a run ID");
+        }
+        if(coordinatorLeaseSeconds <= 0 || coordinatorLeaseBytes <= 0) {
+            throw new IllegalArgumentException("coordinatorLeaseSeconds and coordinatorLeaseBytes must be positive");
+        }
+        if(continuous && continuousPollSeconds <= 0) {
+            throw new IllegalArgumentException("continuousPollSeconds must be positive in continuous mode");
+        }
+        if(continuous && coordinatorUri != null) {
+            throw new IllegalArgumentException("Continuous backups can't be coordinated among several workers");
+        }
+        if(tailPathsRegex != null && coordinatorUri != null) {
+            throw new IllegalArgumentException("Growing files can't be tailed in a coordinated backup");
+        }
+        if(tailQuietMillis <= 0) {
+            throw new IllegalArgumentException("tailQuietMillis must be positive");
+        }
+        if(mirrorMaxDeletePercent < 0 || mirrorMaxDeletePercent > 100) {
+            throw new IllegalArgumentException("mirrorMaxDeletePercent must be within the range 0 to 100");
+        }
+        if(mirror && (coordinatorUri != null || continuous)) {
+            throw new IllegalArgumentException("Mirror mode needs a full listing of the source by one process, " +
+                    "so it can't be used in coordinated or continuous backups");
+        }
+        if((coordinatorUri != null || continuous || tailPathsRegex != null) && hasSinkScheme(to, "s3snap")) {
+            throw new IllegalArgumentException("A snapshot needs every file of the source listed and sent by one " +
+                    "run, so snapshots can't be taken by coordinated, continuous or tailing backups");
+        }
+        if(detectMoves && (coordinatorUri != null || continuous)) {
+            throw new IllegalArgumentException("Finding moved files needs a full listing of the source by one " +
+                    "process, so it can't be used in coordinated or continuous backups");
+        }
+        if(movesMinBytes < 0) {
+            throw new IllegalArgumentException("movesMinBytes can't be negative");
+        }
+        if(s3KeyShardChars < 0 || s3KeyShardChars > S3KeyLayout.MAX_SHARD_CHARS) {
+            throw new IllegalArgumentException("s3KeyShardChars must be within the range 0 to " + 
+                    S3KeyLayout.MAX_SHARD_CHARS);
+        }
+        if(catalog && (coordinatorUri != null || continuous) && hasSinkScheme(to, "s3")) {
+            throw new IllegalArgumentException("An S3 sink's catalog is updated at the end of a full run, so it " +
+                    "can't be kept by coordinated or continuous backups");
+        }
+        
+        if(bufferRetryMaxBytes < 0 || bufferRetryMaxBytes > BufferPool.MAX_BUFFER_SIZE) {
+            throw new IllegalArgumentException("bufferRetryMaxBytes must be within the range 0 to " + 
+                    BufferPool.MAX_BUFFER_SIZE);
+        }
+        
+        // Packs are assembled in memory and sent in a single PUT
+        if(s3PackThreshold > 0 && (s3PackSize < s3PackThreshold || s3PackSize > Integer.MAX_VALUE)) {
+            throw new IllegalArgumentException("s3PackSize must be >= s3PackThreshold and at most " + 
+                    Integer.MAX_VALUE);
+        }
 
         // The fallback credentials are used whever the config doesn't specify specific credentials
         // for source/sink/checksum. This makes the common case easy, where there is only one set
         // of credentials used for all three things.
         AWSCredentials fallbackAwsCreds = null;
-        if(fallbackS3AccessKey != null && fallbackS3Secret != null) {
-            fallbackAwsCreds = new AWSCredentials(fallbackS3AccessKey, fallbackS3Secret);
+        if(b.fallbackS3AccessKey != null && b.fallbackS3Secret != null) {
+            fallbackAwsCreds = new AWSCredentials(b.fallbackS3AccessKey, b.fallbackS3Secret);
         }
         
-        if(sourceS3AccessKey != null && sourceS3Secret != null) {
-            this.s3SourceCredentials = new AWSCredentials(sourceS3AccessKey, sourceS3Secret);
+        if(b.sourceS3AccessKey != null && b.sourceS3Secret != null) {
+            this.s3SourceCredentials = new AWSCredentials(b.sourceS3AccessKey, b.sourceS3Secret);
         } else {
             this.s3SourceCredentials = fallbackAwsCreds;
         }
         
-        if(sinkS3AccessKey != null && sinkS3Secret != null) {
-            this.s3SinkCredentials = new AWSCredentials(sinkS3AccessKey, sinkS3Secret);
+        if(b.sinkS3AccessKey != null && b.sinkS3Secret != null) {
+            this.s3SinkCredentials = new AWSCredentials(b.sinkS3AccessKey, b.sinkS3Secret);
         } else {
             this.s3SinkCredentials = fallbackAwsCreds;
         }
 
-        if(checksumS3AccessKey != null && checksumS3Secret!= null) {
-            this.s3ChecksumCredentials = new AWSCredentials(checksumS3AccessKey, checksumS3Secret);
+        if(b.checksumS3AccessKey != null && b.checksumS3Secret!= null) {
+            this.s3ChecksumCredentials = new AWSCredentials(b.checksumS3AccessKey, b.checksumS3Secret);
         } else {
             this.s3ChecksumCredentials = fallbackAwsCreds;
         }
     }
 
+    /**
+     * @return whether any of the sink URIs in "to" has the given scheme. URIs that can't be parsed are left
+     * for the sinks to reject.
+     */
+    private static boolean hasSinkScheme(String to, String scheme) {
+        if(to == null) {
+            return false;
+        }
+        try {
+            for(URI uri: Sink.splitUris(to)) {
+                if(scheme.equals(uri.getScheme())) {
+                    return true;
+                }
+            }
+        } catch (URISyntaxException e) {
+            return false;
+        }
+        return false;
+    }
+
+    /**
+     * @return a builder of a config with every option at its default except the source and sink URIs.
+     * Defaults are the same as for options missing from the configuration files, except the Hadoop
+     * configurations, which are the default Hadoop configuration.
+     */
+    public static Builder builder(String from, String to) {
+        return new Builder(from, to);
+    }
+
+    /**
+     * Builds an {@link HBackupConfig}, starting from the defaults. Each setter sets the config value of
+     * the same name. See {@link HBackupConfig#optHelps} for what the options mean.
+     */
+    public static class Builder {
+        private final String from;
+        private final String to;
+        private String sourceS3AccessKey = null;
+        private String sourceS3Secret = null;
+        private String sinkS3AccessKey = null;
+        private String sinkS3Secret = null;
+        private String checksumS3AccessKey = null;
+        private String checksumS3Secret = null;
+        private String fallbackS3AccessKey = null;
+        private String fallbackS3Secret = null;
+        private Configuration hdfsSourceConf = new Configuration(true);
+        private Configuration hdfsSinkConf = new Configuration(true);
+        private int concurrentFiles = DEFAULT_CONCURRENT_FILES;
+        private boolean recursive = DEFAULT_RECURSIVE;
+        private long s3PartSize = DEFAULT_S3_PART_SIZE;
+        private long s3MultipartThreshold = DEFAULT_S3_MULTIPART_THRESHOLD;
+        private boolean mtimeCheck = DEFAULT_MTIMECHECK;
+        private String includePathsRegex = null;
+        private String checksumUri = null;
+        private int numRetries = DEFAULT_CHUNKRETRIES;
+        private long stalenessMillis = DEFAULT_STALEMILLIS;
+        private int backupIntervalMinutes = 0;
+        private int staleCheckIntervalMinutes = 0;
+        private long mtimeAgeMillis = DEFAULT_MTIME_AGE_MILLIS;
+        private boolean verifyEtags = DEFAULT_VERIFYETAGS;
+        private boolean hdfsChecksumCompare = DEFAULT_HDFSCHECKSUMCOMPARE;
+        private boolean s3DeltaUpload = DEFAULT_S3DELTAUPLOAD;
+        private int dedupThreads = DEFAULT_DEDUP_THREADS;
+        private boolean s3Compress = DEFAULT_S3COMPRESS;
+        private long s3PackThreshold = DEFAULT_S3_PACK_THRESHOLD;
+        private long s3PackSize = DEFAULT_S3_PACK_SIZE;
+        private long localChunkSize = DEFAULT_LOCAL_CHUNK_SIZE;
+        private String spoolDir = null;
+        private long spoolMaxBytes = DEFAULT_SPOOL_MAX_BYTES;
+        private int spoolReadThreads = DEFAULT_SPOOL_READ_THREADS;
+        private long bufferPoolMaxBytes = DEFAULT_BUFFER_POOL_MAX_BYTES;
+        private long bufferRetryMaxBytes = DEFAULT_BUFFER_RETRY_MAX_BYTES;
+        private long readAheadBytes = DEFAULT_READ_AHEAD_BYTES;
+        private int readAheadThreads = DEFAULT_READ_AHEAD_THREADS;
+        private boolean s3AlignToBlocks = DEFAULT_S3ALIGNTOBLOCKS;
+        private int maxChunksPerDatanode = DEFAULT_MAX_CHUNKS_PER_DATANODE;
+        private int hedgePercentile = DEFAULT_HEDGE_PERCENTILE;
+        private int maxHedges = DEFAULT_MAX_HEDGES;
+        private long stallBytesPerSec = DEFAULT_STALL_BYTES_PER_SEC;
+        private int stallSeconds = DEFAULT_STALL_SECONDS;
+        private boolean virtualThreads = DEFAULT_VIRTUAL_THREADS;
+        private int maxRequests = DEFAULT_MAX_REQUESTS;
+        private long maxBytesInFlight = DEFAULT_MAX_BYTES_IN_FLIGHT;
+        private long fanoutSegmentSize = DEFAULT_FANOUT_SEGMENT_SIZE;
+        private String coordinatorUri = null;
+        private String coordinatorRunId = null;
+        private int coordinatorLeaseSeconds = DEFAULT_COORDINATOR_LEASE_SECONDS;
+        private long coordinatorLeaseBytes = DEFAULT_COORDINATOR_LEASE_BYTES;
+        private boolean continuous = DEFAULT_CONTINUOUS;
+        private int continuousPollSeconds = DEFAULT_CONTINUOUS_POLL_SECONDS;
+        private String tailPathsRegex = null;
+        private long tailQuietMillis = DEFAULT_TAIL_QUIET_MILLIS;
+        private boolean mirror = DEFAULT_MIRROR;
+        private boolean mirrorDryRun = DEFAULT_MIRROR_DRY_RUN;
+        private int mirrorMaxDeletePercent = DEFAULT_MIRROR_MAX_DELETE_PERCENT;
+        private String snapshotId = DEFAULT_SNAPSHOT_ID;
+        private boolean detectMoves = DEFAULT_DETECT_MOVES;
+        private long movesMinBytes = DEFAULT_MOVES_MIN_BYTES;
+        private int s3KeyShardChars = DEFAULT_S3_KEY_SHARD_CHARS;
+        private boolean catalog = DEFAULT_CATALOG;
+
+        private Builder(String from, String to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        public Builder sourceS3Credentials(String accessKey, String secret) {
+            this.sourceS3AccessKey = accessKey;
+            this.sourceS3Secret = secret;
+            return this;
+        }
+
+        public Builder sinkS3Credentials(String accessKey, String secret) {
+            this.sinkS3AccessKey = accessKey;
+            this.sinkS3Secret = secret;
+            return this;
+        }
+
+        public Builder checksumS3Credentials(String accessKey, String secret) {
+            this.checksumS3AccessKey = accessKey;
+            this.checksumS3Secret = secret;
+            return this;
+        }
+
+        /**
+         * Credentials for whichever of the source, sink and checksum store don't have their own.
+         */
+        public Builder fallbackS3Credentials(String accessKey, String secret) {
+            this.fallbackS3AccessKey = accessKey;
+            this.fallbackS3Secret = secret;
+            return this;
+        }
+
+        public Builder hdfsSourceConf(Configuration hdfsSourceConf) {
+            this.hdfsSourceConf = hdfsSourceConf;
+            return this;
+        }
+
+        public Builder hdfsSinkConf(Configuration hdfsSinkConf) {
+            this.hdfsSinkConf = hdfsSinkConf;
+            return this;
+        }
+
+        public Builder concurrentFiles(int concurrentFiles) {
+            this.concurrentFiles = concurrentFiles;
+            return this;
+        }
+
+        public Builder recursive(boolean recursive) {
+            this.recursive = recursive;
+            return this;
+        }
+
+        public Builder s3PartSize(long s3PartSize) {
+            this.s3PartSize = s3PartSize;
+            return this;
+        }
+
+        public Builder s3MultipartThreshold(long s3MultipartThreshold) {
+            this.s3MultipartThreshold = s3MultipartThreshold;
+            return this;
+        }
+
+        public Builder mtimeCheck(boolean mtimeCheck) {
+            this.mtimeCheck = mtimeCheck;
+            return this;
+        }
+
+        public Builder includePathsRegex(String includePathsRegex) {
+            this.includePathsRegex = includePathsRegex;
+            return this;
+        }
+
+        public Builder checksumUri(String checksumUri) {
+            this.checksumUri = checksumUri;
+            return this;
+        }
+
+        public Builder numRetries(int numRetries) {
+            this.numRetries = numRetries;
+            return this;
+        }
+
+        public Builder stalenessMillis(long stalenessMillis) {
+            this.stalenessMillis = stalenessMillis;
+            return this;
+        }
+
+        public Builder backupIntervalMinutes(int backupIntervalMinutes) {
+            this.backupIntervalMinutes = backupIntervalMinutes;
+            return this;
+        }
+
+        public Builder staleCheckIntervalMinutes(int staleCheckIntervalMinutes) {
+            this.staleCheckIntervalMinutes = staleCheckIntervalMinutes;
+            return this;
+        }
+
+        public Builder mtimeAgeMillis(long mtimeAgeMillis) {
+            this.mtimeAgeMillis = mtimeAgeMillis;
+            return this;
+        }
+
+        public Builder verifyEtags(boolean verifyEtags) {
+            this.verifyEtags = verifyEtags;
+            return this;
+        }
+
+        public Builder hdfsChecksumCompare(boolean hdfsChecksumCompare) {
+            this.hdfsChecksumCompare = hdfsChecksumCompare;
+            return this;
+        }
+
+        public Builder s3DeltaUpload(boolean s3DeltaUpload) {
+            this.s3DeltaUpload = s3DeltaUpload;
+            return this;
+        }
+
+        public Builder dedupThreads(int dedupThreads) {
+            this.dedupThreads = dedupThreads;
+            return this;
+        }
+
+        public Builder s3Compress(boolean s3Compress) {
+            this.s3Compress = s3Compress;
+            return this;
+        }
+
+        public Builder s3PackThreshold(long s3PackThreshold) {
+            this.s3PackThreshold = s3PackThreshold;
+            return this;
+        }
+
+        public Builder s3PackSize(long s3PackSize) {
+            this.s3PackSize = s3PackSize;
+            return this;
+        }
+
+        public Builder localChunkSize(long localChunkSize) {
+            this.localChunkSize = localChunkSize;
+            return this;
+        }
+
+        public Builder spoolDir(String spoolDir) {
+            this.spoolDir = spoolDir;
+            return this;
+        }
+
+        public Builder spoolMaxBytes(long spoolMaxBytes) {
+            this.spoolMaxBytes = spoolMaxBytes;
+            return this;
+        }
+
+        public Builder spoolReadThreads(int spoolReadThreads) {
+            this.spoolReadThreads = spoolReadThreads;
+            return this;
+        }
+
+        public Builder bufferPoolMaxBytes(long bufferPoolMaxBytes) {
+            this.bufferPoolMaxBytes = bufferPoolMaxBytes;
+            return this;
+        }
+
+        public Builder bufferRetryMaxBytes(long bufferRetryMaxBytes) {
+            this.bufferRetryMaxBytes = bufferRetryMaxBytes;
+            return this;
+        }
+
+        public Builder readAheadBytes(long readAheadBytes) {
+            this.readAheadBytes = readAheadBytes;
+            return this;
+        }
+
+        public Builder readAheadThreads(int readAheadThreads) {
+            this.readAheadThreads = readAheadThreads;
+            return this;
+        }
+
+        public Builder s3AlignToBlocks(boolean s3AlignToBlocks) {
+            this.s3AlignToBlocks = s3AlignToBlocks;
+            return this;
+        }
+
+        public Builder maxChunksPerDatanode(int maxChunksPerDatanode) {
+            this.maxChunksPerDatanode = maxChunksPerDatanode;
+            return this;
+        }
+
+        public Builder hedgePercentile(int hedgePercentile) {
+            this.hedgePercentile = hedgePercentile;
+            return this;
+        }
+
+        public Builder maxHedges(int maxHedges) {
+            this.maxHedges = maxHedges;
+            return this;
+        }
+
+        public Builder stallBytesPerSec(long stallBytesPerSec) {
+            this.stallBytesPerSec = stallBytesPerSec;
+            return this;
+        }
+
+        public Builder stallSeconds(int stallSeconds) {
+            this.stallSeconds = stallSeconds;
+            return this;
+        }
+
+        public Builder virtualThreads(boolean virtualThreads) {
+            this.virtualThreads = virtualThreads;
+            return this;
+        }
+
+        public Builder maxRequests(int maxRequests) {
+            this.maxRequests = maxRequests;
+            return this;
+        }
+
+        public Builder maxBytesInFlight(long maxBytesInFlight) {
+            this.maxBytesInFlight = maxBytesInFlight;
+            return this;
+        }
+
+        public Builder fanoutSegmentSize(long fanoutSegmentSize) {
+            this.fanoutSegmentSize = fanoutSegmentSize;
+            return this;
+        }
+
+        public Builder coordinatorUri(String coordinatorUri) {
+            this.coordinatorUri = coordinatorUri;
+            return this;
+        }
+
+        public Builder coordinatorRunId(String coordinatorRunId) {
+            this.coordinatorRunId = coordinatorRunId;
+            return this;
+        }
+
+        public Builder coordinatorLeaseSeconds(int coordinatorLeaseSeconds) {
+            this.coordinatorLeaseSeconds = coordinatorLeaseSeconds;
+            return this;
+        }
+
+        public Builder coordinatorLeaseBytes(long coordinatorLeaseBytes) {
+            this.coordinatorLeaseBytes = coordinatorLeaseBytes;
+            return this;
+        }
+
+        public Builder continuous(boolean continuous) {
+            this.continuous = continuous;
+            return this;
+        }
+
+        public Builder continuousPollSeconds(int continuousPollSeconds) {
+            this.continuousPollSeconds = continuousPollSeconds;
+            return this;
+        }
+
+        public Builder tailPathsRegex(String tailPathsRegex) {
+            this.tailPathsRegex = tailPathsRegex;
+            return this;
+        }
+
+        public Builder tailQuietMillis(long tailQuietMillis) {
+            this.tailQuietMillis = tailQuietMillis;
+            return this;
+        }
+
+        public Builder mirror(boolean mirror) {
+            this.mirror = mirror;
+            return this;
+        }
+
+        public Builder mirrorDryRun(boolean mirrorDryRun) {
+            this.mirrorDryRun = mirrorDryRun;
+            return this;
+        }
+
+        public Builder mirrorMaxDeletePercent(int mirrorMaxDeletePercent) {
+            this.mirrorMaxDeletePercent = mirrorMaxDeletePercent;
+            return this;
+        }
+
+        public Builder snapshotId(String snapshotId) {
+            this.snapshotId = snapshotId;
+            return this;
+        }
+
+        public Builder detectMoves(boolean detectMoves) {
+            this.detectMoves = detectMoves;
+            return this;
+        }
+
+        public Builder movesMinBytes(long movesMinBytes) {
+            this.movesMinBytes = movesMinBytes;
+            return this;
+        }
+
+        public Builder s3KeyShardChars(int s3KeyShardChars) {
+            this.s3KeyShardChars = s3KeyShardChars;
+            return this;
+        }
+
+        public Builder catalog(boolean catalog) {
+            this.catalog = catalog;
+            return this;
+        }
+
+        /**
+         * @throws IllegalArgumentException if the options are invalid or don't make sense together.
+         */
+        public HBackupConfig build() {
+            return new HBackupConfig(this);
+        }
+    }
+
     /**
      * Get config with defaults for all params. "From" and "to" have no defaults. S3 keys will be parsed
      * from the system properties, or null. Hadoop config will be the default (parse normal Hadoop config 
      * files from the classpath).
      */
     public static HBackupConfig forTests(String from, String to, Configuration hdfsConf) {
-        SystemConfiguration sysProps = new SystemConfiguration();
-        return new HBackupConfig(from, 
-                to, 
-                DEFAULT_CONCURRENT_FILES, 
-                true, 
-                sysProps.getString(CONF_SOURCES3ACCESSKEY), 
-                sysProps.getString(CONF_SOURCES3SECRET), 
-                sysProps.getString(CONF_SINKS3ACCESSKEY), 
-                sysProps.getString(CONF_SINKS3SECRET),
-                DEFAULT_S3_PART_SIZE, 
-                DEFAULT_S3_MULTIPART_THRESHOLD, 
-                hdfsConf,
-                hdfsConf,
-                true,
-                null,
-                null,
-                0, // Any retries would probably make test failures more confusing
-                null,
-                null,
-                null,
-                null,
-                DEFAULT_STALEMILLIS,
-                0,
-                0,
-                0);
+        return testBuilder(from, to, hdfsConf).build();
     }
 
     /**
@@ -178,32 +842,22 @@ public class HBackupConfig {
      */
     public static HBackupConfig forTests(String from, String to, int backupIntervalMinutes,
                                          int staleCheckIntervalMinutes) {
-        Configuration hdfsConf = new Configuration();
+        return testBuilder(from, to, new Configuration())
+                .backupIntervalMinutes(backupIntervalMinutes)
+                .staleCheckIntervalMinutes(staleCheckIntervalMinutes)
+                .build();
+    }
+
+    private static Builder testBuilder(String from, String to, Configuration hdfsConf) {
         SystemConfiguration sysProps = new SystemConfiguration();
-        return new HBackupConfig(from,
-                to,
-                DEFAULT_CONCURRENT_FILES,
-                true,
-                sysProps.getString(CONF_SOURCES3ACCESSKEY),
-                sysProps.getString(CONF_SOURCES3SECRET),
-                sysProps.getString(CONF_SINKS3ACCESSKEY),
-                sysProps.getString(CONF_SINKS3SECRET),
-                DEFAULT_S3_PART_SIZE,
-                DEFAULT_S3_MULTIPART_THRESHOLD,
-                hdfsConf,
-                hdfsConf,
-                true,
-                null,
-                null,
-                0, // Any retries would probably make test failures more confusing
-                null,
-                null,
-                null,
-                null,
-                DEFAULT_STALEMILLIS,
-                backupIntervalMinutes,
-                staleCheckIntervalMinutes,
-                0);
+        return builder(from, to)
+                .sourceS3Credentials(sysProps.getString(CONF_SOURCES3ACCESSKEY), 
+                        sysProps.getString(CONF_SOURCES3SECRET))
+                .sinkS3Credentials(sysProps.getString(CONF_SINKS3ACCESSKEY), sysProps.getString(CONF_SINKS3SECRET))
+                .hdfsSourceConf(hdfsConf)
+                .hdfsSinkConf(hdfsConf)
+                .numRetries(0) // Any retries would probably make test failures more confusing
+                .mtimeAgeMillis(0);
     }
     
     /**
@@ -211,30 +865,8 @@ public class HBackupConfig {
      */
     public static HBackupConfig forTests(String fromUri, String toUri, String hashUri, 
             Configuration hdfsConf, String s3AccessKey, String s3Secret) {
-        return new HBackupConfig(fromUri,
-                toUri,
-                2,
-                true,
-                s3AccessKey,
-                s3Secret,
-                s3AccessKey,
-                s3Secret,
-                MultipartUtils.MIN_PART_SIZE,
-                MultipartUtils.MIN_PART_SIZE,
-                hdfsConf,
-                hdfsConf,
-                true,
-                null,
-                hashUri,
-                1,
-                s3AccessKey,
-                s3Secret,
-                null,
-                null,
-                0,
-                0,
-                0,
-                0);
+        return forTests(fromUri, toUri, hashUri, hdfsConf, hdfsConf, s3AccessKey, s3Secret, s3AccessKey, 
+                s3Secret);
     }
     
     /**
@@ -243,30 +875,26 @@ public class HBackupConfig {
     public static HBackupConfig forTests(String fromUri, String toUri, String hashUri, 
             Configuration hdfsSrcConf, Configuration hdfsSinkConf, String s3AccessKey, 
             String s3Secret) {
-        return new HBackupConfig(fromUri,
-                toUri,
-                2,
-                true,
-                s3AccessKey,
-                s3Secret,
-                null,
-                null,
-                MultipartUtils.MIN_PART_SIZE,
-                MultipartUtils.MIN_PART_SIZE,
-                hdfsSrcConf,
-                hdfsSinkConf,
-                true,
-                null,
-                hashUri,
-                1,
-                s3AccessKey,
-                s3Secret,
-                null,
-                null,
-                0,
-                0,
-                0,
-                0);
+        return forTests(fromUri, toUri, hashUri, hdfsSrcConf, hdfsSinkConf, s3AccessKey, s3Secret, null, null);
+    }
+
+    private static HBackupConfig forTests(String fromUri, String toUri, String hashUri, 
+            Configuration hdfsSrcConf, Configuration hdfsSinkConf, String s3AccessKey, String s3Secret,
+            String sinkS3AccessKey, String sinkS3Secret) {
+        return builder(fromUri, toUri)
+                .concurrentFiles(2)
+                .sourceS3Credentials(s3AccessKey, s3Secret)
+                .sinkS3Credentials(sinkS3AccessKey, sinkS3Secret)
+                .checksumS3Credentials(s3AccessKey, s3Secret)
+                .s3PartSize(MultipartUtils.MIN_PART_SIZE)
+                .s3MultipartThreshold(MultipartUtils.MIN_PART_SIZE)
+                .hdfsSourceConf(hdfsSrcConf)
+                .hdfsSinkConf(hdfsSinkConf)
+                .checksumUri(hashUri)
+                .numRetries(1)
+                .stalenessMillis(0)
+                .mtimeAgeMillis(0)
+                .build();
     }
 
     /**
@@ -327,36 +955,73 @@ public class HBackupConfig {
         //system props override anything in the files
         conf.addConfiguration(new SystemConfiguration());
 
-       return new HBackupConfig(conf.getString(CONF_FROM, null),
-                conf.getString(CONF_TO, null),
-                conf.getInt(CONF_CONCURRENTCHUNKS, DEFAULT_CONCURRENT_FILES),
-                conf.getBoolean(CONF_RECURSIVE, DEFAULT_RECURSIVE),
-                conf.getString(CONF_SOURCES3ACCESSKEY, null),
-                conf.getString(CONF_SOURCES3SECRET, null),
-                conf.getString(CONF_SINKS3ACCESSKEY, null),
-                conf.getString(CONF_SINKS3SECRET, null),
-                conf.getLong(CONF_S3PARTSIZE, DEFAULT_S3_PART_SIZE),
-                conf.getLong(CONF_S3MULTIPARTTHRESHOLD, DEFAULT_S3_MULTIPART_THRESHOLD),
-                new Configuration(true),
-                new Configuration(true),
-                conf.getBoolean(CONF_MTIMECHECK, DEFAULT_MTIMECHECK),
-                conf.getString(CONF_INCLUDEPATHSREGEX, null),
-                conf.getString(CONF_CHECKSUMURI, null),
-                conf.getInt(CONF_CHUNKRETRIES, DEFAULT_CHUNKRETRIES),
-                conf.getString(CONF_CHECKSUMS3ACCESSKEY, null),
-                conf.getString(CONF_CHECKSUMS3SECRET, null),
-                conf.getString(CONF_FALLBACKS3ACCESSKEY, null),
-                conf.getString(CONF_FALLBACKS3SECRET, null),
-                conf.getLong(CONF_STALEMILLIS, DEFAULT_STALEMILLIS),
-                conf.getInt(CONF_BACKUPINTERVAL, 0),
-                conf.getInt(CONF_STALECHECKINTERVAL, 0),
-               conf.getLong(CONF_MTIME_AGE_MILLIS, DEFAULT_MTIME_AGE_MILLIS));
+       return builder(conf.getString(CONF_FROM, null), conf.getString(CONF_TO, null))
+                .sourceS3Credentials(conf.getString(CONF_SOURCES3ACCESSKEY, null), conf.getString(CONF_SOURCES3SECRET, null))
+                .sinkS3Credentials(conf.getString(CONF_SINKS3ACCESSKEY, null), conf.getString(CONF_SINKS3SECRET, null))
+                .checksumS3Credentials(conf.getString(CONF_CHECKSUMS3ACCESSKEY, null), 
+                        conf.getString(CONF_CHECKSUMS3SECRET, null))
+                .fallbackS3Credentials(conf.getString(CONF_FALLBACKS3ACCESSKEY, null), 
+                        conf.getString(CONF_FALLBACKS3SECRET, null))
+                .concurrentFiles(conf.getInt(CONF_CONCURRENTCHUNKS, DEFAULT_CONCURRENT_FILES))
+                .recursive(conf.getBoolean(CONF_RECURSIVE, DEFAULT_RECURSIVE))
+                .s3PartSize(conf.getLong(CONF_S3PARTSIZE, DEFAULT_S3_PART_SIZE))
+                .s3MultipartThreshold(conf.getLong(CONF_S3MULTIPARTTHRESHOLD, DEFAULT_S3_MULTIPART_THRESHOLD))
+                .mtimeCheck(conf.getBoolean(CONF_MTIMECHECK, DEFAULT_MTIMECHECK))
+                .includePathsRegex(conf.getString(CONF_INCLUDEPATHSREGEX, null))
+                .checksumUri(conf.getString(CONF_CHECKSUMURI, null))
+                .numRetries(conf.getInt(CONF_CHUNKRETRIES, DEFAULT_CHUNKRETRIES))
+                .stalenessMillis(conf.getLong(CONF_STALEMILLIS, DEFAULT_STALEMILLIS))
+                .backupIntervalMinutes(conf.getInt(CONF_BACKUPINTERVAL, 0))
+                .staleCheckIntervalMinutes(conf.getInt(CONF_STALECHECKINTERVAL, 0))
+                .mtimeAgeMillis(conf.getLong(CONF_MTIME_AGE_MILLIS, DEFAULT_MTIME_AGE_MILLIS))
+                .verifyEtags(conf.getBoolean(CONF_VERIFYETAGS, DEFAULT_VERIFYETAGS))
+                .hdfsChecksumCompare(conf.getBoolean(CONF_HDFSCHECKSUMCOMPARE, DEFAULT_HDFSCHECKSUMCOMPARE))
+                .s3DeltaUpload(conf.getBoolean(CONF_S3DELTAUPLOAD, DEFAULT_S3DELTAUPLOAD))
+                .dedupThreads(conf.getInt(CONF_DEDUPTHREADS, DEFAULT_DEDUP_THREADS))
+                .s3Compress(conf.getBoolean(CONF_S3COMPRESS, DEFAULT_S3COMPRESS))
+                .s3PackThreshold(conf.getLong(CONF_S3PACKTHRESHOLD, DEFAULT_S3_PACK_THRESHOLD))
+                .s3PackSize(conf.getLong(CONF_S3PACKSIZE, DEFAULT_S3_PACK_SIZE))
+                .localChunkSize(conf.getLong(CONF_LOCALCHUNKSIZE, DEFAULT_LOCAL_CHUNK_SIZE))
+                .spoolDir(conf.getString(CONF_SPOOLDIR, null))
+                .spoolMaxBytes(conf.getLong(CONF_SPOOLMAXBYTES, DEFAULT_SPOOL_MAX_BYTES))
+                .spoolReadThreads(conf.getInt(CONF_SPOOLREADTHREADS, DEFAULT_SPOOL_READ_THREADS))
+                .bufferPoolMaxBytes(conf.getLong(CONF_BUFFERPOOLMAXBYTES, DEFAULT_BUFFER_POOL_MAX_BYTES))
+                .bufferRetryMaxBytes(conf.getLong(CONF_BUFFERRETRYMAXBYTES, DEFAULT_BUFFER_RETRY_MAX_BYTES))
+                .readAheadBytes(conf.getLong(CONF_READAHEADBYTES, DEFAULT_READ_AHEAD_BYTES))
+                .readAheadThreads(conf.getInt(CONF_READAHEADTHREADS, DEFAULT_READ_AHEAD_THREADS))
+                .s3AlignToBlocks(conf.getBoolean(CONF_S3ALIGNTOBLOCKS, DEFAULT_S3ALIGNTOBLOCKS))
+                .maxChunksPerDatanode(conf.getInt(CONF_MAXCHUNKSPERDATANODE, DEFAULT_MAX_CHUNKS_PER_DATANODE))
+                .hedgePercentile(conf.getInt(CONF_HEDGEPERCENTILE, DEFAULT_HEDGE_PERCENTILE))
+                .maxHedges(conf.getInt(CONF_MAXHEDGES, DEFAULT_MAX_HEDGES))
+                .stallBytesPerSec(conf.getLong(CONF_STALLBYTESPERSEC, DEFAULT_STALL_BYTES_PER_SEC))
+                .stallSeconds(conf.getInt(CONF_STALLSECONDS, DEFAULT_STALL_SECONDS))
+                .virtualThreads(conf.getBoolean(CONF_VIRTUALTHREADS, DEFAULT_VIRTUAL_THREADS))
+                .maxRequests(conf.getInt(CONF_MAXREQUESTS, DEFAULT_MAX_REQUESTS))
+                .maxBytesInFlight(conf.getLong(CONF_MAXBYTESINFLIGHT, DEFAULT_MAX_BYTES_IN_FLIGHT))
+                .fanoutSegmentSize(conf.getLong(CONF_FANOUT_SEGMENT_SIZE, DEFAULT_FANOUT_SEGMENT_SIZE))
+                .coordinatorUri(conf.getString(CONF_COORDINATOR_URI, null))
+                .coordinatorRunId(conf.getString(CONF_COORDINATOR_RUN_ID, null))
+                .coordinatorLeaseSeconds(conf.getInt(CONF_COORDINATOR_LEASE_SECONDS, DEFAULT_COORDINATOR_LEASE_SECONDS))
+                .coordinatorLeaseBytes(conf.getLong(CONF_COORDINATOR_LEASE_BYTES, DEFAULT_COORDINATOR_LEASE_BYTES))
+                .continuous(conf.getBoolean(CONF_CONTINUOUS, DEFAULT_CONTINUOUS))
+                .continuousPollSeconds(conf.getInt(CONF_CONTINUOUS_POLLSECONDS, DEFAULT_CONTINUOUS_POLL_SECONDS))
+                .tailPathsRegex(conf.getString(CONF_TAIL_PATHS_REGEX, null))
+                .tailQuietMillis(conf.getLong(CONF_TAIL_QUIET_MILLIS, DEFAULT_TAIL_QUIET_MILLIS))
+                .mirror(conf.getBoolean(CONF_MIRROR, DEFAULT_MIRROR))
+                .mirrorDryRun(conf.getBoolean(CONF_MIRROR_DRYRUN, DEFAULT_MIRROR_DRY_RUN))
+                .mirrorMaxDeletePercent(conf.getInt(CONF_MIRROR_MAXDELETEPERCENT, DEFAULT_MIRROR_MAX_DELETE_PERCENT))
+                .snapshotId(conf.getString(CONF_SNAPSHOT_ID, DEFAULT_SNAPSHOT_ID))
+                .detectMoves(conf.getBoolean(CONF_DETECT_MOVES, DEFAULT_DETECT_MOVES))
+                .movesMinBytes(conf.getLong(CONF_MOVES_MINBYTES, DEFAULT_MOVES_MIN_BYTES))
+                .s3KeyShardChars(conf.getInt(CONF_S3_KEY_SHARD_CHARS, DEFAULT_S3_KEY_SHARD_CHARS))
+                .catalog(conf.getBoolean(CONF_CATALOG, DEFAULT_CATALOG))
+                .build();
 
     }
     
     final public static OptHelp[] optHelps = new OptHelp[] {
             new OptHelp(CONF_FROM, "URI of data source, e.g. hdfs:///home/bob, hdfs://reports-master-0:7050/home/bob, s3://mybucket/a/b"),
-            new OptHelp(CONF_TO, "URI of data sink"),
+            new OptHelp(CONF_TO, "URI of data sink, or a comma-separated list of URIs to back up to several sinks"),
             new OptHelp(CONF_CONCURRENTCHUNKS, "Number of file chunks to transfer at a time", Integer.toString(DEFAULT_CONCURRENT_FILES)),
             new OptHelp(CONF_RECURSIVE, "Recursively back up the entire source directory tree", Boolean.toString(DEFAULT_RECURSIVE)),
             new OptHelp(CONF_SOURCES3ACCESSKEY, "When the source is an S3 bucket, use this to set its access key"),
@@ -382,7 +1047,113 @@ public class HBackupConfig {
                     " it will start immediately after the previous run."),
             new OptHelp(CONF_MTIME_AGE_MILLIS, "The minimum mtime age between the current " +
                     "system time and a file to be backed up. A file with an age greater " +
-                    "than or equal to this will be backedup.")
+                    "than or equal to this will be backedup."),
+            new OptHelp(CONF_VERIFYETAGS, "When verifying checksums, compare S3 ETags against MD5s recorded " +
+                    "at upload time instead of downloading the data. Files whose ETag can't be checked are " +
+                    "downloaded as usual.", Boolean.toString(DEFAULT_VERIFYETAGS)),
+            new OptHelp(CONF_HDFSCHECKSUMCOMPARE, "For HDFS to HDFS backups, when a file has the same length but a different mtime " +
+                    "in the sink, compare HDFS file checksums and only update the sink mtime if they " +
+                    "match.", Boolean.toString(DEFAULT_HDFSCHECKSUMCOMPARE)),
+            new OptHelp(CONF_S3DELTAUPLOAD, "When re-uploading a changed file to S3 using the multipart API, copy leading " +
+                    "parts whose MD5 matches the part MD5 recorded for the existing object from that " +
+                    "object inside S3 instead of uploading them. Requires hbackup.checksumUri.", Boolean.toString(DEFAULT_S3DELTAUPLOAD)),
+            new OptHelp(CONF_DEDUPTHREADS, "For s3dedup:// sinks and sources, the number of threads that check for, " +
+                    "upload and fetch chunks", Integer.toString(DEFAULT_DEDUP_THREADS)),
+            new OptHelp(CONF_S3COMPRESS, "When writing to S3, compress files with a framed format that still allows ranged " +
+                    "reads. Files that look already compressed are stored as-is. S3 sources " +
+                    "decompress automatically", Boolean.toString(DEFAULT_S3COMPRESS)),
+            new OptHelp(CONF_S3PACKTHRESHOLD, "When writing to S3, files smaller than this many bytes are packed together into " +
+                    "archive objects instead of being uploaded one by one. 0 disables packing", Long.toString(DEFAULT_S3_PACK_THRESHOLD)),
+            new OptHelp(CONF_S3PACKSIZE, "When packing small files for S3, the size to fill each archive object to", Long.toString(DEFAULT_S3_PACK_SIZE)),
+            new OptHelp(CONF_LOCALCHUNKSIZE, "When writing to a file:// sink, large files are written as chunks of this many " +
+                    "bytes in parallel", Long.toString(DEFAULT_LOCAL_CHUNK_SIZE)),
+            new OptHelp(CONF_SPOOLDIR, "A local directory to spool chunks through. Chunks are copied from the source to " +
+                    "this directory at source speed and uploaded to the sink from there, so retries " +
+                    "don't re-read the source. Unset disables spooling"),
+            new OptHelp(CONF_SPOOLMAXBYTES, "The most bytes the spool directory will hold at once. Chunks bigger than this " +
+                    "bypass the spool", Long.toString(DEFAULT_SPOOL_MAX_BYTES)),
+            new OptHelp(CONF_SPOOLREADTHREADS, "The most chunks to read from the source into the spool at once, independent of " +
+                    "hbackup.concurrentChunks. 0 means no separate limit", Integer.toString(DEFAULT_SPOOL_READ_THREADS)),
+            new OptHelp(CONF_BUFFERPOOLMAXBYTES, "The most memory used by the shared pool of transfer buffers. Copy loops wait for " +
+                    "a buffer when the pool is full", Long.toString(DEFAULT_BUFFER_POOL_MAX_BYTES)),
+            new OptHelp(CONF_BUFFERRETRYMAXBYTES, "Chunks up to this size are read into a pooled buffer before being sent, and " +
+                    "retries are sent from the buffer instead of re-reading the source. 0 disables " +
+                    "this", Long.toString(DEFAULT_BUFFER_RETRY_MAX_BYTES)),
+            new OptHelp(CONF_READAHEADBYTES, "How many bytes to prefetch from the source on a background thread for each " +
+                    "stream being read, split between two buffers from the shared buffer pool. 0 " +
+                    "disables read-ahead", Long.toString(DEFAULT_READ_AHEAD_BYTES)),
+            new OptHelp(CONF_READAHEADTHREADS, "The number of background threads filling read-ahead buffers, shared by all " +
+                    "streams from a source", Integer.toString(DEFAULT_READ_AHEAD_THREADS)),
+            new OptHelp(CONF_S3ALIGNTOBLOCKS, "When copying HDFS files to S3, choose each file's part size so parts start and " +
+                    "end on HDFS block boundaries, as close to hbackup.s3.partSize as possible", Boolean.toString(DEFAULT_S3ALIGNTOBLOCKS)),
+            new OptHelp(CONF_MAXCHUNKSPERDATANODE, "For HDFS sources, the most chunks that may read from any one datanode at once. " +
+                    "Chunks are scheduled to spread reads across datanodes and racks. 0 disables " +
+                    "datanode-aware scheduling", Integer.toString(DEFAULT_MAX_CHUNKS_PER_DATANODE)),
+            new OptHelp(CONF_HEDGEPERCENTILE, "Start a duplicate attempt of a chunk that has run longer than this percentile of " +
+                    "the chunks that already finished, for chunks that allow it (S3 multipart parts). " +
+                    "0 disables hedging", Integer.toString(DEFAULT_HEDGE_PERCENTILE)),
+            new OptHelp(CONF_MAXHEDGES, "The most duplicate chunk attempts running at once", Integer.toString(DEFAULT_MAX_HEDGES)),
+            new OptHelp(CONF_STALLBYTESPERSEC, "A chunk attempt that reads less than this many bytes per second from the source " +
+                    "over hbackup.stall.seconds is aborted and retried. 0 disables stall detection", Long.toString(DEFAULT_STALL_BYTES_PER_SEC)),
+            new OptHelp(CONF_STALLSECONDS, "How long a chunk attempt's read rate is measured over before it can be judged " +
+                    "stalled", Integer.toString(DEFAULT_STALL_SECONDS)),
+            new OptHelp(CONF_VIRTUALTHREADS, "Run each chunk, metadata check and checksum fetch on its own virtual thread, " +
+                    "limiting concurrency by requests and bytes in flight instead of by thread count. " +
+                    "Needs a Java 21 or later runtime, and falls back to platform threads on older " +
+                    "ones", Boolean.toString(DEFAULT_VIRTUAL_THREADS)),
+            new OptHelp(CONF_MAXREQUESTS, "With virtual threads, the most chunks, metadata checks and checksum fetches in " +
+                    "flight at once", Integer.toString(DEFAULT_MAX_REQUESTS)),
+            new OptHelp(CONF_MAXBYTESINFLIGHT, "With virtual threads, the most bytes of chunks being transferred at once", Long.toString(DEFAULT_MAX_BYTES_IN_FLIGHT)),
+            new OptHelp(CONF_FANOUT_SEGMENT_SIZE, "When hbackup.to lists several sinks, files are read from the source in segments " +
+                    "of this many bytes, each shared by all the sinks", Long.toString(DEFAULT_FANOUT_SEGMENT_SIZE)),
+            new OptHelp(CONF_COORDINATOR_URI, "Shared directory (hdfs:// or file://) where the workers of a coordinated backup " +
+                    "keep their leases. If unset, this process backs up everything by itself"),
+            new OptHelp(CONF_COORDINATOR_RUN_ID, "Name of a coordinated backup run. Every worker of a run must use the same name, " +
+                    "and each run needs a new one"),
+            new OptHelp(CONF_COORDINATOR_LEASE_SECONDS, "How long a worker's claim on a lease lasts without being renewed, before other " +
+                    "workers may take the lease over", Integer.toString(DEFAULT_COORDINATOR_LEASE_SECONDS)),
+            new OptHelp(CONF_COORDINATOR_LEASE_BYTES, "How many bytes of files go in each lease of a coordinated backup. Bigger files " +
+                    "are split across several leases when the sink supports it", Long.toString(DEFAULT_COORDINATOR_LEASE_BYTES)),
+            new OptHelp(CONF_CONTINUOUS, "If true, the backup service runs continuously instead of every " +
+                    "hbackup.intervalMins. It keeps the source's directory listings in memory, lists " +
+                    "only directories that changed, and sends new files as soon as they're found. A " +
+                    "full pass still runs every hbackup.intervalMins", Boolean.toString(DEFAULT_CONTINUOUS)),
+            new OptHelp(CONF_CONTINUOUS_POLLSECONDS, "In continuous mode, how long to wait between incremental " +
+                    "passes over the source", Integer.toString(DEFAULT_CONTINUOUS_POLL_SECONDS)),
+            new OptHelp(CONF_TAIL_PATHS_REGEX, "Files whose relative paths match this regex are backed up while they're still " +
+                    "being written, even if they're newer than hbackup.mtimeAgeMillis. Each complete " +
+                    "part of such a file is sent once as the file grows, and the rest is sent once it " +
+                    "stops changing. Only S3 and file:// sinks tail files, other sinks wait for them as usual"),
+            new OptHelp(CONF_TAIL_QUIET_MILLIS, "A file matching hbackup.tail.pathsRegex counts as finished once it hasn't been " +
+                    "modified and its length hasn't changed for this long. On HDFS, where a file's mtime only changes when it's " +
+                    "closed, this should be longer than the file takes to grow by a block", 
+                    Long.toString(DEFAULT_TAIL_QUIET_MILLIS)),
+            new OptHelp(CONF_MIRROR, "If true, files that are in a sink but no longer in the source are deleted from " +
+                    "the sink after each full backup, so the sink mirrors the source. Files in packs " +
+                    "aren't deleted", Boolean.toString(DEFAULT_MIRROR)),
+            new OptHelp(CONF_MIRROR_DRYRUN, "In mirror mode, only log the files that would be deleted, without " +
+                    "deleting them", Boolean.toString(DEFAULT_MIRROR_DRY_RUN)),
+            new OptHelp(CONF_MIRROR_MAXDELETEPERCENT, "In mirror mode, nothing is deleted from a sink if more than this percentage of " +
+                    "its files would be, though one file may always be deleted if the source isn't empty. A sink is never emptied. " +
+                    "This guards against a wrong or empty source listing emptying the backup", Integer.toString(DEFAULT_MIRROR_MAX_DELETE_PERCENT)),
+            new OptHelp(CONF_SNAPSHOT_ID, "For s3snap:// sources, the snapshot to restore. If unset, the latest " +
+                    "snapshot is read", DEFAULT_SNAPSHOT_ID),
+            new OptHelp(CONF_DETECT_MOVES, "Before sending files at new paths, look in the sinks for files that are no " +
+                    "longer in the source but have the same length and mtime, and copy or rename " +
+                    "those into place instead of sending the data again. Only S3, HDFS and file:// " +
+                    "sinks do this", Boolean.toString(DEFAULT_DETECT_MOVES)),
+            new OptHelp(CONF_MOVES_MINBYTES, "With hbackup.moves, files smaller than this are sent again instead of being " +
+                    "looked for in the sinks", Long.toString(DEFAULT_MOVES_MIN_BYTES)),
+            new OptHelp(CONF_S3_KEY_SHARD_CHARS, "When a new S3 sink or checksum store is created, start each " +
+                    "key with this many hex characters (at most 2) of a hash of the file's path, so keys spread over " +
+                    "many prefixes and S3 doesn't throttle a busy directory. Listing the store then takes a LIST " +
+                    "request for each of the 16^n prefixes. The layout is recorded in the store, so sources read it " +
+                    "whatever this is set to, and a store that already has files can't be switched. 0 keeps keys as " +
+                    "plain paths", 
+                    Integer.toString(DEFAULT_S3_KEY_SHARD_CHARS)),
+            new OptHelp(CONF_CATALOG, "Keep a sorted, indexed catalog of the files in S3 sinks, updated at the end of " +
+                    "each full run, and use it in S3 sources and staleness checks instead of listing " +
+                    "the store and reading each object's metadata", Boolean.toString(DEFAULT_CATALOG))
     };
     
     public static class OptHelp {
@@ -0,0 +1,13 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup;
+
+/**
+ * A chunk that can safely be run twice at the same time, so that a slow attempt can be raced by a
+ * duplicate one. Whichever attempt finishes first completes the chunk, and the other's result is dropped.
+ * Both attempts send the same data to the same place, so it doesn't matter if both get there.
+ */
+public interface HedgeableChunk extends RetryableChunk {
+}
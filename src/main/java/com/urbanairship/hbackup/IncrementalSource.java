@@ -0,0 +1,19 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A source that can list only what changed since its last listing, for continuous backups.
+ */
+public interface IncrementalSource {
+    /**
+     * Visit the source, listing only directories that changed since the last pass with the same state.
+     * @return files that are new or changed since the last pass, or every file if the state is empty.
+     */
+    public List<SourceFile> getChangedFiles(NamespaceState state, boolean recursive) throws IOException;
+}
@@ -9,38 +9,37 @@ import java.io.InputStream;
 import java.io.StringWriter;
 import java.net.URI;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
 import org.jets3t.service.S3Service;
 import org.jets3t.service.S3ServiceException;
 import org.jets3t.service.ServiceException;
-import org.jets3t.service.impl.rest.httpclient.RestS3Service;
 import org.jets3t.service.model.S3Object;
 
 public class Jets3tChecksumImpl extends ChecksumService {
     private static final Logger log = LogManager.getLogger(Jets3tChecksumImpl.class);
     
     private final String bucket;
-    private final String baseName;
+    private final S3KeyLayout layout;
     private S3Service s3Service;
     
     public Jets3tChecksumImpl(URI uri, HBackupConfig conf) throws IOException {
         this.bucket = uri.getHost();
-        this.baseName = Util.canonicalizeBaseName(uri.getPath());
-        try {
-            this.s3Service = new RestS3Service(conf.s3ChecksumCredentials);
-        } catch (ServiceException e) {
-            throw new IOException(e);
-        }
+        this.s3Service = S3Clients.getInstance().get(conf.s3ChecksumCredentials, S3Clients.poolSize(conf));
+        this.layout = S3KeyLayout.forStore(s3Service, bucket, Util.canonicalizeBaseName(uri.getPath()),
+                conf.s3KeyShardChars, true);
     }
     
     @Override
     public void storeChecksum(String relativePath, String hexChecksum) throws IOException {
         S3Object s3Object;
         try {
-            s3Object = new S3Object(baseName + relativePath, hexChecksum.getBytes());
+            s3Object = new S3Object(layout.key(relativePath), hexChecksum.getBytes());
             s3Service.putObject(bucket, s3Object);
             log.debug("Saved S3 checksum " + hexChecksum + " for " + relativePath);
         } catch (S3ServiceException e) {
@@ -56,9 +55,58 @@ public class Jets3tChecksumImpl extends ChecksumService {
      */
     @Override
     public String getChecksum(String relativePath) throws IOException {
+        return getString(layout.key(relativePath));
+    }
+    
+    @Override
+    public void storePartDigests(String relativePath, List<String> hexMd5s) throws IOException {
+        String key = layout.key(relativePath) + Constant.PART_DIGESTS_SUFFIX;
+        try {
+            s3Service.putObject(bucket, new S3Object(key, StringUtils.join(hexMd5s, "\n")));
+            log.debug("Saved " + hexMd5s.size() + " part digests for " + relativePath);
+        } catch (S3ServiceException e) {
+            log.error("Couldn't save part digests for " + relativePath, e);
+            throw new IOException(e);
+        } catch(NoSuchAlgorithmException e) {
+            throw new RuntimeException(e); // Will happen if JVM doesn't have MD5, i.e. never
+        }
+    }
+    
+    /**
+     * @return the stored part digests for the given relativePath, or null if none were found
+     */
+    @Override
+    public List<String> getPartDigests(String relativePath) throws IOException {
+        String contents = getString(layout.key(relativePath) + Constant.PART_DIGESTS_SUFFIX);
+        if(contents == null) {
+            return null;
+        }
+        List<String> hexMd5s = new ArrayList<String>();
+        for(String line: contents.split("\n")) {
+            if(line.length() > 0) {
+                hexMd5s.add(line);
+            }
+        }
+        return hexMd5s;
+    }
+    
+    @Override
+    public void deletePartDigests(String relativePath) throws IOException {
+        try {
+            s3Service.deleteObject(bucket, layout.key(relativePath) + Constant.PART_DIGESTS_SUFFIX);
+        } catch (ServiceException e) {
+            log.error("Couldn't delete part digests for " + relativePath, e);
+            throw new IOException(e);
+        }
+    }
+    
+    /**
+     * @return the contents of the given key as a string, or null if it doesn't exist
+     */
+    private String getString(String key) throws IOException {
         S3Object s3Object = null;
         try {
-            s3Object = s3Service.getObject(bucket, baseName + relativePath);
+            s3Object = s3Service.getObject(bucket, key);
             InputStream is = s3Object.getDataInputStream();
             StringWriter stringWriter = new StringWriter();
             IOUtils.copy(is, stringWriter);
@@ -0,0 +1,19 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup;
+
+import java.util.List;
+
+/**
+ * A chunk that knows where the source data it reads is stored, so that ChunkScheduler can spread
+ * concurrent chunks across datanodes and racks.
+ */
+public interface LocatedChunk extends RetryableChunk {
+    /**
+     * @return the network locations of the hosts holding a copy of the chunk's source data, as
+     * "/rack/host" topology paths. Empty if unknown.
+     */
+    public List<String> getLocations();
+}
@@ -0,0 +1,161 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+/**
+ * Deletes files from the sinks that are no longer in the source, after a full backup, so each sink mirrors
+ * the source. The source and sink listings are sorted and merged to find the paths only the sink has, and
+ * those are deleted in the biggest batches the sink supports, several batches at a time.
+ *
+ * If more than hbackup.mirror.maxDeletePercent of a sink's files would be deleted, nothing is deleted from
+ * it, since a wrong or empty source listing is more likely than that many real deletions. A sink too small
+ * for the percentage to cover a whole file may still lose one, unless the source is empty, and a sink is
+ * never emptied. In a dry run the files are only logged.
+ */
+public class Mirror {
+    private static final Logger log = LogManager.getLogger(Mirror.class);
+    
+    private final HBackupConfig conf;
+    private final Stats stats;
+    
+    public Mirror(HBackupConfig conf, Stats stats) {
+        this.conf = conf;
+        this.stats = stats;
+    }
+    
+    /**
+     * @param sourcePaths the relative path of every file in the source, including ones too new to back up.
+     * @param sinkUris the sinks' URIs, for logging.
+     */
+    public void run(List<String> sourcePaths, List<Sink> sinks, List<String> sinkUris) 
+            throws InterruptedException {
+        List<String> sortedSourcePaths = new ArrayList<String>(sourcePaths);
+        Collections.sort(sortedSourcePaths);
+        for(int i=0; i<sinks.size(); i++) {
+            if(!(sinks.get(i) instanceof MirrorSink)) {
+                log.warn("Sink " + sinkUris.get(i) + " can't list its files, so nothing is deleted from it");
+                continue;
+            }
+            try {
+                mirror(sortedSourcePaths, (MirrorSink)sinks.get(i), sinkUris.get(i));
+            } catch (IOException e) {
+                log.error("Couldn't delete old files from sink " + sinkUris.get(i), e);
+                stats.fileFailureExceptions.add(e);
+            }
+        }
+    }
+    
+    private void mirror(List<String> sortedSourcePaths, final MirrorSink sink, String sinkUri) 
+            throws IOException, InterruptedException {
+        // Only files this backup would have sent are candidates
+        Pattern includePattern = conf.includePathsRegex == null ? null : Pattern.compile(conf.includePathsRegex);
+        List<String> sinkPaths = new ArrayList<String>();
+        for(String relativePath: sink.listRelativePaths()) {
+            if((conf.recursive || relativePath.indexOf('/') < 0) && 
+                    (includePattern == null || includePattern.matcher(relativePath).matches())) {
+                sinkPaths.add(relativePath);
+            }
+        }
+        Collections.sort(sinkPaths);
+        
+        List<String> toDelete = sinkOnly(sortedSourcePaths, sinkPaths);
+        long maxDeletes = (long)sinkPaths.size() * conf.mirrorMaxDeletePercent / 100;
+        if(maxDeletes == 0 && !sortedSourcePaths.isEmpty()) {
+            // A sink too small for the percentage to cover a whole file can still lose one
+            maxDeletes = 1;
+        }
+        // Emptying a sink is never allowed, whatever the percentage
+        boolean overLimit = toDelete.size() > maxDeletes || 
+                (!toDelete.isEmpty() && toDelete.size() == sinkPaths.size());
+        if(conf.mirrorDryRun) {
+            for(String relativePath: toDelete) {
+                log.info("Dry run, would delete from " + sinkUri + ": " + relativePath);
+            }
+            log.info("Dry run, would delete " + toDelete.size() + " of " + sinkPaths.size() + " files from " + 
+                    sinkUri + (overLimit ? ", but that's more than hbackup.mirror.maxDeletePercent so nothing " +
+                    "would be deleted" : ""));
+            stats.numMirrorDeletes.addAndGet(toDelete.size());
+            return;
+        }
+        if(toDelete.isEmpty()) {
+            return;
+        }
+        if(overLimit) {
+            throw new IOException("Not deleting anything from " + sinkUri + ", since " + toDelete.size() + 
+                    " of its " + sinkPaths.size() + " files aren't in the source, more than " + 
+                    conf.mirrorMaxDeletePercent + "% or all of them");
+        }
+        
+        log.info("Deleting " + toDelete.size() + " files from " + sinkUri + " that aren't in the source");
+        int batchSize = Math.max(1, sink.getDeleteBatchSize());
+        ExecutorService executor = Executors.newFixedThreadPool(conf.concurrentFiles, 
+                Util.daemonThreadFactory("mirror-delete"));
+        try {
+            List<Future<List<String>>> futures = new ArrayList<Future<List<String>>>();
+            for(int i=0; i<toDelete.size(); i+=batchSize) {
+                final List<String> batch = toDelete.subList(i, Math.min(toDelete.size(), i + batchSize));
+                futures.add(executor.submit(new Callable<List<String>>() {
+                    @Override
+                    public List<String> call() throws IOException {
+                        return sink.delete(batch);
+                    }
+                }));
+            }
+            int numFailed = 0;
+            for(int i=0; i<futures.size(); i++) {
+                int thisBatchSize = Math.min(batchSize, toDelete.size() - i * batchSize);
+                List<String> failed;
+                try {
+                    failed = futures.get(i).get();
+                } catch (ExecutionException e) {
+                    log.error("Couldn't delete a batch of " + thisBatchSize + " files from " + sinkUri, e.getCause());
+                    failed = toDelete.subList(i * batchSize, i * batchSize + thisBatchSize);
+                }
+                for(String relativePath: failed) {
+                    log.warn("Couldn't delete " + relativePath + " from " + sinkUri);
+                }
+                numFailed += failed.size();
+                stats.numMirrorDeletes.addAndGet(thisBatchSize - failed.size());
+                stats.numMirrorDeletesFailed.addAndGet(failed.size());
+            }
+            if(numFailed > 0) {
+                throw new IOException("Couldn't delete " + numFailed + " files from " + sinkUri);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    /**
+     * @return the paths that are in sinkPaths but not in sourcePaths, found by merging the two sorted lists.
+     */
+    static List<String> sinkOnly(List<String> sourcePaths, List<String> sinkPaths) {
+        List<String> result = new ArrayList<String>();
+        int i = 0;
+        for(String sinkPath: sinkPaths) {
+            while(i < sourcePaths.size() && sourcePaths.get(i).compareTo(sinkPath) < 0) {
+                i++;
+            }
+            if(i == sourcePaths.size() || !sourcePaths.get(i).equals(sinkPath)) {
+                result.add(sinkPath);
+            }
+        }
+        return result;
+    }
+}
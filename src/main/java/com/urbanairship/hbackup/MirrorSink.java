@@ -0,0 +1,31 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A sink that can list the files it holds and delete them, so that in mirror mode files deleted from the
+ * source are deleted from the sink too.
+ */
+public interface MirrorSink {
+    /**
+     * @return the relative path of every file in the sink, in any order. The sink's own bookkeeping, like
+     * packs and partly written files, isn't included.
+     */
+    public List<String> listRelativePaths() throws IOException;
+    
+    /**
+     * @return the most files that one call to delete() should be given.
+     */
+    public int getDeleteBatchSize();
+    
+    /**
+     * Delete files from the sink. Several batches may be deleted at once by different threads.
+     * @return the paths that couldn't be deleted.
+     */
+    public List<String> delete(List<String> relativePaths) throws IOException;
+}
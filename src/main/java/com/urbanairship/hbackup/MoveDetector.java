@@ -0,0 +1,240 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+/**
+ * Finds files that were moved or renamed in the source since the last backup, before a full backup sends
+ * anything, and has each sink copy or rename its old copy into place instead of receiving the data again.
+ * Once moved, a file is up to date in the sink and the backup skips it like any other.
+ *
+ * A file is a candidate if the sink has nothing at its path. Its old copy is looked for among the sink's
+ * files that are no longer in the source, which are indexed by length. The sink then checks a candidate
+ * copy's mtime, and whatever else it can check cheaply, before moving it. Files smaller than
+ * hbackup.moves.minBytes are sent as usual, since checking a copy costs about as much as sending them.
+ *
+ * Stored checksums and part digests are copied to the new path, so checksum verification still works.
+ * Any problem finding or moving a file just means the file is sent normally.
+ */
+public class MoveDetector {
+    private static final Logger log = LogManager.getLogger(MoveDetector.class);
+
+    private final HBackupConfig conf;
+    private final Stats stats;
+    private final ChecksumService checksumService;
+
+    /**
+     * The sink's files of one length that are gone from the source. Guarded by itself.
+     */
+    private static class Gone {
+        final List<String> free = new ArrayList<String>(1); // Not being tried by any file
+        int numHeld = 0; // Being tried by a file right now
+    }
+
+    /**
+     * @param checksumService where checksums are stored, or null for none.
+     */
+    public MoveDetector(HBackupConfig conf, Stats stats, ChecksumService checksumService) {
+        this.conf = conf;
+        this.stats = stats;
+        this.checksumService = checksumService;
+    }
+
+    /**
+     * @param files the files in the source that will be backed up.
+     * @param tooNewPaths the files in the source that are too new to back up, which are still in the source.
+     * @param sinkUris the sinks' URIs, for logging.
+     */
+    public void run(List<SourceFile> files, List<String> tooNewPaths, List<Sink> sinks, List<String> sinkUris)
+            throws InterruptedException {
+        Set<String> sourcePaths = new HashSet<String>(tooNewPaths);
+        Pattern includePattern = conf.includePathsRegex == null ? null : Pattern.compile(conf.includePathsRegex);
+        List<SourceFile> candidates = new ArrayList<SourceFile>();
+        for(SourceFile file: files) {
+            sourcePaths.add(file.getRelativePath());
+            if(file.getLength() > 0 && file.getLength() >= conf.movesMinBytes &&
+                    (includePattern == null || includePattern.matcher(file.getRelativePath()).matches())) {
+                candidates.add(file);
+            }
+        }
+        if(candidates.isEmpty()) {
+            return;
+        }
+
+        for(int i=0; i<sinks.size(); i++) {
+            if(!(sinks.get(i) instanceof MoveSink)) {
+                log.warn("Sink " + sinkUris.get(i) + " can't move files, so moved files are sent to it again");
+                continue;
+            }
+            try {
+                findMoves(sourcePaths, includePattern, candidates, (MoveSink)sinks.get(i), sinkUris.get(i));
+            } catch (IOException e) {
+                log.warn("Couldn't look for moved files in sink " + sinkUris.get(i) + ", they'll be sent again", e);
+            }
+        }
+    }
+
+    private void findMoves(Set<String> sourcePaths, Pattern includePattern, List<SourceFile> candidates,
+            final MoveSink sink, String sinkUri) throws IOException, InterruptedException {
+        // Only the sink's files that are gone from the source are kept, indexed by the length they'd have.
+        // Files outside hbackup.includePathsRegex, or in subdirectories when not recursive, may not have been
+        // listed, so they're left alone.
+        Map<String,Long> sinkLengths = sink.listLengths();
+        final Map<Long,Gone> gone = new HashMap<Long,Gone>();
+        for(Map.Entry<String,Long> entry: sinkLengths.entrySet()) {
+            if(!sourcePaths.contains(entry.getKey()) && (conf.recursive || entry.getKey().indexOf('/') < 0) &&
+                    (includePattern == null || includePattern.matcher(entry.getKey()).matches())) {
+                Gone sameLength = gone.get(entry.getValue());
+                if(sameLength == null) {
+                    sameLength = new Gone();
+                    gone.put(entry.getValue(), sameLength);
+                }
+                sameLength.free.add(entry.getKey());
+            }
+        }
+        List<SourceFile> newFiles = new ArrayList<SourceFile>();
+        for(SourceFile file: candidates) {
+            if(!sinkLengths.containsKey(file.getRelativePath()) && gone.containsKey(file.getLength())) {
+                newFiles.add(file);
+            }
+        }
+        if(newFiles.isEmpty()) {
+            return;
+        }
+
+        log.info("Looking for old copies of " + newFiles.size() + " new files in " + sinkUri);
+        ExecutorService executor = Executors.newFixedThreadPool(conf.concurrentFiles,
+                Util.daemonThreadFactory("move-detector"));
+        try {
+            List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(newFiles.size());
+            for(final SourceFile file: newFiles) {
+                futures.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws IOException {
+                        return moveFromGone(gone, sink, file);
+                    }
+                }));
+            }
+            int numMoved = 0;
+            for(int i=0; i<futures.size(); i++) {
+                try {
+                    if(futures.get(i).get()) {
+                        numMoved++;
+                    }
+                } catch (ExecutionException e) {
+                    log.warn("Couldn't move an old copy of " + newFiles.get(i).getRelativePath() + " in " +
+                            sinkUri + ", it'll be sent again", e.getCause());
+                }
+            }
+            log.info("Moved " + numMoved + " files into place in " + sinkUri + " from old paths");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Try the sink's files that are gone from the source and have the file's length, until one is moved.
+     * @return whether the file was moved into place.
+     */
+    private boolean moveFromGone(Map<Long,Gone> gone, MoveSink sink, SourceFile file)
+            throws IOException {
+        Set<String> tried = new HashSet<String>();
+        String fromPath;
+        while((fromPath = claim(gone, file.getLength(), tried)) != null) {
+            boolean moved = false;
+            try {
+                moved = sink.move(fromPath, file);
+            } finally {
+                release(gone, file.getLength(), fromPath, moved);
+            }
+            if(moved) {
+                log.debug("Moved " + fromPath + " to " + file.getRelativePath());
+                copyChecksums(fromPath, file.getRelativePath());
+                stats.numFilesMoved.incrementAndGet();
+                stats.numBytesMoved.addAndGet(file.getLength());
+                return true;
+            }
+            tried.add(fromPath);
+        }
+        return false;
+    }
+
+    /**
+     * Take a path with the given length that hasn't been tried yet, so no other file tries it meanwhile. If
+     * the only untried paths are being tried by other files, wait to see whether they're moved.
+     * @return the path, or null if there are none left.
+     */
+    private static String claim(Map<Long,Gone> gone, long length, Set<String> tried) 
+            throws InterruptedIOException {
+        Gone candidates = gone.get(length);
+        synchronized(candidates) {
+            while(true) {
+                for(int i=0; i<candidates.free.size(); i++) {
+                    if(!tried.contains(candidates.free.get(i))) {
+                        candidates.numHeld++;
+                        return candidates.free.remove(i);
+                    }
+                }
+                if(candidates.numHeld == 0) {
+                    return null;
+                }
+                try {
+                    candidates.wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+    }
+
+    /**
+     * Give back a claimed path. A path that was moved is used up.
+     */
+    private static void release(Map<Long,Gone> gone, long length, String path, boolean moved) {
+        Gone candidates = gone.get(length);
+        synchronized(candidates) {
+            candidates.numHeld--;
+            if(!moved) {
+                candidates.free.add(path);
+            }
+            candidates.notifyAll();
+        }
+    }
+
+    private void copyChecksums(String fromPath, String toPath) {
+        if(checksumService == null) {
+            return;
+        }
+        try {
+            String checksum = checksumService.getChecksum(fromPath);
+            if(checksum != null) {
+                checksumService.storeChecksum(toPath, checksum);
+            }
+            List<String> partDigests = checksumService.getPartDigests(fromPath);
+            if(partDigests != null) {
+                checksumService.storePartDigests(toPath, partDigests);
+            }
+        } catch (IOException e) {
+            log.warn("Couldn't copy the stored checksum of " + fromPath + " to " + toPath, e);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * A sink that can put a file at a new path by reusing a copy it already holds at another path, without the
+ * data being sent again. This lets a backup follow files that were moved or renamed in the source.
+ */
+public interface MoveSink {
+    /**
+     * @return the length of every file in the sink, by relative path. The sink's own bookkeeping, like packs
+     * and partly written files, isn't included. Files whose length in the sink isn't their source length
+     * may be left out.
+     */
+    public Map<String,Long> listLengths() throws IOException;
+    
+    /**
+     * Put the file at its relative path in the sink, from the sink's copy at fromPath. The sink first checks
+     * that the copy has the file's length and mtime, and anything else it can check without reading the
+     * file. The copy at fromPath may be left in place or renamed away. Several moves may run at once on
+     * different threads.
+     * @return false if the copy at fromPath doesn't match the file, in which case nothing was changed.
+     */
+    public boolean move(String fromPath, SourceFile file) throws IOException;
+}
@@ -0,0 +1,143 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * What an IncrementalSource found in each directory on its last pass, kept in memory between the passes of
+ * a continuous backup. A directory's modification time changes when entries are added to it, removed or
+ * renamed, so a directory whose mtime hasn't changed since it was listed doesn't need listing again. Its
+ * subdirectories are still visited, since their own mtimes may have changed.
+ *
+ * A directory is also listed again if it held files too new to back up, or a file whose transfer failed,
+ * so those are picked up once they're eligible. Changes to a file that don't touch its directory's mtime
+ * (appends, for example) aren't seen until the next full pass, which starts from a cleared state.
+ */
+public class NamespaceState {
+    // A directory changed this recently may change again without its mtime moving, on filesystems that
+    // keep mtimes to the second, so it's listed again on the next pass
+    private static final long MTIME_GRANULARITY_MILLIS = 2000;
+
+    private static class Dir {
+        final long mtime;
+        final List<String> subdirs = new ArrayList<String>();
+        final Map<String,String> files = new HashMap<String,String>(); // Name to version of eligible files
+        final Map<String,String> previousFiles; // What the last listing found, to compare against
+        boolean relist = false; // Has files that weren't eligible, or that failed
+
+        Dir(long mtime, Map<String,String> previousFiles) {
+            this.mtime = mtime;
+            this.previousFiles = previousFiles;
+        }
+    }
+
+    // By directory path relative to the source, "" for the source itself and "dir/" for the others
+    private final Map<String,Dir> dirs = new HashMap<String,Dir>();
+    private final Set<String> visited = new HashSet<String>();
+    private int numDirsListed = 0;
+    private int numDirsUnchanged = 0;
+
+    /**
+     * Start a pass over the source.
+     */
+    public synchronized void startPass() {
+        visited.clear();
+        numDirsListed = 0;
+        numDirsUnchanged = 0;
+    }
+
+    /**
+     * Forget directories that weren't visited on this pass, since they no longer exist.
+     */
+    public synchronized void finishPass() {
+        dirs.keySet().retainAll(visited);
+        for(Dir dir: dirs.values()) {
+            dir.previousFiles.clear();
+        }
+    }
+
+    /**
+     * Forget everything, so the next pass lists the whole source.
+     */
+    public synchronized void clear() {
+        dirs.clear();
+    }
+
+    /**
+     * @return the names of the directory's subdirectories if it's unchanged since it was last listed, or
+     * null if it needs listing.
+     */
+    public synchronized List<String> getUnchangedSubdirs(String dirPath, long mtime) {
+        Dir dir = dirs.get(dirPath);
+        if(dir == null || dir.relist || dir.mtime != mtime) {
+            return null;
+        }
+        visited.add(dirPath);
+        numDirsUnchanged++;
+        return dir.subdirs;
+    }
+
+    /**
+     * Record the listing of a directory. The source should then call addSubdir(), addFile() and
+     * addIneligibleFile() for its entries.
+     */
+    public synchronized void listed(String dirPath, long mtime) {
+        Dir previous = dirs.get(dirPath);
+        Map<String,String> previousFiles = previous == null ? new HashMap<String,String>() : previous.files;
+        Dir dir = new Dir(mtime, previousFiles);
+        dir.relist = System.currentTimeMillis() - mtime < MTIME_GRANULARITY_MILLIS;
+        dirs.put(dirPath, dir);
+        visited.add(dirPath);
+        numDirsListed++;
+    }
+
+    public synchronized void addSubdir(String dirPath, String name) {
+        dirs.get(dirPath).subdirs.add(name);
+    }
+
+    /**
+     * Record an eligible file found by listing.
+     * @return whether the file is new or changed since the directory was last listed, and should be sent.
+     */
+    public synchronized boolean addFile(String dirPath, String name, long mtime, long length) {
+        Dir dir = dirs.get(dirPath);
+        String version = mtime + "/" + length;
+        dir.files.put(name, version);
+        return !version.equals(dir.previousFiles.get(name));
+    }
+
+    /**
+     * Record a file found by listing that isn't eligible for backup yet.
+     */
+    public synchronized void addIneligibleFile(String dirPath) {
+        dirs.get(dirPath).relist = true;
+    }
+
+    /**
+     * Forget a file whose transfer failed, so the next pass lists its directory and sends it again.
+     */
+    public synchronized void forgetFile(String relativePath) {
+        int slash = relativePath.lastIndexOf('/');
+        Dir dir = dirs.get(relativePath.substring(0, slash + 1));
+        if(dir != null) {
+            dir.files.remove(relativePath.substring(slash + 1));
+            dir.relist = true;
+        }
+    }
+
+    public synchronized int getNumDirsListed() {
+        return numDirsListed;
+    }
+
+    public synchronized int getNumDirsUnchanged() {
+        return numDirsUnchanged;
+    }
+}
@@ -0,0 +1,80 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The table of contents of a pack, an archive object holding many small files back to back. Each pack
+ * object has an index object next to it, with the same key plus Constant.PACK_INDEX_SUFFIX.
+ */
+public class PackIndex {
+    private static final int MAGIC = 0x4842504b; // "HBPK"
+
+    public static class Entry {
+        public final String relativePath;
+        public final long offset;
+        public final long length;
+        public final long mtime;
+        public final String checksum; // The file's XOR checksum, as stored by the checksum service
+
+        public Entry(String relativePath, long offset, long length, long mtime, String checksum) {
+            this.relativePath = relativePath;
+            this.offset = offset;
+            this.length = length;
+            this.mtime = mtime;
+            this.checksum = checksum;
+        }
+    }
+
+    private final List<Entry> entries = new ArrayList<Entry>();
+
+    public void add(Entry entry) {
+        entries.add(entry);
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    public byte[] toBytes() {
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(baos);
+            dos.writeInt(MAGIC);
+            dos.writeInt(entries.size());
+            for(Entry e: entries) {
+                dos.writeUTF(e.relativePath);
+                dos.writeLong(e.offset);
+                dos.writeLong(e.length);
+                dos.writeLong(e.mtime);
+                dos.writeUTF(e.checksum);
+            }
+            dos.close();
+            return baos.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e); // Can't happen writing to memory
+        }
+    }
+
+    public static PackIndex parse(InputStream is) throws IOException {
+        DataInputStream dis = new DataInputStream(is);
+        if(dis.readInt() != MAGIC) {
+            throw new IOException("Not a pack index");
+        }
+        int numEntries = dis.readInt();
+        PackIndex index = new PackIndex();
+        for(int i=0; i<numEntries; i++) {
+            index.add(new Entry(dis.readUTF(), dis.readLong(), dis.readLong(), dis.readLong(), dis.readUTF()));
+        }
+        return index;
+    }
+}
@@ -0,0 +1,85 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A group of small source files to be stored together as one pack by a sink that supports packing. The
+ * pack reads as the concatenation of its files, and its relative path is the path of the pack object
+ * in the sink.
+ */
+public class PackSourceFile implements SourceFile {
+    private final String relativePath;
+    private final List<SourceFile> files;
+    private final long length;
+
+    public PackSourceFile(String relativePath, List<SourceFile> files) {
+        this.relativePath = relativePath;
+        this.files = files;
+        long totalLength = 0;
+        for(SourceFile file: files) {
+            totalLength += file.getLength();
+        }
+        this.length = totalLength;
+    }
+
+    public List<SourceFile> getFiles() {
+        return files;
+    }
+
+    @Override
+    public InputStream getFullInputStream() throws IOException {
+        // Open each file's stream only when the previous one is exhausted
+        final Iterator<SourceFile> it = files.iterator();
+        return new SequenceInputStream(new Enumeration<InputStream>() {
+            @Override
+            public boolean hasMoreElements() {
+                return it.hasNext();
+            }
+
+            @Override
+            public InputStream nextElement() {
+                try {
+                    return it.next().getFullInputStream();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+    }
+
+    @Override
+    public InputStream getPartialInputStream(long offset, long len) throws IOException {
+        throw new UnsupportedOperationException("Packs are only read whole");
+    }
+
+    @Override
+    public String getRelativePath() {
+        return relativePath;
+    }
+
+    /**
+     * @return the newest mtime of the files in the pack.
+     */
+    @Override
+    public long getMTime() throws IOException {
+        long newest = 0;
+        for(SourceFile file: files) {
+            newest = Math.max(newest, file.getMTime());
+        }
+        return newest;
+    }
+
+    @Override
+    public long getLength() {
+        return length;
+    }
+}
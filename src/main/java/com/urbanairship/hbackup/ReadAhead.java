@@ -0,0 +1,43 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup;
+
+import java.io.InputStream;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wraps source streams in ReadAheadInputStreams according to the config. Each source has one of these,
+ * and all of its streams share its background threads.
+ */
+public class ReadAhead {
+    private static final int NUM_BUFFERS = 2;
+
+    private final int bufferSize;
+    private final ThreadPoolExecutor executor; // Null if read-ahead is disabled
+
+    public ReadAhead(HBackupConfig conf, String threadName) {
+        if(conf.readAheadBytes > 0) {
+            this.bufferSize = (int)Math.max(1, conf.readAheadBytes / NUM_BUFFERS);
+            this.executor = new ThreadPoolExecutor(conf.readAheadThreads, conf.readAheadThreads, 60,
+                    TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), Util.daemonThreadFactory(threadName));
+            this.executor.allowCoreThreadTimeOut(true);
+        } else {
+            this.bufferSize = 0;
+            this.executor = null;
+        }
+    }
+
+    /**
+     * @return a stream that reads ahead of the caller, or the given stream if read-ahead is disabled.
+     */
+    public InputStream wrap(InputStream in) {
+        if(executor == null) {
+            return in;
+        }
+        return new ReadAheadInputStream(in, bufferSize, NUM_BUFFERS, executor, BufferPool.getInstance());
+    }
+}
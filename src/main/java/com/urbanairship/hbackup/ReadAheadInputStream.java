@@ -0,0 +1,273 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Executor;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+/**
+ * Wraps a stream and keeps reading it ahead of the caller on a background thread, into a fixed number of
+ * buffers from the buffer pool. While the caller is busy with one buffer (sending it to the sink, say),
+ * the next one is being filled from the source, so a slow source and a slow sink overlap instead of taking
+ * turns.
+ *
+ * Background reads run as tasks on a shared executor. A task fills buffers until all of this stream's
+ * buffers are full and then ends, and the caller starts a new task when it hands a buffer back. No task
+ * ever waits for the caller, so any number of streams can share a small executor. Read-ahead buffers are
+ * taken from the pool without waiting; when the pool has none to spare the caller reads the wrapped stream
+ * directly, so read-ahead never holds up copy loops that need a buffer of their own.
+ */
+public class ReadAheadInputStream extends InputStream {
+    private static final Logger log = LogManager.getLogger(ReadAheadInputStream.class);
+
+    private final InputStream in;
+    private final int bufferSize;
+    private final int numBuffers;
+    private final Executor executor;
+    private final BufferPool bufferPool;
+
+    // Guarded by "this"
+    private final Deque<ByteBuffer> filled = new ArrayDeque<ByteBuffer>();
+    private int buffersHeld = 0; // Filled, being filled, or being read by the caller
+    private boolean fillRunning = false;
+    private boolean eof = false;
+    private boolean closed = false;
+    private IOException error = null;
+    private long directBytesBeforeRetry = 0; // After the pool ran out, read this much directly before trying again
+
+    private ByteBuffer current = null; // Only touched by the caller's thread
+
+    private static final int HAS_DATA = 0;
+    private static final int END_OF_STREAM = 1;
+    private static final int READ_DIRECTLY = 2;
+
+    public ReadAheadInputStream(InputStream in, int bufferSize, int numBuffers, Executor executor,
+            BufferPool bufferPool) {
+        this.in = in;
+        this.bufferSize = bufferSize;
+        this.numBuffers = numBuffers;
+        this.executor = executor;
+        this.bufferPool = bufferPool;
+        startFill();
+    }
+
+    private final Runnable fillTask = new Runnable() {
+        @Override
+        public void run() {
+            while(true) {
+                synchronized(ReadAheadInputStream.this) {
+                    if(closed || eof || error != null || buffersHeld >= numBuffers) {
+                        fillRunning = false;
+                        if(closed) {
+                            closeQuietly();
+                        }
+                        ReadAheadInputStream.this.notifyAll();
+                        return;
+                    }
+                    buffersHeld++;
+                }
+                ByteBuffer buf = bufferPool.tryAcquire(bufferSize);
+                if(buf == null) {
+                    synchronized(ReadAheadInputStream.this) {
+                        buffersHeld--;
+                        fillRunning = false;
+                        directBytesBeforeRetry = bufferSize;
+                        if(closed) {
+                            closeQuietly();
+                        }
+                        ReadAheadInputStream.this.notifyAll();
+                        return;
+                    }
+                }
+                boolean reachedEof = false;
+                IOException readError = null;
+                try {
+                    reachedEof = fill(buf);
+                } catch (IOException e) {
+                    readError = e;
+                } catch (RuntimeException e) {
+                    readError = new IOException(e);
+                }
+                synchronized(ReadAheadInputStream.this) {
+                    if(readError != null || closed) {
+                        bufferPool.release(buf);
+                        buffersHeld--;
+                        if(error == null) {
+                            error = readError;
+                        }
+                    } else {
+                        filled.add(buf);
+                        eof = reachedEof;
+                    }
+                    ReadAheadInputStream.this.notifyAll();
+                }
+            }
+        }
+    };
+
+    /**
+     * Read from the wrapped stream until the buffer is full or the stream ends, and flip the buffer.
+     * @return whether the stream ended.
+     */
+    private boolean fill(ByteBuffer buf) throws IOException {
+        byte[] b = buf.array();
+        int pos = 0;
+        int limit = Math.min(bufferSize, b.length);
+        boolean reachedEof = false;
+        while(pos < limit) {
+            int bytesRead = in.read(b, pos, limit - pos);
+            if(bytesRead == -1) {
+                reachedEof = true;
+                break;
+            }
+            pos += bytesRead;
+        }
+        buf.clear();
+        buf.limit(pos);
+        return reachedEof;
+    }
+
+    private synchronized void startFill() {
+        if(!fillRunning && !closed && !eof && error == null && buffersHeld < numBuffers && 
+                directBytesBeforeRetry <= 0) {
+            fillRunning = true;
+            executor.execute(fillTask);
+        }
+    }
+
+    /**
+     * Get the next buffer into current if current is used up, waiting for it to be filled if needed.
+     * @return HAS_DATA if current has bytes to read, END_OF_STREAM, or READ_DIRECTLY if there are no
+     * buffers to spare and nothing is reading ahead, so the caller should read the wrapped stream itself.
+     */
+    private int nextBuffer() throws IOException {
+        if(current != null && current.hasRemaining()) {
+            return HAS_DATA;
+        }
+        if(closed) {
+            throw new IOException("Stream closed");
+        }
+        synchronized(this) {
+            if(current != null) {
+                bufferPool.release(current);
+                current = null;
+                buffersHeld--;
+            }
+        }
+        startFill();
+        synchronized(this) {
+            while(filled.isEmpty() && !eof && error == null) {
+                if(!fillRunning) {
+                    return READ_DIRECTLY;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(e);
+                }
+            }
+            if(!filled.isEmpty()) {
+                current = filled.poll();
+            } else if(error != null) {
+                throw error;
+            } else {
+                return END_OF_STREAM; // Nothing left buffered
+            }
+        }
+        if(!current.hasRemaining()) {
+            return nextBuffer(); // The last buffer can be empty
+        }
+        return HAS_DATA;
+    }
+
+    @Override
+    public int read() throws IOException {
+        switch(nextBuffer()) {
+        case END_OF_STREAM:
+            return -1;
+        case READ_DIRECTLY:
+            int b = in.read();
+            readDirectly(b == -1 ? -1 : 1);
+            return b;
+        default:
+            return current.get() & 0xff;
+        }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if(len == 0) {
+            return 0;
+        }
+        switch(nextBuffer()) {
+        case END_OF_STREAM:
+            return -1;
+        case READ_DIRECTLY:
+            int bytesRead = in.read(b, off, len);
+            readDirectly(bytesRead);
+            return bytesRead;
+        default:
+            break;
+        }
+        int toCopy = Math.min(len, current.remaining());
+        current.get(b, off, toCopy);
+        return toCopy;
+    }
+
+    private synchronized void readDirectly(int bytesRead) {
+        if(bytesRead == -1) {
+            eof = true;
+        } else {
+            directBytesBeforeRetry -= bytesRead;
+        }
+    }
+
+    @Override
+    public synchronized int available() {
+        int available = current == null ? 0 : current.remaining();
+        for(ByteBuffer buf: filled) {
+            available += buf.remaining();
+        }
+        return available;
+    }
+
+    @Override
+    public synchronized void close() {
+        if(closed) {
+            return;
+        }
+        closed = true;
+        if(current != null) {
+            bufferPool.release(current);
+            current = null;
+            buffersHeld--;
+        }
+        while(!filled.isEmpty()) {
+            bufferPool.release(filled.poll());
+            buffersHeld--;
+        }
+        // A running fill task might be reading the wrapped stream, so it closes the stream when it ends
+        if(!fillRunning) {
+            closeQuietly();
+        }
+        notifyAll();
+    }
+
+    private void closeQuietly() {
+        try {
+            in.close();
+        } catch (IOException e) {
+            log.debug("Exception closing read-ahead source stream", e);
+        }
+    }
+}
@@ -0,0 +1,325 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.jets3t.service.S3Service;
+import org.jets3t.service.ServiceException;
+import org.jets3t.service.model.S3Object;
+
+/**
+ * The {@link BackupCatalog} of an S3 store. Each catalog is a new object under Constant.CATALOG_PREFIX,
+ * named by the time it was written, and the latest one is current. Entries are read with ranged GETs of
+ * the blocks that hold them, and recently read blocks are kept, so looking up paths in order reads each
+ * block about once.
+ *
+ * A catalog is updated by writing a new one that merges the current one with what a run changed. The one
+ * before it is kept, so readers that started with it can finish, and older ones are deleted.
+ */
+public class S3Catalog {
+    private static final Logger log = LogManager.getLogger(S3Catalog.class);
+    private static final int CACHED_BLOCKS = 64;
+
+    private final S3Service s3Service;
+    private final String bucketName;
+    private final String key;
+    private final BackupCatalog index;
+    private final long indexStart;
+
+    // Blocks by their position in the index, most recently used last
+    private final Map<Integer,FutureTask<List<BackupCatalog.Entry>>> cachedBlocks =
+            new LinkedHashMap<Integer,FutureTask<List<BackupCatalog.Entry>>>(CACHED_BLOCKS, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer,FutureTask<List<BackupCatalog.Entry>>> eldest) {
+            return size() > CACHED_BLOCKS;
+        }
+    };
+
+    private S3Catalog(S3Service s3Service, String bucketName, String key, BackupCatalog index, long indexStart) {
+        this.s3Service = s3Service;
+        this.bucketName = bucketName;
+        this.key = key;
+        this.index = index;
+        this.indexStart = indexStart;
+    }
+
+    /**
+     * @return the store's current catalog, or null if it doesn't have one.
+     */
+    public static S3Catalog latest(S3Service s3Service, String bucketName, String baseName) throws IOException {
+        List<S3Object> catalogObjs = listCatalogs(s3Service, bucketName, baseName);
+        if(catalogObjs.isEmpty()) {
+            return null;
+        }
+        S3Object latest = catalogObjs.get(catalogObjs.size() - 1);
+        long objLen = latest.getContentLength();
+        long indexStart = BackupCatalog.parseFooter(readRange(s3Service, bucketName, latest.getKey(),
+                objLen - BackupCatalog.FOOTER_LENGTH, BackupCatalog.FOOTER_LENGTH));
+        BackupCatalog index = BackupCatalog.parse(readRange(s3Service, bucketName, latest.getKey(), indexStart,
+                objLen - BackupCatalog.FOOTER_LENGTH - indexStart));
+        log.debug("Using catalog " + latest.getKey() + " of " + index.getNumEntries() + " files in " +
+                index.getBlocks().size() + " blocks");
+        return new S3Catalog(s3Service, bucketName, latest.getKey(), index, indexStart);
+    }
+
+    /**
+     * @return the store's catalog objects, oldest first.
+     */
+    private static List<S3Object> listCatalogs(S3Service s3Service, String bucketName, String baseName)
+            throws IOException {
+        List<S3Object> catalogObjs = new ArrayList<S3Object>();
+        try {
+            Collections.addAll(catalogObjs,
+                    s3Service.listObjects(bucketName, baseName + Constant.CATALOG_PREFIX, null));
+        } catch (ServiceException e) {
+            throw new IOException(e);
+        }
+        // Names are the times the catalogs were written, which sort in order
+        Collections.sort(catalogObjs, new Comparator<S3Object>() {
+            @Override
+            public int compare(S3Object o1, S3Object o2) {
+                return o1.getKey().compareTo(o2.getKey());
+            }
+        });
+        return catalogObjs;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public long getNumEntries() {
+        return index.getNumEntries();
+    }
+
+    /**
+     * @return the entry for the path, or null if the catalog doesn't have it.
+     */
+    public BackupCatalog.Entry get(String relativePath) throws IOException {
+        int blockNum = index.blockFor(relativePath);
+        if(blockNum < 0) {
+            return null;
+        }
+        for(BackupCatalog.Entry entry: getBlock(blockNum)) {
+            if(entry.relativePath.equals(relativePath)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Read a block, or wait for another thread that's reading it.
+     */
+    private List<BackupCatalog.Entry> getBlock(int blockNum) throws IOException {
+        final BackupCatalog.Block block = index.getBlocks().get(blockNum);
+        FutureTask<List<BackupCatalog.Entry>> task;
+        boolean mustRun = false;
+        synchronized(cachedBlocks) {
+            task = cachedBlocks.get(blockNum);
+            if(task == null) {
+                task = new FutureTask<List<BackupCatalog.Entry>>(new Callable<List<BackupCatalog.Entry>>() {
+                    @Override
+                    public List<BackupCatalog.Entry> call() throws IOException {
+                        return BackupCatalog.parseBlocks(readRange(s3Service, bucketName, key, block.offset,
+                                block.length), 1);
+                    }
+                });
+                cachedBlocks.put(blockNum, task);
+                mustRun = true;
+            }
+        }
+        if(mustRun) {
+            task.run();
+        }
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            synchronized(cachedBlocks) {
+                cachedBlocks.remove(blockNum); // So the next lookup tries again
+            }
+            throw new IOException("Couldn't read a block of catalog " + key, e.getCause());
+        }
+    }
+
+    /**
+     * @return the entries for every path starting with the prefix, in path order, read with one ranged GET.
+     */
+    public List<BackupCatalog.Entry> list(String prefix) throws IOException {
+        List<BackupCatalog.Block> blocks = index.blocksForPrefix(prefix);
+        List<BackupCatalog.Entry> entries = new ArrayList<BackupCatalog.Entry>();
+        if(blocks.isEmpty()) {
+            return entries;
+        }
+        BackupCatalog.Block last = blocks.get(blocks.size() - 1);
+        InputStream is = null;
+        try {
+            is = s3Service.getObject(bucketName, key, null, null, null, null, blocks.get(0).offset, 
+                    last.offset + last.length - 1).getDataInputStream();
+            BackupCatalog.Reader reader = new BackupCatalog.Reader(is, blocks.size());
+            BackupCatalog.Entry entry;
+            while((entry = reader.next()) != null) {
+                if(entry.relativePath.startsWith(prefix)) {
+                    entries.add(entry);
+                }
+            }
+        } catch (ServiceException e) {
+            throw new IOException(e);
+        } finally {
+            if(is != null) {
+                is.close();
+            }
+        }
+        log.debug("Read " + entries.size() + " catalog entries under \"" + prefix + "\" from " + blocks.size() +
+                " of " + index.getBlocks().size() + " blocks");
+        return entries;
+    }
+
+    /**
+     * Write a new catalog with the entries of the previous one, if any, updated with the given changes, and
+     * delete the catalogs before the previous one. The new catalog is written to a temporary file first, so
+     * neither catalog has to fit in memory.
+     * @param changes the new entries of changed files, with a null entry for files that are gone. An entry
+     * without a checksum gets the previous entry's checksum if it's for the same object.
+     * @return the new catalog's number of entries.
+     */
+    public static long write(S3Service s3Service, String bucketName, String baseName, S3Catalog previous,
+            SortedMap<String,BackupCatalog.Entry> changes) throws IOException {
+        File tempFile = File.createTempFile("hbackup-catalog", null);
+        try {
+            BackupCatalog.Writer writer = new BackupCatalog.Writer(
+                    new BufferedOutputStream(new FileOutputStream(tempFile)));
+            InputStream previousStream = null;
+            try {
+                BackupCatalog.Reader reader = null;
+                if(previous != null) {
+                    previousStream = previous.getBlocksStream();
+                    reader = new BackupCatalog.Reader(previousStream, previous.index.getBlocks().size());
+                }
+                merge(reader, changes, writer);
+            } finally {
+                if(previousStream != null) {
+                    previousStream.close();
+                }
+                writer.close();
+            }
+
+            String newKey = baseName + Constant.CATALOG_PREFIX + newCatalogName();
+            S3Object catalogObj = new S3Object(tempFile);
+            catalogObj.setKey(newKey);
+            s3Service.putObject(bucketName, catalogObj);
+            log.info("Wrote catalog " + newKey + " of " + writer.getNumEntries() + " files");
+
+            List<S3Object> catalogObjs = listCatalogs(s3Service, bucketName, baseName);
+            for(int i=0; i<catalogObjs.size()-2; i++) {
+                log.debug("Deleting old catalog " + catalogObjs.get(i).getKey());
+                s3Service.deleteObject(bucketName, catalogObjs.get(i).getKey());
+            }
+            return writer.getNumEntries();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e); // Will happen if JVM doesn't have MD5, i.e. never
+        } catch (ServiceException e) {
+            throw new IOException(e);
+        } finally {
+            tempFile.delete();
+        }
+    }
+
+    /**
+     * Write the entries of the previous catalog, or of nothing if reader is null, updated with the changes.
+     */
+    static void merge(BackupCatalog.Reader reader, SortedMap<String,BackupCatalog.Entry> changes,
+            BackupCatalog.Writer writer) throws IOException {
+        Iterator<Map.Entry<String,BackupCatalog.Entry>> changeIter = changes.entrySet().iterator();
+        Map.Entry<String,BackupCatalog.Entry> change = changeIter.hasNext() ? changeIter.next() : null;
+        BackupCatalog.Entry old = reader == null ? null : reader.next();
+        while(change != null || old != null) {
+            int cmp = change == null ? 1 : old == null ? -1 : change.getKey().compareTo(old.relativePath);
+            if(cmp > 0) {
+                writer.add(old);
+                old = reader.next();
+                continue;
+            }
+            BackupCatalog.Entry entry = change.getValue();
+            if(cmp == 0) {
+                if(entry != null && entry.checksum.length() == 0 && entry.sameObject(old)) {
+                    entry = entry.withChecksum(old.checksum);
+                }
+                old = reader.next();
+            }
+            if(entry != null) {
+                writer.add(entry);
+            }
+            change = changeIter.hasNext() ? changeIter.next() : null;
+        }
+    }
+
+    private InputStream getBlocksStream() throws IOException {
+        if(indexStart == 0) {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+        try {
+            return s3Service.getObject(bucketName, key, null, null, null, null, 0L, indexStart - 1)
+                    .getDataInputStream();
+        } catch (ServiceException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * @return a name for a catalog written now. Names sort in the order their catalogs were written.
+     */
+    private static String newCatalogName() {
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd'T'HHmmss.SSS'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date());
+    }
+
+    private static byte[] readRange(S3Service s3Service, String bucketName, String key, long offset, long length)
+            throws IOException {
+        byte[] buf = new byte[(int)length];
+        DataInputStream dis = null;
+        try {
+            dis = new DataInputStream(s3Service.getObject(bucketName, key, null, null, null, null,
+                    offset, offset + length - 1).getDataInputStream());
+            dis.readFully(buf);
+        } catch (ServiceException e) {
+            throw new IOException(e);
+        } finally {
+            if(dis != null) {
+                dis.close();
+            }
+        }
+        return buf;
+    }
+}
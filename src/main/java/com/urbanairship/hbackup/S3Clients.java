@@ -0,0 +1,197 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.httpclient.ConnectionPoolTimeoutException;
+import org.apache.commons.httpclient.HostConfiguration;
+import org.apache.commons.httpclient.HttpConnection;
+import org.apache.commons.httpclient.HttpConnectionManager;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.jets3t.service.Constants;
+import org.jets3t.service.Jets3tProperties;
+import org.jets3t.service.S3ServiceException;
+import org.jets3t.service.security.AWSCredentials;
+
+import com.urbanairship.hbackup.datasinks.PartCopyS3Service;
+
+/**
+ * Hands out S3 clients, one per set of credentials and endpoint, shared by every source, sink and checksum
+ * service in the process. Sharing means one connection pool per account, so connections opened by one
+ * component (or by an earlier scheduled run) are kept alive and reused by the rest.
+ *
+ * Each client's connection pool is sized for the largest concurrency it has been asked for, so worker
+ * threads don't queue for connections. The pools record how long threads waited for a connection and how
+ * many requests reused a kept-alive one.
+ */
+public class S3Clients {
+    private static final Logger log = LogManager.getLogger(S3Clients.class);
+
+    private static final String ENDPOINT_PROPERTY = "s3service.s3-endpoint";
+    private static final String MAX_CONNECTIONS_PROPERTY = "httpclient.max-connections";
+
+    private static final S3Clients instance = new S3Clients();
+
+    // Guarded by "this"
+    private final Map<String,Client> clients = new HashMap<String,Client>();
+
+    private static class Client {
+        final PartCopyS3Service service;
+        final MeteredConnectionManager connectionManager;
+
+        Client(PartCopyS3Service service, MeteredConnectionManager connectionManager) {
+            this.service = service;
+            this.connectionManager = connectionManager;
+        }
+    }
+
+    S3Clients() {
+    }
+
+    public static S3Clients getInstance() {
+        return instance;
+    }
+
+    /**
+     * @return how many connections to an S3 account a run with this config can use at once. A chunk can
+     * hold a source GET and a sink PUT at the same time, and so can a hedged attempt.
+     */
+    public static int poolSize(HBackupConfig conf) {
+        int tasks = conf.virtualThreads ? conf.maxRequests : conf.concurrentFiles;
+        int size = 2 * tasks + conf.dedupThreads;
+        if(conf.hedgePercentile > 0) {
+            size += 2 * conf.maxHedges;
+        }
+        return size;
+    }
+
+    /**
+     * @return the shared client for the given credentials (null for anonymous access), with a connection
+     * pool of at least maxConnections.
+     */
+    public synchronized PartCopyS3Service get(AWSCredentials credentials, int maxConnections) throws IOException {
+        Jets3tProperties defaults = Jets3tProperties.getInstance(Constants.JETS3T_PROPERTIES_FILENAME);
+        String endpoint = defaults.getStringProperty(ENDPOINT_PROPERTY, Constants.S3_DEFAULT_HOSTNAME);
+        String key = endpoint + " " +
+                (credentials == null ? "" : credentials.getAccessKey() + " " + credentials.getSecretKey());
+        Client client = clients.get(key);
+        if(client == null) {
+            client = newClient(credentials, defaults, maxConnections);
+            clients.put(key, client);
+            log.debug("Created S3 client for " + endpoint + " with " + maxConnections + " connections");
+        }
+        client.connectionManager.ensureCapacity(maxConnections);
+        return client.service;
+    }
+
+    private static Client newClient(AWSCredentials credentials, Jets3tProperties defaults, int maxConnections)
+            throws IOException {
+        Jets3tProperties properties = new Jets3tProperties();
+        properties.loadAndReplaceProperties(defaults, "defaults");
+        properties.setProperty(MAX_CONNECTIONS_PROPERTY, Integer.toString(maxConnections));
+        PartCopyS3Service service;
+        try {
+            service = new PartCopyS3Service(credentials, properties);
+        } catch (S3ServiceException e) {
+            throw new IOException(e);
+        }
+        // Swap in a pool that measures itself, with the settings jets3t gave its own
+        HttpConnectionManager jets3tManager = service.getHttpConnectionManager();
+        MeteredConnectionManager manager = new MeteredConnectionManager();
+        manager.setParams(jets3tManager.getParams());
+        service.getHttpClient().setHttpConnectionManager(manager);
+        service.setHttpConnectionManager(manager);
+        if(jets3tManager instanceof MultiThreadedHttpConnectionManager) {
+            ((MultiThreadedHttpConnectionManager)jets3tManager).shutdown();
+        }
+        return new Client(service, manager);
+    }
+
+    public synchronized int getNumClients() {
+        return clients.size();
+    }
+
+    public synchronized long getNumRequests() {
+        long total = 0;
+        for(Client client: clients.values()) {
+            total += client.connectionManager.numCheckouts.get();
+        }
+        return total;
+    }
+
+    /**
+     * @return how many requests were sent on a connection left open by an earlier request.
+     */
+    public synchronized long getNumConnectionsReused() {
+        long total = 0;
+        for(Client client: clients.values()) {
+            total += client.connectionManager.numReused.get();
+        }
+        return total;
+    }
+
+    /**
+     * @return the total time threads have waited for a free connection.
+     */
+    public synchronized long getPoolWaitMillis() {
+        long total = 0;
+        for(Client client: clients.values()) {
+            total += TimeUnit.NANOSECONDS.toMillis(client.connectionManager.waitNanos.get());
+        }
+        return total;
+    }
+
+    public synchronized void logStats() {
+        if(clients.isEmpty()) {
+            return;
+        }
+        log.info("S3 connections:    " + getNumClients() + " clients, " + getNumConnectionsReused() + " of " +
+                getNumRequests() + " requests reused a connection, " + getPoolWaitMillis() +
+                "ms waiting for connections");
+    }
+
+    /**
+     * A connection pool that counts requests, connection reuse, and time spent waiting for a connection.
+     */
+    private static class MeteredConnectionManager extends MultiThreadedHttpConnectionManager {
+        final AtomicLong numCheckouts = new AtomicLong(0);
+        final AtomicLong numReused = new AtomicLong(0);
+        final AtomicLong waitNanos = new AtomicLong(0);
+
+        @Override
+        public HttpConnection getConnectionWithTimeout(HostConfiguration hostConfiguration, long timeout)
+                throws ConnectionPoolTimeoutException {
+            long start = System.nanoTime();
+            HttpConnection connection = super.getConnectionWithTimeout(hostConfiguration, timeout);
+            waitNanos.addAndGet(System.nanoTime() - start);
+            numCheckouts.incrementAndGet();
+            if(connection.isOpen()) {
+                numReused.incrementAndGet();
+            }
+            return connection;
+        }
+
+        /**
+         * Grow the pool if it's smaller than maxConnections. The pool reads these on every checkout.
+         */
+        synchronized void ensureCapacity(int maxConnections) {
+            HttpConnectionManagerParams params = getParams();
+            if(params.getMaxTotalConnections() < maxConnections) {
+                params.setMaxTotalConnections(maxConnections);
+            }
+            if(params.getDefaultMaxConnectionsPerHost() < maxConnections) {
+                params.setDefaultMaxConnectionsPerHost(maxConnections);
+            }
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.jets3t.service.S3Service;
+import org.jets3t.service.ServiceException;
+import org.jets3t.service.model.S3Object;
+import org.jets3t.service.model.StorageObject;
+
+/**
+ * How files' relative paths map to keys in an S3 store. Normally a file's key is the base name followed by
+ * its path, so a directory with many files is one range of keys, and S3 throttles requests to a busy range.
+ * A sharded layout puts the first shardChars hex characters of the MD5 of the path, and a "/", between the
+ * base name and the path, which spreads the files of any directory evenly over 16^shardChars prefixes.
+ *
+ * The layout is recorded in an object at Constant.S3_LAYOUT_KEY under the base name when a sharded store
+ * is first written, so readers of the store find the layout without being told. A store that already has
+ * objects without a recorded layout isn't switched to a sharded one, since its files couldn't be found.
+ * Pack, tail and catalog objects stay under their usual prefixes in either layout.
+ */
+public class S3KeyLayout {
+    private static final Logger log = LogManager.getLogger(S3KeyLayout.class);
+    public static final int MAX_SHARD_CHARS = 2;
+    private static final String SHARD_CHARS_FIELD = "shardChars ";
+
+    private final String baseName;
+    private final int shardChars;
+
+    public S3KeyLayout(String baseName, int shardChars) {
+        this.baseName = baseName;
+        this.shardChars = shardChars;
+    }
+
+    /**
+     * @param shardChars the configured layout, used if the store doesn't have one recorded yet. If it's
+     * sharded and record is true, it's recorded.
+     * @throws IOException if the store has a different sharded layout recorded than the configured one.
+     */
+    public static S3KeyLayout forStore(S3Service s3Service, String bucketName, String baseName, int shardChars,
+            boolean record) throws IOException {
+        String layoutKey = baseName + Constant.S3_LAYOUT_KEY;
+        Integer recorded = readShardChars(s3Service, bucketName, layoutKey);
+        if(recorded != null) {
+            if(shardChars != 0 && shardChars != recorded) {
+                throw new IOException("The store " + bucketName + "/" + baseName + " has keys sharded by " + 
+                        recorded + " hash characters, not the configured " + shardChars);
+            }
+            return new S3KeyLayout(baseName, recorded);
+        }
+        if(shardChars > 0 && record) {
+            try {
+                // Objects already here were written with plain paths as keys, and a sharded layout wouldn't
+                // find them. Listing after the base name skips its own directory marker, if it has one.
+                StorageObject[] existing = s3Service.listObjectsChunked(bucketName, baseName, null, 1, baseName, 
+                        false).getObjects();
+                if(existing.length > 0) {
+                    throw new IOException("The store " + bucketName + "/" + baseName + " already has objects " +
+                            "like " + existing[0].getKey() + " with plain paths as keys, and no key layout " +
+                            "recorded. Migrate it explicitly by backing it up to a new, empty location with " + 
+                            HBackupConfig.CONF_S3_KEY_SHARD_CHARS + " set, or set it to 0 to keep using it");
+                }
+                s3Service.putObject(bucketName, new S3Object(layoutKey, SHARD_CHARS_FIELD + shardChars + "\n"));
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e); // Will happen if JVM doesn't have MD5, i.e. never
+            } catch (ServiceException e) {
+                throw new IOException(e);
+            }
+            log.info("Recorded a key layout sharded by " + shardChars + " hash characters for " + 
+                    bucketName + "/" + baseName);
+        }
+        return new S3KeyLayout(baseName, shardChars);
+    }
+
+    /**
+     * @return the recorded number of shard characters, or null if no layout is recorded.
+     */
+    private static Integer readShardChars(S3Service s3Service, String bucketName, String layoutKey)
+            throws IOException {
+        InputStream is = null;
+        try {
+            is = s3Service.getObject(bucketName, layoutKey).getDataInputStream();
+            String contents = IOUtils.toString(is, "UTF-8").trim();
+            if(!contents.startsWith(SHARD_CHARS_FIELD)) {
+                throw new IOException("Malformed key layout in " + layoutKey + ": " + contents);
+            }
+            return Integer.valueOf(contents.substring(SHARD_CHARS_FIELD.length()));
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed key layout in " + layoutKey, e);
+        } catch (ServiceException e) {
+            if(e.getResponseCode() == 404) {
+                return null;
+            }
+            throw new IOException(e);
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+    }
+
+    public int getShardChars() {
+        return shardChars;
+    }
+
+    private String shard(String relativePath) {
+        return DigestUtils.md5Hex(relativePath).substring(0, shardChars);
+    }
+
+    /**
+     * @return the key of the object holding the file.
+     */
+    public String key(String relativePath) {
+        if(shardChars == 0) {
+            return baseName + relativePath;
+        }
+        return baseName + shard(relativePath) + "/" + relativePath;
+    }
+
+    /**
+     * @return the relative path of the file an object holds, or null if the key isn't a file's key in this
+     * layout, like bookkeeping objects and directory markers.
+     */
+    public String relativePath(String key) {
+        if(!key.startsWith(baseName) || key.endsWith("/")) {
+            return null;
+        }
+        String rest = key.substring(baseName.length());
+        if(shardChars == 0) {
+            while(rest.startsWith("/")) {
+                rest = rest.substring(1);
+            }
+            if(rest.equals(Constant.S3_LAYOUT_KEY) || rest.startsWith(Constant.PACK_PREFIX) || 
+                    rest.startsWith(Constant.TAIL_PREFIX) || rest.startsWith(Constant.CATALOG_PREFIX)) {
+                return null;
+            }
+            return rest;
+        }
+        if(rest.length() <= shardChars + 1 || rest.charAt(shardChars) != '/') {
+            return null;
+        }
+        String relativePath = rest.substring(shardChars + 1);
+        return shard(relativePath).equals(rest.substring(0, shardChars)) ? relativePath : null;
+    }
+
+    /**
+     * @return the prefixes that together cover the keys of every file: the base name, or each shard's prefix.
+     * Listing a sharded store takes at least one LIST request per prefix, 16^shardChars in all.
+     */
+    public List<String> getListPrefixes() {
+        if(shardChars == 0) {
+            return Arrays.asList(baseName);
+        }
+        int numShards = 1 << (4 * shardChars);
+        List<String> prefixes = new ArrayList<String>(numShards);
+        for(int i=0; i<numShards; i++) {
+            prefixes.add(baseName + String.format("%0" + shardChars + "x", i) + "/");
+        }
+        return prefixes;
+    }
+
+    /**
+     * List the objects of every file in the store. The shards of a sharded layout are listed in parallel,
+     * on up to the given number of threads.
+     */
+    public List<S3Object> listFileObjects(final S3Service s3Service, final String bucketName, int threads)
+            throws IOException {
+        List<String> prefixes = getListPrefixes();
+        List<S3Object> objects = new ArrayList<S3Object>();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, prefixes.size())),
+                Util.daemonThreadFactory("s3-list"));
+        try {
+            List<Future<S3Object[]>> futures = new ArrayList<Future<S3Object[]>>(prefixes.size());
+            for(final String prefix: prefixes) {
+                futures.add(executor.submit(new Callable<S3Object[]>() {
+                    @Override
+                    public S3Object[] call() throws Exception {
+                        return s3Service.listObjects(bucketName, prefix, null);
+                    }
+                }));
+            }
+            for(Future<S3Object[]> future: futures) {
+                for(S3Object s3Obj: future.get()) {
+                    if(relativePath(s3Obj.getKey()) != null) {
+                        objects.add(s3Obj);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw new IOException("Couldn't list " + bucketName + "/" + baseName, e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        return objects;
+    }
+}
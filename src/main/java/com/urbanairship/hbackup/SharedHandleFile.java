@@ -0,0 +1,22 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup;
+
+/**
+ * A source file whose partial streams share one open handle. The handle is opened by the first partial
+ * stream and normally closed when the last one is closed. While the file is retained, the handle stays
+ * open between streams too, so a file sent as many chunks is only opened once.
+ */
+public interface SharedHandleFile extends SourceFile {
+    /**
+     * Keep the shared handle open, once it's opened, until the matching releaseHandle().
+     */
+    public void retainHandle();
+
+    /**
+     * Undo one retainHandle(). The handle is closed once it's no longer retained and no streams use it.
+     */
+    public void releaseHandle();
+}
@@ -8,11 +8,15 @@ import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.List;
 
+import com.urbanairship.hbackup.datasinks.DedupS3Sink;
 import com.urbanairship.hbackup.datasinks.HdfsSink;
 import com.urbanairship.hbackup.datasinks.InMemoryDataSink;
 import com.urbanairship.hbackup.datasinks.Jets3tSink;
+import com.urbanairship.hbackup.datasinks.LocalSink;
+import com.urbanairship.hbackup.datasinks.SnapshotS3Sink;
 
 /**
  * A "sink" is a place to store data. Each type of Sink is an implementation of this abstract class. New
@@ -21,25 +25,55 @@ import com.urbanairship.hbackup.datasinks.Jets3tSink;
 public abstract class Sink {
     public static Sink forUri(URI uri, HBackupConfig conf, Stats stats) 
             throws IOException, URISyntaxException {
-        String scheme = uri.getScheme();
-
         ChecksumService checksumService = null;
         if(conf.checksumUri != null) {
             checksumService = ChecksumService.forUri(new URI(conf.checksumUri), conf);
         }
+        return forUri(uri, conf, stats, checksumService);
+    }
+    
+    /**
+     * @param checksumService where sinks that record checksums should store them, or null for none. 
+     */
+    public static Sink forUri(URI uri, HBackupConfig conf, Stats stats, ChecksumService checksumService) 
+            throws IOException, URISyntaxException {
+        String scheme = uri.getScheme();
 
         if(scheme.equals("s3")) {
             return new Jets3tSink(uri, conf, stats, checksumService);
+        } else if(scheme.equals("s3dedup")) {
+            return new DedupS3Sink(uri, conf, stats);
+        } else if(scheme.equals("s3snap")) {
+            return new SnapshotS3Sink(uri, conf, stats);
         } else if (scheme.equals("hdfs") || scheme.equals("maprfs")) {
             return new HdfsSink(uri, conf, stats, checksumService);
         } else if (scheme.equals("memory")) {
             return InMemoryDataSink.getInstance();
+        } else if (scheme.equals("file")) {
+            return new LocalSink(uri, conf);
         }
         else {
             throw new IllegalArgumentException("Unknown protocol \"" + scheme + "\" in  URI " + uri);
         }
     }
     
+    /**
+     * @return the URIs in a comma-separated list, like the value of hbackup.to when backing up to several
+     * sinks.
+     */
+    public static List<URI> splitUris(String uris) throws URISyntaxException {
+        List<URI> result = new ArrayList<URI>();
+        for(String uri: uris.split(",")) {
+            if(uri.trim().length() > 0) {
+                result.add(new URI(uri.trim()));
+            }
+        }
+        if(result.isEmpty()) {
+            throw new IllegalArgumentException("No sink URI in \"" + uris + "\"");
+        }
+        return result;
+    }
+    
     /**
      * Check whether the target has sourceFile and if it's up to date.
      * @return false if 
@@ -52,6 +86,30 @@ public abstract class Sink {
     public abstract boolean existsAndUpToDate(SourceFile file) throws IOException;
     
     public abstract List<RetryableChunk> getChunks(SourceFile file);
+    
+    /**
+     * @return whether this file should be sent as part of a pack of small files instead of by itself.
+     * Sinks that support packing override this and makePack().
+     */
+    public boolean shouldPack(SourceFile file) {
+        return false;
+    }
+    
+    /**
+     * Group files for which shouldPack() returned true into a pack, which is then transferred with
+     * getChunks() like any other file.
+     */
+    public PackSourceFile makePack(List<SourceFile> files) {
+        throw new UnsupportedOperationException("This sink doesn't pack files");
+    }
+
+    /**
+     * Called once a full run has sent every file it's going to, for sinks that record something about the
+     * run as a whole.
+     * @param tooNewPaths files in the source that were too new to back up on this run.
+     * @param succeeded false if any file failed to reach this sink.
+     */
+    public void runFinished(List<String> tooNewPaths, boolean succeeded) throws IOException { }
 
     /**
      * @return the file mtime as UTC epoch millis if the file exists, or null if it doesn't exist.
@@ -0,0 +1,31 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for one sink of a backup, which may write to several sinks at once. The counters in Stats are
+ * totals over all sinks.
+ */
+public class SinkStats {
+    public final String uri;
+    public final AtomicInteger numFilesSucceeded = new AtomicInteger(0);
+    public final AtomicInteger numFilesFailed = new AtomicInteger(0);
+    public final AtomicInteger numUpToDateFilesSkipped = new AtomicInteger(0);
+    public final AtomicLong numBytesSent = new AtomicLong(0);
+    
+    public SinkStats(String uri) {
+        this.uri = uri;
+    }
+    
+    /**
+     * @return bytes per second of files sent to this sink over the given time.
+     */
+    public long getBytesPerSec(long elapsedMillis) {
+        return elapsedMillis <= 0 ? 0 : numBytesSent.get() * 1000 / elapsedMillis;
+    }
+}
@@ -0,0 +1,110 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The files in one snapshot of a snapshot store: for each relative path, the content-addressed
+ * {@link DedupRecipe} holding the file's data, and the file's length, source mtime and checksum. Entries
+ * of files that didn't change between snapshots name the same recipe, so they cost nothing to store again.
+ * A manifest is written once, when its run finishes, and never changed.
+ *
+ * The serialized form is text, one item per line, with the entries sorted by path:
+ * <pre>
+ *   hbackup-manifest 1
+ *   [recipe hash] [length] [mtime] [checksum] [relative path]
+ *   ...
+ * </pre>
+ * The checksum is the file's streaming XOR as a hex string, or "-" if it isn't known. The path comes last
+ * since it may contain spaces.
+ */
+public class SnapshotManifest {
+    private static final String HEADER = "hbackup-manifest 1";
+    public static final String NO_CHECKSUM = "-";
+
+    public static class Entry {
+        public final String relativePath;
+        public final String recipeHash;
+        public final long length;
+        public final long mtime;
+        public final String checksum;
+
+        public Entry(String relativePath, String recipeHash, long length, long mtime, String checksum) {
+            this.relativePath = relativePath;
+            this.recipeHash = recipeHash;
+            this.length = length;
+            this.mtime = mtime;
+            this.checksum = checksum == null ? NO_CHECKSUM : checksum;
+        }
+    }
+
+    private final Map<String,Entry> entries = new TreeMap<String,Entry>();
+
+    public void add(Entry entry) {
+        entries.put(entry.relativePath, entry);
+    }
+
+    /**
+     * @return the file's entry, or null if the snapshot doesn't have the file.
+     */
+    public Entry get(String relativePath) {
+        return entries.get(relativePath);
+    }
+
+    public Collection<Entry> getEntries() {
+        return entries.values();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public byte[] toBytes() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(HEADER).append('\n');
+        for(Entry entry: entries.values()) {
+            sb.append(entry.recipeHash).append(' ').append(entry.length).append(' ').append(entry.mtime)
+                .append(' ').append(entry.checksum).append(' ').append(entry.relativePath).append('\n');
+        }
+        try {
+            return sb.toString().getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e); // Every JVM has UTF-8
+        }
+    }
+
+    public static SnapshotManifest parse(InputStream is) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(is, "UTF-8"));
+        if(!HEADER.equals(reader.readLine())) {
+            throw new IOException("Not an hbackup snapshot manifest, or unsupported version");
+        }
+        SnapshotManifest manifest = new SnapshotManifest();
+        String line;
+        while((line = reader.readLine()) != null) {
+            if(line.length() == 0) {
+                continue;
+            }
+            String[] fields = line.split(" ", 5);
+            if(fields.length != 5) {
+                throw new IOException("Malformed manifest line: " + line);
+            }
+            try {
+                manifest.add(new Entry(fields[4], fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                        fields[3]));
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed number in manifest line: " + line, e);
+            }
+        }
+        return manifest;
+    }
+}
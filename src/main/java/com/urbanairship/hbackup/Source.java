@@ -7,11 +7,15 @@ package com.urbanairship.hbackup;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.Collections;
 import java.util.List;
 
+import com.urbanairship.hbackup.datasources.DedupS3Source;
 import com.urbanairship.hbackup.datasources.HdfsSource;
 import com.urbanairship.hbackup.datasources.InMemoryDataSource;
 import com.urbanairship.hbackup.datasources.Jets3tSource;
+import com.urbanairship.hbackup.datasources.LocalSource;
+import com.urbanairship.hbackup.datasources.SnapshotS3Source;
 
 /**
  * A "source" is a place from which files are retrieved. Each type of Source is an implementation of this 
@@ -24,10 +28,16 @@ public abstract class Source {
         
         if (scheme.equals("s3")) {
             return new Jets3tSource(uri, conf);
+        } else if (scheme.equals("s3dedup")) {
+            return new DedupS3Source(uri, conf);
+        } else if (scheme.equals("s3snap")) {
+            return new SnapshotS3Source(uri, conf);
         } else if (scheme.equals("hdfs") || scheme.equals("maprfs")) {
             return new HdfsSource(uri, conf);
         } else if (scheme.equals("memory")) {
            return InMemoryDataSource.getInstance();
+        } else if (scheme.equals("file")) {
+            return new LocalSource(uri, conf);
         } else {
             throw new IllegalArgumentException("Unknown URI scheme \"" + scheme + "\" in  URI " + uri);
         }
@@ -37,4 +47,12 @@ public abstract class Source {
      * Get the list of files present in the source. These are candidates for copying.
      */
     public abstract List<SourceFile> getFiles(boolean recursive) throws IOException;
+    
+    /**
+     * @return the relative paths of files that the last getFiles() left out because they were too new to
+     * back up. They're still in the source, so mirror mode mustn't delete them from the sinks.
+     */
+    public List<String> getTooNewPaths() {
+        return Collections.emptyList();
+    }
 }
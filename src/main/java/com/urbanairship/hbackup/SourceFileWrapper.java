@@ -0,0 +1,15 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup;
+
+/**
+ * A source file that adds behavior to another source file's streams, like spooling or progress tracking.
+ */
+public interface SourceFileWrapper extends SourceFile {
+    /**
+     * @return the source file this one wraps.
+     */
+    public SourceFile getWrapped();
+}
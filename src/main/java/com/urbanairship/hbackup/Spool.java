@@ -0,0 +1,331 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+/**
+ * A staging area between the source and the sink. When a chunk reads its source file, the requested range
+ * is first copied in full to a pooled memory buffer if it's small enough and one is free, or otherwise to
+ * a spool file on local disk. That releases the source stream (and its datanode connection) as soon as the
+ * source can deliver the bytes. The sink then reads the copy at its own speed, and if the chunk is retried
+ * the same range is served from the copy again instead of from the source.
+ *
+ * Copies belong to the chunk whose thread created them, and are freed when that chunk is done, whether it
+ * succeeded or ran out of retries. Reads outside of a chunk, like the sink sampling a file in getChunks(),
+ * go straight to the source.
+ */
+public class Spool {
+    private static final Logger log = LogManager.getLogger(Spool.class);
+    private static final String PREFIX = "hbackup-";
+    private static final String SUFFIX = ".spool";
+
+    private final File dir; // Null if only spooling to memory
+    private final long maxBytes;
+    private final long memoryMaxBytes;
+    private final BufferPool bufferPool;
+    private final Semaphore readPermits; // Null if source reads aren't limited separately
+    private final Stats stats;
+    private final ThreadLocal<List<Entry>> chunkEntries = new ThreadLocal<List<Entry>>();
+    private long bytesUsed = 0;
+
+    private static class Entry {
+        final SourceFile sourceFile;
+        final long offset;
+        final long len;
+        final File file;
+        final ByteBuffer buffer;
+
+        Entry(SourceFile sourceFile, long offset, long len, File file, ByteBuffer buffer) {
+            this.sourceFile = sourceFile;
+            this.offset = offset;
+            this.len = len;
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+        InputStream open() throws IOException {
+            if(buffer != null) {
+                return new ByteArrayInputStream(buffer.array(), 0, (int)len);
+            }
+            return new FileInputStream(file);
+        }
+    }
+
+    /**
+     * @param dir the spool directory, or null to only keep copies that fit in memory.
+     * @param maxBytes the most bytes of spool files at once.
+     * @param readThreads the most source reads at once, or 0 for no limit.
+     * @param memoryMaxBytes the biggest range to copy into a pooled buffer instead of a spool file.
+     */
+    public Spool(File dir, long maxBytes, int readThreads, long memoryMaxBytes, BufferPool bufferPool,
+            Stats stats) throws IOException {
+        if(dir != null) {
+            if(!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+                throw new IOException("Couldn't create spool directory " + dir);
+            }
+            // Remove spool files left behind by a previous run that didn't exit cleanly
+            File[] leftovers = dir.listFiles();
+            if(leftovers != null) {
+                for(File leftover: leftovers) {
+                    if(leftover.getName().startsWith(PREFIX) && leftover.getName().endsWith(SUFFIX)) {
+                        log.debug("Deleting old spool file " + leftover);
+                        leftover.delete();
+                    }
+                }
+            }
+        }
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.memoryMaxBytes = memoryMaxBytes;
+        this.bufferPool = bufferPool;
+        this.readPermits = readThreads > 0 ? new Semaphore(readThreads) : null;
+        this.stats = stats;
+    }
+
+    /**
+     * Wrap a source file so that ranges read by chunks are spooled.
+     */
+    public SourceFile wrap(SourceFile sourceFile) {
+        return new SpooledSourceFile(sourceFile);
+    }
+
+    /**
+     * @return the source file underneath any wrappers (spooling or otherwise), for sinks that need the
+     * source's own type.
+     */
+    public static SourceFile unwrap(SourceFile sourceFile) {
+        while(sourceFile instanceof SourceFileWrapper) {
+            sourceFile = ((SourceFileWrapper)sourceFile).getWrapped();
+        }
+        return sourceFile;
+    }
+
+    /**
+     * Wrap a chunk's runnable so that the spool files it creates are kept across its retries and deleted
+     * when it finishes.
+     */
+    public Runnable wrap(final Runnable chunk) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                List<Entry> entries = new ArrayList<Entry>();
+                chunkEntries.set(entries);
+                try {
+                    chunk.run();
+                } finally {
+                    chunkEntries.remove();
+                    for(Entry entry: entries) {
+                        if(entry.buffer != null) {
+                            bufferPool.release(entry.buffer);
+                            continue;
+                        }
+                        if(!entry.file.delete()) {
+                            log.warn("Couldn't delete spool file " + entry.file);
+                        }
+                        release(entry.len);
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Reading the whole file is a read of the range from 0 to its length, but it's passed to the source as
+     * a full read, since some sources treat those differently.
+     */
+    private static InputStream openSource(SourceFile sourceFile, long offset, long len) throws IOException {
+        if(offset == 0 && len == sourceFile.getLength()) {
+            return sourceFile.getFullInputStream();
+        }
+        return sourceFile.getPartialInputStream(offset, len);
+    }
+
+    private InputStream open(SourceFile sourceFile, long offset, long len) throws IOException {
+        List<Entry> entries = chunkEntries.get();
+        if(entries == null) {
+            return openSource(sourceFile, offset, len);
+        }
+        for(Entry entry: entries) {
+            if(entry.sourceFile == sourceFile && entry.offset == offset && entry.len == len) {
+                log.debug("Reading " + sourceFile.getRelativePath() + " at " + offset + " from spool");
+                stats.numSpoolReads.incrementAndGet();
+                return entry.open();
+            }
+        }
+        if(len <= memoryMaxBytes) {
+            ByteBuffer buffer = bufferPool.tryAcquire(len);
+            if(buffer != null) {
+                try {
+                    copyToBuffer(sourceFile, offset, len, buffer);
+                } catch (IOException e) {
+                    bufferPool.release(buffer);
+                    throw e;
+                }
+                Entry entry = new Entry(sourceFile, offset, len, null, buffer);
+                entries.add(entry);
+                stats.numBytesBuffered.addAndGet(len);
+                return entry.open();
+            }
+        }
+        // A chunk that already holds spool space doesn't wait for more, since the space it's waiting for
+        // might be held by other chunks waiting the same way.
+        if(dir == null || !reserve(len, entries.isEmpty())) {
+            log.debug("Not spooling " + len + " bytes of " + sourceFile.getRelativePath());
+            stats.numSpoolBypasses.incrementAndGet();
+            return openSource(sourceFile, offset, len);
+        }
+        File file = null;
+        try {
+            file = File.createTempFile(PREFIX, SUFFIX, dir);
+            copyToSpool(sourceFile, offset, len, file);
+            Entry entry = new Entry(sourceFile, offset, len, file, null);
+            entries.add(entry);
+            stats.numBytesSpooled.addAndGet(len);
+            return entry.open();
+        } catch (IOException e) {
+            if(file != null) {
+                file.delete();
+            }
+            release(len);
+            throw e;
+        }
+    }
+
+    private void copyToBuffer(SourceFile sourceFile, long offset, long len, ByteBuffer buffer)
+            throws IOException {
+        acquireReadPermit();
+        InputStream is = null;
+        try {
+            is = openSource(sourceFile, offset, len);
+            byte[] b = buffer.array();
+            int copied = 0;
+            int bytesRead;
+            while(copied < len && (bytesRead = is.read(b, copied, (int)len - copied)) != -1) {
+                copied += bytesRead;
+            }
+            if(copied != len || is.read() != -1) {
+                throw new IOException("Expected " + len + " bytes from " + sourceFile.getRelativePath() +
+                        " at offset " + offset + " but got " + (copied == len ? "more" : copied));
+            }
+        } finally {
+            if(readPermits != null) {
+                readPermits.release();
+            }
+            IOUtils.closeQuietly(is);
+        }
+    }
+
+    private void copyToSpool(SourceFile sourceFile, long offset, long len, File file) throws IOException {
+        acquireReadPermit();
+        InputStream is = null;
+        OutputStream os = null;
+        try {
+            is = openSource(sourceFile, offset, len);
+            os = new FileOutputStream(file);
+            long copied = bufferPool.copy(is, os);
+            os.close();
+            if(copied != len) {
+                throw new IOException("Expected " + len + " bytes from " + sourceFile.getRelativePath() +
+                        " at offset " + offset + " but got " + copied);
+            }
+        } finally {
+            if(readPermits != null) {
+                readPermits.release();
+            }
+            IOUtils.closeQuietly(is);
+            IOUtils.closeQuietly(os);
+        }
+    }
+
+    private void acquireReadPermit() throws IOException {
+        if(readPermits != null) {
+            try {
+                readPermits.acquire();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    /**
+     * @param wait whether to wait for space if there isn't enough right now.
+     * @return whether the space was reserved.
+     */
+    private synchronized boolean reserve(long len, boolean wait) throws IOException {
+        if(len > maxBytes) {
+            return false;
+        }
+        while(bytesUsed + len > maxBytes) {
+            if(!wait) {
+                return false;
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+        }
+        bytesUsed += len;
+        return true;
+    }
+
+    private synchronized void release(long len) {
+        bytesUsed -= len;
+        notifyAll();
+    }
+
+    private class SpooledSourceFile implements SourceFileWrapper {
+        private final SourceFile wrapped;
+
+        public SpooledSourceFile(SourceFile wrapped) {
+            this.wrapped = wrapped;
+        }
+
+        @Override
+        public SourceFile getWrapped() {
+            return wrapped;
+        }
+
+        @Override
+        public InputStream getFullInputStream() throws IOException {
+            return open(wrapped, 0, wrapped.getLength());
+        }
+
+        @Override
+        public InputStream getPartialInputStream(long offset, long len) throws IOException {
+            return open(wrapped, offset, len);
+        }
+
+        @Override
+        public String getRelativePath() {
+            return wrapped.getRelativePath();
+        }
+
+        @Override
+        public long getMTime() throws IOException {
+            return wrapped.getMTime();
+        }
+
+        @Override
+        public long getLength() {
+            return wrapped.getLength();
+        }
+    }
+}
@@ -7,9 +7,10 @@ package com.urbanairship.hbackup;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.LogManager;
@@ -20,28 +21,39 @@ public class StalenessCheck {
     
     private final HBackupConfig config;
     private final Source source;
-    private final Sink sink;
+    private final List<Sink> sinks = new ArrayList<Sink>();
     private final StaleCheckStats stats = new StaleCheckStats();
     
     public StalenessCheck(HBackupConfig config) throws IOException, URISyntaxException {
         this.config = config;
         this.source = Source.forUri(new URI(config.from), config);
-        this.sink = Sink.forUri(new URI(config.to), config, new Stats());
+        for(URI uri: Sink.splitUris(config.to)) {
+            sinks.add(Sink.forUri(uri, config, new Stats()));
+        }
     }
     
     public int runWithCheckedExceptions() throws IOException, InterruptedException {
-        ThreadPoolExecutor executor = new ThreadPoolExecutor(config.concurrentFiles, 
-                config.concurrentFiles, Long.MAX_VALUE, TimeUnit.SECONDS, 
-                new LinkedBlockingQueue<Runnable>());
+        Workers executor = new Workers(config);
         
         List<SourceFile> sourceFiles = source.getFiles(true);
         if(sourceFiles.size() == 0) {
             log.error("Returning non-zero since there were no files in the source.");
             return 1;
         }
+        // Every file has to be fresh in every sink. Files are checked in path order, so a sink that looks
+        // them up in a catalog reads each block of it about once.
+        sourceFiles = new ArrayList<SourceFile>(sourceFiles);
+        Collections.sort(sourceFiles, new Comparator<SourceFile>() {
+            @Override
+            public int compare(SourceFile f1, SourceFile f2) {
+                return f1.getRelativePath().compareTo(f2.getRelativePath());
+            }
+        });
         for(SourceFile file: sourceFiles) {
             log.debug("Enqueueing staleness check for file " + file.getRelativePath());
-            executor.execute(new FileMtimeComparer(file, sink, config, stats));
+            for(Sink sink: sinks) {
+                executor.execute(new FileMtimeComparer(file, sink, config, stats));
+            }
         }
         executor.shutdown();
         executor.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
@@ -54,7 +66,7 @@ public class StalenessCheck {
         log.info("Stale files: " + numStaleFiles);
         log.info("Files that couldn't be checked: " + numFilesFailed);
         
-        if(numFreshFiles == sourceFiles.size() && numStaleFiles == 0 && numFilesFailed == 0) {
+        if(numFreshFiles == sourceFiles.size() * sinks.size() && numStaleFiles == 0 && numFilesFailed == 0) {
             log.debug("Returning zero since all files were up-to-date.");
             return 0;
         } else {
@@ -7,6 +7,7 @@ package com.urbanairship.hbackup;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Keeps counters of various kinds of successes and failures. The counter names are generic enough
@@ -21,5 +22,28 @@ public class Stats {
     public final AtomicInteger numChunksSkipped = new AtomicInteger(0);
     public final AtomicInteger numChecksumsSucceeded = new AtomicInteger(0);
     public final AtomicInteger numChecksumsFailed = new AtomicInteger(0);
+    public final AtomicInteger numMtimesUpdated = new AtomicInteger(0);
+    public final AtomicInteger numPartsCopied = new AtomicInteger(0);
+    public final AtomicInteger numDedupChunksStored = new AtomicInteger(0);
+    public final AtomicInteger numDedupChunksReused = new AtomicInteger(0);
+    public final AtomicInteger numFilesPacked = new AtomicInteger(0);
+    public final AtomicInteger numFilesCompressed = new AtomicInteger(0);
+    public final AtomicLong numBytesCompressedFrom = new AtomicLong(0);
+    public final AtomicLong numBytesCompressedTo = new AtomicLong(0);
+    public final AtomicLong numBytesSpooled = new AtomicLong(0);
+    public final AtomicLong numBytesBuffered = new AtomicLong(0);
+    public final AtomicInteger numSpoolReads = new AtomicInteger(0);
+    public final AtomicInteger numSpoolBypasses = new AtomicInteger(0);
+    public final AtomicInteger numHedges = new AtomicInteger(0);
+    public final AtomicInteger numHedgesWon = new AtomicInteger(0);
+    public final AtomicInteger numStalls = new AtomicInteger(0);
+    public final AtomicLong numFanOutBytesRead = new AtomicLong(0);
+    public final AtomicLong numFanOutBytesReread = new AtomicLong(0);
+    public final AtomicInteger numRangesSucceeded = new AtomicInteger(0);
+    public final AtomicInteger numMirrorDeletes = new AtomicInteger(0); // Or files that would be, in a dry run
+    public final AtomicInteger numMirrorDeletesFailed = new AtomicInteger(0);
+    public final AtomicInteger numFilesMoved = new AtomicInteger(0); // Copied or renamed in a sink from an old path
+    public final AtomicLong numBytesMoved = new AtomicLong(0);
     public final Queue<Exception> fileFailureExceptions = new ConcurrentLinkedQueue<Exception>();
+    public final Queue<String> failedPaths = new ConcurrentLinkedQueue<String>(); // Relative paths of failed files
 }
@@ -4,6 +4,7 @@ Copyright 2012 Urban Airship and Contributors
 
 package com.urbanairship.hbackup;
 
+import org.apache.commons.codec.DecoderException;
 import org.apache.commons.codec.binary.Hex;
 
 /**
@@ -53,6 +54,28 @@ public class StreamingXor {
         }
     }
     
+    /**
+     * @return an xor that combines with others like the one whose {@link #getXorHex()} gave xorHex. Bytes
+     * that were never seen are zero in the hex, and xoring in a zero changes nothing.
+     * @throws IllegalArgumentException if xorHex isn't HASH_BYTES bytes of hex.
+     */
+    public static StreamingXor fromHex(String xorHex) {
+        byte[] bytes;
+        try {
+            bytes = Hex.decodeHex(xorHex.toCharArray());
+        } catch (DecoderException e) {
+            throw new IllegalArgumentException("Malformed xor " + xorHex, e);
+        }
+        if(bytes.length != HASH_BYTES) {
+            throw new IllegalArgumentException("Malformed xor " + xorHex);
+        }
+        StreamingXor xor = new StreamingXor();
+        for(int i=0; i<HASH_BYTES; i++) {
+            xor.updateXor(bytes[i], i);
+        }
+        return xor;
+    }
+    
     /**
      * Returns the xor of all the bytes seen so far. Any bytes for which there was no input will
      * be zero. For example, if the stream had a single byte at offset 0, the other 7 bytes of
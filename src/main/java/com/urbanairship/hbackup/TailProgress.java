@@ -0,0 +1,96 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup;
+
+import java.io.IOException;
+
+/**
+ * What a TailSink remembers between runs about a file it's tailing: how long the file was when it was last
+ * seen, when it was last seen to grow, how much of it earlier runs sent and the xor of those bytes, and
+ * whatever the sink needs to carry on sending it. A file counts as finished once neither its length nor
+ * its mtime has changed for hbackup.tail.quietMillis. Both are checked since a file being written to HDFS
+ * keeps its creation time as its mtime until it's closed. The xor lets the finished file get a checksum
+ * like any other, without reading back what was sent before.
+ *
+ * Sinks store it as one line of text.
+ */
+public class TailProgress {
+    public final long length;
+    public final long grewMillis;
+    public final long sentLength; // The bytes at the start of the file that sentXor covers
+    private final String sentXor;
+    public final String sinkState; // Empty if the sink has nothing to remember yet
+    
+    private TailProgress(long length, long grewMillis, long sentLength, String sentXor, String sinkState) {
+        this.length = length;
+        this.grewMillis = grewMillis;
+        this.sentLength = sentLength;
+        this.sentXor = sentXor;
+        this.sinkState = sinkState;
+    }
+    
+    /**
+     * @return progress for a file that's seen for the first time.
+     */
+    public static TailProgress start(SourceFile file) {
+        return new TailProgress(file.getLength(), System.currentTimeMillis(), 0, 
+                new StreamingXor().getXorHex(), "");
+    }
+    
+    /**
+     * @return the progress updated for the file as it is now.
+     */
+    public TailProgress seen(SourceFile file) {
+        if(file.getLength() == length) {
+            return this;
+        }
+        return new TailProgress(file.getLength(), System.currentTimeMillis(), sentLength, sentXor, sinkState);
+    }
+    
+    public TailProgress withSinkState(String sinkState) {
+        return new TailProgress(length, grewMillis, sentLength, sentXor, sinkState);
+    }
+    
+    /**
+     * @return the progress with the first sentLength bytes of the file sent, their xor being sentXor.
+     */
+    public TailProgress withSent(long sentLength, StreamingXor sentXor) {
+        return new TailProgress(length, grewMillis, sentLength, sentXor.getXorHex(), sinkState);
+    }
+    
+    /**
+     * @return progress with nothing sent yet, for when the sink starts sending the file over.
+     */
+    public TailProgress withNothingSent() {
+        return withSent(0, new StreamingXor());
+    }
+    
+    /**
+     * @return the xor of the first sentLength bytes of the file. Each call returns a new StreamingXor.
+     */
+    public StreamingXor getSentXor() {
+        return StreamingXor.fromHex(sentXor);
+    }
+    
+    public boolean isFinished(SourceFile file, long quietMillis) throws IOException {
+        return System.currentTimeMillis() - Math.max(grewMillis, file.getMTime()) >= quietMillis;
+    }
+    
+    public static TailProgress parse(String line) throws IOException {
+        String[] fields = line.trim().split(" ", 5);
+        try {
+            StreamingXor.fromHex(fields[3]); // Check it now rather than when the file finishes
+            return new TailProgress(Long.parseLong(fields[0]), Long.parseLong(fields[1]), 
+                    Long.parseLong(fields[2]), fields[3], fields.length > 4 ? fields[4] : "");
+        } catch (RuntimeException e) {
+            throw new IOException("Malformed tail progress: " + line, e);
+        }
+    }
+    
+    @Override
+    public String toString() {
+        return length + " " + grewMillis + " " + sentLength + " " + sentXor + " " + sinkState;
+    }
+}
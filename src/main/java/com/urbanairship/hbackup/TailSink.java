@@ -0,0 +1,34 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A sink that can back up a file while it's still being written. Each time the file is seen, the sink
+ * sends the complete parts of it that it hasn't sent before, and records its TailProgress where a later
+ * run will find it. Once the file stops changing, the sink sends the rest and commits the file. The xors
+ * returned by a finished tail's chunks must combine to the xor of the whole file, including what earlier
+ * runs sent, so its checksum is stored like any other file's.
+ */
+public interface TailSink {
+    public static class Tail {
+        public final List<RetryableChunk> chunks; // May be empty while the file is growing
+        public final boolean finished; // If so, committing the chunks commits the file
+        
+        public Tail(List<RetryableChunk> chunks, boolean finished) {
+            this.chunks = chunks;
+            this.finished = finished;
+        }
+    }
+    
+    /**
+     * @return what to send of the file now, or null if it should be sent like any other file. That's the
+     * case for a file older than hbackup.mtimeAgeMillis that isn't already being tailed, and for one that
+     * finished before a whole part of it was sent.
+     */
+    public Tail getTail(SourceFile file) throws IOException;
+}
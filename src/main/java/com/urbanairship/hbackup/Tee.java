@@ -0,0 +1,368 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+/**
+ * Reads a source file once for several sinks. Each sink gets its own view of the file from getFile(), and
+ * transfers it in whatever chunks it likes. The file is read from the source in fixed size segments, and
+ * each segment is copied into a pooled buffer by the first sink to read it. The other sinks read the
+ * copy, and the buffer goes back to the pool once every sink has read the whole segment or finished
+ * with the file.
+ *
+ * Memory is bounded by the buffer pool. If a sink falls far behind and the pool has no buffer for a new
+ * segment, or a retried chunk reads a segment that's already been freed, that read goes to the source
+ * instead. That costs a second read of those bytes, but never blocks a sink on another.
+ */
+public class Tee {
+    private static final Logger log = LogManager.getLogger(Tee.class);
+
+    private final SourceFile source;
+    private final long segmentSize;
+    private final BufferPool bufferPool;
+    private final Stats stats;
+    private final TeeFile[] files;
+
+    // Guarded by "this"
+    private final Map<Long,Segment> segments = new HashMap<Long,Segment>();
+
+    private static class Segment {
+        final long index;
+        final int len;
+        ByteBuffer buffer; // Null while it's being read from the source
+        int pending; // Sinks that haven't read all of it yet
+        int readers; // Streams reading from the buffer right now
+
+        Segment(long index, int len) {
+            this.index = index;
+            this.len = len;
+        }
+    }
+
+    public Tee(SourceFile source, int numSinks, long segmentSize, BufferPool bufferPool, Stats stats) {
+        this.source = source;
+        this.segmentSize = segmentSize;
+        this.bufferPool = bufferPool;
+        this.stats = stats;
+        this.files = new TeeFile[numSinks];
+        for(int i=0; i<numSinks; i++) {
+            files[i] = new TeeFile();
+        }
+    }
+
+    /**
+     * @return the given sink's view of the file. It's a SharedHandleFile, so the sink is finished with the
+     * file when the transfer's last chunk is done and releases it.
+     */
+    public SourceFile getFile(int sink) {
+        return files[sink];
+    }
+
+    private int segmentLength(long index) {
+        return (int)Math.min(segmentSize, source.getLength() - index * segmentSize);
+    }
+
+    /**
+     * @return the segment, with a reader registered, or null if the sink should read this segment from
+     * the source.
+     */
+    private Segment acquireSegment(TeeFile file, long index) throws IOException {
+        Segment segment;
+        ByteBuffer buffer;
+        synchronized(this) {
+            while(true) {
+                if(file.finished.contains(index)) {
+                    // A retry of something the sink already read all of, so the segment may be gone
+                    return null;
+                }
+                segment = segments.get(index);
+                if(segment == null) {
+                    break;
+                }
+                if(segment.buffer != null) {
+                    segment.readers++;
+                    return segment;
+                }
+                try {
+                    // Another sink is reading it from the source
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            segment = new Segment(index, segmentLength(index));
+            buffer = bufferPool.tryAcquire(segment.len);
+            if(buffer == null) {
+                log.debug("No buffer for segment " + index + " of " + source.getRelativePath() +
+                        ", reading it from the source");
+                return null;
+            }
+            for(TeeFile other: files) {
+                if(!other.detached && !other.finished.contains(index)) {
+                    segment.pending++;
+                }
+            }
+            segment.readers = 1;
+            segments.put(index, segment);
+        }
+
+        try {
+            load(segment, buffer);
+        } catch (IOException e) {
+            bufferPool.release(buffer);
+            synchronized(this) {
+                segments.remove(index);
+                notifyAll();
+            }
+            throw e;
+        }
+        synchronized(this) {
+            segment.buffer = buffer;
+            notifyAll();
+        }
+        return segment;
+    }
+
+    private void load(Segment segment, ByteBuffer buffer) throws IOException {
+        long offset = segment.index * segmentSize;
+        InputStream is = null;
+        try {
+            // Reading the whole file is passed to the source as a full read, like the spool does
+            if(offset == 0 && segment.len == source.getLength()) {
+                is = source.getFullInputStream();
+            } else {
+                is = source.getPartialInputStream(offset, segment.len);
+            }
+            byte[] b = buffer.array();
+            int copied = 0;
+            int bytesRead;
+            while(copied < segment.len && (bytesRead = is.read(b, copied, segment.len - copied)) != -1) {
+                copied += bytesRead;
+            }
+            if(copied != segment.len) {
+                throw new IOException("Expected " + segment.len + " bytes from " + source.getRelativePath() +
+                        " at offset " + offset + " but got " + copied);
+            }
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+        stats.numFanOutBytesRead.addAndGet(segment.len);
+    }
+
+    private synchronized void releaseSegment(Segment segment) {
+        segment.readers--;
+        maybeFree(segment);
+    }
+
+    /**
+     * Record that a sink read some bytes of a segment, whether from the buffer or the source.
+     */
+    private synchronized void consumed(TeeFile file, long index, int len) {
+        if(file.detached || file.finished.contains(index)) {
+            return;
+        }
+        Long progress = file.progress.get(index);
+        long total = (progress == null ? 0 : progress) + len;
+        if(total < segmentLength(index)) {
+            file.progress.put(index, total);
+            return;
+        }
+        file.progress.remove(index);
+        file.finished.add(index);
+        Segment segment = segments.get(index);
+        if(segment != null) {
+            segment.pending--;
+            maybeFree(segment);
+        }
+    }
+
+    private synchronized void detach(TeeFile file) {
+        if(file.detached) {
+            return;
+        }
+        file.detached = true;
+        for(Segment segment: new ArrayList<Segment>(segments.values())) {
+            if(!file.finished.contains(segment.index)) {
+                segment.pending--;
+                maybeFree(segment);
+            }
+        }
+        file.progress.clear();
+    }
+
+    private void maybeFree(Segment segment) {
+        if(segment.pending <= 0 && segment.readers == 0 && segment.buffer != null) {
+            segments.remove(segment.index);
+            bufferPool.release(segment.buffer);
+            segment.buffer = null;
+        }
+    }
+
+    /**
+     * @return how many segments are held in buffers, for testing.
+     */
+    synchronized int getNumSegments() {
+        return segments.size();
+    }
+
+    /**
+     * One sink's view of the file.
+     */
+    private class TeeFile implements SourceFileWrapper, SharedHandleFile {
+        // Guarded by the Tee
+        final Map<Long,Long> progress = new HashMap<Long,Long>(); // Bytes read of segments not yet finished
+        final Set<Long> finished = new HashSet<Long>();
+        boolean detached = false;
+        int holds = 0;
+
+        @Override
+        public SourceFile getWrapped() {
+            return source;
+        }
+
+        @Override
+        public InputStream getFullInputStream() throws IOException {
+            return new TeeInputStream(this, 0, source.getLength());
+        }
+
+        @Override
+        public InputStream getPartialInputStream(long offset, long len) throws IOException {
+            return new TeeInputStream(this, offset, len);
+        }
+
+        @Override
+        public String getRelativePath() {
+            return source.getRelativePath();
+        }
+
+        @Override
+        public long getMTime() throws IOException {
+            return source.getMTime();
+        }
+
+        @Override
+        public long getLength() {
+            return source.getLength();
+        }
+
+        @Override
+        public void retainHandle() {
+            synchronized(Tee.this) {
+                holds++;
+            }
+            if(source instanceof SharedHandleFile) {
+                ((SharedHandleFile)source).retainHandle();
+            }
+        }
+
+        /**
+         * The sink is finished with the file once every retain is released.
+         */
+        @Override
+        public void releaseHandle() {
+            synchronized(Tee.this) {
+                holds--;
+                if(holds == 0) {
+                    detach(this);
+                }
+            }
+            if(source instanceof SharedHandleFile) {
+                ((SharedHandleFile)source).releaseHandle();
+            }
+        }
+    }
+
+    /**
+     * Reads a range of the file for one sink, segment by segment, from the shared buffers when it can.
+     */
+    private class TeeInputStream extends InputStream {
+        private final TeeFile file;
+        private final long end;
+        private long pos;
+        private Segment segment; // The segment being read from its buffer, if any
+        private InputStream direct; // Or the source stream for the rest of this segment's part of the range
+        private long directEnd;
+
+        TeeInputStream(TeeFile file, long offset, long len) {
+            this.file = file;
+            this.pos = offset;
+            this.end = offset + len;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int bytesRead = read(b, 0, 1);
+            return bytesRead == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(pos >= end) {
+                return -1;
+            }
+            if(len == 0) {
+                return 0;
+            }
+            long index = pos / segmentSize;
+            long segmentStart = index * segmentSize;
+            if(segment != null && segment.index != index) {
+                releaseSegment(segment);
+                segment = null;
+            }
+            if(direct != null && pos >= directEnd) {
+                direct.close();
+                direct = null;
+            }
+            if(segment == null && direct == null) {
+                segment = acquireSegment(file, index);
+                if(segment == null) {
+                    directEnd = Math.min(end, segmentStart + segmentLength(index));
+                    direct = source.getPartialInputStream(pos, directEnd - pos);
+                }
+            }
+
+            int bytesRead;
+            if(segment != null) {
+                int segmentOffset = (int)(pos - segmentStart);
+                bytesRead = (int)Math.min(len, Math.min(end - pos, segment.len - segmentOffset));
+                System.arraycopy(segment.buffer.array(), segmentOffset, b, off, bytesRead);
+            } else {
+                bytesRead = direct.read(b, off, (int)Math.min(len, directEnd - pos));
+                if(bytesRead == -1) {
+                    throw new IOException("Source ended early at " + pos + " of " + source.getRelativePath());
+                }
+                stats.numFanOutBytesReread.addAndGet(bytesRead);
+            }
+            pos += bytesRead;
+            consumed(file, index, bytesRead);
+            return bytesRead;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if(segment != null) {
+                releaseSegment(segment);
+                segment = null;
+            }
+            if(direct != null) {
+                direct.close();
+                direct = null;
+            }
+        }
+    }
+}
@@ -4,7 +4,13 @@ Copyright 2012 Urban Airship and Contributors
 
 package com.urbanairship.hbackup;
 
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class Util {
+    // Characters that aren't literal in a regex
+    private static final String REGEX_SPECIAL_CHARS = "\\^$.|?*+()[]{}";
+    
     /**
      * For our purposes, we define a "canonical S3 base name" as the part of the S3 object that would
      * correspond to the directory name. For example "Docs/pics/ohai.jpg" has a basename of "Docs/pics/".
@@ -21,4 +27,67 @@ public class Util {
         }
         return path;
     }
+    
+    /**
+     * @return a factory for daemon threads named namePrefix-N. Pools owned by sources and sinks use
+     * these because nothing shuts them down, and they mustn't keep the JVM alive after a backup.
+     */
+    public static ThreadFactory daemonThreadFactory(final String namePrefix) {
+        return new ThreadFactory() {
+            private final AtomicInteger threadNum = new AtomicInteger(0);
+            
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, namePrefix + "-" + threadNum.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+    
+    /**
+     * @return a prefix of every string that the regex matches as a whole, made of the literal characters it
+     * starts with, or "" if the regex is null or doesn't start with any. Escaped characters end the prefix,
+     * so it may be shorter than it could be, but never too long.
+     */
+    public static String literalPrefix(String regex) {
+        if(regex == null || hasTopLevelAlternation(regex)) {
+            return "";
+        }
+        int end = 0;
+        while(end < regex.length() && REGEX_SPECIAL_CHARS.indexOf(regex.charAt(end)) < 0) {
+            end++;
+        }
+        // A quantifier that allows no repetitions makes the character before it optional
+        if(end > 0 && end < regex.length() && "?*{".indexOf(regex.charAt(end)) >= 0) {
+            end--;
+        }
+        return regex.substring(0, end);
+    }
+    
+    /**
+     * @return whether the regex has a "|" outside any group, which would let it match strings that don't
+     * start with its first characters.
+     */
+    private static boolean hasTopLevelAlternation(String regex) {
+        int depth = 0;
+        boolean inClass = false;
+        for(int i=0; i<regex.length(); i++) {
+            char c = regex.charAt(i);
+            if(c == '\\') {
+                i++;
+            } else if(inClass) {
+                inClass = c != ']';
+            } else if(c == '[') {
+                inClass = true;
+            } else if(c == '(') {
+                depth++;
+            } else if(c == ')') {
+                depth--;
+            } else if(c == '|' && depth == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
 }
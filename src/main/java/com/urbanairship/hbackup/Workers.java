@@ -0,0 +1,174 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+/**
+ * Runs the tasks of a backup, stale check or checksum verification: chunks, metadata checks and checksum
+ * fetches. Normally that's a fixed pool of concurrentFiles threads, so at most that many tasks are in
+ * flight. Each task mostly waits on a request, so a run of many small objects is bound by latency.
+ *
+ * With virtual threads, every task gets its own virtual thread, and the limits are a semaphore of
+ * maxRequests tasks in flight and another of maxBytesInFlight bytes of chunks in flight. Thousands of
+ * small requests can wait on the network at once, while big chunks are still held back by the byte limit.
+ * Virtual threads need a Java 21 runtime. They're looked up by reflection so the build doesn't need one,
+ * and older runtimes fall back to the fixed pool.
+ */
+public class Workers implements Executor {
+    private static final Logger log = LogManager.getLogger(Workers.class);
+
+    private static final int BYTES_PER_PERMIT = 1024; // So a Semaphore's int permits can count terabytes
+
+    private final ExecutorService executor;
+    private final Semaphore requestPermits; // Null unless running on virtual threads
+    private final Semaphore bytePermits;
+    private final int maxBytePermits;
+    private final int concurrency;
+
+    public Workers(HBackupConfig conf) {
+        ExecutorService virtualExecutor = conf.virtualThreads ? newVirtualThreadExecutor() : null;
+        if(virtualExecutor != null) {
+            this.executor = virtualExecutor;
+            this.concurrency = conf.maxRequests;
+            this.requestPermits = new Semaphore(conf.maxRequests);
+            this.maxBytePermits = bytePermits(conf.maxBytesInFlight);
+            this.bytePermits = new Semaphore(maxBytePermits);
+        } else {
+            this.executor = new ThreadPoolExecutor(conf.concurrentFiles, conf.concurrentFiles,
+                    Long.MAX_VALUE, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+            this.concurrency = conf.concurrentFiles;
+            this.requestPermits = null;
+            this.bytePermits = null;
+            this.maxBytePermits = 0;
+        }
+    }
+
+    /**
+     * Apply the request and byte limits to tasks run by the given executor, which should start a thread per
+     * task. For testing on runtimes without virtual threads.
+     */
+    Workers(ExecutorService executor, int maxRequests, long maxBytesInFlight) {
+        this.executor = executor;
+        this.concurrency = maxRequests;
+        this.requestPermits = new Semaphore(maxRequests);
+        this.maxBytePermits = bytePermits(maxBytesInFlight);
+        this.bytePermits = new Semaphore(maxBytePermits);
+    }
+
+    private static int bytePermits(long bytes) {
+        return (int)Math.min(Integer.MAX_VALUE, Math.max(1, bytes / BYTES_PER_PERMIT));
+    }
+
+    /**
+     * @return Executors.newVirtualThreadPerTaskExecutor(), or null if this runtime doesn't have it.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService)factory.invoke(null);
+        } catch (NoSuchMethodException e) {
+            log.warn("Virtual threads need Java 21 or later, running on a pool of platform threads instead");
+            return null;
+        } catch (Exception e) {
+            log.warn("Couldn't create a virtual thread executor, running on a pool of platform threads instead", e);
+            return null;
+        }
+    }
+
+    /**
+     * @return whether tasks run on virtual threads.
+     */
+    public boolean isVirtual() {
+        return requestPermits != null;
+    }
+
+    /**
+     * @return how many tasks can be in flight at once.
+     */
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    /**
+     * Run a task, once there's room for another request in flight. A task whose wait is interrupted runs
+     * right away with the interrupt set, so its chunk isn't silently dropped.
+     */
+    @Override
+    public void execute(final Runnable task) {
+        if(requestPermits == null) {
+            executor.execute(task);
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean acquired = false;
+                try {
+                    requestPermits.acquire();
+                    acquired = true;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                try {
+                    task.run();
+                } finally {
+                    if(acquired) {
+                        requestPermits.release();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * @return a task that waits until the given number of bytes can be in flight before running. A task
+     * bigger than the whole limit waits for all of it. As with execute(), an interrupted wait runs the task
+     * right away. Without virtual threads, the task itself.
+     */
+    public Runnable withBytes(final Runnable task, long bytes) {
+        if(bytePermits == null || bytes <= 0) {
+            return task;
+        }
+        final int permits = (int)Math.min(maxBytePermits, (bytes + BYTES_PER_PERMIT - 1) / BYTES_PER_PERMIT);
+        return new Runnable() {
+            @Override
+            public void run() {
+                boolean acquired = false;
+                try {
+                    bytePermits.acquire(permits);
+                    acquired = true;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                try {
+                    task.run();
+                } finally {
+                    if(acquired) {
+                        bytePermits.release(permits);
+                    }
+                }
+            }
+        };
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return executor.awaitTermination(timeout, unit);
+    }
+}
@@ -9,7 +9,6 @@ import java.io.IOException;
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
 
-import com.urbanairship.hbackup.ChecksumService;
 import com.urbanairship.hbackup.SourceFile;
 import com.urbanairship.hbackup.StreamingXor;
 
@@ -18,63 +17,40 @@ import com.urbanairship.hbackup.StreamingXor;
  * work queue. We need some coordination between the chunks so that the last chunk to finish
  * checksumming will combine all the part checksums together and report whether the checksum matched
  * with the expected checksum.
+ *
+ * The expected checksum is fetched separately by an {@link ExpectedChecksumFetcher}, which may finish
+ * before or after the chunks. Whichever of the two finishes last does the comparison. No method of this
+ * class does I/O, so threads never wait on each other for longer than a few field updates.
  */
 public class ChecksumStateMachine {
     private static Logger log = LogManager.getLogger(ChecksumStateMachine.class);
     
     private final SourceFile sourceFile;
-    private final int expectedChecksumFetchRetries;
     private final StreamingXor checksumSoFar = new StreamingXor();
-    private final ChecksumService checksumService;
     private final ChecksumStats stats;
 
     private String expectedChecksum = null;
-    private State state = State.PRE_START;
+    private State state = State.IN_PROGRESS;
     private int chunksInProgress;
     
-    public enum State {PRE_START, IN_PROGRESS, FINISHED, ERROR};
+    public enum State {IN_PROGRESS, FINISHED, ERROR};
     
-    public ChecksumStateMachine(SourceFile sourceFile, int numChunks, int expectedChecksumFetchRetries,
-            ChecksumService checksumService, ChecksumStats stats) {
+    public ChecksumStateMachine(SourceFile sourceFile, int numChunks, ChecksumStats stats) {
         this.sourceFile = sourceFile;
         this.chunksInProgress = numChunks;
-        this.expectedChecksumFetchRetries = expectedChecksumFetchRetries;
-        this.checksumService = checksumService;
         this.stats = stats;
     }
     
+    public SourceFile getSourceFile() {
+        return sourceFile;
+    }
+    
     /**
      * @return whether the caller should proceed with checksum calculation. If false, something has
      * already gone wrong and its chunk should be skipped.
      */
     public synchronized boolean chunkStarting() {
         switch(state) {
-        case PRE_START:
-//            expectedChecksum = loadExpectedChecksumWithRetries();
-            // Load the the expected, pre-existing checksum from the remote source, with retries
-            int retriesRemaining = expectedChecksumFetchRetries;
-            String relativePath = sourceFile.getRelativePath();
-            do {
-                try {
-                    expectedChecksum = checksumService.getChecksum(relativePath);
-                    if(expectedChecksum == null) {
-                        stats.missingChecksums.incrementAndGet();
-                        state = State.ERROR;
-                        return false;
-                    } else {
-                        state = State.IN_PROGRESS;
-                        return true;
-                    }
-                } catch (IOException e) {
-                    log.error("IOException fetching expected checksum for " + relativePath + ", " +
-                            retriesRemaining + " retries remaining", e);
-                }
-            } while(retriesRemaining-- > 0);
-            log.error("Retries exhausted reading expected checksum for " + relativePath);
-            state = State.ERROR;
-            stats.unreadableChecksums.incrementAndGet();
-            stats.chunksSkipped.incrementAndGet();
-            return false;
         case ERROR:
             log.debug("chunkStarting() returning false because " + sourceFile.getRelativePath() + 
                     " has already had an error");
@@ -94,14 +70,7 @@ public class ChecksumStateMachine {
         case IN_PROGRESS:
             this.checksumSoFar.update(checksum);
             chunksInProgress--;
-            if(chunksInProgress == 0) {
-                state = State.FINISHED;
-                if(expectedChecksum.equals(checksumSoFar.getXorHex())) {
-                    stats.matched.incrementAndGet();
-                } else {
-                    stats.mismatched.incrementAndGet();
-                }
-            }
+            maybeFinish();
             return;
         default:
             throw new AssertionError("Invalid state " + state);
@@ -130,4 +99,49 @@ public class ChecksumStateMachine {
     public void chunkReadError() {
         chunkReadError(null);
     }
+    
+    /**
+     * Called by the prefetcher once the expected checksum has been read from the checksum service.
+     * @param expectedChecksum the stored checksum, or null if there was no stored checksum for the file.
+     */
+    public synchronized void expectedChecksumLoaded(String expectedChecksum) {
+        if(state == State.ERROR) {
+            return;
+        }
+        if(expectedChecksum == null) {
+            log.debug("No expected checksum stored for " + sourceFile.getRelativePath());
+            stats.missingChecksums.incrementAndGet();
+            state = State.ERROR;
+            return;
+        }
+        this.expectedChecksum = expectedChecksum;
+        maybeFinish();
+    }
+    
+    /**
+     * Called by the prefetcher if all attempts to read the expected checksum failed.
+     */
+    public synchronized void expectedChecksumUnreadable() {
+        if(state == State.ERROR) {
+            return;
+        }
+        state = State.ERROR;
+        stats.unreadableChecksums.incrementAndGet();
+        stats.chunksSkipped.incrementAndGet();
+    }
+    
+    /**
+     * Compare the computed and expected checksums if both are now available. Caller must hold the lock.
+     */
+    private void maybeFinish() {
+        if(chunksInProgress > 0 || expectedChecksum == null) {
+            return;
+        }
+        state = State.FINISHED;
+        if(expectedChecksum.equals(checksumSoFar.getXorHex())) {
+            stats.matched.incrementAndGet();
+        } else {
+            stats.mismatched.incrementAndGet();
+        }
+    }
 }
@@ -18,6 +18,8 @@ public class ChecksumStats {
     public final AtomicInteger unreadableChunks = new AtomicInteger(0);
     public final AtomicInteger unreadableFiles = new AtomicInteger(0);
     public final AtomicInteger chunksSkipped = new AtomicInteger(0);
+    public final AtomicInteger etagsMatched = new AtomicInteger(0);
+    public final AtomicInteger etagFallbacks = new AtomicInteger(0);
 
     public final List<IOException> workerExceptions = Collections.synchronizedList(new ArrayList<IOException>());
 }
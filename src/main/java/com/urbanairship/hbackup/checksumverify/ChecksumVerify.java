@@ -8,22 +8,33 @@ import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.List;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
 
+import com.urbanairship.hbackup.BufferPool;
 import com.urbanairship.hbackup.ChecksumService;
 import com.urbanairship.hbackup.HBackupConfig;
 import com.urbanairship.hbackup.Source;
+import com.urbanairship.hbackup.Sink;
 import com.urbanairship.hbackup.SourceFile;
+import com.urbanairship.hbackup.Stats;
+import com.urbanairship.hbackup.Workers;
+import com.urbanairship.hbackup.datasinks.HdfsSink;
+import com.urbanairship.hbackup.datasources.HdfsSource.HdfsFile;
+import com.urbanairship.hbackup.datasources.Jets3tSource.Jets3tSourceFile;
 
 public class ChecksumVerify implements Runnable {
     private static final Logger log = LogManager.getLogger(ChecksumVerify.class);
     
+    // How many checksum fetches per prefetch thread can be queued or running at once
+    private static final int PREFETCH_WINDOW_PER_THREAD = 4;
+    
     private final ChecksumService checksumService;
+    private final HdfsSink hdfsSink;
     private final Source source;
     private final ChecksumStats stats = new ChecksumStats();
     private final HBackupConfig config;
@@ -35,8 +46,30 @@ public class ChecksumVerify implements Runnable {
     }
     
     public ChecksumVerify(HBackupConfig conf) throws IOException, URISyntaxException {
-        checksumService = ChecksumService.forUri(new URI(conf.checksumUri), conf);
         URI dataUri = new URI(conf.from);
+        URI hdfsSinkUri = null;
+        if(conf.to != null) {
+            for(URI sinkUri: Sink.splitUris(conf.to)) {
+                if(isHdfs(sinkUri)) {
+                    hdfsSinkUri = sinkUri;
+                    break;
+                }
+            }
+        }
+        if(isHdfs(dataUri) && hdfsSinkUri != null) {
+            // HDFS to HDFS backups are verified by comparing the HDFS file checksums of the source and
+            // sink, which are computed by the datanodes without sending us any data. With several sinks,
+            // that's the first HDFS one.
+            log.info("Verifying HDFS file checksums of " + hdfsSinkUri + " against " + conf.from);
+            checksumService = null;
+            hdfsSink = (HdfsSink)Sink.forUri(hdfsSinkUri, conf, new Stats());
+            source = Source.forUri(dataUri, conf);
+            config = conf;
+            return;
+        }
+        BufferPool.getInstance().setMaxBytes(conf.bufferPoolMaxBytes);
+        checksumService = ChecksumService.forUri(new URI(conf.checksumUri), conf);
+        hdfsSink = null;
         if(!dataUri.getScheme().equals("s3")) {
             String msg = "Your \"from\" location " + conf.from + " has URI scheme " +
                     dataUri.getScheme() + " which can't be supported by the checksum verifier. We can " +
@@ -49,38 +82,47 @@ public class ChecksumVerify implements Runnable {
         config = conf;
     }
     
+    private static boolean isHdfs(URI uri) {
+        return "hdfs".equals(uri.getScheme()) || "maprfs".equals(uri.getScheme());
+    }
+    
     /**
      * 
      * @return whether all checksums were present and matched
      */
     public boolean runWithCheckedExceptions() throws IOException {
-        ThreadPoolExecutor executor = new ThreadPoolExecutor(config.concurrentFiles, 
-                config.concurrentFiles, Long.MAX_VALUE, TimeUnit.HOURS, 
-                new LinkedBlockingQueue<Runnable>());
-        executor.prestartAllCoreThreads();
+        Workers executor = new Workers(config);
+        
+        // Expected checksums are fetched by their own fixed-size pool so the chunk checksummers
+        // never wait on a checksum GET. Files are queued to both pools in the same order, and a
+        // checksum fetch is much cheaper than reading a file, so the prefetchers stay ahead.
+        // Only a window of fetches is queued at a time, so a big source doesn't queue a task for
+        // every file up front.
+        Workers prefetchExecutor = new Workers(config);
+        Semaphore prefetchWindow = new Semaphore(prefetchExecutor.getConcurrency() * PREFETCH_WINDOW_PER_THREAD);
         
         List<SourceFile> sourceFiles = source.getFiles(true);
         for(SourceFile file: sourceFiles) {
-            int numChunks = (int)(file.getLength() / config.s3PartSize) + 1;
-            long fileLen = file.getLength();
-            
-            ChecksumStateMachine fileChecksumStateMachine = new ChecksumStateMachine(file, numChunks, 
-                    config.numRetries, checksumService, stats);
-
-            log.debug("Queueing file " + file.getRelativePath() + " for checksumming in " +
-                    numChunks + " chunks");
-            
-            for(int i=0; i<numChunks; i++) {
-                long chunkStartOffset = i * config.s3PartSize;
-                long chunkLen = Math.min(fileLen - chunkStartOffset, config.s3PartSize); 
-                ChunkChecksummer chunkChecksummer = new ChunkChecksummer(file, chunkStartOffset, chunkLen,
-                        config.numRetries, fileChecksumStateMachine);
-                executor.execute(chunkChecksummer);
+            if(hdfsSink != null) {
+                executor.execute(new FileChecksumComparer((HdfsFile)file, hdfsSink, config.numRetries, stats));
+            } else if(config.verifyEtags && file instanceof Jets3tSourceFile) {
+                // The ETag verifier only reads metadata, and queues the chunks itself if it can't
+                // verify the file that way.
+                log.debug("Queueing file " + file.getRelativePath() + " for ETag verification");
+                prefetch(prefetchExecutor, prefetchWindow, new ETagVerifier(file, 
+                        ((Jets3tSourceFile)file).getETag(), checksumService, config, stats, executor));
+            } else {
+                ChecksumStateMachine fileChecksumStateMachine = queueChunks(file, config, stats, executor);
+                prefetch(prefetchExecutor, prefetchWindow, new ExpectedChecksumFetcher(fileChecksumStateMachine, 
+                        checksumService, config.numRetries));
             }
         }
         log.debug("Main thread blocking on executor.shutdown()");
-        executor.shutdown();
+        // ETag verifiers may add chunks to the executor, so the prefetchers have to finish first.
+        prefetchExecutor.shutdown();
         try {
+            prefetchExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+            executor.shutdown();
             executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
         } catch (InterruptedException e) {
             log.warn("Interrupted waiting for executor to finish", e);
@@ -93,6 +135,8 @@ public class ChecksumVerify implements Runnable {
         int unreadableChunks = stats.unreadableChunks.get();
         int unreadableFiles = stats.unreadableFiles.get();
         int chunksSkipped = stats.chunksSkipped.get();
+        int etagsMatched = stats.etagsMatched.get();
+        int etagFallbacks = stats.etagFallbacks.get();
         
         log.info("Checksums that matched: " + matchedChecksums);
         log.info("Checksums that didn't match: " + mismatchedChecksums);
@@ -101,6 +145,10 @@ public class ChecksumVerify implements Runnable {
         log.info("Unreadable chunks: " + unreadableChunks);
         log.info("Unreadable files: " + unreadableFiles);
         log.info("Chunks skipped due errors in same file: " + chunksSkipped);
+        if(config.verifyEtags) {
+            log.info("Files verified by ETag only: " + etagsMatched);
+            log.info("Files that fell back to reading data: " + etagFallbacks);
+        }
         
         if(matchedChecksums == sourceFiles.size() && 
                 mismatchedChecksums == 0 && 
@@ -116,6 +164,53 @@ public class ChecksumVerify implements Runnable {
         }
     }
     
+    /**
+     * Queue a prefetch task once there's room in the window, and make room again when it's done.
+     */
+    private static void prefetch(Workers prefetchExecutor, final Semaphore prefetchWindow, final Runnable task)
+            throws IOException {
+        try {
+            prefetchWindow.acquire();
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+        prefetchExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } finally {
+                    prefetchWindow.release();
+                }
+            }
+        });
+    }
+    
+    /**
+     * Split a file into chunks and queue them for checksumming.
+     * @return the state machine that the file's chunks report to. The caller must arrange for the
+     * expected checksum to be given to it.
+     */
+    static ChecksumStateMachine queueChunks(SourceFile file, HBackupConfig config, ChecksumStats stats,
+            Executor executor) {
+        int numChunks = (int)(file.getLength() / config.s3PartSize) + 1;
+        long fileLen = file.getLength();
+        
+        ChecksumStateMachine fileChecksumStateMachine = new ChecksumStateMachine(file, numChunks, stats);
+
+        log.debug("Queueing file " + file.getRelativePath() + " for checksumming in " +
+                numChunks + " chunks");
+        
+        for(int i=0; i<numChunks; i++) {
+            long chunkStartOffset = i * config.s3PartSize;
+            long chunkLen = Math.min(fileLen - chunkStartOffset, config.s3PartSize); 
+            ChunkChecksummer chunkChecksummer = new ChunkChecksummer(file, chunkStartOffset, chunkLen,
+                    config.numRetries, fileChecksumStateMachine);
+            executor.execute(chunkChecksummer);
+        }
+        return fileChecksumStateMachine;
+    }
+    
     @Override
     public void run() {
         try {
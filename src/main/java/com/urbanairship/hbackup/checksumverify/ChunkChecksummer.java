@@ -10,6 +10,7 @@ import java.io.InputStream;
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
 
+import com.urbanairship.hbackup.BufferPool;
 import com.urbanairship.hbackup.SourceFile;
 import com.urbanairship.hbackup.StreamingXor;
 import com.urbanairship.hbackup.XorInputStream;
@@ -48,9 +49,7 @@ public class ChunkChecksummer implements Runnable {
             try {
                 is = sourceFile.getPartialInputStream(startOffset, len);
                 XorInputStream xis = new XorInputStream(is, startOffset);
-                byte[] ignoreBuf = new byte[16384];
-                
-                while(xis.read(ignoreBuf) != -1) {  } // Read bytes until input stream exhausted
+                BufferPool.getInstance().drain(xis);
                 
                 StreamingXor streamingXor = xis.getStreamingXor();
                 checksumStateMachine.chunkFinished(streamingXor);
@@ -0,0 +1,125 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup.checksumverify;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import com.urbanairship.hbackup.ChecksumService;
+import com.urbanairship.hbackup.HBackupConfig;
+import com.urbanairship.hbackup.SourceFile;
+
+/**
+ * Verifies an S3 object without downloading it, by comparing its ETag against the part MD5s that the
+ * sink recorded while uploading it. S3 gives a plain upload the MD5 of its contents as its ETag, and
+ * gives a multipart upload the MD5 of its concatenated binary part MD5s followed by "-" and the number of
+ * parts.
+ *
+ * If the part MD5s weren't recorded, or don't produce the object's ETag, the file is handed to the
+ * normal chunk checksummers instead. A mismatch isn't reported from here because the recorded MD5s are
+ * only best effort; reading the data is the final word.
+ */
+public class ETagVerifier implements Runnable {
+    private static final Logger log = LogManager.getLogger(ETagVerifier.class);
+
+    private final SourceFile file;
+    private final String etag;
+    private final ChecksumService checksumService;
+    private final HBackupConfig conf;
+    private final ChecksumStats stats;
+    private final Executor chunkExecutor;
+
+    public ETagVerifier(SourceFile file, String etag, ChecksumService checksumService,
+            HBackupConfig conf, ChecksumStats stats, Executor chunkExecutor) {
+        this.file = file;
+        this.etag = etag;
+        this.checksumService = checksumService;
+        this.conf = conf;
+        this.stats = stats;
+        this.chunkExecutor = chunkExecutor;
+    }
+
+    @Override
+    public void run() {
+        String relativePath = file.getRelativePath();
+        List<String> partDigests = getPartDigests();
+        String expectedEtag = partDigests == null ? null : expectedETag(partDigests, etag);
+        if(expectedEtag != null && expectedEtag.equals(etag)) {
+            log.debug("ETag matched for " + relativePath);
+            stats.etagsMatched.incrementAndGet();
+            stats.matched.incrementAndGet();
+            return;
+        }
+
+        log.debug("Couldn't verify ETag " + etag + " for " + relativePath + " (expected " + expectedEtag +
+                "), falling back to reading the data");
+        stats.etagFallbacks.incrementAndGet();
+        ChecksumStateMachine checksumStateMachine = ChecksumVerify.queueChunks(file, conf, stats,
+                chunkExecutor);
+        // We're already running on a prefetch thread, so fetch the expected checksum right here.
+        new ExpectedChecksumFetcher(checksumStateMachine, checksumService, conf.numRetries).run();
+    }
+
+    /**
+     * @return the recorded part digests, or null if there were none or they couldn't be read.
+     */
+    private List<String> getPartDigests() {
+        int retriesRemaining = conf.numRetries;
+        do {
+            try {
+                return checksumService.getPartDigests(file.getRelativePath());
+            } catch (IOException e) {
+                log.error("IOException fetching part digests for " + file.getRelativePath() + ", " +
+                        retriesRemaining + " retries remaining", e);
+            }
+        } while(retriesRemaining-- > 0);
+        return null;
+    }
+
+    /**
+     * @param actualEtag the object's ETag, which tells us whether it was uploaded in parts.
+     * @return the ETag S3 would give an object uploaded with the given part MD5s, or null if it can't be
+     * derived because the number of parts doesn't match the actual ETag.
+     */
+    public static String expectedETag(List<String> partDigests, String actualEtag) {
+        int dashPos = actualEtag == null ? -1 : actualEtag.indexOf('-');
+        if(dashPos < 0) {
+            // Uploaded in a single PUT, so the ETag is just the MD5 of the contents
+            return partDigests.size() == 1 ? partDigests.get(0) : null;
+        }
+
+        int numParts;
+        try {
+            numParts = Integer.parseInt(actualEtag.substring(dashPos + 1));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if(numParts != partDigests.size()) {
+            return null;
+        }
+        try {
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            for(String partDigest: partDigests) {
+                if(partDigest == null) {
+                    return null;
+                }
+                md5.update(Hex.decodeHex(partDigest.toCharArray()));
+            }
+            return new String(Hex.encodeHex(md5.digest())) + "-" + numParts;
+        } catch (DecoderException e) {
+            return null;
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e); // Will happen if JVM doesn't have MD5, i.e. never
+        }
+    }
+}
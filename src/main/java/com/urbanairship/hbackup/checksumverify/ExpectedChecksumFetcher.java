@@ -0,0 +1,49 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup.checksumverify;
+
+import java.io.IOException;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import com.urbanairship.hbackup.ChecksumService;
+
+/**
+ * Loads the expected, pre-existing checksum for a file from the checksum service and hands it to the
+ * file's {@link ChecksumStateMachine}. These run in their own executor ahead of the chunk checksummers,
+ * so the network round trip for the checksum overlaps with reading the file data instead of blocking it.
+ */
+public class ExpectedChecksumFetcher implements Runnable {
+    private static final Logger log = LogManager.getLogger(ExpectedChecksumFetcher.class);
+
+    private final ChecksumStateMachine checksumStateMachine;
+    private final ChecksumService checksumService;
+    private final int numRetries;
+
+    public ExpectedChecksumFetcher(ChecksumStateMachine checksumStateMachine,
+            ChecksumService checksumService, int numRetries) {
+        this.checksumStateMachine = checksumStateMachine;
+        this.checksumService = checksumService;
+        this.numRetries = numRetries;
+    }
+
+    @Override
+    public void run() {
+        int retriesRemaining = numRetries;
+        String relativePath = checksumStateMachine.getSourceFile().getRelativePath();
+        do {
+            try {
+                checksumStateMachine.expectedChecksumLoaded(checksumService.getChecksum(relativePath));
+                return;
+            } catch (IOException e) {
+                log.error("IOException fetching expected checksum for " + relativePath + ", " +
+                        retriesRemaining + " retries remaining", e);
+            }
+        } while(retriesRemaining-- > 0);
+        log.error("Retries exhausted reading expected checksum for " + relativePath);
+        checksumStateMachine.expectedChecksumUnreadable();
+    }
+}
@@ -0,0 +1,75 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup.checksumverify;
+
+import java.io.IOException;
+
+import org.apache.hadoop.fs.FileChecksum;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import com.urbanairship.hbackup.datasinks.HdfsSink;
+import com.urbanairship.hbackup.datasources.HdfsSource.HdfsFile;
+
+/**
+ * Verifies an HDFS to HDFS backup of one file by comparing the HDFS file checksums of the source and
+ * sink files. The checksums are computed by the datanodes from their stored CRCs, so no file data is
+ * read by us. The checksums depend on the block size, so files written with a different block size
+ * than their source will show up as mismatched.
+ */
+public class FileChecksumComparer implements Runnable {
+    private static final Logger log = LogManager.getLogger(FileChecksumComparer.class);
+    
+    private final HdfsFile sourceFile;
+    private final HdfsSink sink;
+    private final int numRetries;
+    private final ChecksumStats stats;
+    
+    public FileChecksumComparer(HdfsFile sourceFile, HdfsSink sink, int numRetries, ChecksumStats stats) {
+        this.sourceFile = sourceFile;
+        this.sink = sink;
+        this.numRetries = numRetries;
+        this.stats = stats;
+    }
+    
+    @Override
+    public void run() {
+        String relativePath = sourceFile.getRelativePath();
+        int retriesRemaining = numRetries;
+        IOException lastException = null;
+        do {
+            try {
+                FileChecksum sourceChecksum = sourceFile.getFileChecksum();
+                if(sourceChecksum == null) {
+                    log.error("Source filesystem gave no checksum for " + relativePath);
+                    stats.unreadableChecksums.incrementAndGet();
+                    return;
+                }
+                FileChecksum sinkChecksum = sink.getFileChecksum(relativePath);
+                if(sinkChecksum == null) {
+                    log.error("Sink file is missing or has no checksum: " + relativePath);
+                    stats.missingChecksums.incrementAndGet();
+                    return;
+                }
+                if(sourceChecksum.equals(sinkChecksum)) {
+                    log.debug("HDFS checksums matched for " + relativePath);
+                    stats.matched.incrementAndGet();
+                } else {
+                    log.warn("HDFS checksums didn't match for " + relativePath + ": " + sourceChecksum + 
+                            " vs " + sinkChecksum);
+                    stats.mismatched.incrementAndGet();
+                }
+                return;
+            } catch (IOException e) {
+                log.error("IOException getting HDFS checksums for " + relativePath + ", " + 
+                        retriesRemaining + " retries remaining", e);
+                lastException = e;
+            }
+        } while(retriesRemaining-- > 0);
+        log.error("All retries exhausted getting HDFS checksums for " + relativePath);
+        stats.workerExceptions.add(lastException);
+        stats.unreadableFiles.incrementAndGet();
+    }
+}
@@ -0,0 +1,96 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup.compression;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import com.urbanairship.hbackup.SourceFile;
+
+/**
+ * Decides whether a file is worth compressing. Files that are already compressed are recognized by
+ * their extension, or failing that by compressing a sample from the start of the file and seeing
+ * whether it shrinks.
+ */
+public class CompressionDetector {
+    private static final Logger log = LogManager.getLogger(CompressionDetector.class);
+
+    public static final int SAMPLE_SIZE = 64 * 1024;
+    public static final int MIN_LENGTH = 4096;
+
+    // Compress only if a sample compresses to less than this fraction of its size
+    public static final double MAX_SAMPLE_RATIO = 0.9;
+
+    private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<String>(Arrays.asList(
+            "gz", "bz2", "xz", "lz4", "lzo", "snappy", "zst", "deflate", "z", "zip", "jar", "7z",
+            "jpg", "jpeg", "png", "gif", "mp3", "mp4", "avi", "mkv"));
+
+    public static boolean shouldCompress(SourceFile file) throws IOException {
+        String relativePath = file.getRelativePath();
+        if(file.getLength() < MIN_LENGTH) {
+            log.debug("Not compressing small file " + relativePath);
+            return false;
+        }
+
+        int dotPos = relativePath.lastIndexOf('.');
+        if(dotPos > relativePath.lastIndexOf('/')) {
+            String extension = relativePath.substring(dotPos + 1).toLowerCase();
+            if(COMPRESSED_EXTENSIONS.contains(extension)) {
+                log.debug("Not compressing " + relativePath + " because of its extension");
+                return false;
+            }
+        }
+
+        int sampleLen = (int)Math.min(SAMPLE_SIZE, file.getLength());
+        byte[] sample = new byte[sampleLen];
+        InputStream is = file.getPartialInputStream(0, sampleLen);
+        try {
+            int pos = 0;
+            while(pos < sampleLen) {
+                int bytesRead = is.read(sample, pos, sampleLen - pos);
+                if(bytesRead == -1) {
+                    break;
+                }
+                pos += bytesRead;
+            }
+            sampleLen = pos;
+        } finally {
+            is.close();
+        }
+        if(sampleLen == 0) {
+            return false;
+        }
+
+        double ratio = (double)compressedLength(sample, sampleLen) / sampleLen;
+        if(ratio > MAX_SAMPLE_RATIO) {
+            log.debug("Not compressing " + relativePath + ", a sample only compressed to " + ratio);
+            return false;
+        }
+        return true;
+    }
+
+    private static int compressedLength(byte[] data, int len) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data, 0, len);
+            deflater.finish();
+            byte[] buf = new byte[16384];
+            int compressedLen = 0;
+            while(!deflater.finished()) {
+                compressedLen += deflater.deflate(buf);
+            }
+            return compressedLen;
+        } finally {
+            deflater.end();
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup.compression;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses the bytes of another stream into independently decompressible frames, so they can be
+ * decompressed starting from any frame. Each frame is a header followed by its payload:
+ * <pre>
+ *   type (byte), payload length (int), uncompressed length (int), payload
+ * </pre>
+ * Data frames hold up to FRAME_SIZE uncompressed bytes, deflated, or stored as-is if deflating didn't
+ * make them smaller. Padding frames hold nothing and are skipped by readers; they make a stream at
+ * least padTo bytes long, for S3 parts that have a minimum size.
+ *
+ * The frames are indexed as they're written. If writeIndex is true, the index and its footer are
+ * appended after the last frame.
+ */
+public class FrameCompressingInputStream extends InputStream {
+    public static final int FRAME_SIZE = 1024 * 1024;
+    public static final int HEADER_LENGTH = 9;
+    public static final byte TYPE_DEFLATED = 'D';
+    public static final byte TYPE_STORED = 'S';
+    public static final byte TYPE_PADDING = 'P';
+
+    private final InputStream in;
+    private final long padTo;
+    private final boolean writeIndex;
+    private final FrameIndex index = new FrameIndex();
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final byte[] rawBuf = new byte[FRAME_SIZE];
+    private final byte[] deflateBuf = new byte[FRAME_SIZE];
+
+    private long uncompressedOffset;
+    private long bytesWritten = 0;
+    private boolean inputDone = false;
+    private boolean trailerDone = false;
+
+    private byte[] out = new byte[0];
+    private int outPos = 0;
+
+    /**
+     * @param uncompressedOffset the offset in the original file of the first byte of "in".
+     */
+    public FrameCompressingInputStream(InputStream in, long uncompressedOffset, long padTo, boolean writeIndex) {
+        this.in = in;
+        this.uncompressedOffset = uncompressedOffset;
+        this.padTo = padTo;
+        this.writeIndex = writeIndex;
+    }
+
+    /**
+     * @return the index of the frames written so far. Compressed offsets are relative to the start of
+     * this stream.
+     */
+    public FrameIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * @return how many compressed bytes this stream has produced so far.
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if(!fill()) {
+            return -1;
+        }
+        return out[outPos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if(len == 0) {
+            return 0;
+        }
+        if(!fill()) {
+            return -1;
+        }
+        int toCopy = Math.min(len, out.length - outPos);
+        System.arraycopy(out, outPos, b, off, toCopy);
+        outPos += toCopy;
+        return toCopy;
+    }
+
+    @Override
+    public void close() throws IOException {
+        deflater.end();
+        in.close();
+    }
+
+    /**
+     * Make sure there are output bytes ready to be read.
+     * @return false if the stream is finished.
+     */
+    private boolean fill() throws IOException {
+        while(outPos == out.length) {
+            if(!inputDone) {
+                nextDataFrame();
+            } else if(!trailerDone) {
+                writeTrailer();
+                trailerDone = true;
+            } else {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void nextDataFrame() throws IOException {
+        int rawLen = 0;
+        while(rawLen < rawBuf.length) {
+            int bytesRead = in.read(rawBuf, rawLen, rawBuf.length - rawLen);
+            if(bytesRead == -1) {
+                inputDone = true;
+                break;
+            }
+            rawLen += bytesRead;
+        }
+        if(rawLen == 0) {
+            return;
+        }
+
+        deflater.reset();
+        deflater.setInput(rawBuf, 0, rawLen);
+        deflater.finish();
+        int deflatedLen = 0;
+        while(!deflater.finished() && deflatedLen < rawLen) {
+            deflatedLen += deflater.deflate(deflateBuf, deflatedLen, rawLen - deflatedLen);
+        }
+
+        if(deflater.finished() && deflatedLen < rawLen) {
+            setFrame(TYPE_DEFLATED, deflateBuf, deflatedLen, rawLen);
+        } else {
+            // Incompressible, store it as-is rather than making it bigger
+            setFrame(TYPE_STORED, rawBuf, rawLen, rawLen);
+        }
+        index.add(new FrameIndex.Entry(uncompressedOffset, bytesWritten, out.length, rawLen));
+        uncompressedOffset += rawLen;
+        bytesWritten += out.length;
+    }
+
+    private void writeTrailer() {
+        int paddingFrameLen = 0;
+        if(bytesWritten < padTo) {
+            paddingFrameLen = (int)Math.max(HEADER_LENGTH, padTo - bytesWritten);
+        }
+        byte[] indexBytes = writeIndex ? index.toBytes(bytesWritten + paddingFrameLen) : new byte[0];
+        out = new byte[paddingFrameLen + indexBytes.length];
+        outPos = 0;
+        if(paddingFrameLen > 0) {
+            // The padding payload is left as zeros
+            writeHeader(out, 0, TYPE_PADDING, paddingFrameLen - HEADER_LENGTH, 0);
+        }
+        System.arraycopy(indexBytes, 0, out, paddingFrameLen, indexBytes.length);
+        bytesWritten += out.length;
+    }
+
+    private void setFrame(byte type, byte[] payload, int payloadLen, int uncompressedLen) {
+        out = new byte[HEADER_LENGTH + payloadLen];
+        outPos = 0;
+        writeHeader(out, 0, type, payloadLen, uncompressedLen);
+        System.arraycopy(payload, 0, out, HEADER_LENGTH, payloadLen);
+    }
+
+    private static void writeHeader(byte[] buf, int pos, byte type, int payloadLen, int uncompressedLen) {
+        buf[pos] = type;
+        writeInt(buf, pos + 1, payloadLen);
+        writeInt(buf, pos + 5, uncompressedLen);
+    }
+
+    private static void writeInt(byte[] buf, int pos, int value) {
+        buf[pos] = (byte)(value >>> 24);
+        buf[pos+1] = (byte)(value >>> 16);
+        buf[pos+2] = (byte)(value >>> 8);
+        buf[pos+3] = (byte)value;
+    }
+}
@@ -0,0 +1,152 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup.compression;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads frames written by {@link FrameCompressingInputStream} and gives back the original bytes. The
+ * wrapped stream must start at a frame boundary. Padding frames are skipped.
+ */
+public class FrameDecompressingInputStream extends InputStream {
+    private final DataInputStream in;
+    private final Inflater inflater = new Inflater();
+    private long skip;
+    private long remaining;
+
+    private byte[] payload = new byte[0];
+    private byte[] frame = new byte[0];
+    private int framePos = 0;
+    private int frameEnd = 0;
+
+    /**
+     * @param skip how many uncompressed bytes to throw away before the first byte returned, for reads
+     * that start in the middle of a frame.
+     * @param len how many uncompressed bytes to return. Reading stops there, so the wrapped stream may
+     * have more bytes after the last frame needed.
+     */
+    public FrameDecompressingInputStream(InputStream in, long skip, long len) {
+        this.in = new DataInputStream(in);
+        this.skip = skip;
+        this.remaining = len;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if(!fill()) {
+            return -1;
+        }
+        remaining--;
+        return frame[framePos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if(len == 0) {
+            return 0;
+        }
+        if(!fill()) {
+            return -1;
+        }
+        int toCopy = (int)Math.min(Math.min(len, frameEnd - framePos), remaining);
+        System.arraycopy(frame, framePos, b, off, toCopy);
+        framePos += toCopy;
+        remaining -= toCopy;
+        return toCopy;
+    }
+
+    @Override
+    public void close() throws IOException {
+        inflater.end();
+        in.close();
+    }
+
+    private boolean fill() throws IOException {
+        while(remaining > 0 && framePos == frameEnd) {
+            readFrame();
+            if(skip > 0) {
+                int skipInFrame = (int)Math.min(skip, frameEnd);
+                framePos = skipInFrame;
+                skip -= skipInFrame;
+            }
+        }
+        return remaining > 0;
+    }
+
+    private void readFrame() throws IOException {
+        byte type;
+        try {
+            type = in.readByte();
+        } catch (EOFException e) {
+            throw new IOException("Compressed stream ended with " + remaining + " bytes left to read");
+        }
+        int payloadLen = in.readInt();
+        int uncompressedLen = in.readInt();
+        if(payloadLen < 0 || uncompressedLen < 0) {
+            throw new IOException("Corrupt frame header");
+        }
+        
+        framePos = 0;
+        if(type == FrameCompressingInputStream.TYPE_PADDING) {
+            while(payloadLen > 0) {
+                int skipped = in.skipBytes(payloadLen);
+                if(skipped <= 0) {
+                    throw new IOException("Compressed stream ended inside a padding frame");
+                }
+                payloadLen -= skipped;
+            }
+            frameEnd = 0;
+            return;
+        }
+        
+        if(payload.length < payloadLen) {
+            payload = new byte[payloadLen];
+        }
+        in.readFully(payload, 0, payloadLen);
+
+        switch(type) {
+        case FrameCompressingInputStream.TYPE_STORED:
+            ensureFrameCapacity(payloadLen);
+            System.arraycopy(payload, 0, frame, 0, payloadLen);
+            frameEnd = payloadLen;
+            return;
+        case FrameCompressingInputStream.TYPE_DEFLATED:
+            ensureFrameCapacity(uncompressedLen);
+            inflater.reset();
+            inflater.setInput(payload, 0, payloadLen);
+            try {
+                int inflated = 0;
+                while(inflated < uncompressedLen && !inflater.finished()) {
+                    int n = inflater.inflate(frame, inflated, uncompressedLen - inflated);
+                    if(n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    inflated += n;
+                }
+                if(inflated != uncompressedLen) {
+                    throw new IOException("Frame inflated to " + inflated + " bytes but should have been " +
+                            uncompressedLen);
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt compressed frame", e);
+            }
+            frameEnd = uncompressedLen;
+            return;
+        default:
+            throw new IOException("Unknown frame type " + type);
+        }
+    }
+
+    private void ensureFrameCapacity(int len) {
+        if(frame.length < len) {
+            frame = new byte[len];
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup.compression;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Maps uncompressed offsets to the frames that hold them in a framed compressed object, so a byte range
+ * of the original file can be read without reading the whole object. The index is stored at the end of
+ * the object, followed by a fixed-size footer giving the offset where the index starts:
+ * <pre>
+ *   [frames...] [index] [footer: index start (long), FOOTER_MAGIC (int)]
+ * </pre>
+ */
+public class FrameIndex {
+    public static final int FOOTER_LENGTH = 12;
+    private static final int INDEX_MAGIC = 0x48425a58;  // "HBZX"
+    private static final int FOOTER_MAGIC = 0x48425a46; // "HBZF"
+
+    /**
+     * The location of one data frame. Padding frames aren't indexed.
+     */
+    public static class Entry {
+        public final long uncompressedOffset;
+        public final long compressedOffset;
+        public final int frameLength; // Including the frame header
+        public final int uncompressedLength;
+
+        public Entry(long uncompressedOffset, long compressedOffset, int frameLength, int uncompressedLength) {
+            this.uncompressedOffset = uncompressedOffset;
+            this.compressedOffset = compressedOffset;
+            this.frameLength = frameLength;
+            this.uncompressedLength = uncompressedLength;
+        }
+    }
+
+    private final List<Entry> entries = new ArrayList<Entry>();
+
+    public void add(Entry entry) {
+        entries.add(entry);
+    }
+
+    /**
+     * Add the entries of an index for frames that were written starting at compressedShift bytes into
+     * the object, such as a later part of a multipart upload.
+     */
+    public void addAll(FrameIndex other, long compressedShift) {
+        for(Entry e: other.entries) {
+            entries.add(new Entry(e.uncompressedOffset, e.compressedOffset + compressedShift, e.frameLength,
+                    e.uncompressedLength));
+        }
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    public long getUncompressedLength() {
+        if(entries.isEmpty()) {
+            return 0;
+        }
+        Entry last = entries.get(entries.size() - 1);
+        return last.uncompressedOffset + last.uncompressedLength;
+    }
+
+    /**
+     * @return the index of the frame containing the given uncompressed offset, which must be less than
+     * the uncompressed length.
+     */
+    public int frameForOffset(long uncompressedOffset) {
+        int low = 0;
+        int high = entries.size() - 1;
+        while(low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if(entries.get(mid).uncompressedOffset <= uncompressedOffset) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @param indexStart the offset in the object where the index will be written.
+     * @return the serialized index followed by the footer.
+     */
+    public byte[] toBytes(long indexStart) {
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(8 + entries.size() * 24 + FOOTER_LENGTH);
+            DataOutputStream dos = new DataOutputStream(baos);
+            dos.writeInt(INDEX_MAGIC);
+            dos.writeInt(entries.size());
+            for(Entry e: entries) {
+                dos.writeLong(e.uncompressedOffset);
+                dos.writeLong(e.compressedOffset);
+                dos.writeInt(e.frameLength);
+                dos.writeInt(e.uncompressedLength);
+            }
+            dos.writeLong(indexStart);
+            dos.writeInt(FOOTER_MAGIC);
+            dos.close();
+            return baos.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e); // Can't happen writing to memory
+        }
+    }
+
+    /**
+     * @return the offset where the index starts, given the last FOOTER_LENGTH bytes of the object.
+     */
+    public static long parseFooter(byte[] footer) throws IOException {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(footer));
+        long indexStart = dis.readLong();
+        if(dis.readInt() != FOOTER_MAGIC) {
+            throw new IOException("Missing frame index footer, the object may be truncated");
+        }
+        return indexStart;
+    }
+
+    /**
+     * @param indexBytes the bytes from the start of the index up to but not including the footer.
+     */
+    public static FrameIndex parse(byte[] indexBytes) throws IOException {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(indexBytes));
+        if(dis.readInt() != INDEX_MAGIC) {
+            throw new IOException("Bad frame index magic number");
+        }
+        int numEntries = dis.readInt();
+        FrameIndex index = new FrameIndex();
+        for(int i=0; i<numEntries; i++) {
+            index.add(new Entry(dis.readLong(), dis.readLong(), dis.readInt(), dis.readInt()));
+        }
+        return index;
+    }
+}
@@ -0,0 +1,265 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup.coordinator;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import com.urbanairship.hbackup.Util;
+
+/**
+ * One worker's side of a coordinated backup, where several processes share the work of one run through a
+ * lease store. The first worker to start plans the run: it decides which files need sending and writes
+ * them into the store as leases. Every worker then claims leases one at a time, sends their files, and
+ * marks them done. The run is over when every lease is done.
+ *
+ * A claim is an entry that only one worker can create. Its owner renews it by touching it, and if it
+ * isn't renewed for leaseMillis (because the owner died or hung) another worker may claim the lease again
+ * under the next generation. The old owner notices the newer claim when it next renews and lets the lease
+ * go, though it may still be finishing the lease's files, which is harmless since sending a file twice
+ * gives the same result. Workers' clocks should agree to well within leaseMillis.
+ *
+ * Within the run's directory in the store:
+ *   leases/ID           what's in each lease
+ *   planned             created once every lease is written
+ *   claims/ID/GEN       the claims on each lease, and on the plan itself, with ID "plan"
+ *   done/ID             created when a lease is finished
+ *   ranges/KEY/CHUNK    for a big file split across leases, created when each range is sent
+ *   ranges/KEY/commit   created by the worker that commits the file
+ */
+public class Coordinator {
+    private static final Logger log = LogManager.getLogger(Coordinator.class);
+    private static final String PLAN = "plan";
+    private static final String COMMIT = "commit";
+
+    private final LeaseStore store;
+    private final String runDir;
+    private final long leaseMillis;
+    private final long pollMillis;
+    private final ScheduledExecutorService renewer;
+    private final Random random = new Random();
+
+    // Guarded by "this". The generation of each claim this worker holds, by lease ID.
+    private final Map<String,Integer> claims = new HashMap<String,Integer>();
+
+    private List<String> leaseIds = null; // Read once the plan is published
+    private final Set<String> doneLeaseIds = new HashSet<String>();
+
+    public Coordinator(LeaseStore store, String runId, long leaseMillis) {
+        this.store = store;
+        this.runDir = runId + "/";
+        this.leaseMillis = leaseMillis;
+        this.pollMillis = Math.max(100, Math.min(5000, leaseMillis / 10));
+        this.renewer = Executors.newSingleThreadScheduledExecutor(Util.daemonThreadFactory("Lease renewer"));
+        long renewMillis = Math.max(1, leaseMillis / 3);
+        renewer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                renewClaims();
+            }
+        }, renewMillis, renewMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Wait for the run to be planned.
+     * @return true if this worker should plan the run and publish() the plan, because nobody has yet or
+     * the worker planning it stopped renewing its claim.
+     */
+    public boolean awaitPlan() throws IOException, InterruptedException {
+        while(!store.exists(runDir + "planned")) {
+            if(claim(PLAN)) {
+                log.info("Planning the coordinated run " + runDir);
+                return true;
+            }
+            Thread.sleep(pollMillis);
+        }
+        return false;
+    }
+
+    /**
+     * Write the plan, with the given items in each lease.
+     */
+    public void publish(List<List<Lease.Item>> plan) throws IOException {
+        for(int i=0; i<plan.size(); i++) {
+            Lease lease = new Lease(String.format("%08d", i), plan.get(i));
+            store.write(runDir + "leases/" + lease.getId(), lease.toBytes());
+        }
+        store.create(runDir + "planned");
+        release(PLAN);
+        log.info("Published " + plan.size() + " leases for " + runDir);
+    }
+
+    private synchronized List<String> getLeaseIds() throws IOException {
+        if(leaseIds == null) {
+            leaseIds = store.list(runDir + "leases");
+            // Workers start at different places, so they don't all race for the same leases
+            Collections.shuffle(leaseIds, random);
+        }
+        return leaseIds;
+    }
+
+    private boolean isDone(String id) throws IOException {
+        synchronized(this) {
+            if(doneLeaseIds.contains(id)) {
+                return true;
+            }
+        }
+        if(store.exists(runDir + "done/" + id)) {
+            synchronized(this) {
+                doneLeaseIds.add(id);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return a lease that this worker now holds, or null if every lease that isn't done is held by a live
+     * worker. Those may still become free if their workers die, so call again after sleep() until
+     * isFinished().
+     */
+    public Lease claimNext() throws IOException {
+        for(String id: getLeaseIds()) {
+            if(isDone(id) || !claim(id)) {
+                continue;
+            }
+            byte[] bytes = store.read(runDir + "leases/" + id);
+            if(bytes == null) {
+                throw new IOException("Lease " + id + " of " + runDir + " is missing");
+            }
+            return Lease.fromBytes(id, bytes);
+        }
+        return null;
+    }
+
+    /**
+     * @return whether every lease of the run is done.
+     */
+    public boolean isFinished() throws IOException {
+        for(String id: getLeaseIds()) {
+            if(!isDone(id)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Wait a while before looking for a free lease again.
+     */
+    public void sleep() throws InterruptedException {
+        Thread.sleep(pollMillis);
+    }
+
+    /**
+     * Mark a lease this worker claimed as done.
+     */
+    public void complete(Lease lease) throws IOException {
+        store.create(runDir + "done/" + lease.getId());
+        release(lease.getId());
+    }
+
+    /**
+     * Record that a range of a shared transfer was sent.
+     * @return true if every range of the file has now been sent and this worker should commit the file.
+     * Only one worker gets true for each file.
+     */
+    public boolean rangeDone(Lease.Item item) throws IOException {
+        String rangeDir = runDir + "ranges/" + DigestUtils.md5Hex(item.relativePath);
+        store.create(rangeDir + "/" + item.firstChunk);
+        int numDone = 0;
+        for(String name: store.list(rangeDir)) {
+            if(!name.equals(COMMIT)) {
+                numDone++;
+            }
+        }
+        if(numDone < item.numRanges) {
+            return false;
+        }
+        return store.create(rangeDir + "/" + COMMIT);
+    }
+
+    /**
+     * Try to claim a lease, which works if nobody has claimed it or the latest claim has expired.
+     */
+    private boolean claim(String id) throws IOException {
+        String claimDir = runDir + "claims/" + id + "/";
+        int latest = latestGeneration(claimDir);
+        if(latest >= 0) {
+            Long mtime = store.getMTime(claimDir + latest);
+            if(mtime == null || System.currentTimeMillis() - mtime < leaseMillis) {
+                return false;
+            }
+            log.info("The claim on lease " + id + " expired, taking it over");
+        }
+        int generation = latest + 1;
+        if(!store.create(claimDir + generation)) {
+            return false;
+        }
+        synchronized(this) {
+            claims.put(id, generation);
+        }
+        return true;
+    }
+
+    private int latestGeneration(String claimDir) throws IOException {
+        int latest = -1;
+        for(String name: store.list(claimDir)) {
+            try {
+                latest = Math.max(latest, Integer.parseInt(name));
+            } catch (NumberFormatException e) {
+                log.warn("Ignoring unexpected entry " + name + " in " + claimDir);
+            }
+        }
+        return latest;
+    }
+
+    private synchronized void release(String id) {
+        claims.remove(id);
+    }
+
+    /**
+     * Touch every claim this worker holds, and let go of any that another worker has taken over.
+     */
+    private void renewClaims() {
+        Map<String,Integer> held;
+        synchronized(this) {
+            held = new HashMap<String,Integer>(claims);
+        }
+        for(Map.Entry<String,Integer> claim: held.entrySet()) {
+            String claimDir = runDir + "claims/" + claim.getKey() + "/";
+            try {
+                if(latestGeneration(claimDir) > claim.getValue()) {
+                    log.warn("Lease " + claim.getKey() + " was taken over by another worker");
+                    release(claim.getKey());
+                    continue;
+                }
+                store.touch(claimDir + claim.getValue(), System.currentTimeMillis());
+            } catch (IOException e) {
+                log.warn("Couldn't renew the claim on lease " + claim.getKey(), e);
+            }
+        }
+    }
+
+    /**
+     * Stop renewing claims. Leases this worker still holds expire and go to other workers.
+     */
+    public void close() {
+        renewer.shutdownNow();
+    }
+}
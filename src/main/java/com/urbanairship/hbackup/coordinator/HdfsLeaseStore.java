@@ -0,0 +1,123 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup.coordinator;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import com.urbanairship.hbackup.HBackupConfig;
+
+/**
+ * A lease store in an HDFS directory. The namenode only lets one client create a file, so create() is
+ * atomic across every worker that can reach the cluster.
+ */
+public class HdfsLeaseStore extends LeaseStore {
+    private final FileSystem fs;
+    private final String baseName;
+    
+    public HdfsLeaseStore(URI uri, HBackupConfig conf) throws IOException {
+        // The URI names the cluster, so the source's Hadoop config is only used for client settings
+        this.fs = FileSystem.get(uri, conf.hdfsSourceConf);
+        String path = uri.getPath();
+        this.baseName = path.endsWith("/") ? path : path + "/";
+    }
+    
+    private Path path(String name) {
+        return new Path(baseName + name);
+    }
+    
+    @Override
+    public boolean create(String name) throws IOException {
+        Path path = path(name);
+        try {
+            fs.create(path, false).close();
+            return true;
+        } catch (IOException e) {
+            // Either someone else created it first, or something went wrong
+            if(fs.exists(path)) {
+                return false;
+            }
+            throw e;
+        }
+    }
+    
+    /**
+     * The contents are written to a temp file first and renamed into place, so readers never see a
+     * partly written entry.
+     */
+    @Override
+    public void write(String name, byte[] contents) throws IOException {
+        Path path = path(name);
+        Path tmp = new Path(path.getParent(), "." + path.getName() + ".tmp");
+        FSDataOutputStream os = fs.create(tmp, true);
+        try {
+            os.write(contents);
+        } finally {
+            os.close();
+        }
+        fs.delete(path, false);
+        if(!fs.rename(tmp, path)) {
+            throw new IOException("Couldn't rename " + tmp + " to " + path);
+        }
+    }
+    
+    @Override
+    public byte[] read(String name) throws IOException {
+        Path path = path(name);
+        if(!fs.exists(path)) {
+            return null;
+        }
+        FSDataInputStream is = fs.open(path);
+        try {
+            return IOUtils.toByteArray(is);
+        } finally {
+            is.close();
+        }
+    }
+    
+    @Override
+    public boolean exists(String name) throws IOException {
+        return fs.exists(path(name));
+    }
+    
+    @Override
+    public List<String> list(String dir) throws IOException {
+        List<String> result = new ArrayList<String>();
+        FileStatus[] statuses = fs.listStatus(path(dir));
+        if(statuses == null) {
+            return result;
+        }
+        for(FileStatus status: statuses) {
+            String name = status.getPath().getName();
+            if(!name.startsWith(".")) {
+                result.add(name);
+            }
+        }
+        return result;
+    }
+    
+    @Override
+    public void touch(String name, long mtime) throws IOException {
+        fs.setTimes(path(name), mtime, -1);
+    }
+    
+    @Override
+    public Long getMTime(String name) throws IOException {
+        Path path = path(name);
+        if(!fs.exists(path)) {
+            return null;
+        }
+        return fs.getFileStatus(path).getModificationTime();
+    }
+}
@@ -0,0 +1,104 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup.coordinator;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A unit of work in a coordinated backup, claimed by one worker at a time: some whole files, or a range of
+ * the chunks of one big file whose transfer is shared with other leases.
+ */
+public class Lease {
+    private static final int MAGIC = 0x48424c53; // "HBLS"
+    
+    public static class Item {
+        public final String relativePath;
+        // For a range of a shared transfer: the transfer, the chunks in this range, and how many ranges
+        // the file was split into. Null, 0, 0 and 0 for a whole file.
+        public final String transferId;
+        public final int firstChunk;
+        public final int numChunks;
+        public final int numRanges;
+        
+        public Item(String relativePath) {
+            this(relativePath, null, 0, 0, 0);
+        }
+        
+        public Item(String relativePath, String transferId, int firstChunk, int numChunks, int numRanges) {
+            this.relativePath = relativePath;
+            this.transferId = transferId;
+            this.firstChunk = firstChunk;
+            this.numChunks = numChunks;
+            this.numRanges = numRanges;
+        }
+        
+        public boolean isRange() {
+            return transferId != null;
+        }
+    }
+    
+    private final String id;
+    private final List<Item> items;
+    
+    public Lease(String id, List<Item> items) {
+        this.id = id;
+        this.items = items;
+    }
+    
+    public String getId() {
+        return id;
+    }
+    
+    public List<Item> getItems() {
+        return items;
+    }
+    
+    public byte[] toBytes() {
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(baos);
+            dos.writeInt(MAGIC);
+            dos.writeInt(items.size());
+            for(Item item: items) {
+                dos.writeUTF(item.relativePath);
+                dos.writeBoolean(item.isRange());
+                if(item.isRange()) {
+                    dos.writeUTF(item.transferId);
+                    dos.writeInt(item.firstChunk);
+                    dos.writeInt(item.numChunks);
+                    dos.writeInt(item.numRanges);
+                }
+            }
+            dos.close();
+            return baos.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e); // Can't happen writing to memory
+        }
+    }
+    
+    public static Lease fromBytes(String id, byte[] bytes) throws IOException {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(bytes));
+        if(dis.readInt() != MAGIC) {
+            throw new IOException("Lease " + id + " is corrupt, bad magic number");
+        }
+        int numItems = dis.readInt();
+        List<Item> items = new ArrayList<Item>(numItems);
+        for(int i=0; i<numItems; i++) {
+            String relativePath = dis.readUTF();
+            if(dis.readBoolean()) {
+                items.add(new Item(relativePath, dis.readUTF(), dis.readInt(), dis.readInt(), dis.readInt()));
+            } else {
+                items.add(new Item(relativePath));
+            }
+        }
+        return new Lease(id, items);
+    }
+}
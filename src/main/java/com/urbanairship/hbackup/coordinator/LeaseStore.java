@@ -0,0 +1,64 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup.coordinator;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.List;
+
+import com.urbanairship.hbackup.HBackupConfig;
+
+/**
+ * The shared directory where the workers of a coordinated backup keep their plan and leases. Entries are
+ * named by slash separated paths relative to the directory. The only atomic operation workers rely on is
+ * create(), which succeeds for exactly one of the workers that try it.
+ */
+public abstract class LeaseStore {
+    public static LeaseStore forUri(URI uri, HBackupConfig conf) throws IOException {
+        String scheme = uri.getScheme();
+        if(scheme.equals("hdfs") || scheme.equals("maprfs")) {
+            return new HdfsLeaseStore(uri, conf);
+        } else if(scheme.equals("file")) {
+            return new LocalLeaseStore(new File(uri.getPath()));
+        } else {
+            throw new IllegalArgumentException("Unknown protocol \"" + scheme + "\" in lease store URI " + uri);
+        }
+    }
+    
+    /**
+     * Create an empty entry, unless it already exists.
+     * @return whether this call created it.
+     */
+    public abstract boolean create(String name) throws IOException;
+    
+    /**
+     * Create or replace an entry with the given contents.
+     */
+    public abstract void write(String name, byte[] contents) throws IOException;
+    
+    /**
+     * @return the entry's contents, or null if it doesn't exist.
+     */
+    public abstract byte[] read(String name) throws IOException;
+    
+    public abstract boolean exists(String name) throws IOException;
+    
+    /**
+     * @return the names of the entries in a directory, without the directory, or an empty list if it
+     * doesn't exist.
+     */
+    public abstract List<String> list(String dir) throws IOException;
+    
+    /**
+     * Set an entry's modification time.
+     */
+    public abstract void touch(String name, long mtime) throws IOException;
+    
+    /**
+     * @return the entry's modification time, or null if it doesn't exist.
+     */
+    public abstract Long getMTime(String name) throws IOException;
+}
@@ -0,0 +1,99 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup.coordinator;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * A lease store in a local directory, for workers on one machine or sharing a network filesystem that
+ * supports exclusive file creation.
+ */
+public class LocalLeaseStore extends LeaseStore {
+    private final File baseDir;
+    
+    public LocalLeaseStore(File baseDir) {
+        this.baseDir = baseDir;
+    }
+    
+    private File file(String name) throws IOException {
+        File file = new File(baseDir, name);
+        File parent = file.getParentFile();
+        if(!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+            throw new IOException("Couldn't create directory " + parent);
+        }
+        return file;
+    }
+    
+    @Override
+    public boolean create(String name) throws IOException {
+        return file(name).createNewFile();
+    }
+    
+    /**
+     * The contents are written to a temp file first and renamed into place, so readers never see a
+     * partly written entry.
+     */
+    @Override
+    public void write(String name, byte[] contents) throws IOException {
+        File file = file(name);
+        File tmp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+        FileUtils.writeByteArrayToFile(tmp, contents);
+        if(!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Couldn't rename " + tmp + " to " + file);
+        }
+    }
+    
+    @Override
+    public byte[] read(String name) throws IOException {
+        File file = new File(baseDir, name);
+        if(!file.isFile()) {
+            return null;
+        }
+        return FileUtils.readFileToByteArray(file);
+    }
+    
+    @Override
+    public boolean exists(String name) throws IOException {
+        return new File(baseDir, name).exists();
+    }
+    
+    @Override
+    public List<String> list(String dir) throws IOException {
+        String[] names = new File(baseDir, dir).list();
+        if(names == null) {
+            return new ArrayList<String>();
+        }
+        List<String> result = new ArrayList<String>();
+        for(String name: Arrays.asList(names)) {
+            if(!name.endsWith(".tmp")) {
+                result.add(name);
+            }
+        }
+        return result;
+    }
+    
+    @Override
+    public void touch(String name, long mtime) throws IOException {
+        if(!new File(baseDir, name).setLastModified(mtime)) {
+            throw new IOException("Couldn't set mtime of " + name + " in " + baseDir);
+        }
+    }
+    
+    @Override
+    public Long getMTime(String name) throws IOException {
+        File file = new File(baseDir, name);
+        if(!file.exists()) {
+            return null;
+        }
+        return file.lastModified();
+    }
+}
@@ -0,0 +1,83 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup.datasinks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Splits a stream into chunks whose boundaries depend on the content rather than on offsets, so an
+ * insertion or deletion near the start of a file only changes the chunks around it. A boundary is
+ * placed wherever a rolling "gear" hash of the last 64 bytes has its top bits all zero, giving chunks
+ * of about avgSize bytes, clamped to [minSize, maxSize].
+ */
+public class ContentDefinedChunker {
+    // One random value per byte value. The seed is fixed so chunk boundaries never change between
+    // runs or JVMs, otherwise we'd lose all dedup against earlier backups.
+    private static final long[] GEAR = new long[256];
+    static {
+        Random random = new Random(0x6862616b7570L);
+        for(int i=0; i<GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final InputStream is;
+    private final int minSize;
+    private final long mask;
+    private final byte[] buf;
+    private int bufLen = 0;
+    private boolean eof = false;
+
+    /**
+     * @param avgSize the desired average chunk size, which must be a power of two.
+     */
+    public ContentDefinedChunker(InputStream is, int minSize, int avgSize, int maxSize) {
+        if(Integer.bitCount(avgSize) != 1 || minSize > avgSize || avgSize > maxSize) {
+            throw new IllegalArgumentException("Chunk sizes must satisfy min <= avg <= max with avg a " +
+                    "power of two, got " + minSize + "/" + avgSize + "/" + maxSize);
+        }
+        this.is = is;
+        this.minSize = minSize;
+        int maskBits = Integer.numberOfTrailingZeros(avgSize);
+        // Use the high bits of the hash, since the low bits only depend on the last few bytes
+        this.mask = maskBits == 0 ? 0 : (-1L << (64 - maskBits));
+        this.buf = new byte[maxSize];
+    }
+
+    /**
+     * @return the next chunk, or null if the stream is exhausted.
+     */
+    public byte[] nextChunk() throws IOException {
+        while(!eof && bufLen < buf.length) {
+            int bytesRead = is.read(buf, bufLen, buf.length - bufLen);
+            if(bytesRead == -1) {
+                eof = true;
+            } else {
+                bufLen += bytesRead;
+            }
+        }
+        if(bufLen == 0) {
+            return null;
+        }
+
+        int cutAt = bufLen;
+        long hash = 0;
+        for(int i=0; i<bufLen; i++) {
+            hash = (hash << 1) + GEAR[buf[i] & 0xff];
+            if(i + 1 >= minSize && (hash & mask) == 0) {
+                cutAt = i + 1;
+                break;
+            }
+        }
+
+        byte[] chunk = Arrays.copyOf(buf, cutAt);
+        System.arraycopy(buf, cutAt, buf, 0, bufLen - cutAt);
+        bufLen -= cutAt;
+        return chunk;
+    }
+}
@@ -0,0 +1,298 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup.datasinks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.jets3t.service.S3Service;
+import org.jets3t.service.ServiceException;
+import org.jets3t.service.model.S3Object;
+import org.jets3t.service.model.StorageObject;
+
+import com.urbanairship.hbackup.Constant;
+import com.urbanairship.hbackup.DedupRecipe;
+import com.urbanairship.hbackup.HBackupConfig;
+import com.urbanairship.hbackup.RetryableChunk;
+import com.urbanairship.hbackup.S3Clients;
+import com.urbanairship.hbackup.Sink;
+import com.urbanairship.hbackup.SourceFile;
+import com.urbanairship.hbackup.Stats;
+import com.urbanairship.hbackup.StreamingXor;
+import com.urbanairship.hbackup.Util;
+import com.urbanairship.hbackup.XorInputStream;
+
+/**
+ * A sink that stores files in S3 as content-addressed chunks, so runs of bytes shared between files
+ * (or between versions of a file) are only stored once. Files are cut into chunks with a
+ * {@link ContentDefinedChunker}, each unique chunk is stored under the chunk prefix named by its
+ * SHA-256, and each file gets a small {@link DedupRecipe} object at its usual key listing its chunks.
+ *
+ * Chunks are checked for and uploaded in batches on a pool of conf.dedupThreads threads. Chunks are
+ * never deleted, so a recipe always refers to chunks that exist as long as the store isn't edited by
+ * hand.
+ */
+public class DedupS3Sink extends Sink {
+    private static final Logger log = LogManager.getLogger(DedupS3Sink.class);
+
+    public static final int MIN_CHUNK_SIZE = 256 * 1024;
+    public static final int AVG_CHUNK_SIZE = 1024 * 1024;
+    public static final int MAX_CHUNK_SIZE = 4 * 1024 * 1024;
+
+    protected final HBackupConfig conf;
+    private final Stats stats;
+    protected final S3Service s3Service;
+    protected final String bucketName;
+    protected final String baseName;
+    private final ExecutorService chunkExecutor;
+
+    // Chunks known to be in the store, so each is only checked for once per run
+    private final Set<String> knownChunks = Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+
+    public DedupS3Sink(URI uri, HBackupConfig conf, Stats stats) throws IOException {
+        this.conf = conf;
+        this.stats = stats;
+        this.bucketName = uri.getHost();
+        this.baseName = Util.canonicalizeBaseName(uri.getPath());
+        this.chunkExecutor = Executors.newFixedThreadPool(conf.dedupThreads,
+                Util.daemonThreadFactory("dedup-sink"));
+        s3Service = S3Clients.getInstance().get(conf.s3SinkCredentials, S3Clients.poolSize(conf));
+    }
+
+    @Override
+    public boolean existsAndUpToDate(SourceFile file) throws IOException {
+        String relativePath = file.getRelativePath();
+        StorageObject recipeObj = getRecipeDetails(relativePath);
+        if(recipeObj == null) {
+            log.debug("No recipe existed, will upload: " + relativePath);
+            return false;
+        }
+        Long destLength = getLongMetadata(recipeObj, Constant.S3_SOURCE_LENGTH, relativePath);
+        if(destLength == null || destLength != file.getLength()) {
+            log.debug("Recipe had a different length than the source for " + relativePath +
+                    ". Will re-upload.");
+            return false;
+        }
+        if(!conf.mtimeCheck) {
+            log.debug("Mtime checking was disabled and filesize matched. Won't reupload " + relativePath);
+            return true;
+        }
+        Long destMtime = getLongMetadata(recipeObj, Constant.S3_SOURCE_MTIME, relativePath);
+        if(destMtime != null && destMtime == file.getMTime()) {
+            log.debug("Mtime and length match for file, won't re-upload: " + relativePath);
+            return true;
+        }
+        log.debug("Missing or different mtime for file, will re-upload: " + relativePath);
+        return false;
+    }
+
+    @Override
+    public Long getMTime(String relativePath) throws IOException {
+        StorageObject recipeObj = getRecipeDetails(relativePath);
+        if(recipeObj == null) {
+            return null;
+        }
+        Long mtime = getLongMetadata(recipeObj, Constant.S3_SOURCE_MTIME, relativePath);
+        if(mtime == null) {
+            throw new IOException("Missing or malformed source mtime metadata for recipe " + relativePath);
+        }
+        return mtime;
+    }
+
+    /**
+     * @return the recipe's details, or null if there's no recipe for the file.
+     */
+    private StorageObject getRecipeDetails(String relativePath) throws IOException {
+        try {
+            return s3Service.getObjectDetails(bucketName, baseName + relativePath);
+        } catch (ServiceException e) {
+            if(e.getResponseCode() == 404) {
+                return null;
+            }
+            throw new IOException(e);
+        }
+    }
+
+    private static Long getLongMetadata(StorageObject obj, String name, String relativePath) {
+        Object value = obj.getMetadata(name);
+        if(value instanceof String) {
+            try {
+                return Long.valueOf((String)value);
+            } catch (NumberFormatException e) { }
+        }
+        if(value != null) {
+            log.warn("Malformed " + name + " metadata on recipe for " + relativePath + ": " + value);
+        }
+        return null;
+    }
+
+    @Override
+    public List<RetryableChunk> getChunks(final SourceFile file) {
+        final String relativePath = file.getRelativePath();
+
+        // A single transfer chunk per file, since content-defined chunk boundaries can only be found
+        // by reading the file from the start. The parallelism is in storing the content chunks.
+        RetryableChunk chunk = new RetryableChunk() {
+            private DedupRecipe recipe;
+            private StreamingXor xor;
+
+            @Override
+            public StreamingXor run() throws IOException {
+                InputStream sourceStream = null;
+                try {
+                    DedupRecipe newRecipe = new DedupRecipe(file.getMTime());
+                    sourceStream = file.getFullInputStream();
+                    XorInputStream xis = new XorInputStream(sourceStream, 0);
+                    ContentDefinedChunker chunker = new ContentDefinedChunker(xis, MIN_CHUNK_SIZE,
+                            AVG_CHUNK_SIZE, MAX_CHUNK_SIZE);
+
+                    // Hold a batch of chunks in memory while they're checked and stored in parallel
+                    List<byte[]> batch = new ArrayList<byte[]>(conf.dedupThreads);
+                    byte[] contentChunk;
+                    while((contentChunk = chunker.nextChunk()) != null) {
+                        batch.add(contentChunk);
+                        if(batch.size() == conf.dedupThreads) {
+                            storeBatch(batch, newRecipe);
+                            batch.clear();
+                        }
+                    }
+                    storeBatch(batch, newRecipe);
+
+                    if(newRecipe.getLength() != file.getLength()) {
+                        throw new IOException("Read " + newRecipe.getLength() + " bytes from " + relativePath +
+                                " but expected " + file.getLength());
+                    }
+                    recipe = newRecipe;
+                    xor = xis.getStreamingXor();
+                    return xor;
+                } finally {
+                    if(sourceStream != null) {
+                        try {
+                            sourceStream.close();
+                        } catch (IOException e) { }
+                    }
+                }
+            }
+
+            @Override
+            public void commitAllChunks() throws IOException {
+                commitRecipe(relativePath, recipe, xor);
+            }
+        };
+
+        List<RetryableChunk> chunks = new ArrayList<RetryableChunk>(1);
+        chunks.add(chunk);
+        return chunks;
+    }
+
+    /**
+     * Record a file once all of its chunks are stored, by writing its recipe at its key. The recipe is
+     * only written once its chunks are stored, so a reader never sees a recipe with missing chunks.
+     * @param xor the checksum of the file's contents.
+     */
+    protected void commitRecipe(String relativePath, DedupRecipe recipe, StreamingXor xor) throws IOException {
+        try {
+            S3Object recipeObj = new S3Object(baseName + relativePath, recipe.toBytes());
+            recipeObj.addMetadata(Constant.S3_SOURCE_MTIME, Long.toString(recipe.getMTime()));
+            recipeObj.addMetadata(Constant.S3_SOURCE_LENGTH, Long.toString(recipe.getLength()));
+            s3Service.putObject(bucketName, recipeObj);
+            log.debug("Wrote recipe with " + recipe.getNumChunks() + " chunks for " + relativePath);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e); // Will happen if JVM doesn't have MD5, i.e. never
+        } catch (ServiceException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Store the chunks that aren't already in the store, in parallel, and add them all to the recipe.
+     */
+    private void storeBatch(List<byte[]> batch, DedupRecipe recipe) throws IOException {
+        List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(batch.size());
+        List<String> hashes = new ArrayList<String>(batch.size());
+        for(final byte[] contentChunk: batch) {
+            final String hash = sha256Hex(contentChunk);
+            hashes.add(hash);
+            futures.add(chunkExecutor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return storeChunkIfAbsent(hash, contentChunk);
+                }
+            }));
+        }
+
+        for(int i=0; i<batch.size(); i++) {
+            try {
+                if(futures.get(i).get()) {
+                    stats.numDedupChunksStored.incrementAndGet();
+                } else {
+                    stats.numDedupChunksReused.incrementAndGet();
+                }
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            } catch (ExecutionException e) {
+                throw new IOException("Couldn't store chunk " + hashes.get(i), e.getCause());
+            }
+            recipe.addChunk(hashes.get(i), batch.get(i).length);
+        }
+    }
+
+    /**
+     * @return true if the chunk was uploaded, false if it was already in the store.
+     */
+    protected boolean storeChunkIfAbsent(String hash, byte[] contentChunk) throws IOException {
+        if(knownChunks.contains(hash)) {
+            return false;
+        }
+        String key = chunkKey(baseName, hash);
+        try {
+            try {
+                s3Service.getObjectDetails(bucketName, key);
+                knownChunks.add(hash);
+                return false;
+            } catch (ServiceException e) {
+                if(e.getResponseCode() != 404) {
+                    throw e;
+                }
+            }
+            s3Service.putObject(bucketName, new S3Object(key, contentChunk));
+            knownChunks.add(hash);
+            return true;
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e); // Will happen if JVM doesn't have MD5, i.e. never
+        } catch (ServiceException e) {
+            throw new IOException(e);
+        }
+    }
+
+    public static String chunkKey(String baseName, String hash) {
+        // Spread chunks over prefixes by their first hash bytes, so no single prefix gets all the load
+        return baseName + Constant.DEDUP_CHUNK_PREFIX + hash.substring(0, 2) + "/" + hash;
+    }
+
+    public static String sha256Hex(byte[] data) {
+        try {
+            return new String(Hex.encodeHex(MessageDigest.getInstance("SHA-256").digest(data)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e); // Every JVM has SHA-256
+        }
+    }
+}
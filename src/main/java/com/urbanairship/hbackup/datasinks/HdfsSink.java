@@ -9,10 +9,13 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileChecksum;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
@@ -21,20 +24,26 @@ import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
 
 import com.google.common.collect.ImmutableList;
+import com.urbanairship.hbackup.BufferPool;
 import com.urbanairship.hbackup.ChecksumService;
 import com.urbanairship.hbackup.HBackupConfig;
+import com.urbanairship.hbackup.MirrorSink;
+import com.urbanairship.hbackup.MoveSink;
 import com.urbanairship.hbackup.RetryableChunk;
 import com.urbanairship.hbackup.Sink;
 import com.urbanairship.hbackup.SourceFile;
+import com.urbanairship.hbackup.Spool;
 import com.urbanairship.hbackup.Stats;
 import com.urbanairship.hbackup.StreamingXor;
 import com.urbanairship.hbackup.XorInputStream;
+import com.urbanairship.hbackup.datasources.HdfsSource.HdfsFile;
 
-public class HdfsSink extends Sink {
+public class HdfsSink extends Sink implements MirrorSink, MoveSink {
     private static final Logger log = LogManager.getLogger(HdfsSink.class);
     private final String baseName;
     private final FileSystem fs;
     private final HBackupConfig conf;
+    private final Stats stats;
     
     public HdfsSink(URI uri, HBackupConfig conf, Stats stats, ChecksumService checksumService) throws IOException, URISyntaxException {
         String tempBaseName = uri.getPath();
@@ -46,6 +55,7 @@ public class HdfsSink extends Sink {
         }
         this.baseName = tempBaseName;
         this.conf = conf;
+        this.stats = stats;
         org.apache.hadoop.conf.Configuration hadoopConf = conf.hdfsSinkConf;
         this.fs = FileSystem.get(uri, hadoopConf);
     }
@@ -66,6 +76,13 @@ public class HdfsSink extends Sink {
                 return true;
             }
             if(sourceMtime != sinkMtime) {
+                if(conf.hdfsChecksumCompare && sameContents(sourceFile, path)) {
+                    log.debug("Different mtime source and sink but same HDFS checksum, only updating " +
+                            "mtime for " + sourceFile.getRelativePath());
+                    fs.setTimes(path, sourceMtime, sourceMtime);
+                    stats.numMtimesUpdated.incrementAndGet();
+                    return true;
+                }
                 log.debug("Different mtime source and sink, " + sourceMtime + " vs " + sinkMtime + 
                         ".  Will re-upload " + sourceFile.getRelativePath());
                 return false;
@@ -80,6 +97,33 @@ public class HdfsSink extends Sink {
         }
     }
     
+    /**
+     * @return whether the source file is in HDFS and has the same HDFS file checksum as the sink file.
+     * Only the namenode and datanodes read the data to answer this, nothing is transferred to us.
+     */
+    private boolean sameContents(SourceFile sourceFile, Path sinkPath) throws IOException {
+        if(!(sourceFile instanceof HdfsFile)) {
+            return false;
+        }
+        FileChecksum sourceChecksum = ((HdfsFile)sourceFile).getFileChecksum();
+        if(sourceChecksum == null) {
+            return false;
+        }
+        return sourceChecksum.equals(fs.getFileChecksum(sinkPath));
+    }
+    
+    /**
+     * @return the HDFS file checksum of the sink file, or null if the file doesn't exist or the
+     * filesystem doesn't provide checksums.
+     */
+    public FileChecksum getFileChecksum(String relativePath) throws IOException {
+        try {
+            return fs.getFileChecksum(new Path(baseName + relativePath));
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+    }
+    
     /**
      * @return the file mtime as UTC epoch millis if the file exists, or null if it doesn't exist.
      */
@@ -93,6 +137,83 @@ public class HdfsSink extends Sink {
         }
     }
 
+    @Override
+    public List<String> listRelativePaths() throws IOException {
+        return new ArrayList<String>(listLengths().keySet());
+    }
+    
+    @Override
+    public Map<String,Long> listLengths() throws IOException {
+        Map<String,Long> lengths = new HashMap<String,Long>();
+        addLengths(lengths, new Path(baseName), "");
+        return lengths;
+    }
+    
+    private void addLengths(Map<String,Long> lengths, Path dir, String relativeTo) throws IOException {
+        FileStatus[] listing = fs.listStatus(dir);
+        if(listing == null) {
+            return;
+        }
+        for(FileStatus stat: listing) {
+            if(stat.isDir()) {
+                addLengths(lengths, stat.getPath(), relativeTo + stat.getPath().getName() + "/");
+            } else {
+                lengths.put(relativeTo + stat.getPath().getName(), stat.getLen());
+            }
+        }
+    }
+    
+    /**
+     * Renames the old file into place, which keeps its mtime. With hbackup.hdfsChecksumCompare and an HDFS
+     * source, the HDFS file checksums must match too.
+     */
+    @Override
+    public boolean move(String fromPath, SourceFile sourceFile) throws IOException {
+        Path from = new Path(baseName + fromPath);
+        Path to = new Path(baseName + sourceFile.getRelativePath());
+        FileStatus fromStat;
+        try {
+            fromStat = fs.getFileStatus(from);
+        } catch (FileNotFoundException e) {
+            return false;
+        }
+        if(fromStat.getLen() != sourceFile.getLength() || fromStat.getModificationTime() != sourceFile.getMTime()) {
+            log.debug("Old file " + from + " doesn't match " + sourceFile.getRelativePath() + ", not renaming it");
+            return false;
+        }
+        if(conf.hdfsChecksumCompare && sourceFile instanceof HdfsFile && !sameContents(sourceFile, from)) {
+            log.debug("Old file " + from + " has a different HDFS checksum than " + sourceFile.getRelativePath());
+            return false;
+        }
+        fs.mkdirs(to.getParent());
+        if(!fs.rename(from, to)) {
+            log.debug("Couldn't rename " + from + " to " + to);
+            return false;
+        }
+        log.debug("Renamed " + from + " to " + to);
+        return true;
+    }
+    
+    /**
+     * HDFS deletes one file per call, so each batch is one file and several are deleted at once.
+     */
+    @Override
+    public int getDeleteBatchSize() {
+        return 1;
+    }
+    
+    @Override
+    public List<String> delete(List<String> relativePaths) throws IOException {
+        List<String> failed = new ArrayList<String>();
+        for(String relativePath: relativePaths) {
+            Path path = new Path(baseName + relativePath);
+            if(!fs.delete(path, false) && fs.exists(path)) {
+                failed.add(relativePath);
+            }
+        }
+        return failed;
+    }
+
     /**
      * HDFS files can only have a single writer at a time. Therefore we do a transfer to HDFS
      * as a single chunk, which might be large.
@@ -111,8 +232,8 @@ public class HdfsSink extends Sink {
                     Path destPath = new Path(baseName + relativePath);
                     is = sourceFile.getFullInputStream();
                     XorInputStream xis = new XorInputStream(is, 0);
-                    os = fs.create(destPath);
-                    IOUtils.copyLarge(xis, os);
+                    os = create(destPath, sourceFile);
+                    BufferPool.getInstance().copy(xis, os);
                     is.close();
                     os.close();
                     
@@ -142,4 +263,17 @@ public class HdfsSink extends Sink {
             }
         });
     }
+    
+    /**
+     * HDFS file checksums depend on the block size, so when we'll be comparing them we give the sink file
+     * the same block size as the source file.
+     */
+    private FSDataOutputStream create(Path destPath, SourceFile sourceFile) throws IOException {
+        sourceFile = Spool.unwrap(sourceFile);
+        if(conf.hdfsChecksumCompare && sourceFile instanceof HdfsFile) {
+            return fs.create(destPath, true, fs.getConf().getInt("io.file.buffer.size", 4096),
+                    fs.getDefaultReplication(), ((HdfsFile)sourceFile).getBlockSize());
+        }
+        return fs.create(destPath);
+    }
 }
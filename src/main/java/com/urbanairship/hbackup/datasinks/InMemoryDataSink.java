@@ -6,7 +6,6 @@ package com.urbanairship.hbackup.datasinks;
 
 import com.google.common.collect.ImmutableList;
 import com.urbanairship.hbackup.*;
-import org.apache.commons.io.IOUtils;
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
 
@@ -60,7 +59,7 @@ public class InMemoryDataSink extends Sink {
                XorInputStream xis = new XorInputStream(is, 0);
 
                byteOutputStream = new ByteArrayOutputStream((int) file.getLength());
-               IOUtils.copyLarge(xis, byteOutputStream);
+               BufferPool.getInstance().copy(xis, byteOutputStream);
                is.close();
                byteOutputStream.close();
                inMemoryFileSystem.add(file);
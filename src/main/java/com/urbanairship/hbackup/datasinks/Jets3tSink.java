@@ -4,58 +4,190 @@ Copyright 2012 Urban Airship and Contributors
 
 package com.urbanairship.hbackup.datasinks;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
 import org.jets3t.service.S3Service;
 import org.jets3t.service.S3ServiceException;
 import org.jets3t.service.ServiceException;
-import org.jets3t.service.impl.rest.httpclient.RestS3Service;
 import org.jets3t.service.model.MultipartPart;
 import org.jets3t.service.model.MultipartUpload;
 import org.jets3t.service.model.S3Object;
 import org.jets3t.service.model.StorageObject;
+import org.jets3t.service.utils.MultipartUtils;
 
+import com.urbanairship.hbackup.BackupCatalog;
+import com.urbanairship.hbackup.BufferPool;
 import com.urbanairship.hbackup.ChecksumService;
 import com.urbanairship.hbackup.Constant;
+import com.urbanairship.hbackup.DistributedSink;
 import com.urbanairship.hbackup.HBackupConfig;
+import com.urbanairship.hbackup.HedgeableChunk;
+import com.urbanairship.hbackup.LocatedChunk;
+import com.urbanairship.hbackup.MirrorSink;
+import com.urbanairship.hbackup.MoveSink;
+import com.urbanairship.hbackup.PackIndex;
+import com.urbanairship.hbackup.PackSourceFile;
 import com.urbanairship.hbackup.RetryableChunk;
+import com.urbanairship.hbackup.S3Catalog;
+import com.urbanairship.hbackup.S3Clients;
+import com.urbanairship.hbackup.S3KeyLayout;
 import com.urbanairship.hbackup.Sink;
 import com.urbanairship.hbackup.SourceFile;
+import com.urbanairship.hbackup.Spool;
 import com.urbanairship.hbackup.Stats;
 import com.urbanairship.hbackup.StreamingXor;
+import com.urbanairship.hbackup.TailProgress;
+import com.urbanairship.hbackup.TailSink;
 import com.urbanairship.hbackup.Util;
 import com.urbanairship.hbackup.XorInputStream;
+import com.urbanairship.hbackup.checksumverify.ETagVerifier;
+import com.urbanairship.hbackup.compression.CompressionDetector;
+import com.urbanairship.hbackup.compression.FrameCompressingInputStream;
+import com.urbanairship.hbackup.compression.FrameIndex;
+import com.urbanairship.hbackup.datasources.HdfsSource.HdfsFile;
 
 // TODO only get remote listing once, instead of once per file
 
-public class Jets3tSink extends Sink {
+public class Jets3tSink extends Sink implements DistributedSink, TailSink, MirrorSink, MoveSink {
     private static final Logger log = LogManager.getLogger(HdfsSink.class);
+    private static final int MAX_PARTS = 10000; // S3's limit on the parts of one multipart upload
     private final HBackupConfig conf;
-    private final S3Service s3Service;
+    private final PartCopyS3Service s3Service;
     private final String bucketName;
     private final String baseName;
+    private final S3KeyLayout layout;
+    private final ChecksumService checksumService;
+    private final Stats stats;
+    
+    // The newest packed copy of each file that's in a pack, by relative path
+    private final Map<String, PackIndex.Entry> packedFiles = new ConcurrentHashMap<String, PackIndex.Entry>();
+    
+    // With hbackup.catalog, the catalog as of the start of the run, or null if there wasn't one yet
+    private final S3Catalog catalog;
+    // With hbackup.catalog, the objects this run has seen, and the paths it may have changed, to update the
+    // catalog with when the run finishes. Both are null if there's no catalog.
+    private final Map<String, BackupCatalog.Entry> catalogSeen;
+    private final Set<String> catalogChanged;
     
     public Jets3tSink(URI uri, HBackupConfig conf, Stats stats, ChecksumService checksumService)  throws IOException, URISyntaxException {
         this.conf = conf;
+        this.checksumService = checksumService;
+        this.stats = stats;
         this.bucketName = uri.getHost();
         
         // The path component of the incoming URI, which we will prefix onto all outgoing files,
         // must not begin with "/", and must end with "/".
         this.baseName = Util.canonicalizeBaseName(uri.getPath());
         
+        s3Service = S3Clients.getInstance().get(conf.s3SinkCredentials, S3Clients.poolSize(conf));
+        this.layout = S3KeyLayout.forStore(s3Service, bucketName, baseName, conf.s3KeyShardChars, true);
+        loadPackIndexes();
+        if(conf.catalog) {
+            this.catalog = S3Catalog.latest(s3Service, bucketName, baseName);
+            this.catalogSeen = new ConcurrentHashMap<String, BackupCatalog.Entry>();
+            this.catalogChanged = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        } else {
+            this.catalog = null;
+            this.catalogSeen = null;
+            this.catalogChanged = null;
+        }
+    }
+    
+    /**
+     * Read the indexes of all packs in the sink, so packed files can be checked without any requests.
+     * This is done even if packing is disabled, so files packed by earlier runs are still seen.
+     */
+    private void loadPackIndexes() throws IOException {
+        SortedSet<String> indexKeys = new TreeSet<String>();
         try {
-            s3Service = new RestS3Service(conf.s3SinkCredentials);
+            for(S3Object s3Obj: s3Service.listObjects(bucketName, baseName + Constant.PACK_PREFIX, null)) {
+                if(s3Obj.getKey().endsWith(Constant.PACK_INDEX_SUFFIX)) {
+                    indexKeys.add(s3Obj.getKey());
+                }
+            }
         } catch (S3ServiceException e) {
             throw new IOException(e);
         }
+        // Pack names start with their creation time, so later packs override earlier ones
+        for(String indexKey: indexKeys) {
+            for(PackIndex.Entry entry: readPackIndex(s3Service, bucketName, indexKey).getEntries()) {
+                packedFiles.put(entry.relativePath, entry);
+            }
+        }
+        if(!indexKeys.isEmpty()) {
+            log.debug("Loaded " + indexKeys.size() + " pack indexes describing " + packedFiles.size() + " files");
+        }
+    }
+    
+    public static PackIndex readPackIndex(S3Service s3Service, String bucketName, String indexKey) 
+            throws IOException {
+        InputStream is = null;
+        try {
+            is = s3Service.getObject(bucketName, indexKey).getDataInputStream();
+            return PackIndex.parse(is);
+        } catch (ServiceException e) {
+            throw new IOException(e);
+        } finally {
+            if(is != null) {
+                try {
+                    is.close();
+                } catch (IOException e) { }
+            }
+        }
+    }
+    
+    /**
+     * @return whether the newest packed copy of the file matches it.
+     */
+    private boolean packedCopyUpToDate(SourceFile file) throws IOException {
+        PackIndex.Entry entry = packedFiles.get(file.getRelativePath());
+        if(entry == null || entry.length != file.getLength()) {
+            return false;
+        }
+        return !conf.mtimeCheck || entry.mtime == file.getMTime();
+    }
+    
+    @Override
+    public boolean shouldPack(SourceFile file) {
+        return conf.s3PackThreshold > 0 && file.getLength() < conf.s3PackThreshold;
+    }
+    
+    @Override
+    public PackSourceFile makePack(List<SourceFile> files) {
+        String packName = String.format("%013d-%s", System.currentTimeMillis(), UUID.randomUUID());
+        return new PackSourceFile(Constant.PACK_PREFIX + packName, files);
     }
     
     @Override
@@ -64,12 +196,22 @@ public class Jets3tSink extends Sink {
             String sourceRelativePath = file.getRelativePath();
             assert !sourceRelativePath.startsWith("/");
             
-            StorageObject s3Obj = s3Service.getObjectDetails(bucketName, baseName + file.getRelativePath());
+            // A file may be in a pack, or may have been uploaded by itself if it was bigger than the
+            // pack threshold at the time. Either copy will do.
+            if(packedCopyUpToDate(file)) {
+                log.debug("Packed copy is up to date, won't re-upload: " + sourceRelativePath);
+                return true;
+            }
+            
+            StorageObject s3Obj = s3Service.getObjectDetails(bucketName, layout.key(file.getRelativePath()));
             if(s3Obj == null) {
                 log.debug("No matching remote file existed, will upload: " + sourceRelativePath);
                 return false; // No matching remote file was found in the file listing
             }
-            if(file.getLength() != s3Obj.getContentLength()) {
+            if(catalogSeen != null) {
+                catalogSeen.put(sourceRelativePath, catalogEntry(sourceRelativePath, s3Obj, null));
+            }
+            if(file.getLength() != getSourceLength(s3Obj)) {
                 log.debug("File in destination had a different length than the source " +
                         " for " + sourceRelativePath + ". Will re-upload.");
                 return false;
@@ -118,10 +260,44 @@ public class Jets3tSink extends Sink {
         }
     }
 
+    /**
+     * @return the length of the file that the object was made from, which is different from the object
+     * length if it was compressed.
+     */
+    private static long getSourceLength(StorageObject s3Obj) {
+        Object lengthObj = s3Obj.getMetadata(Constant.S3_SOURCE_LENGTH);
+        if(lengthObj instanceof String) {
+            try {
+                return Long.valueOf((String)lengthObj);
+            } catch (NumberFormatException e) {
+                log.warn("Malformed source length metadata on " + s3Obj.getKey() + ": " + lengthObj);
+            }
+        }
+        return s3Obj.getContentLength();
+    }
+
     @Override
     public Long getMTime(String relativePath) throws IOException {
+        Long objectMtime = getObjectMTime(relativePath);
+        PackIndex.Entry packEntry = packedFiles.get(relativePath);
+        if(packEntry != null && (objectMtime == null || packEntry.mtime > objectMtime)) {
+            return packEntry.mtime;
+        }
+        return objectMtime;
+    }
+    
+    /**
+     * Files in the catalog are looked up there instead of asking S3 for their metadata.
+     */
+    private Long getObjectMTime(String relativePath) throws IOException {
+        if(catalog != null) {
+            BackupCatalog.Entry entry = catalog.get(relativePath);
+            if(entry != null) {
+                return entry.mtime;
+            }
+        }
         try {
-            StorageObject s3Obj = s3Service.getObjectDetails(bucketName, baseName + relativePath);
+            StorageObject s3Obj = s3Service.getObjectDetails(bucketName, layout.key(relativePath));
             
             // If the object was backed up to S3 by hbackup, it may have a our special app-specific
             // metadata attached giving the mtime of the source file. We'll use this as the mtime
@@ -165,31 +341,79 @@ public class Jets3tSink extends Sink {
     private class ChunkWriter {
         private final SourceFile file;
         private final List<RetryableChunk> chunks;
-        private final List<MultipartPart> finishedParts = Collections.synchronizedList(new ArrayList<MultipartPart>());
+        // By part number, so a part sent by both a hedged attempt and the attempt it raced is only listed once
+        private final SortedMap<Integer,MultipartPart> finishedParts = new ConcurrentSkipListMap<Integer,MultipartPart>();
         private final int numChunks;
         private final String destS3Key;
         private final String relativePath;
+        private final long partSize;
         
         private final Object multiPartInitLock = new Object();
-        private MultipartUpload mpUpload = null;
+        private MultipartUpload mpUpload;
+        // Whether this is one process's share of a multipart upload started elsewhere, which is committed
+        // by commitTransfer() instead of by the chunks
+        private final boolean distributed;
+        
+        /**
+         * Sending a part twice just sends the same bytes to the same part number, so parts can be hedged.
+         */
+        private abstract class PartChunk implements LocatedChunk, HedgeableChunk {
+        }
+        
+        // The MD5 of each part as it was read from the source, indexed by part number. These are only
+        // computed if there is a checksum service to store them in.
+        private final String[] partDigests;
+        
+        // Whether this file is being compressed, decided when the upload starts. With compression, each
+        // part's frames are indexed as they're uploaded and the combined index is uploaded as an extra
+        // last part when the parts are committed.
+        private boolean compress = false;
+        private final FrameIndex[] partIndexes;
+        private final long[] partCompressedLengths;
+        
+        // For delta uploads: the recorded part MD5s, length and part size of the object being replaced.
+        // Null if there's no existing object or its part MD5s can't be trusted.
+        private List<String> previousPartDigests = null;
+        private long previousLength;
+        private long previousPartSize;
         
         public ChunkWriter(SourceFile hbFile) {
+            this(hbFile, null);
+        }
+        
+        /**
+         * @param upload an upload started by startTransfer() that the parts should be sent to, or null to
+         * start a new one if the file is big enough.
+         */
+        public ChunkWriter(SourceFile hbFile, MultipartUpload upload) {
              this.file = hbFile;
+             this.mpUpload = upload;
+             this.distributed = upload != null;
              relativePath = file.getRelativePath();
              assert !relativePath.startsWith("/");
-             destS3Key = baseName + relativePath;
+             destS3Key = layout.key(relativePath);
              
              final long inputLen = file.getLength();
-             if(inputLen >= conf.s3MultipartThreshold) {
-                 numChunks = (int)(inputLen / conf.s3PartSize + 1);
+             partSize = partSizeFor(file);
+             if(distributed || inputLen >= conf.s3MultipartThreshold) {
+                 numChunks = (int)(inputLen / partSize + 1);
                  chunks = new ArrayList<RetryableChunk>(1);
+                 partDigests = new String[numChunks + 1]; // Room for the index part if compressing
+                 partIndexes = new FrameIndex[numChunks];
+                 partCompressedLengths = new long[numChunks];
                  
                  for(int i=0; i<numChunks; i++) {
-                     final long startAt = i * conf.s3PartSize;
-                     final long objLen = Math.min(conf.s3PartSize, inputLen - startAt);
+                     final long startAt = i * partSize;
+                     final long objLen = Math.min(partSize, inputLen - startAt);
                      final int partNum = i;
+                     final List<String> partLocations = sourceLocations(startAt, objLen);
                      
-                     chunks.add(new RetryableChunk() {
+                     chunks.add(new PartChunk() {
+                        @Override
+                        public List<String> getLocations() {
+                            return partLocations;
+                        }
+                        
                         @Override
                         public StreamingXor run() throws IOException {
                             InputStream partInputStream = null;
@@ -197,23 +421,72 @@ public class Jets3tSink extends Sink {
                                 synchronized (multiPartInitLock) {
                                     // Initialize the multipart upload if not already done.
                                     if(mpUpload == null) {
-                                        S3Object multipartObj = new S3Object(destS3Key);
-                                        // Upload the source file's mtime as S3 metadata. The next time we run a backup,
-                                        // this will tell us whether we should re-upload the file.
-                                        multipartObj.addMetadata(Constant.S3_SOURCE_MTIME, Long.toString(file.getMTime()));
+                                        compress = conf.s3Compress && CompressionDetector.shouldCompress(file);
+                                        if(conf.s3DeltaUpload && !compress) {
+                                            loadPreviousParts();
+                                        }
+                                        S3Object multipartObj = multipartObject(destS3Key, file, partSize);
+                                        if(compress) {
+                                            addCompressionMetadata(multipartObj, inputLen);
+                                        }
                                         log.debug("Starting multipart upload for " + relativePath);
                                         mpUpload = s3Service.multipartStartUpload(bucketName, multipartObj);
                                     }
                                 }
                                 
+                                if(isCopyCandidate(partNum, startAt, objLen)) {
+                                    // Read the source part to see whether it's the same as the part in the
+                                    // existing object. This costs a source read, but no upload.
+                                    partInputStream = file.getPartialInputStream(startAt, objLen);
+                                    XorInputStream xis = new XorInputStream(partInputStream, startAt);
+                                    DigestInputStream dis = digestStream(xis);
+                                    BufferPool.getInstance().drain(dis);
+                                    partInputStream.close();
+                                    partInputStream = null;
+                                    
+                                    String digest = hexDigest(dis);
+                                    if(digest.equals(previousPartDigests.get(partNum))) {
+                                        log.debug("Copying unchanged part " + (partNum+1) + " of " + relativePath + 
+                                                " from the existing object");
+                                        MultipartPart thisPart = s3Service.multipartUploadPartCopy(mpUpload, 
+                                                partNum+1, bucketName, destS3Key, startAt, startAt + objLen - 1);
+                                        finishedParts.put(partNum+1, thisPart);
+                                        partDigests[partNum] = digest;
+                                        stats.numPartsCopied.incrementAndGet();
+                                        return xis.getStreamingXor();
+                                    }
+                                    log.debug("Part " + (partNum+1) + " of " + relativePath + " changed, uploading it");
+                                }
+                                
                                 partInputStream = file.getPartialInputStream(startAt, objLen);
                                 XorInputStream xis = new XorInputStream(partInputStream, startAt);
+                                InputStream uploadStream = xis;
+                                FrameCompressingInputStream fcis = null;
+                                if(compress) {
+                                    // The index part comes after every data part, so each data part
+                                    // must be at least S3's minimum part size even after compression.
+                                    fcis = new FrameCompressingInputStream(xis, startAt, 
+                                            MultipartUtils.MIN_PART_SIZE, false);
+                                    uploadStream = fcis;
+                                }
+                                DigestInputStream dis = digestStream(uploadStream);
                                 S3Object s3ObjForPart = new S3Object(destS3Key);
-                                s3ObjForPart.setDataInputStream(xis);
+                                s3ObjForPart.setDataInputStream(dis != null ? dis : uploadStream);
                                 MultipartPart thisPart = s3Service.multipartUploadPart(mpUpload, partNum+1, 
                                         s3ObjForPart);
-                                assert thisPart.getSize() == objLen;
-                                finishedParts.add(thisPart);
+                                if(fcis != null) {
+                                    assert thisPart.getSize() == fcis.getBytesWritten();
+                                    partIndexes[partNum] = fcis.getIndex();
+                                    partCompressedLengths[partNum] = fcis.getBytesWritten();
+                                    stats.numBytesCompressedFrom.addAndGet(objLen);
+                                    stats.numBytesCompressedTo.addAndGet(fcis.getBytesWritten());
+                                } else {
+                                    assert thisPart.getSize() == objLen;
+                                }
+                                finishedParts.put(partNum+1, thisPart);
+                                if(dis != null) {
+                                    partDigests[partNum] = hexDigest(dis);
+                                }
                                 return xis.getStreamingXor();
                             } catch (S3ServiceException e) {
                                 throw new IOException(e);
@@ -228,18 +501,31 @@ public class Jets3tSink extends Sink {
 
                         @Override
                         public void commitAllChunks() throws IOException {
+                            if(distributed) {
+                                log.debug("Sent this process's parts of " + relativePath);
+                                return;
+                            }
                             try {
+                                if(compress) {
+                                    uploadIndexPart();
+                                    stats.numFilesCompressed.incrementAndGet();
+                                }
                                 log.info("Multipart upload complete for " + relativePath);
-                                s3Service.multipartCompleteUpload(mpUpload, finishedParts);
+                                s3Service.multipartCompleteUpload(mpUpload, 
+                                        new ArrayList<MultipartPart>(finishedParts.values()));
                             } catch (S3ServiceException e) {
                                 throw new IOException(e);
                             }
+                            storePartDigests();
                         }
                      });
                  }
              } else {
                  numChunks = 1;
                  chunks = new ArrayList<RetryableChunk>(1);
+                 partDigests = new String[1];
+                 partIndexes = null;
+                 partCompressedLengths = null;
                  chunks.add(new RetryableChunk() {
                     @Override
                     public StreamingXor run() throws IOException {
@@ -248,10 +534,27 @@ public class Jets3tSink extends Sink {
                             log.debug("Starting regular non-multipart S3 upload of " + relativePath);
                             S3Object s3Obj = new S3Object(destS3Key);
                             s3Obj.addMetadata(Constant.S3_SOURCE_MTIME, Long.toString(file.getMTime()));
+                            compress = conf.s3Compress && CompressionDetector.shouldCompress(file);
                             sourceStream = file.getFullInputStream();
                             XorInputStream xis = new XorInputStream(sourceStream, 0);
-                            s3Obj.setDataInputStream(xis);
+                            InputStream uploadStream = xis;
+                            FrameCompressingInputStream fcis = null;
+                            if(compress) {
+                                addCompressionMetadata(s3Obj, file.getLength());
+                                fcis = new FrameCompressingInputStream(xis, 0, 0, true);
+                                uploadStream = fcis;
+                            }
+                            DigestInputStream dis = digestStream(uploadStream);
+                            s3Obj.setDataInputStream(dis != null ? dis : uploadStream);
                             s3Service.putObject(bucketName, s3Obj);
+                            if(fcis != null) {
+                                stats.numBytesCompressedFrom.addAndGet(file.getLength());
+                                stats.numBytesCompressedTo.addAndGet(fcis.getBytesWritten());
+                                stats.numFilesCompressed.incrementAndGet();
+                            }
+                            if(dis != null) {
+                                partDigests[0] = hexDigest(dis);
+                            }
                             log.debug("Finished regular non-multipart S3 upload of " + relativePath);
                             return xis.getStreamingXor();
                         } catch (ServiceException e) {
@@ -267,12 +570,160 @@ public class Jets3tSink extends Sink {
 
                     @Override
                     public void commitAllChunks() throws IOException {
-                        log.debug("Commit noop, nothing to do for simple S3 uploads");
+                        log.debug("Nothing to commit for simple S3 uploads");
+                        storePartDigests();
                     }
                  });
              }
         }
         
+        /**
+         * @return where the source data for a part is stored, for ChunkScheduler. Only known for HDFS
+         * sources, and only looked up when datanode-aware scheduling is on.
+         */
+        private List<String> sourceLocations(long startAt, long len) {
+            SourceFile sourceFile = Spool.unwrap(file);
+            if(conf.maxChunksPerDatanode <= 0 || !(sourceFile instanceof HdfsFile)) {
+                return Collections.emptyList();
+            }
+            try {
+                return ((HdfsFile)sourceFile).getLocations(startAt, len);
+            } catch (IOException e) {
+                log.warn("Couldn't get block locations for " + relativePath + ", scheduling without them", e);
+                return Collections.emptyList();
+            }
+        }
+        
+        /**
+         * Find out what the object we're replacing looks like, so unchanged parts can be copied from it.
+         * The recorded part MD5s are only used if they produce the object's actual ETag, so we never
+         * copy from an object that changed after its MD5s were recorded.
+         */
+        private void loadPreviousParts() {
+            if(checksumService == null) {
+                return;
+            }
+            try {
+                StorageObject existing = s3Service.getObjectDetails(bucketName, destS3Key);
+                List<String> digests = checksumService.getPartDigests(relativePath);
+                String etag = existing.getETag();
+                if(digests == null || etag == null) {
+                    return;
+                }
+                if(etag.startsWith("\"") && etag.endsWith("\"") && etag.length() >= 2) {
+                    etag = etag.substring(1, etag.length() - 1);
+                }
+                if(existing.getMetadata(Constant.S3_COMPRESSION) != null) {
+                    log.debug("Existing object for " + relativePath + " is compressed, won't copy any parts");
+                    return;
+                }
+                if(!etag.equals(ETagVerifier.expectedETag(digests, etag))) {
+                    log.debug("Recorded part MD5s don't match the existing object for " + relativePath + 
+                            ", won't copy any parts");
+                    return;
+                }
+                Object partSizeObj = existing.getMetadata(Constant.S3_PART_SIZE);
+                if(partSizeObj instanceof String) {
+                    previousPartSize = Long.valueOf((String)partSizeObj);
+                } else if(digests.size() == 1) {
+                    // Uploaded in one piece, so its only "part" is the whole object
+                    previousPartSize = existing.getContentLength();
+                } else {
+                    return;
+                }
+                previousLength = existing.getContentLength();
+                previousPartDigests = digests;
+            } catch (NumberFormatException e) {
+                log.warn("Malformed part size metadata for " + relativePath + ", won't copy any parts");
+            } catch (ServiceException e) {
+                if(e.getResponseCode() != 404) {
+                    log.warn("Couldn't get existing object for " + relativePath + ", won't copy any parts", e);
+                }
+            } catch (IOException e) {
+                log.warn("Couldn't get part MD5s for " + relativePath + ", won't copy any parts", e);
+            }
+        }
+        
+        /**
+         * @return whether the given part lines up exactly with a part of the object we're replacing, so
+         * it can be copied from there if its contents are the same.
+         */
+        private boolean isCopyCandidate(int partNum, long startAt, long objLen) {
+            return previousPartDigests != null &&
+                    partNum < previousPartDigests.size() &&
+                    Jets3tSink.isCopyCandidate(startAt, objLen, partSize, previousPartSize, previousLength);
+        }
+        
+        private void addCompressionMetadata(S3Object s3Obj, long sourceLength) {
+            s3Obj.addMetadata(Constant.S3_COMPRESSION, Constant.COMPRESSION_DEFLATE_FRAMES);
+            s3Obj.addMetadata(Constant.S3_SOURCE_LENGTH, Long.toString(sourceLength));
+        }
+        
+        /**
+         * Combine the frame indexes of the data parts and upload the result as the last part, so
+         * readers can find it at the end of the object.
+         */
+        private void uploadIndexPart() throws S3ServiceException {
+            FrameIndex index = new FrameIndex();
+            long compressedOffset = 0;
+            for(int i=0; i<partIndexes.length; i++) {
+                index.addAll(partIndexes[i], compressedOffset);
+                compressedOffset += partCompressedLengths[i];
+            }
+            byte[] indexBytes = index.toBytes(compressedOffset);
+            
+            InputStream indexStream = new ByteArrayInputStream(indexBytes);
+            DigestInputStream dis = digestStream(indexStream);
+            S3Object indexObj = new S3Object(destS3Key);
+            indexObj.setDataInputStream(dis != null ? dis : indexStream);
+            indexObj.setContentLength(indexBytes.length);
+            finishedParts.put(partIndexes.length + 1, 
+                    s3Service.multipartUploadPart(mpUpload, partIndexes.length + 1, indexObj));
+            if(dis != null) {
+                partDigests[partIndexes.length] = hexDigest(dis);
+            }
+        }
+        
+        /**
+         * @return a stream that computes the MD5 of the bytes read through it, or null if part digests
+         * aren't being recorded.
+         */
+        private DigestInputStream digestStream(InputStream is) {
+            if(checksumService == null) {
+                return null;
+            }
+            try {
+                return new DigestInputStream(is, MessageDigest.getInstance("MD5"));
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e); // Will happen if JVM doesn't have MD5, i.e. never
+            }
+        }
+        
+        private String hexDigest(DigestInputStream dis) {
+            return new String(Hex.encodeHex(dis.getMessageDigest().digest()));
+        }
+        
+        /**
+         * Save the part MD5s so the checksum verifier can check this object's ETag without downloading
+         * it. This is best effort: if it fails, the verifier falls back to reading the object.
+         */
+        private void storePartDigests() {
+            if(checksumService == null) {
+                return;
+            }
+            try {
+                List<String> digests = Arrays.asList(partDigests);
+                if(partIndexes != null && !compress) {
+                    // No index part was uploaded
+                    digests = digests.subList(0, partIndexes.length);
+                }
+                checksumService.storePartDigests(relativePath, digests);
+            } catch (IOException e) {
+                log.warn("Couldn't save part digests for " + relativePath + ", its ETag can't be " +
+                        "verified without downloading it", e);
+            }
+        }
+        
         /**
          * Return the chunks (1 or more) that will collectively transfer this file.
          */
@@ -281,8 +732,627 @@ public class Jets3tSink extends Sink {
         }
     }
     
+    /**
+     * @return the part size to use for a file. Normally that's the configured part size, but with block
+     * alignment, parts of an HDFS file are cut at the file's block boundaries so that each part is read
+     * from a single block, or from whole blocks.
+     */
+    private long partSizeFor(SourceFile file) {
+        SourceFile sourceFile = Spool.unwrap(file);
+        if(!conf.s3AlignToBlocks || !(sourceFile instanceof HdfsFile)) {
+            return conf.s3PartSize;
+        }
+        return alignedPartSize(((HdfsFile)sourceFile).getBlockSize(), conf.s3PartSize);
+    }
+    
+    /**
+     * @return the part size closest to partSize that's a whole number of blocks, if blocks are smaller than
+     * partSize, or a whole fraction of a block otherwise. Never less than S3's minimum part size.
+     */
+    public static long alignedPartSize(long blockSize, long partSize) {
+        if(blockSize <= 0) {
+            return partSize;
+        }
+        if(blockSize < partSize) {
+            long aligned = Math.max(1, Math.round((double)partSize / blockSize)) * blockSize;
+            while(aligned < MultipartUtils.MIN_PART_SIZE) {
+                aligned += blockSize;
+            }
+            return aligned;
+        }
+        for(long partsPerBlock = Math.round((double)blockSize / partSize); partsPerBlock > 1; partsPerBlock--) {
+            if(blockSize % partsPerBlock == 0 && blockSize / partsPerBlock >= MultipartUtils.MIN_PART_SIZE) {
+                return blockSize / partsPerBlock;
+            }
+        }
+        return blockSize;
+    }
+    
+    /**
+     * @return whether the part at startAt of length objLen is a whole part that lines up exactly with a part
+     * of the object being replaced, which was uploaded with previousPartSize parts and is previousLength
+     * bytes long. A short last part is never a candidate, since the part it replaces may not be as short.
+     */
+    public static boolean isCopyCandidate(long startAt, long objLen, long partSize, long previousPartSize, 
+            long previousLength) {
+        return objLen == partSize &&
+                previousPartSize == partSize &&
+                startAt + objLen <= previousLength;
+    }
+    
     @Override
     public List<RetryableChunk> getChunks(SourceFile file) {
+        if(file instanceof PackSourceFile) {
+            return getPackChunks((PackSourceFile)file);
+        }
+        if(catalogChanged != null) {
+            catalogChanged.add(file.getRelativePath());
+        }
         return new ChunkWriter(file).getChunks();
     }
+    
+    private static S3Object multipartObject(String key, SourceFile file, long partSize) throws IOException {
+        S3Object multipartObj = new S3Object(key);
+        // Upload the source file's mtime as S3 metadata. The next time we run a backup,
+        // this will tell us whether we should re-upload the file.
+        multipartObj.addMetadata(Constant.S3_SOURCE_MTIME, Long.toString(file.getMTime()));
+        // Remember the part size so a later delta upload knows where the parts begin.
+        multipartObj.addMetadata(Constant.S3_PART_SIZE, Long.toString(partSize));
+        return multipartObj;
+    }
+    
+    /**
+     * A distributed transfer is a plain multipart upload, without compression or copying unchanged parts,
+     * since those need every part's results in one process. Its part MD5s aren't recorded either, so the
+     * checksum verifier reads the object to check it.
+     * @return the upload ID.
+     */
+    @Override
+    public String startTransfer(SourceFile file) throws IOException {
+        String key = layout.key(file.getRelativePath());
+        try {
+            log.debug("Starting distributed multipart upload for " + file.getRelativePath());
+            return s3Service.multipartStartUpload(bucketName, multipartObject(key, file, partSizeFor(file)))
+                    .getUploadId();
+        } catch (S3ServiceException e) {
+            throw new IOException(e);
+        }
+    }
+    
+    @Override
+    public List<RetryableChunk> getTransferChunks(SourceFile file, String transferId) {
+        String key = layout.key(file.getRelativePath());
+        return new ChunkWriter(file, new MultipartUpload(transferId, bucketName, key)).getChunks();
+    }
+    
+    /**
+     * The parts were sent by other processes, so S3 is asked for the list of parts to complete.
+     */
+    @Override
+    public void commitTransfer(SourceFile file, String transferId) throws IOException {
+        String key = layout.key(file.getRelativePath());
+        try {
+            s3Service.multipartCompleteUpload(new MultipartUpload(transferId, bucketName, key));
+            log.info("Distributed multipart upload complete for " + file.getRelativePath());
+        } catch (S3ServiceException e) {
+            throw new IOException(e);
+        }
+    }
+    
+    /**
+     * A growing file is sent as a multipart upload that's left open between runs. Each time the file is
+     * seen, the whole parts it has gained are uploaded, and once it stops changing the last part is
+     * uploaded and the upload completed. Nothing is started until the file has at least one whole part, so
+     * a file that finishes before then is sent like any other. The upload ID and the TailProgress are kept
+     * in an object under Constant.TAIL_PREFIX, and S3 is asked which parts the upload already has, so
+     * nothing is sent twice. The TailProgress also holds the xor of the parts sent so far, so a finished
+     * tail's checksum covers the whole file. Tailed files aren't compressed, and their part MD5s aren't
+     * recorded, so any left from an earlier upload of the file are deleted.
+     */
+    @Override
+    public Tail getTail(SourceFile file) throws IOException {
+        String relativePath = file.getRelativePath();
+        String key = layout.key(relativePath);
+        String progressKey = baseName + Constant.TAIL_PREFIX + relativePath;
+        if(catalogChanged != null) {
+            catalogChanged.add(relativePath);
+        }
+        try {
+            TailProgress progress = readTailProgress(progressKey);
+            if(progress != null) {
+                progress = progress.seen(file);
+            } else if(System.currentTimeMillis() - file.getMTime() >= conf.mtimeAgeMillis) {
+                return null;
+            } else {
+                progress = TailProgress.start(file);
+            }
+            
+            // The sink state is "uploadId partSize mtime", the mtime being the file's when the upload started
+            MultipartUpload upload = null;
+            long partSize = partSizeFor(file);
+            long startMtime = file.getMTime();
+            int numPartsSent = 0;
+            if(progress.sinkState.length() > 0) {
+                String[] fields = progress.sinkState.split(" ");
+                try {
+                    upload = new MultipartUpload(fields[0], bucketName, key);
+                    partSize = Long.parseLong(fields[1]);
+                    startMtime = Long.parseLong(fields[2]);
+                } catch (RuntimeException e) {
+                    throw new IOException("Malformed tail progress in " + progressKey + ": " + progress, e);
+                }
+                numPartsSent = countTailPartsSent(upload, partSize);
+                if(numPartsSent >= 0) {
+                    // Parts sent after the progress was last written have no xor recorded, so they're sent
+                    // again. If S3 has fewer parts than were recorded, the xor can't be trusted at all.
+                    long partsRecorded = progress.sentLength / partSize;
+                    if(progress.sentLength % partSize != 0 || partsRecorded > numPartsSent) {
+                        log.warn("The parts of growing file " + relativePath + " don't match its tail " +
+                                "progress, sending them again");
+                        numPartsSent = 0;
+                        progress = progress.withNothingSent();
+                    } else {
+                        numPartsSent = (int)partsRecorded;
+                    }
+                }
+                if(numPartsSent < 0 || numPartsSent * partSize > file.getLength()) {
+                    log.warn("The upload of growing file " + relativePath + " is gone, or the file is shorter " +
+                            "than what was sent, starting over");
+                    if(numPartsSent >= 0) {
+                        s3Service.multipartAbortUpload(upload);
+                    }
+                    upload = null;
+                    numPartsSent = 0;
+                    progress = progress.withSinkState("").withNothingSent();
+                }
+            }
+            
+            boolean finished = progress.isFinished(file, conf.tailQuietMillis);
+            if(upload == null) {
+                if(finished) {
+                    s3Service.deleteObject(bucketName, progressKey);
+                    return null;
+                }
+                if(file.getLength() >= partSize) {
+                    log.debug("Starting multipart upload for growing file " + relativePath);
+                    startMtime = file.getMTime();
+                    upload = s3Service.multipartStartUpload(bucketName, multipartObject(key, file, partSize));
+                    progress = progress.withSinkState(upload.getUploadId() + " " + partSize + " " + startMtime);
+                }
+            }
+            s3Service.putObject(bucketName, new S3Object(progressKey, progress.toString().getBytes("UTF-8")));
+            if(upload == null) {
+                return new Tail(Collections.<RetryableChunk>emptyList(), false);
+            }
+            return new Tail(getTailChunks(file, upload, partSize, startMtime, numPartsSent, progress, progressKey,
+                    finished), finished);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e); // Will happen if JVM doesn't have MD5, i.e. never
+        } catch (ServiceException e) {
+            throw new IOException(e);
+        }
+    }
+    
+    private TailProgress readTailProgress(String progressKey) throws IOException {
+        InputStream is = null;
+        try {
+            is = s3Service.getObject(bucketName, progressKey).getDataInputStream();
+            return TailProgress.parse(IOUtils.toString(is, "UTF-8"));
+        } catch (ServiceException e) {
+            if(e.getResponseCode() == 404) {
+                return null;
+            }
+            throw new IOException(e);
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+    }
+    
+    /**
+     * @return how many parts at the start of the upload have been sent in full, or -1 if the upload is
+     * gone.
+     */
+    private int countTailPartsSent(MultipartUpload upload, long partSize) throws S3ServiceException {
+        List<MultipartPart> parts;
+        try {
+            parts = s3Service.multipartListParts(upload);
+        } catch (S3ServiceException e) {
+            if(e.getResponseCode() == 404) {
+                return -1;
+            }
+            throw e;
+        }
+        Set<Integer> fullParts = new HashSet<Integer>();
+        for(MultipartPart part: parts) {
+            if(part.getSize() == partSize) {
+                fullParts.add(part.getPartNumber());
+            }
+        }
+        int numPartsSent = 0;
+        while(fullParts.contains(numPartsSent + 1)) {
+            numPartsSent++;
+        }
+        return numPartsSent;
+    }
+    
+    /**
+     * @return a chunk for each part that hasn't been sent, which is only the whole parts while the file is
+     * growing. A finished file whose parts are all sent gets one chunk that just completes the upload. The
+     * first chunk of a finished file includes the xor of the parts sent by earlier runs, so the chunks'
+     * xors add up to the whole file's. Otherwise the xor of this run's parts is added to the progress.
+     */
+    private List<RetryableChunk> getTailChunks(final SourceFile file, final MultipartUpload upload, 
+            final long partSize, final long startMtime, final int numPartsSent, final TailProgress progress,
+            final String progressKey, final boolean finished) {
+        final String relativePath = file.getRelativePath();
+        final long fileLen = file.getLength();
+        final int numParts = (int)(finished ? (fileLen + partSize - 1) / partSize : fileLen / partSize);
+        // Keyed by part, since hedged attempts of a part may both get as far as recording it
+        final Map<Integer, StreamingXor> partXors = new ConcurrentHashMap<Integer, StreamingXor>();
+        List<RetryableChunk> chunks = new ArrayList<RetryableChunk>();
+        for(int i=numPartsSent; i<Math.max(numParts, finished ? numPartsSent + 1 : 0); i++) {
+            final int partNum = i;
+            final boolean commitOnly = i >= numParts;
+            chunks.add(new RetryableChunk() {
+                @Override
+                public StreamingXor run() throws IOException {
+                    StreamingXor xor = new StreamingXor();
+                    if(!commitOnly) {
+                        xor = sendPart();
+                        if(!finished) {
+                            partXors.put(partNum, xor);
+                        }
+                    }
+                    if(finished && partNum == numPartsSent) {
+                        xor.update(progress.getSentXor());
+                    }
+                    return xor;
+                }
+                
+                private StreamingXor sendPart() throws IOException {
+                    long startAt = partNum * partSize;
+                    InputStream is = file.getPartialInputStream(startAt, Math.min(partSize, fileLen - startAt));
+                    try {
+                        XorInputStream xis = new XorInputStream(is, startAt);
+                        S3Object s3ObjForPart = new S3Object(upload.getObjectKey());
+                        s3ObjForPart.setDataInputStream(xis);
+                        s3Service.multipartUploadPart(upload, partNum+1, s3ObjForPart);
+                        return xis.getStreamingXor();
+                    } catch (S3ServiceException e) {
+                        throw new IOException(e);
+                    } finally {
+                        IOUtils.closeQuietly(is);
+                    }
+                }
+                
+                @Override
+                public void commitAllChunks() throws IOException {
+                    if(!finished) {
+                        StreamingXor sentXor = progress.getSentXor();
+                        for(StreamingXor partXor: partXors.values()) {
+                            sentXor.update(partXor);
+                        }
+                        try {
+                            s3Service.putObject(bucketName, new S3Object(progressKey, 
+                                    progress.withSent(numParts * partSize, sentXor).toString().getBytes("UTF-8")));
+                        } catch (NoSuchAlgorithmException e) {
+                            throw new RuntimeException(e); // Will happen if JVM doesn't have MD5, i.e. never
+                        } catch (S3ServiceException e) {
+                            throw new IOException(e);
+                        }
+                        log.debug("Sent the whole parts so far of growing file " + relativePath);
+                        return;
+                    }
+                    finishTail(file, upload, partSize, startMtime);
+                }
+            });
+        }
+        return chunks;
+    }
+    
+    /**
+     * Complete the upload of a file that stopped growing. The object's mtime metadata is the file's mtime
+     * when the upload started, so if the file changed after that the object is copied onto itself with the
+     * right mtime. S3 can't change an object's metadata in place, but the copy is done server side.
+     */
+    private void finishTail(SourceFile file, MultipartUpload upload, long partSize, long startMtime) 
+            throws IOException {
+        String relativePath = file.getRelativePath();
+        String key = upload.getObjectKey();
+        try {
+            if(checksumService != null) {
+                checksumService.deletePartDigests(relativePath);
+            }
+            s3Service.multipartCompleteUpload(upload);
+            if(file.getMTime() != startMtime) {
+                log.debug("Copying tailed object " + key + " onto itself to update its mtime");
+                copyInParts(key, multipartObject(key, file, partSize), file.getLength(), partSize);
+            }
+            s3Service.deleteObject(bucketName, baseName + Constant.TAIL_PREFIX + relativePath);
+            log.info("Multipart upload complete for tailed file " + relativePath);
+        } catch (ServiceException e) {
+            throw new IOException(e);
+        }
+    }
+    
+    /**
+     * Copy an object server side, a part at a time, which works for objects of any size.
+     * @param toObj the key and metadata of the copy.
+     */
+    private void copyInParts(String fromKey, S3Object toObj, long length, long partSize) 
+            throws IOException, ServiceException {
+        MultipartUpload copy = s3Service.multipartStartUpload(bucketName, toObj);
+        try {
+            List<MultipartPart> parts = new ArrayList<MultipartPart>();
+            for(long startAt=0; startAt<length; startAt+=partSize) {
+                long lastByte = Math.min(startAt + partSize, length) - 1;
+                parts.add(s3Service.multipartUploadPartCopy(copy, parts.size()+1, bucketName, fromKey, 
+                        startAt, lastByte));
+            }
+            s3Service.multipartCompleteUpload(copy, parts);
+        } catch (IOException e) {
+            s3Service.multipartAbortUpload(copy);
+            throw e;
+        }
+    }
+    
+    /**
+     * With hbackup.catalog, write a new catalog: the old one, updated with the objects this run saw and with
+     * the current state of every path it may have changed. The changed paths are looked up in parallel, and
+     * their checksums are read from the checksum service if there is one. Files that failed still have their
+     * old object, if any, so the catalog is written even if the run didn't succeed.
+     */
+    @Override
+    public void runFinished(List<String> tooNewPaths, boolean succeeded) throws IOException {
+        if(catalogSeen == null) {
+            return;
+        }
+        SortedMap<String, BackupCatalog.Entry> changes = new TreeMap<String, BackupCatalog.Entry>(catalogSeen);
+        List<String> changedPaths = new ArrayList<String>(catalogChanged);
+        ExecutorService executor = Executors.newFixedThreadPool(conf.concurrentFiles, 
+                Util.daemonThreadFactory("s3-catalog-details"));
+        try {
+            List<Future<BackupCatalog.Entry>> futures = new ArrayList<Future<BackupCatalog.Entry>>();
+            for(final String relativePath: changedPaths) {
+                futures.add(executor.submit(new Callable<BackupCatalog.Entry>() {
+                    @Override
+                    public BackupCatalog.Entry call() throws IOException {
+                        return currentCatalogEntry(relativePath);
+                    }
+                }));
+            }
+            for(int i=0; i<changedPaths.size(); i++) {
+                changes.put(changedPaths.get(i), futures.get(i).get());
+            }
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw new IOException("Couldn't update the catalog of " + bucketName + "/" + baseName, e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        S3Catalog.write(s3Service, bucketName, baseName, catalog, changes);
+    }
+    
+    /**
+     * @return the catalog entry for the file's object as it is now, or null if there's no object.
+     */
+    private BackupCatalog.Entry currentCatalogEntry(String relativePath) throws IOException {
+        StorageObject s3Obj;
+        try {
+            s3Obj = s3Service.getObjectDetails(bucketName, layout.key(relativePath));
+        } catch (ServiceException e) {
+            if(e.getResponseCode() == 404) {
+                return null;
+            }
+            throw new IOException(e);
+        }
+        String checksum = null;
+        if(checksumService != null) {
+            try {
+                checksum = checksumService.getChecksum(relativePath);
+            } catch (IOException e) {
+                log.warn("Couldn't get the checksum of " + relativePath + " for the catalog", e);
+            }
+        }
+        return catalogEntry(relativePath, s3Obj, checksum);
+    }
+    
+    private BackupCatalog.Entry catalogEntry(String relativePath, StorageObject s3Obj, String checksum) {
+        long mtime = s3Obj.getLastModifiedDate().getTime();
+        Object mtimeObj = s3Obj.getMetadata(Constant.S3_SOURCE_MTIME);
+        if(mtimeObj instanceof String) {
+            try {
+                mtime = Long.valueOf((String)mtimeObj);
+            } catch (NumberFormatException e) {
+                log.warn("Malformed source mtime metadata on " + s3Obj.getKey() + ": " + mtimeObj);
+            }
+        }
+        Object compressionObj = s3Obj.getMetadata(Constant.S3_COMPRESSION);
+        return new BackupCatalog.Entry(relativePath, s3Obj.getKey(), getSourceLength(s3Obj), mtime, 
+                s3Obj.getContentLength(), compressionObj == null ? null : compressionObj.toString(), checksum,
+                s3Obj.getETag());
+    }
+    
+    /**
+     * Packs and tail progress objects aren't listed. Files that are only in packs aren't either, since a
+     * pack can only be deleted whole.
+     */
+    @Override
+    public List<String> listRelativePaths() throws IOException {
+        List<String> relativePaths = new ArrayList<String>();
+        for(S3Object s3Obj: listFileObjects()) {
+            relativePaths.add(layout.relativePath(s3Obj.getKey()));
+        }
+        return relativePaths;
+    }
+    
+    /**
+     * @return the objects of files stored by themselves, leaving out packs, tail progress objects and
+     * directory markers. A sharded store's shards are listed in parallel.
+     */
+    private List<S3Object> listFileObjects() throws IOException {
+        return layout.listFileObjects(s3Service, bucketName, conf.concurrentFiles);
+    }
+    
+    @Override
+    public int getDeleteBatchSize() {
+        return PartCopyS3Service.MAX_DELETE_KEYS;
+    }
+    
+    /**
+     * Deletes the batch in one multi-object delete request.
+     */
+    @Override
+    public List<String> delete(List<String> relativePaths) throws IOException {
+        List<String> keys = new ArrayList<String>(relativePaths.size());
+        for(String relativePath: relativePaths) {
+            keys.add(layout.key(relativePath));
+        }
+        if(catalogChanged != null) {
+            catalogChanged.addAll(relativePaths);
+        }
+        List<String> failed = new ArrayList<String>();
+        for(String key: s3Service.deleteObjects(bucketName, keys)) {
+            failed.add(layout.relativePath(key));
+        }
+        return failed;
+    }
+    
+    /**
+     * Listings don't include metadata, so compressed objects are listed with their compressed length and
+     * won't usually match a source file. That only means they're sent again if they move.
+     */
+    @Override
+    public Map<String,Long> listLengths() throws IOException {
+        Map<String,Long> lengths = new HashMap<String,Long>();
+        for(S3Object s3Obj: listFileObjects()) {
+            lengths.put(layout.relativePath(s3Obj.getKey()), s3Obj.getContentLength());
+        }
+        return lengths;
+    }
+    
+    /**
+     * Copies the object server side with its metadata, in parts if it's too big for a single copy. The
+     * object at fromPath is left for mirror mode to delete, like any other file that's gone from the source.
+     */
+    @Override
+    public boolean move(String fromPath, SourceFile file) throws IOException {
+        String fromKey = layout.key(fromPath);
+        String toKey = layout.key(file.getRelativePath());
+        try {
+            StorageObject fromObj = s3Service.getObjectDetails(bucketName, fromKey);
+            if(getSourceLength(fromObj) != file.getLength() || 
+                    !Long.toString(file.getMTime()).equals(fromObj.getMetadata(Constant.S3_SOURCE_MTIME))) {
+                log.debug("Old object " + fromKey + " doesn't match " + file.getRelativePath() + ", not copying it");
+                return false;
+            }
+            if(fromObj.getContentLength() <= MultipartUtils.MAX_OBJECT_SIZE) {
+                s3Service.copyObject(bucketName, fromKey, bucketName, new S3Object(toKey), false);
+            } else {
+                // Parts big enough that the copy doesn't need more than S3 allows
+                long length = fromObj.getContentLength();
+                long partSize = Math.max(conf.s3PartSize, (length + MAX_PARTS - 1) / MAX_PARTS);
+                S3Object toObj = new S3Object(toKey);
+                toObj.addAllMetadata(fromObj.getModifiableMetadata());
+                toObj.addMetadata(Constant.S3_PART_SIZE, Long.toString(partSize));
+                copyInParts(fromKey, toObj, length, partSize);
+            }
+            log.debug("Copied " + fromKey + " to " + toKey + " server side");
+            if(catalogChanged != null) {
+                catalogChanged.add(file.getRelativePath());
+            }
+            return true;
+        } catch (ServiceException e) {
+            if(e.getResponseCode() == 404) {
+                return false;
+            }
+            throw new IOException(e);
+        }
+    }
+    
+    /**
+     * A pack is sent as a single chunk: its files are read into memory one after the other, recording
+     * where each one starts and its checksum, and the result is sent in one PUT. The pack's index is
+     * written when the chunk is committed, so a pack is never visible without its data.
+     */
+    private List<RetryableChunk> getPackChunks(final PackSourceFile pack) {
+        final String packKey = baseName + pack.getRelativePath();
+        RetryableChunk chunk = new RetryableChunk() {
+            private PackIndex index;
+            
+            @Override
+            public StreamingXor run() throws IOException {
+                PackIndex newIndex = new PackIndex();
+                ByteArrayOutputStream packBytes = new ByteArrayOutputStream((int)pack.getLength());
+                for(SourceFile file: pack.getFiles()) {
+                    InputStream is = file.getFullInputStream();
+                    try {
+                        XorInputStream xis = new XorInputStream(is, 0);
+                        long offset = packBytes.size();
+                        BufferPool.getInstance().copy(xis, packBytes);
+                        long length = packBytes.size() - offset;
+                        if(length != file.getLength()) {
+                            throw new IOException("Expected " + file.getLength() + " bytes but read " + length + 
+                                    " from " + file.getRelativePath());
+                        }
+                        newIndex.add(new PackIndex.Entry(file.getRelativePath(), offset, length, 
+                                file.getMTime(), xis.getStreamingXor().getXorHex()));
+                    } finally {
+                        is.close();
+                    }
+                }
+                
+                byte[] bytes = packBytes.toByteArray();
+                XorInputStream packXis = new XorInputStream(new ByteArrayInputStream(bytes), 0);
+                S3Object packObj = new S3Object(packKey);
+                packObj.addMetadata(Constant.S3_SOURCE_MTIME, Long.toString(pack.getMTime()));
+                packObj.setDataInputStream(packXis);
+                packObj.setContentLength(bytes.length);
+                try {
+                    log.debug("Uploading pack of " + pack.getFiles().size() + " files to " + packKey);
+                    s3Service.putObject(bucketName, packObj);
+                } catch (S3ServiceException e) {
+                    throw new IOException(e);
+                }
+                index = newIndex;
+                return packXis.getStreamingXor();
+            }
+
+            @Override
+            public void commitAllChunks() throws IOException {
+                try {
+                    s3Service.putObject(bucketName, new S3Object(packKey + Constant.PACK_INDEX_SUFFIX, 
+                            index.toBytes()));
+                } catch (NoSuchAlgorithmException e) {
+                    throw new RuntimeException(e); // Will happen if JVM doesn't have MD5, i.e. never
+                } catch (S3ServiceException e) {
+                    throw new IOException(e);
+                }
+                for(PackIndex.Entry entry: index.getEntries()) {
+                    packedFiles.put(entry.relativePath, entry);
+                    storePackedChecksum(entry);
+                }
+                stats.numFilesPacked.addAndGet(index.getEntries().size());
+            }
+        };
+        List<RetryableChunk> chunks = new ArrayList<RetryableChunk>(1);
+        chunks.add(chunk);
+        return chunks;
+    }
+    
+    /**
+     * Save a packed file's checksum under its own path, so it can be verified like any other file.
+     * The checksum is also in the pack index, so this is best effort.
+     */
+    private void storePackedChecksum(PackIndex.Entry entry) {
+        if(checksumService == null) {
+            return;
+        }
+        try {
+            checksumService.storeChecksum(entry.relativePath, entry.checksum);
+        } catch (IOException e) {
+            log.warn("Couldn't save checksum for packed file " + entry.relativePath, e);
+        }
+    }
 }
@@ -0,0 +1,454 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup.datasinks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import com.urbanairship.hbackup.BufferPool;
+import com.urbanairship.hbackup.DistributedSink;
+import com.urbanairship.hbackup.HBackupConfig;
+import com.urbanairship.hbackup.MirrorSink;
+import com.urbanairship.hbackup.MoveSink;
+import com.urbanairship.hbackup.RetryableChunk;
+import com.urbanairship.hbackup.Sink;
+import com.urbanairship.hbackup.SourceFile;
+import com.urbanairship.hbackup.StreamingXor;
+import com.urbanairship.hbackup.TailProgress;
+import com.urbanairship.hbackup.TailSink;
+import com.urbanairship.hbackup.XorInputStream;
+
+/**
+ * A sink for file:// URIs that writes the local filesystem directly instead of through Hadoop's
+ * LocalFileSystem. Unlike HDFS, a local file can have many writers, so large files are split into chunks
+ * of conf.localChunkSize that are written in parallel with positional writes into a temp file. The temp
+ * file is renamed into place once every chunk has been written.
+ */
+public class LocalSink extends Sink implements DistributedSink, TailSink, MirrorSink, MoveSink {
+    private static final Logger log = LogManager.getLogger(LocalSink.class);
+    public static final String TMP_SUFFIX = ".hbackup-tmp";
+    public static final String TAIL_SUFFIX = ".hbackup-tail";
+    public static final String TAIL_PROGRESS_SUFFIX = ".hbackup-tailprogress";
+
+    private final File baseDir;
+    private final HBackupConfig conf;
+
+    public LocalSink(URI uri, HBackupConfig conf) {
+        this.baseDir = new File(uri.getPath());
+        this.conf = conf;
+    }
+
+    @Override
+    public boolean existsAndUpToDate(SourceFile sourceFile) throws IOException {
+        File dest = new File(baseDir, sourceFile.getRelativePath());
+        if(!dest.isFile()) {
+            log.debug("Sink file " + dest + " didn't exist for source file " + sourceFile.getRelativePath() +
+                    ". Will re-upload.");
+            return false;
+        }
+        if(sourceFile.getLength() != dest.length()) {
+            log.debug("Different length in source and sink, will re-upload: " + sourceFile.getRelativePath());
+            return false;
+        }
+        if(!conf.mtimeCheck) {
+            log.debug("Same lengths and mtime checking disabled. Won't re-upload " + sourceFile.getRelativePath());
+            return true;
+        }
+        long sourceMtime = sourceFile.getMTime();
+        long sinkMtime = dest.lastModified();
+        if(!sameMtime(sourceMtime, sinkMtime)) {
+            log.debug("Different mtime source and sink, " + sourceMtime + " vs " + sinkMtime +
+                    ".  Will re-upload " + sourceFile.getRelativePath());
+            return false;
+        }
+        log.debug("Lengths and mtimes matched. Won't re-upload " + sourceFile.getRelativePath());
+        return true;
+    }
+
+    /**
+     * Some local filesystems only keep mtimes to the second, so a sink mtime that's a whole second
+     * matches any source mtime within that second.
+     */
+    private static boolean sameMtime(long sourceMtime, long sinkMtime) {
+        if(sourceMtime == sinkMtime) {
+            return true;
+        }
+        return sinkMtime % 1000 == 0 && sourceMtime / 1000 == sinkMtime / 1000;
+    }
+
+    @Override
+    public Long getMTime(String relativePath) throws IOException {
+        File dest = new File(baseDir, relativePath);
+        if(!dest.isFile()) {
+            return null;
+        }
+        return dest.lastModified();
+    }
+
+    private File destFile(SourceFile sourceFile) {
+        String relativePath = sourceFile.getRelativePath();
+        assert !relativePath.startsWith("/");
+        return new File(baseDir, relativePath);
+    }
+
+    private static File tmpFile(File dest) {
+        return new File(dest.getPath() + TMP_SUFFIX);
+    }
+
+    /**
+     * @return whether a file is one of this sink's partly written files rather than a backed up one.
+     */
+    public static boolean isWorkFile(String name) {
+        return name.endsWith(TMP_SUFFIX) || name.endsWith(TAIL_SUFFIX) || name.endsWith(TAIL_PROGRESS_SUFFIX);
+    }
+
+    @Override
+    public List<RetryableChunk> getChunks(SourceFile sourceFile) {
+        File tmp = tmpFile(destFile(sourceFile));
+        return getChunks(sourceFile, new TempFile(tmp, sourceFile.getLength(), false), true);
+    }
+
+    /**
+     * A distributed transfer writes the same temp file as a local one, so every process must see the
+     * same local filesystem, e.g. an NFS mount. The temp file is created up front, since there's no single
+     * first chunk to create it.
+     */
+    @Override
+    public String startTransfer(SourceFile sourceFile) throws IOException {
+        File tmp = tmpFile(destFile(sourceFile));
+        new TempFile(tmp, sourceFile.getLength(), false).prepare();
+        return tmp.getName();
+    }
+
+    @Override
+    public List<RetryableChunk> getTransferChunks(SourceFile sourceFile, String transferId) {
+        File tmp = tmpFile(destFile(sourceFile));
+        return getChunks(sourceFile, new TempFile(tmp, sourceFile.getLength(), true), false);
+    }
+
+    @Override
+    public void commitTransfer(SourceFile sourceFile, String transferId) throws IOException {
+        File dest = destFile(sourceFile);
+        commit(sourceFile, tmpFile(dest), dest);
+    }
+
+    /**
+     * A growing file is appended to a tail file next to its destination, a whole number of
+     * conf.localChunkSize pieces at a time. The TailProgress, kept in another file beside it, says how much
+     * has been sent, so a later run carries on from there. Anything in the tail file past that was written
+     * by a run that failed, and is written again. Once the file stops changing, the rest is appended and the
+     * tail file is moved into place.
+     */
+    @Override
+    public Tail getTail(final SourceFile sourceFile) throws IOException {
+        final File dest = destFile(sourceFile);
+        final File tail = new File(dest.getPath() + TAIL_SUFFIX);
+        final File progressFile = new File(dest.getPath() + TAIL_PROGRESS_SUFFIX);
+        final long fileLen = sourceFile.getLength();
+        TailProgress progress = null;
+        if(progressFile.isFile()) {
+            progress = TailProgress.parse(FileUtils.readFileToString(progressFile)).seen(sourceFile);
+        } else if(System.currentTimeMillis() - sourceFile.getMTime() >= conf.mtimeAgeMillis) {
+            return null;
+        } else {
+            progress = TailProgress.start(sourceFile);
+            tail.delete(); // Left over from a tail that was abandoned
+        }
+        if(progress.sentLength > fileLen || progress.sentLength > tail.length()) {
+            log.warn("Source file " + sourceFile.getRelativePath() + " is shorter than what was already " +
+                    "sent from it, or the tail file lost some of it, starting over");
+            if(tail.exists() && !tail.delete()) {
+                throw new IOException("Couldn't delete " + tail);
+            }
+            progress = progress.withNothingSent();
+        }
+        final boolean finished = progress.isFinished(sourceFile, conf.tailQuietMillis);
+        if(finished && !tail.isFile()) {
+            // Never got as far as a whole chunk, so it's sent like any other file
+            progressFile.delete();
+            return null;
+        }
+        FileUtils.writeStringToFile(progressFile, progress.toString());
+        final TailProgress progressBefore = progress;
+        final long sent = progress.sentLength;
+        final long upTo = finished ? fileLen : fileLen / conf.localChunkSize * conf.localChunkSize;
+        if(!finished && upTo <= sent) {
+            return new Tail(Collections.<RetryableChunk>emptyList(), false);
+        }
+        
+        final AtomicReference<StreamingXor> sentThisRun = new AtomicReference<StreamingXor>();
+        RetryableChunk chunk = new RetryableChunk() {
+            @Override
+            public StreamingXor run() throws IOException {
+                File parent = tail.getParentFile();
+                if(parent != null && !parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+                    throw new IOException("Couldn't create directory " + parent);
+                }
+                InputStream is = null;
+                RandomAccessFile raf = null;
+                try {
+                    raf = new RandomAccessFile(tail, "rw");
+                    raf.setLength(sent); // Drop anything written by a failed attempt
+                    is = sourceFile.getPartialInputStream(sent, upTo - sent);
+                    XorInputStream xis = new XorInputStream(is, sent);
+                    long written = writeAt(xis, raf.getChannel(), sent);
+                    if(written != upTo - sent) {
+                        throw new IOException("Expected " + (upTo - sent) + " bytes from source at offset " +
+                                sent + " but got " + written + " for " + sourceFile.getRelativePath());
+                    }
+                    raf.getChannel().force(false);
+                    StreamingXor xor = xis.getStreamingXor();
+                    if(finished) {
+                        xor.update(progressBefore.getSentXor());
+                    } else {
+                        sentThisRun.set(xor); // Set, not combined, since a hedged attempt may get here too
+                    }
+                    return xor;
+                } finally {
+                    if(is != null) {
+                        try {
+                            is.close();
+                        } catch (IOException e) { }
+                    }
+                    if(raf != null) {
+                        try {
+                            raf.close();
+                        } catch (IOException e) { }
+                    }
+                }
+            }
+
+            @Override
+            public void commitAllChunks() throws IOException {
+                if(!finished) {
+                    StreamingXor sentXor = progressBefore.getSentXor();
+                    sentXor.update(sentThisRun.get());
+                    FileUtils.writeStringToFile(progressFile, progressBefore.withSent(upTo, sentXor).toString());
+                    log.debug("Sent " + upTo + " bytes so far of growing file " + dest);
+                    return;
+                }
+                LocalSink.commit(sourceFile, tail, dest);
+                if(!progressFile.delete()) {
+                    throw new IOException("Couldn't delete " + progressFile);
+                }
+            }
+        };
+        return new Tail(Collections.singletonList(chunk), finished);
+    }
+
+    /**
+     * Temp and tail files aren't listed.
+     */
+    @Override
+    public List<String> listRelativePaths() throws IOException {
+        return new ArrayList<String>(listLengths().keySet());
+    }
+
+    @Override
+    public Map<String,Long> listLengths() throws IOException {
+        Map<String,Long> lengths = new HashMap<String,Long>();
+        if(baseDir.isDirectory()) {
+            addLengths(lengths, baseDir, "");
+        }
+        return lengths;
+    }
+
+    private static void addLengths(Map<String,Long> lengths, File dir, String relativeTo) throws IOException {
+        File[] listing = dir.listFiles();
+        if(listing == null) {
+            throw new IOException("Couldn't list directory " + dir);
+        }
+        for(File file: listing) {
+            if(file.isDirectory()) {
+                addLengths(lengths, file, relativeTo + file.getName() + "/");
+            } else if(!isWorkFile(file.getName())) {
+                lengths.put(relativeTo + file.getName(), file.length());
+            }
+        }
+    }
+
+    /**
+     * Renames the old file into place, which keeps its mtime.
+     */
+    @Override
+    public boolean move(String fromPath, SourceFile sourceFile) throws IOException {
+        File from = new File(baseDir, fromPath);
+        File to = destFile(sourceFile);
+        if(!from.isFile() || from.length() != sourceFile.getLength() || 
+                !sameMtime(sourceFile.getMTime(), from.lastModified())) {
+            log.debug("Old file " + from + " doesn't match " + sourceFile.getRelativePath() + ", not renaming it");
+            return false;
+        }
+        to.getParentFile().mkdirs();
+        if(!from.renameTo(to)) {
+            log.debug("Couldn't rename " + from + " to " + to);
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int getDeleteBatchSize() {
+        return 1;
+    }
+
+    @Override
+    public List<String> delete(List<String> relativePaths) {
+        List<String> failed = new ArrayList<String>();
+        for(String relativePath: relativePaths) {
+            File dest = new File(baseDir, relativePath);
+            if(!dest.delete() && dest.exists()) {
+                failed.add(relativePath);
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * @param commit whether committing the chunks should move the temp file into place.
+     */
+    private List<RetryableChunk> getChunks(final SourceFile sourceFile, final TempFile tempFile,
+            final boolean commit) {
+        final File dest = destFile(sourceFile);
+        final File tmp = tempFile.file;
+        final long fileLen = sourceFile.getLength();
+        final long chunkSize = conf.localChunkSize;
+
+        int numChunks = (int)Math.max(1, (fileLen + chunkSize - 1) / chunkSize);
+        List<RetryableChunk> chunks = new ArrayList<RetryableChunk>(numChunks);
+        for(int i=0; i<numChunks; i++) {
+            final long startAt = i * chunkSize;
+            final long len = Math.min(chunkSize, fileLen - startAt);
+            chunks.add(new RetryableChunk() {
+                @Override
+                public StreamingXor run() throws IOException {
+                    tempFile.prepare();
+                    InputStream is = null;
+                    RandomAccessFile raf = null;
+                    try {
+                        is = sourceFile.getPartialInputStream(startAt, len);
+                        XorInputStream xis = new XorInputStream(is, startAt);
+                        raf = new RandomAccessFile(tmp, "rw");
+                        long written = writeAt(xis, raf.getChannel(), startAt);
+                        if(written != len) {
+                            throw new IOException("Expected " + len + " bytes from source at offset " +
+                                    startAt + " but got " + written + " for " + sourceFile.getRelativePath());
+                        }
+                        raf.getChannel().force(false);
+                        return xis.getStreamingXor();
+                    } finally {
+                        if(is != null) {
+                            try {
+                                is.close();
+                            } catch (IOException e) { }
+                        }
+                        if(raf != null) {
+                            try {
+                                raf.close();
+                            } catch (IOException e) { }
+                        }
+                    }
+                }
+
+                @Override
+                public void commitAllChunks() throws IOException {
+                    if(!commit) {
+                        log.debug("Sent part of a distributed transfer of " + dest);
+                        return;
+                    }
+                    tempFile.prepare(); // In case the file had no chunks that ran, e.g. it's empty
+                    LocalSink.commit(sourceFile, tmp, dest);
+                }
+            });
+        }
+        return chunks;
+    }
+
+    private static void commit(SourceFile sourceFile, File tmp, File dest) throws IOException {
+        if(dest.exists() && !dest.delete()) {
+            throw new IOException("Couldn't delete old version of " + dest);
+        }
+        if(!tmp.renameTo(dest)) {
+            throw new IOException("Couldn't rename " + tmp + " to " + dest);
+        }
+        if(!dest.setLastModified(sourceFile.getMTime())) {
+            throw new IOException("Couldn't set mtime of " + dest);
+        }
+        log.debug("Done transferring file to local filesystem: " + dest);
+    }
+
+    /**
+     * Copy the stream into the channel starting at the given file position, without moving the channel's
+     * own position, so other chunks can write to the same file at the same time.
+     * @return the number of bytes copied.
+     */
+    private static long writeAt(InputStream is, FileChannel channel, long position) throws IOException {
+        ByteBuffer bb = BufferPool.getInstance().acquireCopyBuffer();
+        try {
+            byte[] buf = bb.array();
+            long written = 0;
+            int bytesRead;
+            while((bytesRead = is.read(buf)) != -1) {
+                bb.clear().limit(bytesRead);
+                while(bb.hasRemaining()) {
+                    written += channel.write(bb, position + written);
+                }
+            }
+            return written;
+        } finally {
+            BufferPool.getInstance().release(bb);
+        }
+    }
+
+    /**
+     * The temp file that all the chunks of one file write into. The first chunk to run creates it at its
+     * final length, truncating anything left over from an earlier failed run. For a distributed transfer
+     * it's already been created.
+     */
+    private static class TempFile {
+        private final File file;
+        private final long length;
+        private boolean prepared;
+
+        public TempFile(File file, long length, boolean prepared) {
+            this.file = file;
+            this.length = length;
+            this.prepared = prepared;
+        }
+
+        public synchronized void prepare() throws IOException {
+            if(prepared) {
+                return;
+            }
+            File parent = file.getParentFile();
+            if(parent != null && !parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+                throw new IOException("Couldn't create directory " + parent);
+            }
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(0);
+                raf.setLength(length);
+            } finally {
+                raf.close();
+            }
+            prepared = true;
+        }
+    }
+}
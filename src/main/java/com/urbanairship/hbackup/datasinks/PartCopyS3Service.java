@@ -0,0 +1,139 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup.datasinks;
+
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.httpclient.HttpMethodBase;
+import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
+import org.apache.commons.lang.StringEscapeUtils;
+import org.jets3t.service.Jets3tProperties;
+import org.jets3t.service.S3ServiceException;
+import org.jets3t.service.ServiceException;
+import org.jets3t.service.impl.rest.httpclient.HttpMethodAndByteCount;
+import org.jets3t.service.impl.rest.httpclient.RestS3Service;
+import org.jets3t.service.model.MultipartPart;
+import org.jets3t.service.model.MultipartUpload;
+import org.jets3t.service.security.ProviderCredentials;
+import org.jets3t.service.utils.RestUtils;
+import org.jets3t.service.utils.ServiceUtils;
+
+/**
+ * Adds the S3 "upload part - copy" operation, which this version of jets3t doesn't have. It fills one
+ * part of a multipart upload with a byte range of an existing object, without the data leaving S3. Also
+ * adds multi-object delete, which deletes up to 1000 objects in one request.
+ */
+public class PartCopyS3Service extends RestS3Service {
+    private static final Pattern ETAG_PATTERN = Pattern.compile("<ETag>\"?([^<\"]*)\"?</ETag>");
+    private static final Pattern ERROR_KEY_PATTERN = Pattern.compile("<Error>.*?<Key>([^<]*)</Key>", 
+            Pattern.DOTALL);
+    public static final int MAX_DELETE_KEYS = 1000;
+
+    public PartCopyS3Service(ProviderCredentials credentials) throws S3ServiceException {
+        super(credentials);
+    }
+
+    public PartCopyS3Service(ProviderCredentials credentials, Jets3tProperties properties) 
+            throws S3ServiceException {
+        super(credentials, null, null, properties);
+    }
+
+    /**
+     * Copy the bytes firstByte to lastByte (inclusive) of an existing object into a part of a
+     * multipart upload. The source may be the object that the upload will replace.
+     */
+    public MultipartPart multipartUploadPartCopy(MultipartUpload upload, int partNumber,
+            String sourceBucketName, String sourceKey, long firstByte, long lastByte)
+            throws IOException {
+        Map<String, String> requestParameters = new HashMap<String, String>();
+        requestParameters.put("partNumber", String.valueOf(partNumber));
+        requestParameters.put("uploadId", upload.getUploadId());
+
+        HttpMethodBase httpMethod = null;
+        try {
+            Map<String, Object> headers = new HashMap<String, Object>();
+            headers.put("x-amz-copy-source", RestUtils.encodeUrlPath(sourceBucketName + "/" + sourceKey, "/"));
+            headers.put("x-amz-copy-source-range", "bytes=" + firstByte + "-" + lastByte);
+            
+            HttpMethodAndByteCount result = performRestPut(upload.getBucketName(),
+                    upload.getObjectKey(), headers, requestParameters, null, false);
+            httpMethod = result.getHttpMethod();
+            String body = httpMethod.getResponseBodyAsString();
+            Matcher m = ETAG_PATTERN.matcher(body == null ? "" : body);
+            if(!m.find()) {
+                // S3 can return 200 and then report an error in the body of a copy response
+                throw new IOException("No ETag in part copy response for " + upload.getObjectKey() +
+                        " part " + partNumber + ": " + body);
+            }
+            return new MultipartPart(partNumber, null, m.group(1), lastByte - firstByte + 1);
+        } catch (ServiceException e) {
+            throw new IOException(e);
+        } finally {
+            if(httpMethod != null) {
+                httpMethod.releaseConnection();
+            }
+        }
+    }
+
+    /**
+     * The "delete" subresource has to be signed, and this version of jets3t doesn't know about it.
+     */
+    @Override
+    public List<String> getResourceParameterNames() {
+        List<String> names = new ArrayList<String>(super.getResourceParameterNames());
+        names.add("delete");
+        return names;
+    }
+
+    /**
+     * Delete up to MAX_DELETE_KEYS objects from a bucket in one request. Keys that don't exist count as
+     * deleted.
+     * @return the keys that couldn't be deleted.
+     */
+    public List<String> deleteObjects(String bucketName, List<String> keys) throws IOException {
+        if(keys.size() > MAX_DELETE_KEYS) {
+            throw new IllegalArgumentException("Can't delete more than " + MAX_DELETE_KEYS + " objects at once");
+        }
+        // In quiet mode the response only lists the keys that failed
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?><Delete><Quiet>true</Quiet>");
+        for(String key: keys) {
+            xml.append("<Object><Key>").append(StringEscapeUtils.escapeXml(key)).append("</Key></Object>");
+        }
+        xml.append("</Delete>");
+        byte[] body = xml.toString().getBytes("UTF-8");
+
+        Map<String, String> requestParameters = new HashMap<String, String>();
+        requestParameters.put("delete", "");
+        HttpMethodBase httpMethod = null;
+        try {
+            Map<String, Object> headers = new HashMap<String, Object>();
+            headers.put("Content-MD5", ServiceUtils.toBase64(ServiceUtils.computeMD5Hash(body)));
+            httpMethod = performRestPost(bucketName, null, headers, requestParameters, 
+                    new ByteArrayRequestEntity(body, "application/xml"), false);
+            String response = httpMethod.getResponseBodyAsString();
+            List<String> failed = new ArrayList<String>();
+            Matcher m = ERROR_KEY_PATTERN.matcher(response == null ? "" : response);
+            while(m.find()) {
+                failed.add(StringEscapeUtils.unescapeXml(m.group(1)));
+            }
+            return failed;
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e); // Will happen if JVM doesn't have MD5, i.e. never
+        } catch (ServiceException e) {
+            throw new IOException(e);
+        } finally {
+            if(httpMethod != null) {
+                httpMethod.releaseConnection();
+            }
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup.datasinks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.jets3t.service.S3Service;
+import org.jets3t.service.ServiceException;
+import org.jets3t.service.model.S3Object;
+
+import com.urbanairship.hbackup.BufferPool;
+import com.urbanairship.hbackup.Constant;
+import com.urbanairship.hbackup.DedupRecipe;
+import com.urbanairship.hbackup.HBackupConfig;
+import com.urbanairship.hbackup.SnapshotManifest;
+import com.urbanairship.hbackup.SourceFile;
+import com.urbanairship.hbackup.Stats;
+import com.urbanairship.hbackup.StreamingXor;
+
+/**
+ * A sink that takes point-in-time snapshots. Each run writes a {@link SnapshotManifest} listing every
+ * file in the source, instead of overwriting one copy of each file. File data is stored like a
+ * {@link DedupS3Sink} stores it, in content-addressed chunks, and each file's recipe is stored as a
+ * content-addressed chunk too, so a manifest entry names a file's whole contents by a single hash.
+ *
+ * A file that's unchanged since the latest snapshot (same length, and same mtime if mtime checking is on)
+ * isn't read at all: the new manifest reuses its entry from the latest one. Changed files only upload the
+ * chunks the store doesn't have yet. The manifest is only written if every file was stored, so a snapshot
+ * never names data that's missing; a failed run leaves no snapshot, and the next run reuses what it stored.
+ */
+public class SnapshotS3Sink extends DedupS3Sink {
+    private static final Logger log = LogManager.getLogger(SnapshotS3Sink.class);
+
+    private final String snapshotId;
+    private final SnapshotManifest previous;
+
+    // The entries of the snapshot being taken, for files sent or found unchanged so far
+    private final Map<String,SnapshotManifest.Entry> entries =
+            new ConcurrentHashMap<String,SnapshotManifest.Entry>();
+
+    public SnapshotS3Sink(URI uri, HBackupConfig conf, Stats stats) throws IOException {
+        super(uri, conf, stats);
+        this.snapshotId = newSnapshotId();
+        String latestId = latestSnapshotId(s3Service, bucketName, baseName);
+        if(latestId == null) {
+            log.info("No snapshot in " + bucketName + "/" + baseName + " yet, every file will be sent");
+            this.previous = new SnapshotManifest();
+        } else {
+            this.previous = readManifest(s3Service, bucketName, baseName, latestId);
+            log.debug("Comparing against snapshot " + latestId + " of " + previous.size() + " files");
+        }
+    }
+
+    /**
+     * @return an ID for a snapshot taken now. IDs sort in the order their snapshots were taken.
+     */
+    private static String newSnapshotId() {
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd'T'HHmmss.SSS'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date());
+    }
+
+    @Override
+    public boolean existsAndUpToDate(SourceFile file) throws IOException {
+        String relativePath = file.getRelativePath();
+        SnapshotManifest.Entry entry = previous.get(relativePath);
+        if(entry == null) {
+            log.debug("Not in the latest snapshot, will upload: " + relativePath);
+            return false;
+        }
+        if(entry.length != file.getLength()) {
+            log.debug("Latest snapshot had a different length than the source for " + relativePath +
+                    ". Will re-upload.");
+            return false;
+        }
+        if(conf.mtimeCheck && entry.mtime != file.getMTime()) {
+            log.debug("Latest snapshot had a different mtime than the source, will re-upload: " + relativePath);
+            return false;
+        }
+        // Unchanged, so the new snapshot refers to the same data as the latest one
+        entries.put(relativePath, entry);
+        return true;
+    }
+
+    @Override
+    public Long getMTime(String relativePath) throws IOException {
+        SnapshotManifest.Entry entry = previous.get(relativePath);
+        return entry == null ? null : entry.mtime;
+    }
+
+    @Override
+    protected void commitRecipe(String relativePath, DedupRecipe recipe, StreamingXor xor) throws IOException {
+        byte[] recipeBytes = recipe.toBytes();
+        String recipeHash = sha256Hex(recipeBytes);
+        storeChunkIfAbsent(recipeHash, recipeBytes);
+        entries.put(relativePath, new SnapshotManifest.Entry(relativePath, recipeHash, recipe.getLength(),
+                recipe.getMTime(), xor.getXorHex()));
+        log.debug("Stored recipe " + recipeHash + " with " + recipe.getNumChunks() + " chunks for " + relativePath);
+    }
+
+    /**
+     * Write the snapshot's manifest. Files that were too new to back up keep the entry they had in the
+     * latest snapshot, since they're still in the source.
+     */
+    @Override
+    public void runFinished(List<String> tooNewPaths, boolean succeeded) throws IOException {
+        if(!succeeded) {
+            log.error("Not writing snapshot " + snapshotId + " because some files failed. The next run will " +
+                    "take a snapshot again, reusing the chunks this run stored.");
+            return;
+        }
+        SnapshotManifest manifest = new SnapshotManifest();
+        for(SnapshotManifest.Entry entry: entries.values()) {
+            manifest.add(entry);
+        }
+        for(String relativePath: tooNewPaths) {
+            SnapshotManifest.Entry entry = previous.get(relativePath);
+            if(entry != null && manifest.get(relativePath) == null) {
+                manifest.add(entry);
+            }
+        }
+        try {
+            s3Service.putObject(bucketName, new S3Object(manifestKey(baseName, snapshotId), manifest.toBytes()));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e); // Will happen if JVM doesn't have MD5, i.e. never
+        } catch (ServiceException e) {
+            throw new IOException(e);
+        }
+        log.info("Wrote snapshot " + snapshotId + " of " + manifest.size() + " files");
+    }
+
+    public static String manifestKey(String baseName, String snapshotId) {
+        return baseName + Constant.SNAPSHOT_PREFIX + snapshotId;
+    }
+
+    /**
+     * @return the ID of the most recent snapshot in the store, or null if there are none.
+     */
+    public static String latestSnapshotId(S3Service s3Service, String bucketName, String baseName)
+            throws IOException {
+        String prefix = baseName + Constant.SNAPSHOT_PREFIX;
+        String latest = null;
+        try {
+            for(S3Object obj: s3Service.listObjects(bucketName, prefix, null)) {
+                String id = obj.getKey().substring(prefix.length());
+                if(latest == null || id.compareTo(latest) > 0) {
+                    latest = id;
+                }
+            }
+        } catch (ServiceException e) {
+            throw new IOException(e);
+        }
+        return latest;
+    }
+
+    public static SnapshotManifest readManifest(S3Service s3Service, String bucketName, String baseName,
+            String snapshotId) throws IOException {
+        InputStream is = null;
+        try {
+            is = s3Service.getObject(bucketName, manifestKey(baseName, snapshotId)).getDataInputStream();
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            BufferPool.getInstance().copy(is, baos);
+            return SnapshotManifest.parse(new ByteArrayInputStream(baos.toByteArray()));
+        } catch (ServiceException e) {
+            if(e.getResponseCode() == 404) {
+                throw new IOException("No snapshot " + snapshotId + " in " + bucketName + "/" + baseName, e);
+            }
+            throw new IOException(e);
+        } finally {
+            if(is != null) {
+                try {
+                    is.close();
+                } catch (IOException e) { }
+            }
+        }
+    }
+}
@@ -0,0 +1,276 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup.datasources;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.jets3t.service.S3Service;
+import org.jets3t.service.S3ServiceException;
+import org.jets3t.service.ServiceException;
+import org.jets3t.service.model.S3Object;
+
+import com.urbanairship.hbackup.BufferPool;
+import com.urbanairship.hbackup.Constant;
+import com.urbanairship.hbackup.DedupRecipe;
+import com.urbanairship.hbackup.HBackupConfig;
+import com.urbanairship.hbackup.S3Clients;
+import com.urbanairship.hbackup.Source;
+import com.urbanairship.hbackup.SourceFile;
+import com.urbanairship.hbackup.Util;
+import com.urbanairship.hbackup.datasinks.DedupS3Sink;
+
+/**
+ * Reads back files stored by {@link DedupS3Sink}, for restores. Recipes are read while listing, and file
+ * data is reassembled by fetching chunks on a pool of conf.dedupThreads threads, keeping up to that many
+ * chunks in flight ahead of the reader.
+ */
+public class DedupS3Source extends Source {
+    private static final Logger log = LogManager.getLogger(DedupS3Source.class);
+
+    protected final S3Service s3Service;
+    protected final String bucketName;
+    protected final String baseName;
+    private final int readAheadChunks;
+    protected final ExecutorService fetchExecutor;
+
+    public DedupS3Source(URI uri, HBackupConfig conf) throws IOException {
+        this.bucketName = uri.getHost();
+        this.baseName = Util.canonicalizeBaseName(uri.getPath());
+        this.readAheadChunks = conf.dedupThreads;
+        this.fetchExecutor = Executors.newFixedThreadPool(conf.dedupThreads,
+                Util.daemonThreadFactory("dedup-source"));
+        s3Service = S3Clients.getInstance().get(conf.s3SourceCredentials, S3Clients.poolSize(conf));
+    }
+
+    @Override
+    public List<SourceFile> getFiles(boolean recursive) throws IOException {
+        S3Object[] listing;
+        try {
+            listing = s3Service.listObjects(bucketName, baseName, null);
+        } catch (S3ServiceException e) {
+            throw new IOException(e);
+        }
+
+        // Read the recipes in parallel, since there's one request per file
+        String chunkPrefix = baseName + Constant.DEDUP_CHUNK_PREFIX;
+        List<String> relativePaths = new ArrayList<String>();
+        List<Future<DedupRecipe>> recipeFutures = new ArrayList<Future<DedupRecipe>>();
+        for(final S3Object s3Obj: listing) {
+            if(s3Obj.getKey().startsWith(chunkPrefix)) {
+                continue;
+            }
+            String relativePath = s3Obj.getKey().substring(baseName.length());
+            if(relativePath.startsWith("/")) {
+                relativePath = relativePath.substring(1);
+            }
+            relativePaths.add(relativePath);
+            recipeFutures.add(fetchExecutor.submit(new Callable<DedupRecipe>() {
+                @Override
+                public DedupRecipe call() throws Exception {
+                    return DedupRecipe.parse(new ByteArrayInputStream(getObjectBytes(s3Obj.getKey())));
+                }
+            }));
+        }
+
+        List<SourceFile> outFiles = new ArrayList<SourceFile>(relativePaths.size());
+        for(int i=0; i<relativePaths.size(); i++) {
+            outFiles.add(new DedupSourceFile(relativePaths.get(i), getResult(recipeFutures.get(i))));
+        }
+        log.debug("Read " + outFiles.size() + " recipes from " + bucketName + "/" + baseName);
+        return outFiles;
+    }
+
+    private byte[] getObjectBytes(String key) throws IOException {
+        InputStream is = null;
+        try {
+            is = s3Service.getObject(bucketName, key).getDataInputStream();
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            BufferPool.getInstance().copy(is, baos);
+            return baos.toByteArray();
+        } catch (ServiceException e) {
+            throw new IOException(e);
+        } finally {
+            if(is != null) {
+                try {
+                    is.close();
+                } catch (IOException e) { }
+            }
+        }
+    }
+
+    /**
+     * Fetch a chunk and check that its contents still hash to its name.
+     */
+    protected byte[] fetchChunk(String hash) throws IOException {
+        byte[] contents = getObjectBytes(DedupS3Sink.chunkKey(baseName, hash));
+        String actualHash = DedupS3Sink.sha256Hex(contents);
+        if(!actualHash.equals(hash)) {
+            throw new IOException("Chunk " + hash + " is corrupt, its contents hash to " + actualHash);
+        }
+        return contents;
+    }
+
+    protected static <T> T getResult(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof IOException) {
+                throw (IOException)e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    public class DedupSourceFile implements SourceFile {
+        private final String relativePath;
+        private final DedupRecipe recipe;
+
+        public DedupSourceFile(String relativePath, DedupRecipe recipe) {
+            this.relativePath = relativePath;
+            this.recipe = recipe;
+            assert !relativePath.startsWith("/");
+        }
+
+        @Override
+        public InputStream getFullInputStream() throws IOException {
+            return getPartialInputStream(0, recipe.getLength());
+        }
+
+        @Override
+        public InputStream getPartialInputStream(long offset, long len) throws IOException {
+            return new ChunkFetchingInputStream(recipe, offset, len);
+        }
+
+        @Override
+        public String getRelativePath() {
+            return relativePath;
+        }
+
+        @Override
+        public long getMTime() throws IOException {
+            return recipe.getMTime();
+        }
+
+        @Override
+        public long getLength() {
+            return recipe.getLength();
+        }
+    }
+
+    /**
+     * Reads a byte range of a file by fetching the chunks that cover it, keeping up to readAheadChunks
+     * fetches running ahead of the reader.
+     */
+    private class ChunkFetchingInputStream extends InputStream {
+        private final DedupRecipe recipe;
+        private final Deque<Future<byte[]>> inFlight = new ArrayDeque<Future<byte[]>>();
+        private final int lastChunk;
+        private int nextChunkToFetch;
+
+        private byte[] current = null;
+        private int currentPos;
+        private int currentEnd;
+        private long remaining;
+        private long skipInFirstChunk;
+
+        public ChunkFetchingInputStream(DedupRecipe recipe, long offset, long len) {
+            this.recipe = recipe;
+            this.remaining = len;
+            if(len > 0) {
+                this.nextChunkToFetch = recipe.chunkIndexForOffset(offset);
+                this.lastChunk = recipe.chunkIndexForOffset(offset + len - 1);
+                this.skipInFirstChunk = offset - recipe.getChunkOffset(nextChunkToFetch);
+            } else {
+                this.nextChunkToFetch = 0;
+                this.lastChunk = -1;
+            }
+            fillPipeline();
+        }
+
+        private void fillPipeline() {
+            while(inFlight.size() < readAheadChunks && nextChunkToFetch <= lastChunk) {
+                final String hash = recipe.getChunkHash(nextChunkToFetch++);
+                inFlight.add(fetchExecutor.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws Exception {
+                        return fetchChunk(hash);
+                    }
+                }));
+            }
+        }
+
+        /**
+         * @return false if there are no more bytes in the range.
+         */
+        private boolean ensureCurrent() throws IOException {
+            if(remaining <= 0) {
+                return false;
+            }
+            if(current != null && currentPos < currentEnd) {
+                return true;
+            }
+            Future<byte[]> next = inFlight.poll();
+            if(next == null) {
+                throw new IOException("Ran out of chunks with " + remaining + " bytes left to read");
+            }
+            current = getResult(next);
+            fillPipeline();
+            currentPos = (int)skipInFirstChunk;
+            skipInFirstChunk = 0;
+            currentEnd = (int)Math.min(current.length, currentPos + remaining);
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if(!ensureCurrent()) {
+                return -1;
+            }
+            remaining--;
+            return current[currentPos++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(len == 0) {
+                return 0;
+            }
+            if(!ensureCurrent()) {
+                return -1;
+            }
+            int toCopy = Math.min(len, currentEnd - currentPos);
+            System.arraycopy(current, currentPos, b, off, toCopy);
+            currentPos += toCopy;
+            remaining -= toCopy;
+            return toCopy;
+        }
+
+        @Override
+        public void close() {
+            for(Future<byte[]> future: inFlight) {
+                future.cancel(true);
+            }
+            inFlight.clear();
+            current = null;
+        }
+    }
+}
@@ -4,30 +4,45 @@ Copyright 2012 Urban Airship and Contributors
 
 package com.urbanairship.hbackup.datasources;
 
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
 
+import org.apache.hadoop.fs.BlockLocation;
 import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileChecksum;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.net.NetworkTopology;
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
 
-import com.google.common.io.LimitInputStream;
 import com.urbanairship.hbackup.HBackupConfig;
+import com.urbanairship.hbackup.IncrementalSource;
+import com.urbanairship.hbackup.NamespaceState;
+import com.urbanairship.hbackup.ReadAhead;
+import com.urbanairship.hbackup.SharedHandleFile;
 import com.urbanairship.hbackup.Source;
 import com.urbanairship.hbackup.SourceFile;
 
-public class HdfsSource extends Source {
+public class HdfsSource extends Source implements IncrementalSource {
     private static final Logger log = LogManager.getLogger(HdfsSource.class);
     private final FileSystem fs;
     private final URI baseUri;
     private final long mtimeAgeMillis;
+    private final long tailQuietMillis;
+    private final Pattern tailPattern; // Null unless growing files are tailed
+    private final List<String> tooNewPaths = new ArrayList<String>(); // Found by the last getFiles()
+    private final ReadAhead readAhead;
 
     public HdfsSource(URI sourceUri, HBackupConfig conf) 
             throws IOException, URISyntaxException {
@@ -35,15 +50,24 @@ public class HdfsSource extends Source {
         org.apache.hadoop.conf.Configuration hadoopConf = conf.hdfsSourceConf;
         this.fs = FileSystem.get(baseUri, hadoopConf);
         this.mtimeAgeMillis = conf.mtimeAgeMillis;
+        this.tailQuietMillis = conf.tailQuietMillis;
+        this.tailPattern = conf.tailPathsRegex == null ? null : Pattern.compile(conf.tailPathsRegex);
+        this.readAhead = new ReadAhead(conf, "hdfs-read-ahead");
     }
 
     @Override
     public List<SourceFile> getFiles(boolean recursive) throws IOException {
         List<SourceFile> hbFiles = new ArrayList<SourceFile>();
+        tooNewPaths.clear();
         addFiles(hbFiles, new Path(baseUri), recursive, "");
         return hbFiles;
     }
     
+    @Override
+    public List<String> getTooNewPaths() {
+        return tooNewPaths;
+    }
+    
     private void addFiles(List<SourceFile> files, Path path, boolean recursive, String relativeTo) throws IOException {
         FileStatus[] listing = fs.listStatus(path);
         
@@ -58,22 +82,103 @@ public class HdfsSource extends Source {
             } else { // stat isn't a directory, so it's a file
                 String filename = stat.getPath().toUri().getPath(); // Looks like /dir/dir/filename
                 long fileLength = stat.getLen();
-                if(System.currentTimeMillis() - stat.getModificationTime() < mtimeAgeMillis) {
+                String relativePath = relativeTo + stat.getPath().getName();
+                if(isTooNew(stat.getModificationTime()) && 
+                        !isGrowingTailedFile(relativePath, stat.getModificationTime())) {
                     log.debug("Skipping file under minimum mtime: " + filename);
+                    tooNewPaths.add(relativePath);
                 } else {
-                    files.add(new HdfsFile(stat, fs, relativeTo + stat.getPath().getName()));
+                    files.add(new HdfsFile(stat, fs, relativePath));
                 }
             }
         }
     }
     
+    /**
+     * Each directory whose mtime is unchanged costs one getFileStatus() call instead of a listing.
+     */
+    @Override
+    public List<SourceFile> getChangedFiles(NamespaceState state, boolean recursive) throws IOException {
+        List<SourceFile> hbFiles = new ArrayList<SourceFile>();
+        state.startPass();
+        addChangedFiles(hbFiles, state, new Path(baseUri), recursive, "");
+        state.finishPass();
+        return hbFiles;
+    }
+    
+    private void addChangedFiles(List<SourceFile> files, NamespaceState state, Path path, boolean recursive, 
+            String relativeTo) throws IOException {
+        long mtime;
+        try {
+            mtime = fs.getFileStatus(path).getModificationTime();
+        } catch (FileNotFoundException e) {
+            return; // Removed since its parent was listed
+        }
+        List<String> subdirs = state.getUnchangedSubdirs(relativeTo, mtime);
+        if(subdirs != null) {
+            if(recursive) {
+                for(String name: subdirs) {
+                    addChangedFiles(files, state, new Path(path, name), recursive, relativeTo + name + "/");
+                }
+            }
+            return;
+        }
+        
+        FileStatus[] listing = fs.listStatus(path);
+        if(listing == null) {
+            return;
+        }
+        state.listed(relativeTo, mtime);
+        for(FileStatus stat: listing) {
+            String name = stat.getPath().getName();
+            if(stat.isDir()) {
+                state.addSubdir(relativeTo, name);
+                if(recursive) {
+                    addChangedFiles(files, state, stat.getPath(), recursive, relativeTo + name + "/");
+                }
+            } else if(isGrowingTailedFile(relativeTo + name, stat.getModificationTime())) {
+                // Sent again on every pass until it's finished, so not recorded as sent
+                state.addIneligibleFile(relativeTo);
+                files.add(new HdfsFile(stat, fs, relativeTo + name));
+            } else if(isTooNew(stat.getModificationTime())) {
+                log.debug("Skipping file under minimum mtime: " + stat.getPath().toUri().getPath());
+                state.addIneligibleFile(relativeTo);
+            } else if(state.addFile(relativeTo, name, stat.getModificationTime(), stat.getLen())) {
+                files.add(new HdfsFile(stat, fs, relativeTo + name));
+            }
+        }
+    }
+    
+    /**
+     * @return whether a file is too new to back up yet. It may still be being written, so it's skipped, but
+     * files matching hbackup.tail.pathsRegex are listed anyway so their complete parts can be sent.
+     */
+    private boolean isTooNew(long mtime) {
+        return System.currentTimeMillis() - mtime < mtimeAgeMillis;
+    }
+    
+    /**
+     * @return whether a file should be listed even though it's too new, because it's tailed and hasn't
+     * stopped changing yet.
+     */
+    private boolean isGrowingTailedFile(String relativePath, long mtime) {
+        return tailPattern != null && tailPattern.matcher(relativePath).matches() &&
+                System.currentTimeMillis() - mtime < Math.max(mtimeAgeMillis, tailQuietMillis);
+    }
+
     /**
      * An implementation of SourceFile that knows how to read from HDFS. 
      */
-    private class HdfsFile implements SourceFile {
+    public class HdfsFile implements SharedHandleFile {
         private final FileStatus stat;
         private final FileSystem fs;
         private final String relativePath;
+        private BlockLocation[] blockLocations = null; // Fetched on first use
+        
+        // Guarded by "this"
+        private Handle handle = null; // The handle new partial streams read from, opened on first use
+        private int retained = 0;
+        private int numOpens = 0;
         
         public HdfsFile(FileStatus stat, FileSystem fs, String relativePath) {
             this.stat = stat;
@@ -84,14 +189,152 @@ public class HdfsSource extends Source {
         
         @Override
         public InputStream getFullInputStream() throws IOException {
-            return fs.open(stat.getPath());
+            return readAhead.wrap(fs.open(stat.getPath()));
         }
         
+        /**
+         * Partial streams share one open handle and read it with positional reads, which don't move the
+         * handle's position, so any number of chunks can read the file at once from a single open. This
+         * saves a namenode call for block locations per chunk and per retry.
+         */
         @Override
         public InputStream getPartialInputStream(long offset, long len) throws IOException {
-            FSDataInputStream is = fs.open(stat.getPath());
-            is.seek(offset);
-            return new LimitInputStream(is, len);
+            return readAhead.wrap(new PositionalInputStream(acquireHandle(), offset, len));
+        }
+        
+        @Override
+        public synchronized void retainHandle() {
+            retained++;
+        }
+        
+        @Override
+        public synchronized void releaseHandle() {
+            retained--;
+            if(handle != null) {
+                closeIfUnused(handle);
+            }
+        }
+        
+        /**
+         * @return how many times the file has been opened for partial streams.
+         */
+        public synchronized int getNumOpens() {
+            return numOpens;
+        }
+        
+        private synchronized Handle acquireHandle() throws IOException {
+            if(handle == null) {
+                handle = new Handle(fs.open(stat.getPath()));
+                numOpens++;
+            }
+            handle.users++;
+            return handle;
+        }
+        
+        private synchronized void returnHandle(Handle h, boolean failed) {
+            h.users--;
+            if(failed && h == handle) {
+                // The next stream gets a fresh handle, in case this one is in a bad state
+                handle = null;
+            }
+            closeIfUnused(h);
+        }
+        
+        private void closeIfUnused(Handle h) {
+            assert Thread.holdsLock(this);
+            if(h.users > 0 || (h == handle && retained > 0)) {
+                return;
+            }
+            if(h == handle) {
+                handle = null;
+            }
+            try {
+                h.is.close();
+            } catch (IOException e) {
+                log.debug("Exception closing " + relativePath, e);
+            }
+        }
+        
+        /**
+         * An open stream for the file, shared by partial streams.
+         */
+        private class Handle {
+            final FSDataInputStream is;
+            int users = 0; // Guarded by the HdfsFile
+            
+            Handle(FSDataInputStream is) {
+                this.is = is;
+            }
+        }
+        
+        /**
+         * Reads a range of the file from a shared handle using positional reads.
+         */
+        private class PositionalInputStream extends InputStream {
+            private final Handle h;
+            private long pos;
+            private final long end;
+            private boolean failed = false;
+            private boolean closed = false;
+            
+            PositionalInputStream(Handle h, long offset, long len) {
+                this.h = h;
+                this.pos = offset;
+                this.end = Math.min(offset + len, stat.getLen());
+            }
+            
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                int bytesRead = read(b, 0, 1);
+                return bytesRead == -1 ? -1 : b[0] & 0xff;
+            }
+            
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if(closed) {
+                    throw new IOException("Stream closed");
+                }
+                if(pos >= end) {
+                    return -1;
+                }
+                if(len == 0) {
+                    return 0;
+                }
+                int bytesRead;
+                try {
+                    bytesRead = h.is.read(pos, b, off, (int)Math.min(len, end - pos));
+                } catch (IOException e) {
+                    failed = true;
+                    throw e;
+                }
+                if(bytesRead == -1) {
+                    pos = end; // The file is shorter than when it was listed
+                    return -1;
+                }
+                pos += bytesRead;
+                return bytesRead;
+            }
+            
+            @Override
+            public long skip(long n) {
+                long skipped = Math.max(0, Math.min(n, end - pos));
+                pos += skipped;
+                return skipped;
+            }
+            
+            @Override
+            public int available() {
+                return 0;
+            }
+            
+            @Override
+            public void close() {
+                if(!closed) {
+                    closed = true;
+                    returnHandle(h, failed);
+                }
+            }
         }
         
         /**
@@ -114,5 +357,47 @@ public class HdfsSource extends Source {
         public long getLength() {
             return stat.getLen();
         }
+        
+        public long getBlockSize() {
+            return stat.getBlockSize();
+        }
+        
+        /**
+         * @return the filesystem's checksum of the whole file (an MD5 of per-block MD5s of CRCs for HDFS),
+         * or null if the filesystem doesn't provide one. The namenode and datanodes compute this from
+         * their stored CRCs, so the file data isn't transferred.
+         */
+        public FileChecksum getFileChecksum() throws IOException {
+            return fs.getFileChecksum(stat.getPath());
+        }
+        
+        /**
+         * @return the "/rack/host" topology paths of the datanodes holding any block in the given range. The
+         * file's block locations are fetched from the namenode once and reused for every range.
+         */
+        public List<String> getLocations(long offset, long len) throws IOException {
+            BlockLocation[] blocks;
+            synchronized(this) {
+                if(blockLocations == null) {
+                    blockLocations = fs.getFileBlockLocations(stat, 0, stat.getLen());
+                }
+                blocks = blockLocations;
+            }
+            Set<String> locations = new LinkedHashSet<String>();
+            for(BlockLocation block: blocks) {
+                if(block.getOffset() >= offset + len || block.getOffset() + block.getLength() <= offset) {
+                    continue;
+                }
+                String[] paths = block.getTopologyPaths();
+                if(paths != null && paths.length > 0) {
+                    locations.addAll(Arrays.asList(paths));
+                } else {
+                    for(String host: block.getHosts()) {
+                        locations.add(NetworkTopology.DEFAULT_RACK + "/" + host);
+                    }
+                }
+            }
+            return new ArrayList<String>(locations);
+        }
     }
 }
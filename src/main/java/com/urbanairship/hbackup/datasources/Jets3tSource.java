@@ -4,25 +4,39 @@ Copyright 2012 Urban Airship and Contributors
 
 package com.urbanairship.hbackup.datasources;
 
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
 import org.jets3t.service.S3Service;
 import org.jets3t.service.S3ServiceException;
 import org.jets3t.service.ServiceException;
-import org.jets3t.service.impl.rest.httpclient.RestS3Service;
 import org.jets3t.service.model.S3Object;
 import org.jets3t.service.model.StorageObject;
 
+import com.urbanairship.hbackup.BackupCatalog;
 import com.urbanairship.hbackup.Constant;
+import com.urbanairship.hbackup.S3Catalog;
+import com.urbanairship.hbackup.S3Clients;
+import com.urbanairship.hbackup.S3KeyLayout;
 import com.urbanairship.hbackup.SourceFile;
 import com.urbanairship.hbackup.HBackupConfig;
+import com.urbanairship.hbackup.ReadAhead;
+import com.urbanairship.hbackup.PackIndex;
 import com.urbanairship.hbackup.Source;
+import com.urbanairship.hbackup.Util;
+import com.urbanairship.hbackup.compression.FrameDecompressingInputStream;
+import com.urbanairship.hbackup.compression.FrameIndex;
+import com.urbanairship.hbackup.datasinks.Jets3tSink;
 
 public class Jets3tSource extends Source {
     private static final Logger log = LogManager.getLogger(Jets3tSource.class);
@@ -30,9 +44,16 @@ public class Jets3tSource extends Source {
     private final S3Service s3Service;
     private final String bucketName;
     private final String baseName;
+    private final S3KeyLayout layout;
+    private final S3Catalog catalog; // Null if there's no catalog or it isn't used
+    private final String catalogPrefix;
+    private final int listingThreads;
+    private final ReadAhead readAhead;
     
     public Jets3tSource(URI uri, HBackupConfig conf) throws IOException {
         this.bucketName = uri.getHost();
+        this.listingThreads = conf.concurrentFiles;
+        this.readAhead = new ReadAhead(conf, "s3-read-ahead");
         
         // The basename should consist of zero or more repetitions of "somestring/".
         // Specifically:
@@ -48,47 +69,250 @@ public class Jets3tSource extends Source {
         }
         this.baseName = tempBaseName;
         
-        try {
-            s3Service = new RestS3Service(conf.s3SourceCredentials);
-        } catch (S3ServiceException e) {
-            throw new IOException(e);
-        }
+        s3Service = S3Clients.getInstance().get(conf.s3SourceCredentials, S3Clients.poolSize(conf));
+        this.layout = S3KeyLayout.forStore(s3Service, bucketName, baseName, conf.s3KeyShardChars, false);
+        this.catalog = conf.catalog ? S3Catalog.latest(s3Service, bucketName, baseName) : null;
+        this.catalogPrefix = Util.literalPrefix(conf.includePathsRegex);
     }
 
+    /**
+     * Files stored by themselves are read from the catalog if there is one, or else found by listing the
+     * objects. A listed object's metadata, which says whether it's compressed, how long the original file
+     * was and what its source mtime is, is only fetched once it's needed. Files in packs are listed from the
+     * pack indexes. If a file is both packed and stored by itself, the copy with the newer mtime is used.
+     */
     @Override
     public List<SourceFile> getFiles(boolean recursive) throws IOException {
-        List<SourceFile> outFiles = new ArrayList<SourceFile>();
+        List<String> packIndexKeys = new ArrayList<String>();
         try {
-            S3Object[] listing = s3Service.listObjects(bucketName, baseName, null);
-            for(S3Object s3Obj: listing) {
-                // Get the "file name" relative to the hbackup source "directory"
-                String relativePath = s3Obj.getKey().substring(baseName.length());
-                if(relativePath.startsWith("/")) {
-                    relativePath = relativePath.substring(1);
+            for(S3Object s3Obj: s3Service.listObjects(bucketName, baseName + Constant.PACK_PREFIX, null)) {
+                if(s3Obj.getKey().endsWith(Constant.PACK_INDEX_SUFFIX)) {
+                    packIndexKeys.add(s3Obj.getKey());
                 }
-                outFiles.add(new Jets3tSourceFile(s3Obj, relativePath));
             }
-            return outFiles;
         } catch (S3ServiceException e) {
             throw new IOException(e);
         }
+        Map<String, SourceFile> packedFiles = getPackedFiles(packIndexKeys);
+        
+        List<Jets3tSourceFile> files = catalog != null ? getCatalogFiles() : getListedFiles();
+        List<SourceFile> outFiles = new ArrayList<SourceFile>();
+        for(Jets3tSourceFile file: files) {
+            String relativePath = file.getRelativePath();
+            SourceFile packedFile = packedFiles.get(relativePath);
+            if(packedFile != null && packedFile.getMTime() > file.getMTime()) {
+                continue; // The packed copy is newer, it'll be added below
+            }
+            packedFiles.remove(relativePath);
+            outFiles.add(file);
+        }
+        outFiles.addAll(packedFiles.values());
+        return outFiles;
+    }
+    
+    /**
+     * Only the part of the catalog that can hold paths matching hbackup.includePathsRegex is read, which is
+     * everything starting with the regex's literal prefix. The files are assumed to still be there; a file
+     * deleted since the catalog was written fails when it's read.
+     */
+    private List<Jets3tSourceFile> getCatalogFiles() throws IOException {
+        List<Jets3tSourceFile> files = new ArrayList<Jets3tSourceFile>();
+        for(BackupCatalog.Entry entry: catalog.list(catalogPrefix)) {
+            files.add(new Jets3tSourceFile(entry));
+        }
+        log.debug("Found " + files.size() + " files under \"" + catalogPrefix + "\" in catalog " + 
+                catalog.getKey());
+        return files;
+    }
+    
+    /**
+     * A store with a sharded key layout has its shards listed in parallel.
+     */
+    private List<Jets3tSourceFile> getListedFiles() throws IOException {
+        List<Jets3tSourceFile> files = new ArrayList<Jets3tSourceFile>();
+        for(S3Object s3Obj: layout.listFileObjects(s3Service, bucketName, listingThreads)) {
+            // Get the "file name" relative to the hbackup source "directory"
+            files.add(new Jets3tSourceFile(s3Obj, layout.relativePath(s3Obj.getKey())));
+        }
+        return files;
+    }
+    
+    /**
+     * @return the newest packed copy of each file in the given packs, by relative path.
+     */
+    private Map<String, SourceFile> getPackedFiles(List<String> packIndexKeys) throws IOException {
+        // Pack names start with their creation time, so later packs override earlier ones
+        Collections.sort(packIndexKeys);
+        Map<String, SourceFile> packedFiles = new LinkedHashMap<String, SourceFile>();
+        for(String indexKey: packIndexKeys) {
+            String packKey = indexKey.substring(0, indexKey.length() - Constant.PACK_INDEX_SUFFIX.length());
+            for(PackIndex.Entry entry: Jets3tSink.readPackIndex(s3Service, bucketName, indexKey).getEntries()) {
+                packedFiles.put(entry.relativePath, new PackedFile(packKey, entry));
+            }
+        }
+        return packedFiles;
+    }
+    
+    /**
+     * A small file stored inside a pack object, read with ranged GETs of the pack.
+     */
+    public class PackedFile implements SourceFile {
+        private final String packKey;
+        private final PackIndex.Entry entry;
+        
+        public PackedFile(String packKey, PackIndex.Entry entry) {
+            this.packKey = packKey;
+            this.entry = entry;
+        }
+        
+        @Override
+        public InputStream getFullInputStream() throws IOException {
+            return getPartialInputStream(0, entry.length);
+        }
+        
+        @Override
+        public InputStream getPartialInputStream(long offset, long len) throws IOException {
+            if(len == 0) {
+                return new ByteArrayInputStream(new byte[0]);
+            }
+            try {
+                long start = entry.offset + offset;
+                return s3Service.getObject(bucketName, packKey, null, null, null, null, 
+                        start, start + len - 1).getDataInputStream();
+            } catch (ServiceException e) {
+                throw new IOException(e);
+            }
+        }
+        
+        @Override
+        public String getRelativePath() {
+            return entry.relativePath;
+        }
+        
+        @Override
+        public long getMTime() {
+            return entry.mtime;
+        }
+        
+        @Override
+        public long getLength() {
+            return entry.length;
+        }
+    }
+    
+    /**
+     * @return the source mtime from the object's metadata, or its last-modified time if it has none.
+     */
+    private static long sourceMTime(S3Object s3Obj, StorageObject detailsObj) {
+        Object metadataObj = detailsObj.getMetadata(Constant.S3_SOURCE_MTIME);
+        if(metadataObj == null) {
+            // Fall back to the S3 last-modified time if no source mtime metadata exists
+            log.debug("Source object had no source mtime metadata, falling back to last-modified time");
+            return s3Obj.getLastModifiedDate().getTime();
+        }
+        if(!(metadataObj instanceof String)) {
+            log.debug("Source object mtime metadata should have been a string but was " +
+                    metadataObj + ", falling back to last-modified time for " + s3Obj.getKey());
+            return s3Obj.getLastModifiedDate().getTime();
+        }
+        try {
+            return Long.valueOf((String)detailsObj.getMetadata(Constant.S3_SOURCE_MTIME));
+        } catch (NumberFormatException e) {
+            log.debug("Source object mtime metadata couldn't be parsed for " + s3Obj.getKey() +
+                    ", was " + metadataObj + ". Falling back to last-modified time");
+            return s3Obj.getLastModifiedDate().getTime();
+        }
     }
     
-    private class Jets3tSourceFile implements SourceFile {
-        private final S3Object s3Obj;
+    public class Jets3tSourceFile implements SourceFile {
+        private final String key;
+        private final long objectLength;
         private final String relativePath;
+        private final String etag;
+        private FrameIndex frameIndex = null; // Loaded on first read if compressed
+        
+        // For a listed object, these come from its metadata, which is fetched by the first call that needs
+        // them. Files excluded by hbackup.includePathsRegex are never read and never cost a HEAD request.
+        private final S3Object listedObj; // Null if the file came from a catalog
+        private boolean detailsLoaded;
+        private boolean compressed;
+        private long length;
+        private long mtime;
         
         public Jets3tSourceFile(S3Object s3Obj, String relativePath) {
-            this.s3Obj = s3Obj; 
+            this.key = s3Obj.getKey();
+            this.objectLength = s3Obj.getContentLength();
             this.relativePath = relativePath;
+            this.etag = s3Obj.getETag();
+            this.listedObj = s3Obj;
+            this.detailsLoaded = false;
             assert !relativePath.startsWith("/");
         }
         
+        public Jets3tSourceFile(BackupCatalog.Entry entry) throws IOException {
+            this.key = entry.key;
+            this.objectLength = entry.storedLength;
+            this.relativePath = entry.relativePath;
+            this.etag = entry.etag.length() == 0 ? null : entry.etag;
+            this.listedObj = null;
+            this.detailsLoaded = true;
+            this.length = entry.length;
+            this.mtime = entry.mtime;
+            if(entry.compression.length() == 0) {
+                compressed = false;
+            } else if(Constant.COMPRESSION_DEFLATE_FRAMES.equals(entry.compression)) {
+                compressed = true;
+            } else {
+                throw new IOException("Unknown compression \"" + entry.compression + "\" for " + entry.key);
+            }
+        }
+        
+        /**
+         * Get the object's metadata with a HEAD request, if it hasn't been already.
+         */
+        private synchronized void loadDetails() throws IOException {
+            if(detailsLoaded) {
+                return;
+            }
+            StorageObject detailsObj;
+            try {
+                detailsObj = s3Service.getObjectDetails(bucketName, key);
+            } catch (ServiceException e) {
+                throw new IOException(e);
+            }
+            
+            Object compressionObj = detailsObj.getMetadata(Constant.S3_COMPRESSION);
+            if(compressionObj == null) {
+                compressed = false;
+                length = listedObj.getContentLength();
+            } else if(Constant.COMPRESSION_DEFLATE_FRAMES.equals(compressionObj)) {
+                compressed = true;
+                try {
+                    length = Long.valueOf((String)detailsObj.getMetadata(Constant.S3_SOURCE_LENGTH));
+                } catch (RuntimeException e) {
+                    throw new IOException("Compressed object " + key + " has missing or " +
+                            "malformed source length metadata", e);
+                }
+            } else {
+                throw new IOException("Unknown compression \"" + compressionObj + "\" for " + key);
+            }
+            mtime = sourceMTime(listedObj, detailsObj);
+            detailsLoaded = true;
+        }
+        
+        private synchronized boolean isCompressed() throws IOException {
+            loadDetails();
+            return compressed;
+        }
+        
         @Override
         public InputStream getFullInputStream() throws IOException {
+            if(isCompressed()) {
+                return getPartialInputStream(0, getLength());
+            }
             try {
-                S3Object completeObj = s3Service.getObject(bucketName, s3Obj.getKey());
-                return completeObj.getDataInputStream();
+                S3Object completeObj = s3Service.getObject(bucketName, key);
+                return readAhead.wrap(completeObj.getDataInputStream());
             } catch (ServiceException e) {
                 throw new IOException(e);
             }
@@ -96,11 +320,14 @@ public class Jets3tSource extends Source {
         
         @Override
         public InputStream getPartialInputStream(long offset, long len) throws IOException {
+            if(isCompressed()) {
+                return readAhead.wrap(getDecompressedRange(offset, len));
+            }
             try {
                 // The end of the byte range is "offset+len-1" because it's end-inclusive
-                S3Object completeObj = s3Service.getObject(bucketName, s3Obj.getKey(), null,
+                S3Object completeObj = s3Service.getObject(bucketName, key, null,
                         null, null, null, offset, offset + len - 1);
-                return completeObj.getDataInputStream();
+                return readAhead.wrap(completeObj.getDataInputStream());
             } catch (ServiceException e) {
                 throw new IOException(e);
             }
@@ -112,36 +339,84 @@ public class Jets3tSource extends Source {
         }
     
         @Override
-        public long getMTime() throws IOException {
+        public synchronized long getMTime() throws IOException {
+            loadDetails();
+            return mtime;
+        }
+    
+        /**
+         * A compressed object's source length is in its metadata, so this may need a HEAD request. Since
+         * getLength() can't throw IOException, a failed request is rethrown unchecked.
+         */
+        @Override
+        public synchronized long getLength() {
             try {
-                StorageObject detailsObj = s3Service.getObjectDetails(s3Obj.getBucketName(), s3Obj.getKey());
-                Object metadataObj = detailsObj.getMetadata(Constant.S3_SOURCE_MTIME);
-                if(metadataObj == null) {
-                    // Fall back to the S3 last-modified time if no source mtime metadata exists
-                    log.debug("Source object had no source mtime metadata, falling back to last-modified time");
-                    return s3Obj.getLastModifiedDate().getTime();
-                }
-                if(!(metadataObj instanceof String)) {
-                    log.debug("Source object mtime metadata should have been a string but was " +
-                            metadataObj + ", falling back to last-modified time for " + s3Obj.getKey());
-                    return s3Obj.getLastModifiedDate().getTime();
-                }
-                try {
-                    return Long.valueOf((String)detailsObj.getMetadata(Constant.S3_SOURCE_MTIME));
-                } catch (NumberFormatException e) {
-                    log.debug("Source object mtime metadata couldn't be parsed for " + s3Obj.getKey() +
-                            ", was " + metadataObj + ". Falling back to last-modified time");
-                    return s3Obj.getLastModifiedDate().getTime();
+                loadDetails();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            return length;
+        }
+        
+        /**
+         * Read a range of a compressed object by fetching just the frames that cover it.
+         */
+        private InputStream getDecompressedRange(long offset, long len) throws IOException {
+            if(len == 0) {
+                return new ByteArrayInputStream(new byte[0]);
+            }
+            FrameIndex index = getFrameIndex();
+            List<FrameIndex.Entry> frames = index.getEntries();
+            FrameIndex.Entry firstFrame = frames.get(index.frameForOffset(offset));
+            FrameIndex.Entry lastFrame = frames.get(index.frameForOffset(offset + len - 1));
+            InputStream compressedStream = getRange(firstFrame.compressedOffset,
+                    lastFrame.compressedOffset + lastFrame.frameLength - 1);
+            return new FrameDecompressingInputStream(compressedStream, 
+                    offset - firstFrame.uncompressedOffset, len);
+        }
+        
+        private synchronized FrameIndex getFrameIndex() throws IOException {
+            if(frameIndex == null) {
+                long objLen = objectLength;
+                long indexStart = FrameIndex.parseFooter(readRange(objLen - FrameIndex.FOOTER_LENGTH, objLen - 1));
+                frameIndex = FrameIndex.parse(readRange(indexStart, objLen - FrameIndex.FOOTER_LENGTH - 1));
+                if(frameIndex.getUncompressedLength() != length) {
+                    throw new IOException("Frame index for " + key + " covers " + 
+                            frameIndex.getUncompressedLength() + " bytes but the file has " + length);
                 }
-                
+            }
+            return frameIndex;
+        }
+        
+        private InputStream getRange(long firstByte, long lastByte) throws IOException {
+            try {
+                return s3Service.getObject(bucketName, key, null, null, null, null, 
+                        firstByte, lastByte).getDataInputStream();
             } catch (ServiceException e) {
                 throw new IOException(e);
             }
         }
-    
-        @Override
-        public long getLength() {
-            return s3Obj.getContentLength();
+        
+        private byte[] readRange(long firstByte, long lastByte) throws IOException {
+            byte[] buf = new byte[(int)(lastByte - firstByte + 1)];
+            DataInputStream dis = new DataInputStream(getRange(firstByte, lastByte));
+            try {
+                dis.readFully(buf);
+            } finally {
+                dis.close();
+            }
+            return buf;
+        }
+        
+        /**
+         * @return the object's ETag as given in the bucket listing or catalog, without quotes.
+         */
+        public String getETag() {
+            String etag = this.etag;
+            if(etag != null && etag.length() >= 2 && etag.startsWith("\"") && etag.endsWith("\"")) {
+                etag = etag.substring(1, etag.length() - 1);
+            }
+            return etag;
         }
     }
 }
@@ -0,0 +1,256 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup.datasources;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import com.urbanairship.hbackup.HBackupConfig;
+import com.urbanairship.hbackup.IncrementalSource;
+import com.urbanairship.hbackup.NamespaceState;
+import com.urbanairship.hbackup.Source;
+import com.urbanairship.hbackup.SourceFile;
+import com.urbanairship.hbackup.datasinks.LocalSink;
+
+/**
+ * A source for file:// URIs that reads the local filesystem directly instead of through Hadoop's
+ * LocalFileSystem. Reads are positional reads on a FileChannel straight into the caller's buffer, so
+ * any number of chunks of one file can be read in parallel without sharing a file position.
+ */
+public class LocalSource extends Source implements IncrementalSource {
+    private static final Logger log = LogManager.getLogger(LocalSource.class);
+    private final File baseDir;
+    private final long mtimeAgeMillis;
+    private final long tailQuietMillis;
+    private final Pattern tailPattern; // Null unless growing files are tailed
+    private final List<String> tooNewPaths = new ArrayList<String>(); // Found by the last getFiles()
+
+    public LocalSource(URI uri, HBackupConfig conf) {
+        this.baseDir = new File(uri.getPath());
+        this.mtimeAgeMillis = conf.mtimeAgeMillis;
+        this.tailQuietMillis = conf.tailQuietMillis;
+        this.tailPattern = conf.tailPathsRegex == null ? null : Pattern.compile(conf.tailPathsRegex);
+    }
+
+    @Override
+    public List<SourceFile> getFiles(boolean recursive) throws IOException {
+        if(!baseDir.isDirectory()) {
+            throw new IOException("Source directory doesn't exist or isn't a directory: " + baseDir);
+        }
+        List<SourceFile> files = new ArrayList<SourceFile>();
+        tooNewPaths.clear();
+        addFiles(files, baseDir, recursive, "");
+        return files;
+    }
+    
+    @Override
+    public List<String> getTooNewPaths() {
+        return tooNewPaths;
+    }
+
+    private void addFiles(List<SourceFile> files, File dir, boolean recursive, String relativeTo)
+            throws IOException {
+        File[] listing = dir.listFiles();
+        if(listing == null) {
+            throw new IOException("Couldn't list directory " + dir);
+        }
+        for(File file: listing) {
+            if(file.isDirectory()) {
+                if(recursive) {
+                    addFiles(files, file, recursive, relativeTo + file.getName() + "/");
+                }
+            } else if(LocalSink.isWorkFile(file.getName())) {
+                log.debug("Skipping partially written file: " + file);
+            } else if(isGrowingTailedFile(relativeTo + file.getName(), file.lastModified())) {
+                files.add(new LocalFile(file, relativeTo + file.getName()));
+            } else if(isTooNew(file.lastModified())) {
+                log.debug("Skipping file under minimum mtime: " + file);
+                tooNewPaths.add(relativeTo + file.getName());
+            } else {
+                files.add(new LocalFile(file, relativeTo + file.getName()));
+            }
+        }
+    }
+
+    @Override
+    public List<SourceFile> getChangedFiles(NamespaceState state, boolean recursive) throws IOException {
+        if(!baseDir.isDirectory()) {
+            throw new IOException("Source directory doesn't exist or isn't a directory: " + baseDir);
+        }
+        List<SourceFile> files = new ArrayList<SourceFile>();
+        state.startPass();
+        addChangedFiles(files, state, baseDir, recursive, "");
+        state.finishPass();
+        return files;
+    }
+
+    private void addChangedFiles(List<SourceFile> files, NamespaceState state, File dir, boolean recursive, 
+            String relativeTo) throws IOException {
+        long mtime = dir.lastModified();
+        if(mtime == 0) {
+            return; // Removed since its parent was listed
+        }
+        List<String> subdirs = state.getUnchangedSubdirs(relativeTo, mtime);
+        if(subdirs != null) {
+            if(recursive) {
+                for(String name: subdirs) {
+                    addChangedFiles(files, state, new File(dir, name), recursive, relativeTo + name + "/");
+                }
+            }
+            return;
+        }
+        
+        File[] listing = dir.listFiles();
+        if(listing == null) {
+            throw new IOException("Couldn't list directory " + dir);
+        }
+        state.listed(relativeTo, mtime);
+        for(File file: listing) {
+            if(file.isDirectory()) {
+                state.addSubdir(relativeTo, file.getName());
+                if(recursive) {
+                    addChangedFiles(files, state, file, recursive, relativeTo + file.getName() + "/");
+                }
+            } else if(LocalSink.isWorkFile(file.getName())) {
+                log.debug("Skipping partially written file: " + file);
+            } else if(isGrowingTailedFile(relativeTo + file.getName(), file.lastModified())) {
+                // Sent again on every pass until it's finished, so not recorded as sent
+                state.addIneligibleFile(relativeTo);
+                files.add(new LocalFile(file, relativeTo + file.getName()));
+            } else if(isTooNew(file.lastModified())) {
+                log.debug("Skipping file under minimum mtime: " + file);
+                state.addIneligibleFile(relativeTo);
+            } else {
+                LocalFile localFile = new LocalFile(file, relativeTo + file.getName());
+                if(state.addFile(relativeTo, file.getName(), localFile.getMTime(), localFile.getLength())) {
+                    files.add(localFile);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return whether a file is too new to back up yet. It may still be being written, so it's skipped, but
+     * files matching hbackup.tail.pathsRegex are listed anyway so their complete parts can be sent.
+     */
+    private boolean isTooNew(long mtime) {
+        return System.currentTimeMillis() - mtime < mtimeAgeMillis;
+    }
+    
+    /**
+     * @return whether a file should be listed even though it's too new, because it's tailed and hasn't
+     * stopped changing yet.
+     */
+    private boolean isGrowingTailedFile(String relativePath, long mtime) {
+        return tailPattern != null && tailPattern.matcher(relativePath).matches() &&
+                System.currentTimeMillis() - mtime < Math.max(mtimeAgeMillis, tailQuietMillis);
+    }
+
+    public static class LocalFile implements SourceFile {
+        private final File file;
+        private final String relativePath;
+        private final long length;
+        private final long mtime;
+
+        public LocalFile(File file, String relativePath) {
+            this.file = file;
+            this.relativePath = relativePath;
+            // Take these once, so they stay consistent with each other while the file is being copied
+            this.length = file.length();
+            this.mtime = file.lastModified();
+            assert !relativePath.startsWith("/");
+        }
+
+        @Override
+        public InputStream getFullInputStream() throws IOException {
+            return getPartialInputStream(0, length);
+        }
+
+        @Override
+        public InputStream getPartialInputStream(long offset, long len) throws IOException {
+            return new ChannelInputStream(new FileInputStream(file).getChannel(), offset, len);
+        }
+
+        @Override
+        public String getRelativePath() {
+            return relativePath;
+        }
+
+        @Override
+        public long getMTime() {
+            return mtime;
+        }
+
+        @Override
+        public long getLength() {
+            return length;
+        }
+    }
+
+    /**
+     * Reads a range of a file with positional reads, which don't move the channel's position and go
+     * directly into the caller's array.
+     */
+    private static class ChannelInputStream extends InputStream {
+        private final FileChannel channel;
+        private long position;
+        private long remaining;
+
+        public ChannelInputStream(FileChannel channel, long offset, long len) {
+            this.channel = channel;
+            this.position = offset;
+            this.remaining = len;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int bytesRead = read(b, 0, 1);
+            return bytesRead == -1 ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(len == 0) {
+                return 0;
+            }
+            if(remaining <= 0) {
+                return -1;
+            }
+            int toRead = (int)Math.min(len, remaining);
+            int bytesRead = channel.read(ByteBuffer.wrap(b, off, toRead), position);
+            if(bytesRead == -1) {
+                throw new IOException("File ended " + remaining + " bytes early, was it truncated?");
+            }
+            position += bytesRead;
+            remaining -= bytesRead;
+            return bytesRead;
+        }
+
+        @Override
+        public long skip(long n) {
+            long toSkip = Math.max(0, Math.min(n, remaining));
+            position += toSkip;
+            remaining -= toSkip;
+            return toSkip;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
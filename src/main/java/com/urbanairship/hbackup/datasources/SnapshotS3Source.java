@@ -0,0 +1,75 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup.datasources;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import com.urbanairship.hbackup.DedupRecipe;
+import com.urbanairship.hbackup.HBackupConfig;
+import com.urbanairship.hbackup.SnapshotManifest;
+import com.urbanairship.hbackup.SourceFile;
+import com.urbanairship.hbackup.datasinks.SnapshotS3Sink;
+
+/**
+ * Reads back one snapshot taken by {@link SnapshotS3Sink} as a tree of files, for restores. The snapshot
+ * is conf.snapshotId, or the latest one if that isn't set. Files are read from the content-addressed
+ * chunks just like a {@link DedupS3Source} reads them.
+ */
+public class SnapshotS3Source extends DedupS3Source {
+    private static final Logger log = LogManager.getLogger(SnapshotS3Source.class);
+
+    private final String snapshotId;
+
+    public SnapshotS3Source(URI uri, HBackupConfig conf) throws IOException {
+        super(uri, conf);
+        this.snapshotId = conf.snapshotId;
+    }
+
+    @Override
+    public List<SourceFile> getFiles(boolean recursive) throws IOException {
+        String id = snapshotId;
+        if(id == null) {
+            id = SnapshotS3Sink.latestSnapshotId(s3Service, bucketName, baseName);
+            if(id == null) {
+                throw new IOException("No snapshots in " + bucketName + "/" + baseName);
+            }
+        }
+        SnapshotManifest manifest = SnapshotS3Sink.readManifest(s3Service, bucketName, baseName, id);
+
+        // Read the recipes in parallel, since there's one request per file
+        List<SnapshotManifest.Entry> entries = new ArrayList<SnapshotManifest.Entry>(manifest.getEntries());
+        List<Future<DedupRecipe>> recipeFutures = new ArrayList<Future<DedupRecipe>>(entries.size());
+        for(final SnapshotManifest.Entry entry: entries) {
+            recipeFutures.add(fetchExecutor.submit(new Callable<DedupRecipe>() {
+                @Override
+                public DedupRecipe call() throws Exception {
+                    return DedupRecipe.parse(new ByteArrayInputStream(fetchChunk(entry.recipeHash)));
+                }
+            }));
+        }
+
+        List<SourceFile> outFiles = new ArrayList<SourceFile>(entries.size());
+        for(int i=0; i<entries.size(); i++) {
+            SnapshotManifest.Entry entry = entries.get(i);
+            DedupRecipe recipe = getResult(recipeFutures.get(i));
+            if(recipe.getLength() != entry.length) {
+                throw new IOException("Snapshot " + id + " says " + entry.relativePath + " is " + entry.length +
+                        " bytes but its recipe has " + recipe.getLength());
+            }
+            outFiles.add(new DedupSourceFile(entry.relativePath, recipe));
+        }
+        log.debug("Read snapshot " + id + " of " + outFiles.size() + " files from " + bucketName + "/" + baseName);
+        return outFiles;
+    }
+}
@@ -6,7 +6,9 @@ package com.urbanairship.hbackup.service;
 
 
 import com.google.common.util.concurrent.AbstractIdleService;
+import com.google.common.util.concurrent.Service;
 import com.urbanairship.hbackup.*;
+import com.urbanairship.hbackup.service.tasks.HBackupContinuous;
 import com.urbanairship.hbackup.service.tasks.HBackupScheduled;
 import com.urbanairship.hbackup.service.tasks.StaleCheckScheduled;
 import org.apache.log4j.LogManager;
@@ -19,6 +21,7 @@ import org.apache.log4j.Logger;
  * and
  * -Dhbackup.stalecheck.interval=<hour interval>
  *
+ * With -Dhbackup.continuous=true the backup runs continuously instead, see {@link HBackupContinuous}.
  */
 public class BackupService extends AbstractIdleService {
 
@@ -27,7 +30,7 @@ public class BackupService extends AbstractIdleService {
 
     private final HBackupConfig configuration;
 
-    private HBackupScheduled backupThreadService;
+    private Service backupThreadService;
     private StaleCheckScheduled staleCheckScheduled;
 
     public static void main(String... args) throws Exception {
@@ -50,7 +53,11 @@ public class BackupService extends AbstractIdleService {
 
     @Override
     protected void startUp() throws Exception {
-        backupThreadService = new HBackupScheduled(configuration);
+        if (configuration.continuous) {
+            backupThreadService = new HBackupContinuous(configuration);
+        } else {
+            backupThreadService = new HBackupScheduled(configuration);
+        }
         backupThreadService.startAndWait();
         int staleCheckInterval = configuration.staleCheckIntervalMinutes;
         if (staleCheckInterval > 0) {
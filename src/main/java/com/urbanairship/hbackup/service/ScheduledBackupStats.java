@@ -4,6 +4,7 @@ Copyright 2012 Urban Airship and Contributors
 
 package com.urbanairship.hbackup.service;
 
+import com.urbanairship.hbackup.S3Clients;
 import com.urbanairship.hbackup.Stats;
 import org.joda.time.DateTime;
 import org.joda.time.Seconds;
@@ -72,4 +73,19 @@ public class ScheduledBackupStats implements ScheduledBackupStatsMXBean {
         Seconds seconds = Seconds.secondsBetween(lastRunDate, new DateTime());
         return seconds.getSeconds();
     }
+
+    @Override
+    public long getS3Requests() {
+        return S3Clients.getInstance().getNumRequests();
+    }
+
+    @Override
+    public long getS3ConnectionsReused() {
+        return S3Clients.getInstance().getNumConnectionsReused();
+    }
+
+    @Override
+    public long getS3PoolWaitMillis() {
+        return S3Clients.getInstance().getPoolWaitMillis();
+    }
 }
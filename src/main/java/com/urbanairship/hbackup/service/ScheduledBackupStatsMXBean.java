@@ -20,4 +20,8 @@ public interface ScheduledBackupStatsMXBean {
     public int getNumChecksumsFailed();
     public String getLastDateRan();
     public int getSecondsSinceLastUpdate();
+    // S3 connection pool totals since the service started, across runs
+    public long getS3Requests();
+    public long getS3ConnectionsReused();
+    public long getS3PoolWaitMillis();
 }
@@ -0,0 +1,116 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup.service.tasks;
+
+import com.google.common.util.concurrent.AbstractExecutionThreadService;
+import com.urbanairship.hbackup.HBackup;
+import com.urbanairship.hbackup.HBackupConfig;
+import com.urbanairship.hbackup.NamespaceState;
+import com.urbanairship.hbackup.Stats;
+import com.urbanairship.hbackup.service.ScheduledBackupStats;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Timer;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the backup continuously instead of on a schedule. Each pass lists only the source directories that
+ * changed since the last pass, using the listings kept in a {@link NamespaceState}, and sends the new and
+ * changed files it finds. Passes start every hbackup.continuous.pollSeconds, so a new file is backed up
+ * within about that long of becoming eligible. Every hbackup.intervalMins the state is cleared and the
+ * pass lists the whole source, to catch anything the incremental passes can't see.
+ */
+public class HBackupContinuous extends AbstractExecutionThreadService {
+
+    private static final Logger log = LogManager.getLogger(HBackupContinuous.class);
+
+    private final HBackupConfig config;
+    private final NamespaceState namespaceState = new NamespaceState();
+    private final ScheduledBackupStats backupStatsMBean = new ScheduledBackupStats();
+    private final Timer timer = Metrics.newTimer(HBackup.class, "Continuous Backup Pass");
+    private final MBeanServer platformMBeanServer = ManagementFactory.getPlatformMBeanServer();
+    private final Object wakeup = new Object();
+
+    private volatile Stats lastRunStats = new Stats();
+
+    private ObjectName jmxName;
+
+    public HBackupContinuous(HBackupConfig config) {
+        this.config = config;
+        try {
+            this.jmxName = new ObjectName("com.urbanairship.service:Type=Backup, name=Last Run");
+        } catch (MalformedObjectNameException e) {
+            log.error("Error registering jmx bean : ",e);
+        }
+    }
+
+    @Override
+    protected void run() throws Exception {
+        long fullPassMillis = TimeUnit.MINUTES.toMillis(config.backupIntervalMinutes);
+        long lastFullPass = System.currentTimeMillis();
+        while (isRunning()) {
+            if (fullPassMillis > 0 && System.currentTimeMillis() - lastFullPass >= fullPassMillis) {
+                log.info("Starting a full pass over the source.");
+                namespaceState.clear();
+                lastFullPass = System.currentTimeMillis();
+            }
+            runOnePass();
+            synchronized (wakeup) {
+                if (isRunning()) {
+                    wakeup.wait(TimeUnit.SECONDS.toMillis(config.continuousPollSeconds));
+                }
+            }
+        }
+    }
+
+    private void runOnePass() {
+        try {
+            log.debug("Backup pass starting.");
+            long start = System.nanoTime();
+
+            HBackup backup = new HBackup(config);
+            backup.runWithCheckedExceptions(namespaceState);
+
+            lastRunStats = backup.getStats();
+            backupStatsMBean.setStats(lastRunStats);
+            timer.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        } catch (Exception e) {
+            log.error("Error performing backup : ", e);
+        }
+    }
+
+    @Override
+    protected void triggerShutdown() {
+        synchronized (wakeup) {
+            wakeup.notifyAll();
+        }
+    }
+
+    @Override
+    protected void startUp() throws Exception {
+        log.info("Starting up....");
+        platformMBeanServer.registerMBean(backupStatsMBean, jmxName);
+    }
+
+    @Override
+    protected void shutDown() throws Exception {
+        platformMBeanServer.unregisterMBean(jmxName);
+        log.info("Stopped.");
+    }
+
+    public Stats getLastRunStats() {
+        return lastRunStats;
+    }
+
+    public Timer getTimerMetric() {
+        return timer;
+    }
+}
@@ -0,0 +1,139 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the catalog format and merging catalogs, without S3.
+ */
+public class BackupCatalogTest {
+    private static BackupCatalog.Entry entry(String path, long mtime, String checksum) {
+        return new BackupCatalog.Entry(path, "base/" + path, 100, mtime, 100, null, checksum, "etag-" + mtime);
+    }
+
+    private static byte[] write(List<BackupCatalog.Entry> entries) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        BackupCatalog.Writer writer = new BackupCatalog.Writer(baos);
+        for(BackupCatalog.Entry e: entries) {
+            writer.add(e);
+        }
+        writer.close();
+        return baos.toByteArray();
+    }
+
+    private static BackupCatalog parseIndex(byte[] bytes) throws Exception {
+        long indexStart = BackupCatalog.parseFooter(Arrays.copyOfRange(bytes,
+                bytes.length - BackupCatalog.FOOTER_LENGTH, bytes.length));
+        return BackupCatalog.parse(Arrays.copyOfRange(bytes, (int)indexStart,
+                bytes.length - BackupCatalog.FOOTER_LENGTH));
+    }
+
+    /**
+     * @return the entries in the blocks, read with a single range like a ranged GET would.
+     */
+    private static List<BackupCatalog.Entry> readBlocks(byte[] bytes, List<BackupCatalog.Block> blocks)
+            throws Exception {
+        BackupCatalog.Block last = blocks.get(blocks.size() - 1);
+        return BackupCatalog.parseBlocks(Arrays.copyOfRange(bytes, (int)blocks.get(0).offset,
+                (int)(last.offset + last.length)), blocks.size());
+    }
+
+    @Test
+    public void prefixLookupTest() throws Exception {
+        List<BackupCatalog.Entry> entries = new ArrayList<BackupCatalog.Entry>();
+        for(int dir=0; dir<20; dir++) {
+            for(int file=0; file<1000; file++) {
+                entries.add(entry(String.format("dir%02d/file%04d \u00e9", dir, file), file, "ab" + file));
+            }
+        }
+        byte[] bytes = write(entries);
+        BackupCatalog index = parseIndex(bytes);
+        Assert.assertEquals(20000, index.getNumEntries());
+        Assert.assertTrue(index.getBlocks().size() > 20);
+
+        // One directory's blocks are a small part of the catalog
+        List<BackupCatalog.Block> blocks = index.blocksForPrefix("dir07/");
+        Assert.assertTrue(blocks.size() <= index.getBlocks().size() / 5);
+        int found = 0;
+        for(BackupCatalog.Entry e: readBlocks(bytes, blocks)) {
+            if(e.relativePath.startsWith("dir07/")) {
+                found++;
+            }
+        }
+        Assert.assertEquals(1000, found);
+
+        // A single path is in the one block that blockFor() gives, with all its fields
+        String path = "dir13/file0456 \u00e9";
+        BackupCatalog.Entry got = null;
+        for(BackupCatalog.Entry e: readBlocks(bytes, index.getBlocks().subList(index.blockFor(path),
+                index.blockFor(path) + 1))) {
+            if(e.relativePath.equals(path)) {
+                got = e;
+            }
+        }
+        Assert.assertNotNull(got);
+        Assert.assertEquals("base/" + path, got.key);
+        Assert.assertEquals(456, got.mtime);
+        Assert.assertEquals("ab456", got.checksum);
+        Assert.assertEquals("", got.compression);
+
+        // A prefix after every path only needs the last block
+        Assert.assertEquals(1, index.blocksForPrefix("zzz").size());
+        Assert.assertEquals(-1, parseIndex(write(new ArrayList<BackupCatalog.Entry>())).blockFor("a"));
+    }
+
+    @Test
+    public void mergeTest() throws Exception {
+        byte[] previous = write(Arrays.asList(entry("a", 1, "aa"), entry("b", 1, "bb"), entry("c", 1, "cc"),
+                entry("d", 1, "dd")));
+        SortedMap<String,BackupCatalog.Entry> changes = new TreeMap<String,BackupCatalog.Entry>();
+        changes.put("0", entry("0", 2, "00")); // New
+        changes.put("b", entry("b", 1, null)); // Seen unchanged, keeps its checksum
+        changes.put("c", null); // Deleted
+        changes.put("d", entry("d", 2, null)); // Changed, so the old checksum is wrong
+        changes.put("e", null); // Deleted, but was never there
+
+        ByteArrayOutputStream merged = new ByteArrayOutputStream();
+        BackupCatalog.Writer writer = new BackupCatalog.Writer(merged);
+        S3Catalog.merge(new BackupCatalog.Reader(new ByteArrayInputStream(previous),
+                parseIndex(previous).getBlocks().size()), changes, writer);
+        writer.close();
+
+        byte[] bytes = merged.toByteArray();
+        List<BackupCatalog.Entry> entries = readBlocks(bytes, parseIndex(bytes).getBlocks());
+        Assert.assertEquals(4, entries.size());
+        Assert.assertEquals("0", entries.get(0).relativePath);
+        Assert.assertEquals("a", entries.get(1).relativePath);
+        Assert.assertEquals("aa", entries.get(1).checksum);
+        Assert.assertEquals("b", entries.get(2).relativePath);
+        Assert.assertEquals("bb", entries.get(2).checksum);
+        Assert.assertEquals("d", entries.get(3).relativePath);
+        Assert.assertEquals(2, entries.get(3).mtime);
+        Assert.assertEquals("", entries.get(3).checksum);
+    }
+
+    @Test
+    public void literalPrefixTest() {
+        Assert.assertEquals("", Util.literalPrefix(null));
+        Assert.assertEquals("logs/2012-06/", Util.literalPrefix("logs/2012-06/.*"));
+        Assert.assertEquals("logs/", Util.literalPrefix("logs/(a|b)/.*"));
+        Assert.assertEquals("", Util.literalPrefix("logs/a.*|other/.*"));
+        Assert.assertEquals("logs/", Util.literalPrefix("logs/[a|b].*"));
+        Assert.assertEquals("logs/ab", Util.literalPrefix("logs/abc?"));
+        Assert.assertEquals("logs/abc", Util.literalPrefix("logs/abc+"));
+        Assert.assertEquals("dir/file", Util.literalPrefix("dir/file\\.txt"));
+        Assert.assertEquals("", Util.literalPrefix("(?i)dir/.*"));
+    }
+}
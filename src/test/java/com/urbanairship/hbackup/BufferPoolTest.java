@@ -0,0 +1,60 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BufferPoolTest {
+    private static final int MIN = BufferPool.MIN_BUFFER_SIZE;
+
+    @Test
+    public void sizeClassesAndReuseTest() throws Exception {
+        BufferPool pool = new BufferPool(16 * MIN);
+        ByteBuffer small = pool.acquire(10);
+        Assert.assertEquals(MIN, small.capacity());
+        ByteBuffer medium = pool.acquire(MIN + 1);
+        Assert.assertEquals(2 * MIN, medium.capacity());
+        Assert.assertEquals(3 * MIN, pool.getBytesInUse());
+
+        pool.release(small);
+        Assert.assertSame(small, pool.acquire(MIN));
+        Assert.assertEquals(1, pool.getNumReused());
+        Assert.assertEquals(3 * MIN, pool.getBytesAllocated());
+    }
+
+    @Test
+    public void capTest() throws Exception {
+        BufferPool pool = new BufferPool(8 * MIN);
+        ByteBuffer held = pool.tryAcquire(4 * MIN);
+        Assert.assertNotNull(held);
+        // Long-held buffers can't take the last quarter of the pool
+        Assert.assertNull(pool.tryAcquire(4 * MIN));
+        Assert.assertEquals(1, pool.getNumRefused());
+        // Copy buffers can
+        ByteBuffer copyBuf = pool.acquire(2 * MIN);
+        pool.release(copyBuf);
+        pool.release(held);
+
+        // Free buffers of other sizes are dropped to make room for a new size
+        ByteBuffer big = pool.acquire(8 * MIN);
+        Assert.assertEquals(8 * MIN, pool.getBytesAllocated());
+        pool.release(big);
+    }
+
+    @Test
+    public void copyTest() throws Exception {
+        BufferPool pool = new BufferPool(BufferPool.MIN_MAX_BYTES);
+        byte[] data = TestUtil.getRandomBuf(3 * MIN + 17);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        Assert.assertEquals(data.length, pool.copy(new ByteArrayInputStream(data), baos));
+        Assert.assertArrayEquals(data, baos.toByteArray());
+        Assert.assertEquals(0, pool.getBytesInUse());
+    }
+}
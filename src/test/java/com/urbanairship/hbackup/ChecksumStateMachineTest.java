@@ -0,0 +1,88 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.urbanairship.hbackup.checksumverify.ChecksumStateMachine;
+import com.urbanairship.hbackup.checksumverify.ChecksumStats;
+
+/**
+ * The expected checksum is prefetched independently of the chunks, so it can arrive before, between
+ * or after them. The result must be the same in every case.
+ */
+public class ChecksumStateMachineTest {
+    private static final byte[] contents = TestUtil.getRandomBuf(1000);
+    private static final SourceFile file = TestUtil.byteArraySourceFile("file", contents, 0);
+    
+    @Test
+    public void checksumBeforeChunks() throws Exception {
+        ChecksumStats stats = new ChecksumStats();
+        ChecksumStateMachine sm = new ChecksumStateMachine(file, 2, stats);
+        sm.expectedChecksumLoaded(TestUtil.expectedXor(contents));
+        runChunk(sm, 0, 500);
+        runChunk(sm, 500, 500);
+        Assert.assertEquals(1, stats.matched.get());
+    }
+    
+    @Test
+    public void checksumAfterChunks() throws Exception {
+        ChecksumStats stats = new ChecksumStats();
+        ChecksumStateMachine sm = new ChecksumStateMachine(file, 2, stats);
+        runChunk(sm, 500, 500);
+        runChunk(sm, 0, 500);
+        Assert.assertEquals(0, stats.matched.get());
+        sm.expectedChecksumLoaded(TestUtil.expectedXor(contents));
+        Assert.assertEquals(1, stats.matched.get());
+        Assert.assertEquals(0, stats.mismatched.get());
+    }
+    
+    @Test
+    public void checksumBetweenChunks() throws Exception {
+        ChecksumStats stats = new ChecksumStats();
+        ChecksumStateMachine sm = new ChecksumStateMachine(file, 2, stats);
+        runChunk(sm, 0, 500);
+        sm.expectedChecksumLoaded("0000000000000000");
+        runChunk(sm, 500, 500);
+        Assert.assertEquals(0, stats.matched.get());
+        Assert.assertEquals(1, stats.mismatched.get());
+    }
+    
+    @Test
+    public void missingChecksumSkipsRemainingChunks() throws Exception {
+        ChecksumStats stats = new ChecksumStats();
+        ChecksumStateMachine sm = new ChecksumStateMachine(file, 2, stats);
+        runChunk(sm, 0, 500);
+        sm.expectedChecksumLoaded(null);
+        Assert.assertFalse(sm.chunkStarting());
+        Assert.assertEquals(1, stats.missingChecksums.get());
+        Assert.assertEquals(1, stats.chunksSkipped.get());
+        Assert.assertEquals(0, stats.matched.get() + stats.mismatched.get());
+    }
+    
+    @Test
+    public void unreadableChecksumSkipsRemainingChunks() throws Exception {
+        ChecksumStats stats = new ChecksumStats();
+        ChecksumStateMachine sm = new ChecksumStateMachine(file, 2, stats);
+        sm.expectedChecksumUnreadable();
+        Assert.assertFalse(sm.chunkStarting());
+        Assert.assertEquals(1, stats.unreadableChecksums.get());
+        // The failed fetch counts as a skipped chunk, as it did before fetches were prefetched
+        Assert.assertEquals(2, stats.chunksSkipped.get());
+        Assert.assertEquals(0, stats.matched.get() + stats.mismatched.get());
+    }
+    
+    private static void runChunk(ChecksumStateMachine sm, long offset, long len) throws IOException {
+        Assert.assertTrue(sm.chunkStarting());
+        InputStream is = file.getPartialInputStream(offset, len);
+        XorInputStream xis = new XorInputStream(is, offset);
+        while(xis.read() != -1) { }
+        sm.chunkFinished(xis.getStreamingXor());
+    }
+}
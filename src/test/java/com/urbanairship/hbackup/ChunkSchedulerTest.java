@@ -0,0 +1,119 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.urbanairship.hbackup.datasinks.Jets3tSink;
+
+public class ChunkSchedulerTest {
+    /**
+     * Holds tasks until the test runs them, so the test can see what the scheduler let through.
+     */
+    private static class HeldExecutor implements Executor {
+        final List<Runnable> held = new ArrayList<Runnable>();
+
+        @Override
+        public void execute(Runnable task) {
+            held.add(task);
+        }
+
+        void runFirst() {
+            held.remove(0).run();
+        }
+    }
+
+    /**
+     * Records which chunk ran, by name.
+     */
+    private static Runnable named(final String name, final List<String> ran) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                ran.add(name);
+            }
+        };
+    }
+
+    @Test
+    public void perHostCapTest() throws Exception {
+        HeldExecutor executor = new HeldExecutor();
+        List<String> ran = new ArrayList<String>();
+        ChunkScheduler scheduler = new ChunkScheduler(executor, 10, 2);
+        for(int i=0; i<4; i++) {
+            scheduler.submit(named("a" + i, ran), Arrays.asList("/rack1/hostA"));
+        }
+        // Only two chunks may read from hostA at once
+        Assert.assertEquals(2, executor.held.size());
+        executor.runFirst();
+        Assert.assertEquals(2, executor.held.size());
+        while(!executor.held.isEmpty()) {
+            executor.runFirst();
+        }
+        Assert.assertEquals(Arrays.asList("a0", "a1", "a2", "a3"), ran);
+        scheduler.awaitIdle();
+    }
+
+    @Test
+    public void spreadTest() throws Exception {
+        HeldExecutor executor = new HeldExecutor();
+        List<String> ran = new ArrayList<String>();
+        ChunkScheduler scheduler = new ChunkScheduler(executor, 2, 10);
+        scheduler.submit(named("a0", ran), Arrays.asList("/rack1/hostA"));
+        scheduler.submit(named("a1", ran), Arrays.asList("/rack1/hostA"));
+        scheduler.submit(named("a2", ran), Arrays.asList("/rack1/hostA"));
+        scheduler.submit(named("b0", ran), Arrays.asList("/rack1/hostA", "/rack2/hostB"));
+        scheduler.submit(named("c0", ran), Arrays.asList("/rack1/hostC"));
+        Assert.assertEquals(2, executor.held.size());
+        // With a1 still on hostA and rack1, b0 can go to the idle hostB on the idle rack2 ahead of a2
+        executor.runFirst();
+        executor.runFirst();
+        Assert.assertEquals(Arrays.asList("a0", "a1"), ran);
+        executor.runFirst();
+        Assert.assertEquals("b0", ran.get(2));
+        while(!executor.held.isEmpty()) {
+            executor.runFirst();
+        }
+        Assert.assertEquals(5, ran.size());
+        scheduler.awaitIdle();
+    }
+
+    @Test
+    public void unknownLocationsTest() throws Exception {
+        HeldExecutor executor = new HeldExecutor();
+        List<String> ran = new ArrayList<String>();
+        ChunkScheduler scheduler = new ChunkScheduler(executor, 10, 1);
+        scheduler.submit(named("a0", ran), Arrays.asList("/rack1/hostA"));
+        scheduler.submit(named("a1", ran), Arrays.asList("/rack1/hostA"));
+        scheduler.submit(named("x", ran), Collections.<String>emptyList());
+        scheduler.submit(named("y", ran), null);
+        // The second hostA chunk waits, but chunks with no locations don't
+        Assert.assertEquals(3, executor.held.size());
+        while(!executor.held.isEmpty()) {
+            executor.runFirst();
+        }
+        Assert.assertEquals(Arrays.asList("a0", "x", "y", "a1"), ran);
+        scheduler.awaitIdle();
+    }
+
+    @Test
+    public void alignedPartSizeTest() {
+        final long mb = 1024 * 1024;
+        // Blocks bigger than parts are split evenly
+        Assert.assertEquals(64 * mb, Jets3tSink.alignedPartSize(128 * mb, 50 * mb));
+        Assert.assertEquals(128 * mb, Jets3tSink.alignedPartSize(128 * mb, 100 * mb));
+        // Blocks smaller than parts are grouped, but never into parts under S3's minimum
+        Assert.assertEquals(96 * mb, Jets3tSink.alignedPartSize(32 * mb, 100 * mb));
+        Assert.assertEquals(6 * mb, Jets3tSink.alignedPartSize(2 * mb, 5 * mb));
+        Assert.assertEquals(5 * mb, Jets3tSink.alignedPartSize(-1, 5 * mb));
+    }
+}
@@ -0,0 +1,99 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ChunkWatchdogTest {
+    /**
+     * A chunk that reads its file. The attempt numbered slowAttempt reads a byte every 50ms until it's
+     * aborted, and other attempts read the whole file at once.
+     */
+    private static class TestChunk implements HedgeableChunk {
+        final SourceFile file;
+        final int slowAttempt;
+        final AtomicInteger attempts = new AtomicInteger(0);
+        final AtomicInteger commits = new AtomicInteger(0);
+
+        TestChunk(SourceFile file, int slowAttempt) {
+            this.file = file;
+            this.slowAttempt = slowAttempt;
+        }
+
+        @Override
+        public StreamingXor run() throws IOException {
+            int attempt = attempts.incrementAndGet();
+            InputStream is = file.getPartialInputStream(0, file.getLength());
+            try {
+                if(attempt == slowAttempt) {
+                    while(is.read() != -1) {
+                        try {
+                            Thread.sleep(50);
+                        } catch (InterruptedException e) {
+                            throw new IOException(e);
+                        }
+                    }
+                } else {
+                    BufferPool.getInstance().drain(is);
+                }
+            } finally {
+                is.close();
+            }
+            return new StreamingXor();
+        }
+
+        @Override
+        public void commitAllChunks() {
+            commits.incrementAndGet();
+        }
+    }
+
+    private static TestChunk runChunk(ChunkWatchdog watchdog, Stats stats, int slowAttempt) {
+        SourceFile file = watchdog.wrap(TestUtil.byteArraySourceFile("file", TestUtil.getRandomBuf(10000), 0));
+        FileTransferState fileState = new FileTransferState(file, 1, stats);
+        TestChunk chunk = new TestChunk(file, slowAttempt);
+        new ChunkRetryer(fileState, chunk, null, 3, stats, watchdog).run();
+        Assert.assertEquals(FileTransferState.State.COMMITTED, fileState.getState());
+        Assert.assertEquals(1, chunk.commits.get());
+        return chunk;
+    }
+
+    /**
+     * An attempt that reads too slowly should be aborted and retried.
+     */
+    @Test
+    public void stallTest() throws Exception {
+        Stats stats = new Stats();
+        ChunkWatchdog watchdog = new ChunkWatchdog(0, 0, 1000, 1000, stats);
+        TestChunk chunk = runChunk(watchdog, stats, 1);
+        watchdog.shutdown();
+        Assert.assertEquals(2, chunk.attempts.get());
+        Assert.assertEquals(1, stats.numStalls.get());
+        Assert.assertEquals(0, stats.numHedges.get());
+    }
+
+    /**
+     * An attempt that takes longer than most should be raced by a hedge, which wins.
+     */
+    @Test
+    public void hedgeTest() throws Exception {
+        Stats stats = new Stats();
+        ChunkWatchdog watchdog = new ChunkWatchdog(50, 2, 0, 1000, stats);
+        for(int i=0; i<10; i++) {
+            runChunk(watchdog, stats, 0);
+        }
+        TestChunk chunk = runChunk(watchdog, stats, 1);
+        watchdog.shutdown();
+        Assert.assertEquals(2, chunk.attempts.get());
+        Assert.assertEquals(1, stats.numHedges.get());
+        Assert.assertEquals(1, stats.numHedgesWon.get());
+        Assert.assertEquals(0, stats.numStalls.get());
+    }
+}
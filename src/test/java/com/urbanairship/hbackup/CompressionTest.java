@@ -0,0 +1,143 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.urbanairship.hbackup.compression.CompressionDetector;
+import com.urbanairship.hbackup.compression.FrameCompressingInputStream;
+import com.urbanairship.hbackup.compression.FrameDecompressingInputStream;
+import com.urbanairship.hbackup.compression.FrameIndex;
+
+/**
+ * Check that framed compressed data can be read back in whole and in ranges, the way the S3 source
+ * reads it.
+ */
+public class CompressionTest {
+    private static final int FRAME = FrameCompressingInputStream.FRAME_SIZE;
+
+    private static byte[] readAll(InputStream is) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buf = new byte[7000]; // Not a divisor of the frame size
+        int bytesRead;
+        while((bytesRead = is.read(buf)) != -1) {
+            baos.write(buf, 0, bytesRead);
+        }
+        is.close();
+        return baos.toByteArray();
+    }
+
+    /**
+     * Compressible text followed by incompressible random bytes, so both frame types are used.
+     */
+    private static byte[] testData(int len) {
+        byte[] data = new byte[len];
+        byte[] text = "the quick brown fox jumps over the lazy dog ".getBytes();
+        for(int i=0; i<len/2; i++) {
+            data[i] = text[i % text.length];
+        }
+        byte[] random = new byte[len - len/2];
+        new Random(5678).nextBytes(random);
+        System.arraycopy(random, 0, data, len/2, random.length);
+        return data;
+    }
+
+    /**
+     * Read a range the way Jets3tSource does: find the frames in the index, then decompress just
+     * the bytes of those frames.
+     */
+    private static byte[] readRange(byte[] obj, FrameIndex index, long offset, int len) throws IOException {
+        List<FrameIndex.Entry> frames = index.getEntries();
+        FrameIndex.Entry first = frames.get(index.frameForOffset(offset));
+        FrameIndex.Entry last = frames.get(index.frameForOffset(offset + len - 1));
+        InputStream compressed = new ByteArrayInputStream(obj, (int)first.compressedOffset,
+                (int)(last.compressedOffset + last.frameLength - first.compressedOffset));
+        return readAll(new FrameDecompressingInputStream(compressed, offset - first.uncompressedOffset, len));
+    }
+
+    private static FrameIndex readIndex(byte[] obj) throws IOException {
+        byte[] footer = Arrays.copyOfRange(obj, obj.length - FrameIndex.FOOTER_LENGTH, obj.length);
+        long indexStart = FrameIndex.parseFooter(footer);
+        return FrameIndex.parse(Arrays.copyOfRange(obj, (int)indexStart, obj.length - FrameIndex.FOOTER_LENGTH));
+    }
+
+    @Test
+    public void singleStreamTest() throws Exception {
+        byte[] data = testData(3 * FRAME + 12345);
+        byte[] obj = readAll(new FrameCompressingInputStream(new ByteArrayInputStream(data), 0, 0, true));
+        Assert.assertTrue(obj.length < data.length);
+
+        FrameIndex index = readIndex(obj);
+        Assert.assertEquals(4, index.getEntries().size());
+        Assert.assertEquals(data.length, index.getUncompressedLength());
+
+        Assert.assertArrayEquals(data, readRange(obj, index, 0, data.length));
+        Assert.assertArrayEquals(Arrays.copyOfRange(data, 100, 200), readRange(obj, index, 100, 100));
+        Assert.assertArrayEquals(Arrays.copyOfRange(data, FRAME - 10, 2 * FRAME + 10),
+                readRange(obj, index, FRAME - 10, FRAME + 20));
+        Assert.assertArrayEquals(Arrays.copyOfRange(data, data.length - 5, data.length),
+                readRange(obj, index, data.length - 5, 5));
+    }
+
+    /**
+     * Compress two "parts" separately with padding, then add the combined index as a third part,
+     * like a multipart upload.
+     */
+    @Test
+    public void paddedPartsTest() throws Exception {
+        byte[] data = testData(2 * FRAME + 500);
+        int partSize = FRAME + 100;
+        int padTo = 600000;
+
+        FrameCompressingInputStream part1 = new FrameCompressingInputStream(
+                new ByteArrayInputStream(data, 0, partSize), 0, padTo, false);
+        byte[] part1Bytes = readAll(part1);
+        FrameCompressingInputStream part2 = new FrameCompressingInputStream(
+                new ByteArrayInputStream(data, partSize, data.length - partSize), partSize, padTo, false);
+        byte[] part2Bytes = readAll(part2);
+        Assert.assertTrue(part1Bytes.length >= padTo);
+        Assert.assertEquals(part1Bytes.length, part1.getBytesWritten());
+
+        FrameIndex index = new FrameIndex();
+        index.addAll(part1.getIndex(), 0);
+        index.addAll(part2.getIndex(), part1Bytes.length);
+        long indexStart = part1Bytes.length + part2Bytes.length;
+
+        ByteArrayOutputStream obj = new ByteArrayOutputStream();
+        obj.write(part1Bytes);
+        obj.write(part2Bytes);
+        obj.write(index.toBytes(indexStart));
+        byte[] objBytes = obj.toByteArray();
+
+        FrameIndex readBack = readIndex(objBytes);
+        Assert.assertEquals(data.length, readBack.getUncompressedLength());
+        Assert.assertArrayEquals(data, readRange(objBytes, readBack, 0, data.length));
+        // A range that crosses the padding at the end of the first part
+        Assert.assertArrayEquals(Arrays.copyOfRange(data, partSize - 50, partSize + 50),
+                readRange(objBytes, readBack, partSize - 50, 100));
+    }
+
+    @Test
+    public void detectorTest() throws Exception {
+        byte[] text = testData(200000); // The sample is all text
+        byte[] random = new byte[200000];
+        new Random(1).nextBytes(random);
+
+        Assert.assertTrue(CompressionDetector.shouldCompress(TestUtil.byteArraySourceFile("a.txt", text, 0)));
+        Assert.assertFalse(CompressionDetector.shouldCompress(TestUtil.byteArraySourceFile("a.gz", text, 0)));
+        Assert.assertFalse(CompressionDetector.shouldCompress(TestUtil.byteArraySourceFile("a.bin", random, 0)));
+        Assert.assertFalse(CompressionDetector.shouldCompress(
+                TestUtil.byteArraySourceFile("small.txt", new byte[100], 0)));
+    }
+}
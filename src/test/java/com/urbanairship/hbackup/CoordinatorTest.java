@@ -0,0 +1,181 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.urbanairship.hbackup.coordinator.Coordinator;
+import com.urbanairship.hbackup.coordinator.Lease;
+import com.urbanairship.hbackup.coordinator.LocalLeaseStore;
+import com.urbanairship.hbackup.datasinks.LocalSink;
+
+/**
+ * Coordinated backups, where several workers share a run through a lease store in a local directory.
+ */
+public class CoordinatorTest {
+    private File baseDir;
+    private File fromDir;
+    private File toDir;
+    private File leaseDir;
+
+    @Before
+    public void setup() throws Exception {
+        baseDir = new File(System.getProperty("test.build.data", "build/test/data"), "coordinator").getAbsoluteFile();
+        FileUtils.deleteDirectory(baseDir);
+        fromDir = new File(baseDir, "from");
+        toDir = new File(baseDir, "to");
+        leaseDir = new File(baseDir, "leases");
+        fromDir.mkdirs();
+    }
+
+    @After
+    public void cleanup() throws Exception {
+        FileUtils.deleteDirectory(baseDir);
+    }
+
+    private static List<List<Lease.Item>> plan(int numLeases) {
+        List<List<Lease.Item>> plan = new ArrayList<List<Lease.Item>>();
+        for(int i=0; i<numLeases; i++) {
+            plan.add(Arrays.asList(new Lease.Item("file" + i)));
+        }
+        return plan;
+    }
+
+    /**
+     * Only one worker plans the run, and workers never hold the same lease at once.
+     */
+    @Test
+    public void claimTest() throws Exception {
+        LocalLeaseStore store = new LocalLeaseStore(leaseDir);
+        Coordinator c1 = new Coordinator(store, "run", 60000);
+        Coordinator c2 = new Coordinator(store, "run", 60000);
+        Assert.assertTrue(c1.awaitPlan());
+        c1.publish(plan(3));
+        Assert.assertFalse(c2.awaitPlan());
+
+        Set<String> claimed = new HashSet<String>();
+        List<Lease> leases = new ArrayList<Lease>();
+        for(Coordinator c: Arrays.asList(c1, c2, c1)) {
+            Lease lease = c.claimNext();
+            Assert.assertNotNull(lease);
+            Assert.assertTrue(claimed.add(lease.getId()));
+            Assert.assertEquals(1, lease.getItems().size());
+            leases.add(lease);
+        }
+        Assert.assertNull(c1.claimNext());
+        Assert.assertNull(c2.claimNext());
+        Assert.assertFalse(c2.isFinished());
+
+        for(Lease lease: leases) {
+            c1.complete(lease);
+        }
+        Assert.assertTrue(c1.isFinished());
+        Assert.assertTrue(c2.isFinished());
+        c1.close();
+        c2.close();
+    }
+
+    /**
+     * A lease whose worker stops renewing its claim should go to another worker.
+     */
+    @Test
+    public void takeoverTest() throws Exception {
+        LocalLeaseStore store = new LocalLeaseStore(leaseDir);
+        Coordinator c1 = new Coordinator(store, "run", 300);
+        Assert.assertTrue(c1.awaitPlan());
+        c1.publish(plan(1));
+        Lease lease = c1.claimNext();
+        Assert.assertNotNull(lease);
+
+        Coordinator c2 = new Coordinator(store, "run", 300);
+        Assert.assertFalse(c2.awaitPlan());
+        // Held and renewed by a live worker
+        Thread.sleep(600);
+        Assert.assertNull(c2.claimNext());
+
+        c1.close();
+        Thread.sleep(600);
+        Lease takenOver = c2.claimNext();
+        Assert.assertNotNull(takenOver);
+        Assert.assertEquals(lease.getId(), takenOver.getId());
+        c2.close();
+    }
+
+    /**
+     * Exactly one worker should be told to commit a split file, once its last range is sent.
+     */
+    @Test
+    public void rangeDoneTest() throws Exception {
+        LocalLeaseStore store = new LocalLeaseStore(leaseDir);
+        Coordinator c1 = new Coordinator(store, "run", 60000);
+        Coordinator c2 = new Coordinator(store, "run", 60000);
+        Assert.assertFalse(c1.rangeDone(new Lease.Item("big", "t", 0, 2, 3)));
+        Assert.assertFalse(c2.rangeDone(new Lease.Item("big", "t", 4, 1, 3)));
+        Assert.assertTrue(c1.rangeDone(new Lease.Item("big", "t", 2, 2, 3)));
+        // A retried range after the commit was claimed
+        Assert.assertFalse(c2.rangeDone(new Lease.Item("big", "t", 2, 2, 3)));
+        c1.close();
+        c2.close();
+    }
+
+    /**
+     * Several worker processes share one backup, including a file split into ranges across leases.
+     */
+    @Test
+    public void multiProcessTest() throws Exception {
+        byte[] big = TestUtil.getRandomBuf(20000 + 123);
+        FileUtils.writeByteArrayToFile(new File(fromDir, "dir/big.bin"), big);
+        List<byte[]> smalls = new ArrayList<byte[]>();
+        for(int i=0; i<10; i++) {
+            byte[] small = TestUtil.getRandomBuf(1500);
+            smalls.add(small);
+            FileUtils.writeByteArrayToFile(new File(fromDir, "small" + i), small);
+        }
+
+        String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+        List<Process> workers = new ArrayList<Process>();
+        for(int i=0; i<3; i++) {
+            ProcessBuilder pb = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                    "-Dhbackup.from=" + fromDir.toURI(),
+                    "-Dhbackup.to=" + toDir.toURI(),
+                    "-Dhbackup.coordinator.uri=" + leaseDir.toURI(),
+                    "-Dhbackup.coordinator.runId=run1",
+                    "-Dhbackup.coordinator.leaseBytes=4000",
+                    "-Dhbackup.local.chunkSize=1000",
+                    "-Dhbackup.mtimeAgeMillis=0",
+                    HBackup.class.getName());
+            pb.redirectErrorStream(true);
+            pb.redirectOutput(new File(baseDir, "worker" + i + ".log"));
+            workers.add(pb.start());
+        }
+        for(Process worker: workers) {
+            Assert.assertEquals(0, worker.waitFor());
+        }
+
+        Assert.assertArrayEquals(big, FileUtils.readFileToByteArray(new File(toDir, "dir/big.bin")));
+        Assert.assertFalse(new File(toDir, "dir/big.bin" + LocalSink.TMP_SUFFIX).exists());
+        for(int i=0; i<smalls.size(); i++) {
+            Assert.assertArrayEquals(smalls.get(i), FileUtils.readFileToByteArray(new File(toDir, "small" + i)));
+        }
+        // The big file was split across leases, and every lease was finished
+        Assert.assertTrue(new File(leaseDir, "run1/ranges").isDirectory());
+        Coordinator c = new Coordinator(new LocalLeaseStore(leaseDir), "run1", TimeUnit.MINUTES.toMillis(1));
+        Assert.assertFalse(c.awaitPlan());
+        Assert.assertTrue(c.isFinished());
+        c.close();
+    }
+}
@@ -0,0 +1,145 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.urbanairship.hbackup.datasinks.ContentDefinedChunker;
+import com.urbanairship.hbackup.datasinks.DedupS3Sink;
+
+/**
+ * Tests for the pieces of the dedup and snapshot stores that don't need S3: the chunker, the recipe format
+ * and the snapshot manifest format.
+ */
+public class DedupTest {
+    private static final int MIN = 1024;
+    private static final int AVG = 4096;
+    private static final int MAX = 16384;
+
+    private static List<byte[]> chunk(byte[] data) throws IOException {
+        ContentDefinedChunker chunker = new ContentDefinedChunker(new ByteArrayInputStream(data), MIN, AVG, MAX);
+        List<byte[]> chunks = new ArrayList<byte[]>();
+        byte[] chunk;
+        while((chunk = chunker.nextChunk()) != null) {
+            chunks.add(chunk);
+        }
+        return chunks;
+    }
+
+    private static Set<String> hashes(List<byte[]> chunks) {
+        Set<String> hashes = new HashSet<String>();
+        for(byte[] chunk: chunks) {
+            hashes.add(DedupS3Sink.sha256Hex(chunk));
+        }
+        return hashes;
+    }
+
+    private static byte[] randomBytes(int len) {
+        byte[] data = new byte[len];
+        new Random(1234).nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void chunksReassembleTest() throws Exception {
+        byte[] data = randomBytes(1000000);
+        List<byte[]> chunks = chunk(data);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        for(int i=0; i<chunks.size(); i++) {
+            byte[] chunk = chunks.get(i);
+            Assert.assertTrue(chunk.length <= MAX);
+            if(i < chunks.size() - 1) {
+                Assert.assertTrue(chunk.length >= MIN);
+            }
+            baos.write(chunk);
+        }
+        Assert.assertArrayEquals(data, baos.toByteArray());
+        // Roughly the average chunk size, allowing for randomness
+        Assert.assertTrue(chunks.size() > data.length / AVG / 3);
+        Assert.assertTrue(chunks.size() < data.length / MIN);
+    }
+
+    @Test
+    public void emptyStreamTest() throws Exception {
+        Assert.assertEquals(0, chunk(new byte[0]).size());
+    }
+
+    /**
+     * Inserting bytes near the start should only change the chunks around the insertion.
+     */
+    @Test
+    public void insertionTest() throws Exception {
+        byte[] data = randomBytes(500000);
+        byte[] shifted = new byte[data.length + 10];
+        System.arraycopy(data, 0, shifted, 0, 100);
+        System.arraycopy(data, 100, shifted, 110, data.length - 100);
+
+        Set<String> before = hashes(chunk(data));
+        Set<String> after = hashes(chunk(shifted));
+        Set<String> changed = new HashSet<String>(after);
+        changed.removeAll(before);
+        Assert.assertTrue("Too many chunks changed: " + changed.size() + " of " + after.size(),
+                changed.size() <= 2);
+    }
+
+    @Test
+    public void recipeRoundTripTest() throws Exception {
+        DedupRecipe recipe = new DedupRecipe(1337L);
+        recipe.addChunk("aa", 10);
+        recipe.addChunk("bb", 5);
+        recipe.addChunk("cc", 20);
+
+        DedupRecipe parsed = DedupRecipe.parse(new ByteArrayInputStream(recipe.toBytes()));
+        Assert.assertEquals(35, parsed.getLength());
+        Assert.assertEquals(1337L, parsed.getMTime());
+        Assert.assertEquals(3, parsed.getNumChunks());
+        Assert.assertEquals("bb", parsed.getChunkHash(1));
+        Assert.assertEquals(10, parsed.getChunkOffset(1));
+        Assert.assertEquals(20, parsed.getChunkLength(2));
+
+        Assert.assertEquals(0, parsed.chunkIndexForOffset(0));
+        Assert.assertEquals(0, parsed.chunkIndexForOffset(9));
+        Assert.assertEquals(1, parsed.chunkIndexForOffset(10));
+        Assert.assertEquals(2, parsed.chunkIndexForOffset(15));
+        Assert.assertEquals(2, parsed.chunkIndexForOffset(34));
+    }
+
+    @Test(expected=IOException.class)
+    public void recipeLengthMismatchTest() throws Exception {
+        String bad = "hbackup-recipe 1\nlength 100\nmtime 0\naa 10\n";
+        DedupRecipe.parse(new ByteArrayInputStream(bad.getBytes("UTF-8")));
+    }
+
+    /**
+     * Paths may contain spaces, and entries come out sorted by path.
+     */
+    @Test
+    public void manifestRoundTripTest() throws Exception {
+        SnapshotManifest manifest = new SnapshotManifest();
+        manifest.add(new SnapshotManifest.Entry("dir/b file", "bb", 5, 1000L, "0123456789abcdef"));
+        manifest.add(new SnapshotManifest.Entry("a", "aa", 10, 2000L, null));
+
+        SnapshotManifest parsed = SnapshotManifest.parse(new ByteArrayInputStream(manifest.toBytes()));
+        Assert.assertEquals(2, parsed.size());
+        Assert.assertEquals("a", parsed.getEntries().iterator().next().relativePath);
+        SnapshotManifest.Entry entry = parsed.get("dir/b file");
+        Assert.assertEquals("bb", entry.recipeHash);
+        Assert.assertEquals(5, entry.length);
+        Assert.assertEquals(1000L, entry.mtime);
+        Assert.assertEquals("0123456789abcdef", entry.checksum);
+        Assert.assertEquals(SnapshotManifest.NO_CHECKSUM, parsed.get("a").checksum);
+        Assert.assertNull(parsed.get("missing"));
+    }
+}
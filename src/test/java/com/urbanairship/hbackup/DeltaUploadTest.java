@@ -0,0 +1,49 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.urbanairship.hbackup.datasinks.Jets3tSink;
+
+/**
+ * Check which parts of a re-uploaded file can be copied from the object it replaces. The delta upload
+ * itself is tested against real S3 in S3Test.
+ */
+public class DeltaUploadTest {
+    private static final long partSize = 5 * 1024 * 1024;
+
+    @Test
+    public void wholePartTest() {
+        // A 3.5 part object replaced by one of the same length
+        long length = 3 * partSize + partSize / 2;
+        Assert.assertTrue(Jets3tSink.isCopyCandidate(0, partSize, partSize, partSize, length));
+        Assert.assertTrue(Jets3tSink.isCopyCandidate(2 * partSize, partSize, partSize, partSize, length));
+    }
+
+    @Test
+    public void shortLastPartTest() {
+        // Even if the object it replaces ended at the same place
+        long length = 3 * partSize + partSize / 2;
+        Assert.assertFalse(Jets3tSink.isCopyCandidate(3 * partSize, partSize / 2, partSize, partSize, length));
+    }
+
+    @Test
+    public void grownPastPreviousLengthTest() {
+        // The old object's short last part became a whole part when the file grew
+        long length = 3 * partSize + partSize / 2;
+        Assert.assertFalse(Jets3tSink.isCopyCandidate(3 * partSize, partSize, partSize, partSize, length));
+        Assert.assertTrue(Jets3tSink.isCopyCandidate(2 * partSize, partSize, partSize, partSize, length));
+    }
+
+    @Test
+    public void changedPartSizeTest() {
+        long length = 4 * partSize;
+        Assert.assertFalse(Jets3tSink.isCopyCandidate(0, partSize, partSize, 2 * partSize, length));
+        Assert.assertFalse(Jets3tSink.isCopyCandidate(2 * partSize, 2 * partSize, 2 * partSize, partSize,
+                length));
+    }
+}
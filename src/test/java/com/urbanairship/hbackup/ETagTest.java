@@ -0,0 +1,41 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.urbanairship.hbackup.checksumverify.ETagVerifier;
+
+/**
+ * Check that part MD5s recorded at upload time produce the ETags that S3 gives objects.
+ */
+public class ETagTest {
+    private static final String md5PartOne = "3303e12af474ca11d85ed2966a932992"; // MD5 of "part one"
+    private static final String md5PartTwo = "3ea4e15b91a17dc76052c56cfcdf67a2"; // MD5 of "part two"
+    
+    @Test
+    public void singlePutTest() {
+        List<String> digests = Arrays.asList(md5PartOne);
+        Assert.assertEquals(md5PartOne, ETagVerifier.expectedETag(digests, md5PartOne));
+    }
+    
+    @Test
+    public void multipartTest() {
+        List<String> digests = Arrays.asList(md5PartOne, md5PartTwo);
+        String s3Etag = "0732917abc3288784e318ac0aab1757a-2";
+        Assert.assertEquals(s3Etag, ETagVerifier.expectedETag(digests, s3Etag));
+    }
+    
+    @Test
+    public void partCountMismatchTest() {
+        List<String> digests = Arrays.asList(md5PartOne, md5PartTwo);
+        Assert.assertNull(ETagVerifier.expectedETag(digests, "0732917abc3288784e318ac0aab1757a-3"));
+        Assert.assertNull(ETagVerifier.expectedETag(digests, md5PartOne));
+    }
+}
@@ -5,10 +5,18 @@ Copyright 2012 Urban Airship and Contributors
 package com.urbanairship.hbackup;
 
 import java.io.File;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 import junit.framework.Assert;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
@@ -19,6 +27,9 @@ import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import com.urbanairship.hbackup.checksumverify.ChecksumVerify;
+import com.urbanairship.hbackup.datasources.HdfsSource.HdfsFile;
+
 public class HdfsTest {
     private static MiniDFSCluster srcCluster;
     private static MiniDFSCluster sinkCluster;
@@ -173,6 +184,107 @@ public class HdfsTest {
         Assert.assertTrue(sinkFs.exists(new Path("/to/empty.txt")));
     }
     
+    /**
+     * A file whose mtime changed but whose contents didn't should only have its sink mtime updated when
+     * HDFS checksum comparison is enabled. The same checksums are used by the checksum verifier.
+     */
+    @Test
+    public void checksumCompareTest() throws Exception {
+        final String contents = "Same bytes, new mtime";
+        TestUtil.writeHdfsFile(srcFs, "/from/touched.txt", contents);
+        HBackupConfig conf = checksumCompareConf(getSourceUrl("/from"), getSinkUrl("/to"));
+        new HBackup(conf).runWithCheckedExceptions();
+        
+        // Change only the mtime of the source file, like "touch" would
+        long newMtime = srcFs.getFileStatus(new Path("/from/touched.txt")).getModificationTime() - 60000;
+        srcFs.setTimes(new Path("/from/touched.txt"), newMtime, newMtime);
+        
+        HBackup hbackup = new HBackup(conf);
+        hbackup.runWithCheckedExceptions();
+        Assert.assertEquals(0, hbackup.getStats().numFilesSucceeded.get());
+        Assert.assertEquals(1, hbackup.getStats().numMtimesUpdated.get());
+        Assert.assertEquals(newMtime, sinkFs.getFileStatus(new Path("/to/touched.txt")).getModificationTime());
+        
+        ChecksumVerify verify = new ChecksumVerify(conf);
+        Assert.assertTrue(verify.runWithCheckedExceptions());
+        Assert.assertEquals(1, verify.getStats().matched.get());
+        
+        // Same length but different contents in the sink should be caught by the verifier
+        TestUtil.writeHdfsFile(sinkFs, "/to/touched.txt", contents.toUpperCase());
+        verify = new ChecksumVerify(conf);
+        Assert.assertFalse(verify.runWithCheckedExceptions());
+        Assert.assertEquals(1, verify.getStats().mismatched.get());
+    }
+    
+    /**
+     * Partial streams of a file that's being transferred should share one open handle, read concurrently
+     * without getting in each other's way, and the handle should be closed once the file is released.
+     */
+    @Test
+    public void sharedHandleTest() throws Exception {
+        final byte[] contents = TestUtil.getRandomBuf(100000);
+        FSDataOutputStream os = srcFs.create(new Path("/from/shared.bin"));
+        os.write(contents);
+        os.close();
+        HBackupConfig conf = HBackupConfig.forTests(getSourceUrl("/from"), getSinkUrl("/to"), null,
+                srcFs.getConf(), sinkFs.getConf(), null, null);
+        final HdfsFile file = (HdfsFile)Source.forUri(new URI(getSourceUrl("/from")), conf).getFiles(false).get(0);
+        
+        file.retainHandle();
+        final int numParts = 10;
+        final int partLen = contents.length / numParts;
+        final byte[][] parts = new byte[numParts][];
+        final List<Exception> errors = Collections.synchronizedList(new ArrayList<Exception>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for(int i=0; i<numParts; i++) {
+            final int part = i;
+            Thread t = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        InputStream is = file.getPartialInputStream(part * partLen, partLen);
+                        parts[part] = IOUtils.toByteArray(is);
+                        is.close();
+                    } catch (Exception e) {
+                        errors.add(e);
+                    }
+                }
+            };
+            t.start();
+            threads.add(t);
+        }
+        for(Thread t: threads) {
+            t.join();
+        }
+        Assert.assertTrue(errors.isEmpty());
+        for(int i=0; i<numParts; i++) {
+            Assert.assertTrue(Arrays.equals(Arrays.copyOfRange(contents, i * partLen, (i + 1) * partLen), parts[i]));
+        }
+        Assert.assertEquals(1, file.getNumOpens());
+        file.releaseHandle();
+        
+        // Once released, the next stream opens the file again
+        InputStream is = file.getPartialInputStream(contents.length - 10, 100);
+        Assert.assertTrue(Arrays.equals(Arrays.copyOfRange(contents, contents.length - 10, contents.length),
+                IOUtils.toByteArray(is)));
+        is.close();
+        Assert.assertEquals(2, file.getNumOpens());
+    }
+    
+    private static HBackupConfig checksumCompareConf(String from, String to) {
+        return HBackupConfig.builder(from, to)
+                .concurrentFiles(1)
+                .s3PartSize(MultipartUtils.MIN_PART_SIZE)
+                .s3MultipartThreshold(MultipartUtils.MIN_PART_SIZE)
+                .hdfsSourceConf(srcFs.getConf())
+                .hdfsSinkConf(sinkFs.getConf())
+                .numRetries(0)
+                .stalenessMillis(0)
+                .mtimeAgeMillis(0)
+                .hdfsChecksumCompare(true)
+                .build();
+    }
+    
     private static String getSourceUrl(String dirName) {
         if(dirName.startsWith("/")) {
             dirName = dirName.substring(1);
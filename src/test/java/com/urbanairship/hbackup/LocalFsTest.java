@@ -0,0 +1,411 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.jets3t.service.utils.MultipartUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.urbanairship.hbackup.datasinks.LocalSink;
+import com.urbanairship.hbackup.datasources.LocalSource;
+
+/**
+ * Backups between directories on the local filesystem, using file:// URIs.
+ */
+public class LocalFsTest {
+    private static final int CHUNK_SIZE = 1000;
+    private File baseDir;
+    private File fromDir;
+    private File toDir;
+
+    @Before
+    public void setup() throws Exception {
+        baseDir = new File(System.getProperty("test.build.data", "build/test/data"), "localfs").getAbsoluteFile();
+        FileUtils.deleteDirectory(baseDir);
+        fromDir = new File(baseDir, "from");
+        toDir = new File(baseDir, "to");
+        fromDir.mkdirs();
+    }
+
+    @After
+    public void cleanup() throws Exception {
+        FileUtils.deleteDirectory(baseDir);
+    }
+
+    @Test
+    public void multiChunkTest() throws Exception {
+        byte[] big = TestUtil.getRandomBuf(10 * CHUNK_SIZE + 123);
+        FileUtils.writeByteArrayToFile(new File(fromDir, "dir/big.bin"), big);
+        FileUtils.writeStringToFile(new File(fromDir, "small.txt"), "hello");
+        FileUtils.writeByteArrayToFile(new File(fromDir, "empty"), new byte[0]);
+
+        HBackup hbackup = new HBackup(conf());
+        hbackup.runWithCheckedExceptions();
+        Assert.assertEquals(3, hbackup.getStats().numFilesSucceeded.get());
+        Assert.assertEquals(0, hbackup.getStats().numFilesFailed.get());
+
+        Assert.assertArrayEquals(big, FileUtils.readFileToByteArray(new File(toDir, "dir/big.bin")));
+        Assert.assertEquals("hello", FileUtils.readFileToString(new File(toDir, "small.txt")));
+        Assert.assertEquals(0, new File(toDir, "empty").length());
+        Assert.assertFalse(new File(toDir, "dir/big.bin" + LocalSink.TMP_SUFFIX).exists());
+
+        // A second run should find everything up to date
+        hbackup = new HBackup(conf());
+        hbackup.runWithCheckedExceptions();
+        Assert.assertEquals(0, hbackup.getStats().numFilesSucceeded.get());
+        Assert.assertEquals(3, hbackup.getStats().numUpToDateFilesSkipped.get());
+    }
+
+    @Test
+    public void partialReadTest() throws Exception {
+        byte[] contents = TestUtil.getRandomBuf(5000);
+        File file = new File(fromDir, "f");
+        FileUtils.writeByteArrayToFile(file, contents);
+        SourceFile sourceFile = new LocalSource.LocalFile(file, "f");
+
+        byte[] expected = new byte[1000];
+        System.arraycopy(contents, 2500, expected, 0, expected.length);
+        Assert.assertArrayEquals(expected, IOUtils.toByteArray(sourceFile.getPartialInputStream(2500, 1000)));
+        Assert.assertArrayEquals(contents, IOUtils.toByteArray(sourceFile.getFullInputStream()));
+    }
+
+    @Test
+    public void spooledTest() throws Exception {
+        byte[] big = TestUtil.getRandomBuf(10 * CHUNK_SIZE + 123);
+        FileUtils.writeByteArrayToFile(new File(fromDir, "big.bin"), big);
+        File spoolDir = new File(baseDir, "spool");
+
+        HBackup hbackup = new HBackup(conf(spoolDir.getPath()));
+        hbackup.runWithCheckedExceptions();
+        Assert.assertEquals(1, hbackup.getStats().numFilesSucceeded.get());
+        Assert.assertEquals(big.length, hbackup.getStats().numBytesSpooled.get());
+        Assert.assertArrayEquals(big, FileUtils.readFileToByteArray(new File(toDir, "big.bin")));
+        Assert.assertEquals(0, spoolDir.list().length);
+    }
+
+    /**
+     * Back up to two directories at once, reading the source once for both.
+     */
+    @Test
+    public void fanOutTest() throws Exception {
+        byte[] big = TestUtil.getRandomBuf(10 * CHUNK_SIZE + 123);
+        FileUtils.writeByteArrayToFile(new File(fromDir, "big.bin"), big);
+        FileUtils.writeStringToFile(new File(fromDir, "small.txt"), "hello");
+        File toDir2 = new File(baseDir, "to2");
+        String to = toDir.toURI() + "," + toDir2.toURI();
+
+        HBackup hbackup = new HBackup(conf(to, null, 3000));
+        hbackup.runWithCheckedExceptions();
+        Assert.assertEquals(4, hbackup.getStats().numFilesSucceeded.get());
+        Assert.assertEquals(big.length + 5, hbackup.getStats().numFanOutBytesRead.get());
+        Assert.assertEquals(0, hbackup.getStats().numFanOutBytesReread.get());
+        for(File dir: new File[] {toDir, toDir2}) {
+            Assert.assertArrayEquals(big, FileUtils.readFileToByteArray(new File(dir, "big.bin")));
+            Assert.assertEquals("hello", FileUtils.readFileToString(new File(dir, "small.txt")));
+        }
+        for(SinkStats sinkStats: hbackup.getSinkStats()) {
+            Assert.assertEquals(2, sinkStats.numFilesSucceeded.get());
+            Assert.assertEquals(big.length + 5, sinkStats.numBytesSent.get());
+        }
+
+        // Each sink decides for itself whether it's up to date
+        FileUtils.deleteDirectory(toDir2);
+        hbackup = new HBackup(conf(to, null, 3000));
+        hbackup.runWithCheckedExceptions();
+        Assert.assertEquals(2, hbackup.getStats().numFilesSucceeded.get());
+        Assert.assertEquals(2, hbackup.getSinkStats().get(0).numUpToDateFilesSkipped.get());
+        Assert.assertEquals(2, hbackup.getSinkStats().get(1).numFilesSucceeded.get());
+        Assert.assertEquals(0, hbackup.getStats().numFanOutBytesRead.get());
+        Assert.assertArrayEquals(big, FileUtils.readFileToByteArray(new File(toDir2, "big.bin")));
+    }
+
+    /**
+     * Runs with a namespace state should only list changed directories, and only send new files.
+     */
+    @Test
+    public void incrementalTest() throws Exception {
+        FileUtils.writeStringToFile(new File(fromDir, "a/1.txt"), "one");
+        FileUtils.writeStringToFile(new File(fromDir, "b/2.txt"), "two");
+        // Directories changed in the last moment are always listed again, in case they change again
+        long hourAgo = System.currentTimeMillis() - 3600 * 1000;
+        for(File dir: new File[] {fromDir, new File(fromDir, "a"), new File(fromDir, "b")}) {
+            dir.setLastModified(hourAgo);
+        }
+
+        NamespaceState state = new NamespaceState();
+        HBackup hbackup = new HBackup(conf());
+        hbackup.runWithCheckedExceptions(state);
+        Assert.assertEquals(2, hbackup.getStats().numFilesSucceeded.get());
+        Assert.assertEquals(3, state.getNumDirsListed());
+
+        hbackup = new HBackup(conf());
+        hbackup.runWithCheckedExceptions(state);
+        Assert.assertEquals(0, hbackup.getStats().numFilesSucceeded.get());
+        Assert.assertEquals(0, hbackup.getStats().numUpToDateFilesSkipped.get());
+        Assert.assertEquals(0, state.getNumDirsListed());
+        Assert.assertEquals(3, state.getNumDirsUnchanged());
+
+        FileUtils.writeStringToFile(new File(fromDir, "b/3.txt"), "three");
+        new File(fromDir, "b").setLastModified(hourAgo + 1000);
+        hbackup = new HBackup(conf());
+        hbackup.runWithCheckedExceptions(state);
+        Assert.assertEquals(1, hbackup.getStats().numFilesSucceeded.get());
+        Assert.assertEquals(0, hbackup.getStats().numUpToDateFilesSkipped.get());
+        Assert.assertEquals(1, state.getNumDirsListed());
+        Assert.assertEquals("three", FileUtils.readFileToString(new File(toDir, "b/3.txt")));
+    }
+
+    /**
+     * A growing file matching hbackup.tail.pathsRegex is sent a chunk at a time as it grows, without
+     * sending anything twice, and moved into place once it stops changing.
+     */
+    @Test
+    public void tailTest() throws Exception {
+        File source = new File(fromDir, "logs/app.log");
+        byte[] data = TestUtil.getRandomBuf(3 * CHUNK_SIZE + 123);
+        FileUtils.writeByteArrayToFile(source, Arrays.copyOf(data, CHUNK_SIZE + 10));
+        FileUtils.writeStringToFile(new File(fromDir, "other.txt"), "too new");
+        File dest = new File(toDir, "logs/app.log");
+        File tail = new File(toDir, "logs/app.log" + LocalSink.TAIL_SUFFIX);
+
+        HBackup hbackup = new HBackup(tailConf(60000));
+        hbackup.runWithCheckedExceptions();
+        Assert.assertEquals(1, hbackup.getStats().numRangesSucceeded.get());
+        Assert.assertEquals(0, hbackup.getStats().numFilesSucceeded.get());
+        Assert.assertEquals(CHUNK_SIZE, tail.length());
+        Assert.assertFalse(dest.exists());
+        Assert.assertFalse(new File(toDir, "other.txt").exists());
+
+        FileUtils.writeByteArrayToFile(source, data);
+        hbackup = new HBackup(tailConf(60000));
+        hbackup.runWithCheckedExceptions();
+        Assert.assertEquals(1, hbackup.getStats().numChunksSucceeded.get());
+        Assert.assertEquals(3 * CHUNK_SIZE, tail.length());
+        Assert.assertFalse(dest.exists());
+        // The xor of what's been sent is kept, so the finished file's checksum covers all of it
+        TailProgress progress = TailProgress.parse(FileUtils.readFileToString(
+                new File(toDir, "logs/app.log" + LocalSink.TAIL_PROGRESS_SUFFIX)));
+        Assert.assertEquals(3 * CHUNK_SIZE, progress.sentLength);
+        Assert.assertEquals(TestUtil.expectedXor(Arrays.copyOf(data, 3 * CHUNK_SIZE)),
+                progress.getSentXor().getXorHex());
+
+        // Once it hasn't changed for quietMillis, the rest is sent and the file committed
+        Thread.sleep(10);
+        hbackup = new HBackup(tailConf(1));
+        hbackup.runWithCheckedExceptions();
+        Assert.assertEquals(1, hbackup.getStats().numFilesSucceeded.get());
+        Assert.assertArrayEquals(data, FileUtils.readFileToByteArray(dest));
+        Assert.assertEquals(source.lastModified(), dest.lastModified());
+        Assert.assertFalse(tail.exists());
+        Assert.assertFalse(new File(toDir, "logs/app.log" + LocalSink.TAIL_PROGRESS_SUFFIX).exists());
+
+        hbackup = new HBackup(tailConf(1));
+        hbackup.runWithCheckedExceptions();
+        Assert.assertEquals(0, hbackup.getStats().numChunksSucceeded.get());
+        Assert.assertEquals(1, hbackup.getStats().numUpToDateFilesSkipped.get());
+    }
+
+    /**
+     * Files deleted from the source are deleted from the sink, unless it's a dry run, too many would be
+     * deleted, or the file is only left out of the source listing for being too new.
+     */
+    @Test
+    public void mirrorTest() throws Exception {
+        long hourAgo = System.currentTimeMillis() - 3600 * 1000;
+        for(int i=0; i<10; i++) {
+            File file = new File(fromDir, "dir/file" + i);
+            FileUtils.writeStringToFile(file, "file " + i);
+            file.setLastModified(hourAgo);
+        }
+        HBackup hbackup = new HBackup(mirrorConf(0, false));
+        hbackup.runWithCheckedExceptions();
+        Assert.assertEquals(10, hbackup.getStats().numFilesSucceeded.get());
+        Assert.assertEquals(0, hbackup.getStats().numMirrorDeletes.get());
+
+        Assert.assertTrue(new File(fromDir, "dir/file3").delete());
+        // Too new to back up, but still in the source
+        new File(fromDir, "dir/file5").setLastModified(System.currentTimeMillis());
+        hbackup = new HBackup(mirrorConf(60000, true));
+        hbackup.runWithCheckedExceptions();
+        Assert.assertEquals(1, hbackup.getStats().numMirrorDeletes.get());
+        Assert.assertTrue(new File(toDir, "dir/file3").exists());
+
+        hbackup = new HBackup(mirrorConf(60000, false));
+        hbackup.runWithCheckedExceptions();
+        Assert.assertEquals(1, hbackup.getStats().numMirrorDeletes.get());
+        Assert.assertFalse(new File(toDir, "dir/file3").exists());
+        Assert.assertTrue(new File(toDir, "dir/file5").exists());
+
+        // 2 of the 9 files left is more than the default limit of 10%
+        Assert.assertTrue(new File(fromDir, "dir/file1").delete());
+        Assert.assertTrue(new File(fromDir, "dir/file2").delete());
+        hbackup = new HBackup(mirrorConf(60000, false));
+        try {
+            hbackup.runWithCheckedExceptions();
+            Assert.fail("Deleted more than the limit");
+        } catch (IOException e) {
+            // Expected
+        }
+        Assert.assertEquals(0, hbackup.getStats().numMirrorDeletes.get());
+        Assert.assertTrue(new File(toDir, "dir/file1").exists());
+        Assert.assertTrue(new File(toDir, "dir/file2").exists());
+    }
+
+    /**
+     * A sink too small for the percentage to cover a whole file can still have one file deleted, but never
+     * its last one, and nothing is deleted if the source is empty.
+     */
+    @Test
+    public void mirrorSmallSinkTest() throws Exception {
+        long hourAgo = System.currentTimeMillis() - 3600 * 1000;
+        for(int i=0; i<3; i++) {
+            File file = new File(fromDir, "file" + i);
+            FileUtils.writeStringToFile(file, "file " + i);
+            file.setLastModified(hourAgo);
+        }
+        HBackup hbackup = new HBackup(mirrorConf(0, false));
+        hbackup.runWithCheckedExceptions();
+        Assert.assertEquals(3, hbackup.getStats().numFilesSucceeded.get());
+
+        // 1 of 3 files is more than 10%, but 10% of 3 files is less than one file
+        Assert.assertTrue(new File(fromDir, "file1").delete());
+        hbackup = new HBackup(mirrorConf(0, false));
+        hbackup.runWithCheckedExceptions();
+        Assert.assertEquals(1, hbackup.getStats().numMirrorDeletes.get());
+        Assert.assertFalse(new File(toDir, "file1").exists());
+        Assert.assertTrue(new File(toDir, "file0").exists());
+
+        // Deleting one of the 2 files left would be allowed, but not both, even though the source has a file
+        // too new to back up
+        Assert.assertTrue(new File(fromDir, "file0").delete());
+        Assert.assertTrue(new File(fromDir, "file2").delete());
+        FileUtils.writeStringToFile(new File(fromDir, "new.txt"), "too new");
+        hbackup = new HBackup(mirrorConf(60000, false));
+        try {
+            hbackup.runWithCheckedExceptions();
+            Assert.fail("Emptied the sink");
+        } catch (IOException e) {
+            // Expected
+        }
+        Assert.assertEquals(0, hbackup.getStats().numMirrorDeletes.get());
+        Assert.assertTrue(new File(toDir, "file0").exists());
+        Assert.assertTrue(new File(toDir, "file2").exists());
+    }
+
+    /**
+     * An empty source listing never deletes anything, even from a sink whose last file it would be.
+     */
+    @Test
+    public void mirrorEmptySourceTest() throws Exception {
+        File file = new File(fromDir, "file0");
+        FileUtils.writeStringToFile(file, "file 0");
+        file.setLastModified(System.currentTimeMillis() - 3600 * 1000);
+        HBackup hbackup = new HBackup(mirrorConf(0, false));
+        hbackup.runWithCheckedExceptions();
+        Assert.assertEquals(1, hbackup.getStats().numFilesSucceeded.get());
+
+        Assert.assertTrue(file.delete());
+        hbackup = new HBackup(mirrorConf(0, false));
+        try {
+            hbackup.runWithCheckedExceptions();
+            Assert.fail("Emptied the sink");
+        } catch (IOException e) {
+            // Expected
+        }
+        Assert.assertEquals(0, hbackup.getStats().numMirrorDeletes.get());
+        Assert.assertTrue(new File(toDir, "file0").exists());
+    }
+
+    /**
+     * Files moved in the source are renamed in the sink instead of being sent again, as long as the old
+     * copy has the same length and mtime.
+     */
+    @Test
+    public void moveTest() throws Exception {
+        long hourAgo = System.currentTimeMillis() - 3600 * 1000;
+        byte[] a = TestUtil.getRandomBuf(3000);
+        byte[] b = TestUtil.getRandomBuf(2000);
+        FileUtils.writeByteArrayToFile(new File(fromDir, "staging/x/a"), a);
+        FileUtils.writeByteArrayToFile(new File(fromDir, "staging/x/b"), b);
+        new File(fromDir, "staging/x/a").setLastModified(hourAgo);
+        new File(fromDir, "staging/x/b").setLastModified(hourAgo);
+        HBackup hbackup = new HBackup(moveConf());
+        hbackup.runWithCheckedExceptions();
+        Assert.assertEquals(2, hbackup.getStats().numFilesSucceeded.get());
+        Assert.assertEquals(0, hbackup.getStats().numFilesMoved.get());
+
+        File archive = new File(fromDir, "archive/2026");
+        archive.mkdirs();
+        Assert.assertTrue(new File(fromDir, "staging/x").renameTo(new File(archive, "x")));
+        // Same length as b, but a different mtime, so it's not b moved
+        byte[] c = TestUtil.getRandomBuf(2000);
+        FileUtils.writeByteArrayToFile(new File(fromDir, "c"), c);
+        hbackup = new HBackup(moveConf());
+        hbackup.runWithCheckedExceptions();
+        Assert.assertEquals(2, hbackup.getStats().numFilesMoved.get());
+        Assert.assertEquals(5000, hbackup.getStats().numBytesMoved.get());
+        Assert.assertEquals(1, hbackup.getStats().numFilesSucceeded.get());
+        Assert.assertEquals(2, hbackup.getStats().numUpToDateFilesSkipped.get());
+        Assert.assertArrayEquals(a, FileUtils.readFileToByteArray(new File(toDir, "archive/2026/x/a")));
+        Assert.assertArrayEquals(b, FileUtils.readFileToByteArray(new File(toDir, "archive/2026/x/b")));
+        Assert.assertArrayEquals(c, FileUtils.readFileToByteArray(new File(toDir, "c")));
+        Assert.assertFalse(new File(toDir, "staging/x/a").exists());
+        Assert.assertFalse(new File(toDir, "staging/x/b").exists());
+    }
+
+    private HBackupConfig conf() {
+        return conf(null);
+    }
+
+    private HBackupConfig conf(String spoolDir) {
+        return builder(toDir.toURI().toString()).spoolDir(spoolDir).build();
+    }
+
+    private HBackupConfig conf(String to, String spoolDir, long fanoutSegmentSize) {
+        return builder(to).spoolDir(spoolDir).fanoutSegmentSize(fanoutSegmentSize).build();
+    }
+
+    private HBackupConfig tailConf(long tailQuietMillis) {
+        return builder(toDir.toURI().toString())
+                .mtimeAgeMillis(HBackupConfig.DEFAULT_MTIME_AGE_MILLIS)
+                .tailPathsRegex(".*\\.log")
+                .tailQuietMillis(tailQuietMillis)
+                .build();
+    }
+
+    private HBackupConfig mirrorConf(long mtimeAgeMillis, boolean dryRun) {
+        return builder(toDir.toURI().toString())
+                .mtimeAgeMillis(mtimeAgeMillis)
+                .mirror(true)
+                .mirrorDryRun(dryRun)
+                .build();
+    }
+
+    private HBackupConfig moveConf() {
+        return builder(toDir.toURI().toString()).detectMoves(true).movesMinBytes(0).build();
+    }
+
+    private HBackupConfig.Builder builder(String to) {
+        return HBackupConfig.builder(fromDir.toURI().toString(), to)
+                .concurrentFiles(4)
+                .s3PartSize(MultipartUtils.MIN_PART_SIZE)
+                .s3MultipartThreshold(MultipartUtils.MIN_PART_SIZE)
+                .hdfsSourceConf(new Configuration())
+                .hdfsSinkConf(new Configuration())
+                .numRetries(0)
+                .stalenessMillis(0)
+                .mtimeAgeMillis(0)
+                .localChunkSize(CHUNK_SIZE);
+    }
+}
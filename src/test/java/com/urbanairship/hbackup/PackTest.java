@@ -0,0 +1,47 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for packing small files, without S3.
+ */
+public class PackTest {
+    @Test
+    public void indexRoundTripTest() throws Exception {
+        PackIndex index = new PackIndex();
+        index.add(new PackIndex.Entry("a/b.txt", 0, 10, 1000L, "0102030405060708"));
+        index.add(new PackIndex.Entry("c \u00e9\ttab", 10, 0, 2000L, ""));
+
+        PackIndex parsed = PackIndex.parse(new ByteArrayInputStream(index.toBytes()));
+        Assert.assertEquals(2, parsed.getEntries().size());
+        PackIndex.Entry second = parsed.getEntries().get(1);
+        Assert.assertEquals("c \u00e9\ttab", second.relativePath);
+        Assert.assertEquals(10, second.offset);
+        Assert.assertEquals(0, second.length);
+        Assert.assertEquals(2000L, second.mtime);
+        Assert.assertEquals("0102030405060708", parsed.getEntries().get(0).checksum);
+    }
+
+    @Test
+    public void packSourceFileTest() throws Exception {
+        List<SourceFile> files = new ArrayList<SourceFile>();
+        files.add(TestUtil.byteArraySourceFile("one", "hello ".getBytes(), 5L));
+        files.add(TestUtil.byteArraySourceFile("empty", new byte[0], 7L));
+        files.add(TestUtil.byteArraySourceFile("two", "world".getBytes(), 6L));
+        PackSourceFile pack = new PackSourceFile(".hbackup-packs/p", files);
+
+        Assert.assertEquals(11, pack.getLength());
+        Assert.assertEquals(7L, pack.getMTime());
+        Assert.assertEquals("hello world", new String(IOUtils.toByteArray(pack.getFullInputStream())));
+    }
+}
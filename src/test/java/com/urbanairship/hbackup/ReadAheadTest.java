@@ -0,0 +1,109 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ReadAheadTest {
+    private ExecutorService executor;
+
+    @Before
+    public void setup() {
+        executor = Executors.newFixedThreadPool(2);
+    }
+
+    @After
+    public void cleanup() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Returns at most a few bytes per read, like a network stream.
+     */
+    private static InputStream trickle(byte[] data) {
+        final Random random = new Random(1234);
+        return new FilterInputStream(new ByteArrayInputStream(data)) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return super.read(b, off, Math.min(len, 1 + random.nextInt(5000)));
+            }
+        };
+    }
+
+    @Test
+    public void contentsTest() throws Exception {
+        BufferPool pool = new BufferPool(BufferPool.MIN_MAX_BYTES);
+        byte[] data = TestUtil.getRandomBuf(20 * BufferPool.MIN_BUFFER_SIZE + 7);
+        InputStream is = new ReadAheadInputStream(trickle(data), BufferPool.MIN_BUFFER_SIZE, 2, executor, pool);
+        Assert.assertEquals(data[0] & 0xff, is.read());
+        byte[] rest = IOUtils.toByteArray(is);
+        is.close();
+        Assert.assertEquals(data.length - 1, rest.length);
+        Assert.assertEquals(data[1], rest[0]);
+        Assert.assertEquals(data[data.length - 1], rest[rest.length - 1]);
+        Assert.assertEquals(0, pool.getBytesInUse());
+    }
+
+    @Test
+    public void emptyStreamTest() throws Exception {
+        BufferPool pool = new BufferPool(BufferPool.MIN_MAX_BYTES);
+        InputStream is = new ReadAheadInputStream(new ByteArrayInputStream(new byte[0]),
+                BufferPool.MIN_BUFFER_SIZE, 2, executor, pool);
+        Assert.assertEquals(-1, is.read());
+        is.close();
+        Assert.assertEquals(0, pool.getBytesInUse());
+    }
+
+    /**
+     * When the pool has no buffers to spare, the stream should still work by reading directly.
+     */
+    @Test
+    public void exhaustedPoolTest() throws Exception {
+        BufferPool pool = new BufferPool(4 * BufferPool.MIN_BUFFER_SIZE);
+        // Read-ahead buffers can only use three quarters of the pool, and this takes half
+        ByteBuffer held = pool.tryAcquire(2 * BufferPool.MIN_BUFFER_SIZE);
+        Assert.assertNotNull(held);
+        byte[] data = TestUtil.getRandomBuf(5 * BufferPool.MIN_BUFFER_SIZE);
+        InputStream is = new ReadAheadInputStream(trickle(data), BufferPool.MIN_BUFFER_SIZE, 2, executor, pool);
+        Assert.assertArrayEquals(data, IOUtils.toByteArray(is));
+        is.close();
+        Assert.assertTrue(pool.getNumRefused() > 0);
+        pool.release(held);
+        Assert.assertEquals(0, pool.getBytesInUse());
+    }
+
+    @Test
+    public void errorTest() throws Exception {
+        BufferPool pool = new BufferPool(BufferPool.MIN_MAX_BYTES);
+        InputStream failing = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("Injected failure");
+            }
+        };
+        InputStream is = new ReadAheadInputStream(failing, BufferPool.MIN_BUFFER_SIZE, 2, executor, pool);
+        try {
+            is.read(new byte[10]);
+            Assert.fail("Expected the source's exception");
+        } catch (IOException e) {
+            Assert.assertEquals("Injected failure", e.getMessage());
+        }
+        is.close();
+        Assert.assertEquals(0, pool.getBytesInUse());
+    }
+}
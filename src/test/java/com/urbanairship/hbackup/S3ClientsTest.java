@@ -0,0 +1,48 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup;
+
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.jets3t.service.S3Service;
+import org.jets3t.service.security.AWSCredentials;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.urbanairship.hbackup.datasinks.PartCopyS3Service;
+
+public class S3ClientsTest {
+    private static HttpConnectionManagerParams poolParams(PartCopyS3Service service) {
+        return service.getHttpConnectionManager().getParams();
+    }
+
+    @Test
+    public void sharingTest() throws Exception {
+        S3Clients clients = new S3Clients();
+        AWSCredentials creds = new AWSCredentials("access1", "secret1");
+        S3Service first = clients.get(creds, 10);
+        // Equal credentials get the same client, even from a different credentials object
+        Assert.assertSame(first, clients.get(new AWSCredentials("access1", "secret1"), 10));
+        Assert.assertNotSame(first, clients.get(new AWSCredentials("access1", "secret2"), 10));
+        Assert.assertNotSame(first, clients.get(null, 10));
+        Assert.assertEquals(3, clients.getNumClients());
+    }
+
+    @Test
+    public void poolSizeTest() throws Exception {
+        S3Clients clients = new S3Clients();
+        AWSCredentials creds = new AWSCredentials("access1", "secret1");
+        PartCopyS3Service service = clients.get(creds, 10);
+        Assert.assertEquals(10, poolParams(service).getMaxTotalConnections());
+        Assert.assertEquals(10, poolParams(service).getDefaultMaxConnectionsPerHost());
+        
+        // The pool grows for a component that needs more, and never shrinks
+        clients.get(creds, 40);
+        Assert.assertEquals(40, poolParams(service).getMaxTotalConnections());
+        Assert.assertEquals(40, poolParams(service).getDefaultMaxConnectionsPerHost());
+        clients.get(creds, 5);
+        Assert.assertEquals(40, poolParams(service).getMaxTotalConnections());
+        Assert.assertEquals(0, clients.getNumRequests());
+    }
+}
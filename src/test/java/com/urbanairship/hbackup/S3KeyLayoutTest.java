@@ -0,0 +1,53 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup;
+
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for mapping paths to S3 keys, without S3.
+ */
+public class S3KeyLayoutTest {
+    @Test
+    public void unshardedTest() throws Exception {
+        S3KeyLayout layout = new S3KeyLayout("base/", 0);
+        Assert.assertEquals("base/a/b.txt", layout.key("a/b.txt"));
+        Assert.assertEquals("a/b.txt", layout.relativePath("base/a/b.txt"));
+        Assert.assertNull(layout.relativePath("base/" + Constant.PACK_PREFIX + "123.pack"));
+        Assert.assertNull(layout.relativePath("base/" + Constant.TAIL_PREFIX + "a/b.txt"));
+        Assert.assertNull(layout.relativePath("base/dir/"));
+        Assert.assertEquals(1, layout.getListPrefixes().size());
+        Assert.assertEquals("base/", layout.getListPrefixes().get(0));
+    }
+
+    @Test
+    public void shardedTest() throws Exception {
+        S3KeyLayout layout = new S3KeyLayout("base/", 2);
+        String[] paths = {"a/b.txt", "a/c.txt", "x \u00e9/y", "z"};
+        List<String> prefixes = layout.getListPrefixes();
+        Assert.assertEquals(256, prefixes.size());
+        for(String path: paths) {
+            String key = layout.key(path);
+            Assert.assertTrue(key.endsWith("/" + path));
+            Assert.assertEquals(path, layout.relativePath(key));
+            int numCovering = 0;
+            for(String prefix: prefixes) {
+                if(key.startsWith(prefix)) {
+                    numCovering++;
+                }
+            }
+            Assert.assertEquals(1, numCovering);
+        }
+        // Keys whose shard doesn't match their path's hash, and bookkeeping objects, aren't files
+        String key = layout.key("a/b.txt");
+        String wrongShard = key.charAt(5) == '0' ? "1" : "0";
+        Assert.assertNull(layout.relativePath("base/" + wrongShard + key.substring(6)));
+        Assert.assertNull(layout.relativePath("base/" + Constant.S3_LAYOUT_KEY));
+        Assert.assertNull(layout.relativePath("base/" + Constant.PACK_PREFIX + "123.pack"));
+    }
+}
@@ -5,12 +5,18 @@ Copyright 2012 Urban Airship and Contributors
 package com.urbanairship.hbackup;
 
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.configuration.SystemConfiguration;
+import org.apache.commons.lang.StringUtils;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.jets3t.service.model.S3Object;
+import org.jets3t.service.utils.MultipartUtils;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Assert;
@@ -18,6 +24,8 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import com.urbanairship.hbackup.checksumverify.ETagVerifier;
+
 /**
  * To actually run this test, the S3 configuration must be given. Something like this
  * will work: 
@@ -276,6 +284,80 @@ public class S3Test extends S3SetupAndTeardownTest {
                 TestUtil.expectedXor(contents).getBytes());
     }
 
+    /**
+     * When a multipart file changes in one part, a delta upload should copy its other whole parts from
+     * the object it replaces. The new object must have the right contents, checksum and part MD5s, and
+     * the part MD5s must produce its ETag.
+     */
+    @Test
+    public void deltaUploadTest() throws Exception {
+        final int partSize = (int)MultipartUtils.MIN_PART_SIZE;
+        final int wholeParts = 3;
+        byte[] contents = TestUtil.getRandomBuf(wholeParts * partSize + 1024);
+        
+        String filename = "delta.dat";
+        String sinkKey = "delta/" + filename;
+        String hashKey = "deltahashes/" + filename;
+        deleteLater(sinkService, sinkBucket, sinkKey);
+        deleteLater(sinkService, sinkBucket, hashKey);
+        deleteLater(sinkService, sinkBucket, hashKey + Constant.PART_DIGESTS_SUFFIX);
+        
+        FileSystem fs = dfsCluster.getFileSystem();
+        Path path = new Path("/" + filename);
+        OutputStream os = fs.create(path);
+        os.write(contents);
+        os.close();
+        
+        SystemConfiguration sysProps = new SystemConfiguration();
+        String accessKey = sysProps.getString(HBackupConfig.CONF_SINKS3ACCESSKEY);
+        String secret = sysProps.getString(HBackupConfig.CONF_SINKS3SECRET);
+        HBackupConfig conf = HBackupConfig.builder("hdfs://localhost:" + dfsCluster.getNameNodePort() + "/", 
+                "s3://" + sinkBucket + "/delta")
+                .sinkS3Credentials(accessKey, secret)
+                .checksumS3Credentials(accessKey, secret)
+                .checksumUri("s3://" + sinkBucket + "/deltahashes")
+                .s3PartSize(partSize)
+                .s3MultipartThreshold(partSize)
+                .hdfsSourceConf(dfsClusterConfig)
+                .hdfsSinkConf(dfsClusterConfig)
+                .numRetries(0)
+                .mtimeAgeMillis(0)
+                .s3DeltaUpload(true)
+                .build();
+        
+        HBackup hBackup = new HBackup(conf);
+        hBackup.runWithCheckedExceptions();
+        Assert.assertEquals(1, hBackup.getStats().numFilesSucceeded.get());
+        Assert.assertEquals(0, hBackup.getStats().numPartsCopied.get());
+        
+        // Change one byte in the second part
+        long mtime = fs.getFileStatus(path).getModificationTime();
+        contents[partSize + 100] ^= 0xff;
+        os = fs.create(path, true);
+        os.write(contents);
+        os.close();
+        fs.setTimes(path, mtime + 1000, mtime + 1000);
+        
+        hBackup = new HBackup(conf);
+        hBackup.runWithCheckedExceptions();
+        Assert.assertEquals(1, hBackup.getStats().numFilesSucceeded.get());
+        // Every whole part but the changed one. The short last part is always sent.
+        Assert.assertEquals(wholeParts - 1, hBackup.getStats().numPartsCopied.get());
+        
+        TestUtil.verifyS3Obj(sinkService, sinkBucket, sinkKey, contents);
+        TestUtil.verifyS3Obj(sinkService, sinkBucket, hashKey, TestUtil.expectedXor(contents).getBytes());
+        
+        List<String> partMd5s = new ArrayList<String>();
+        for(int startAt = 0; startAt < contents.length; startAt += partSize) {
+            partMd5s.add(DigestUtils.md5Hex(Arrays.copyOfRange(contents, startAt, 
+                    Math.min(startAt + partSize, contents.length))));
+        }
+        TestUtil.verifyS3Obj(sinkService, sinkBucket, hashKey + Constant.PART_DIGESTS_SUFFIX, 
+                StringUtils.join(partMd5s, "\n").getBytes());
+        String etag = sinkService.getObjectDetails(sinkBucket, sinkKey).getETag().replace("\"", "");
+        Assert.assertEquals(etag, ETagVerifier.expectedETag(partMd5s, etag));
+    }
+
     public static void runBackup(String from, String to) throws Exception {
         HBackupConfig conf = HBackupConfig.forTests(from, to, dfsClusterConfig);
         new HBackup(conf).runWithCheckedExceptions();
@@ -0,0 +1,152 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SpoolTest {
+    private File spoolDir;
+    private Stats stats;
+
+    @Before
+    public void setup() throws Exception {
+        spoolDir = new File(System.getProperty("test.build.data", "build/test/data"), "spool").getAbsoluteFile();
+        FileUtils.deleteDirectory(spoolDir);
+        stats = new Stats();
+    }
+
+    @After
+    public void cleanup() throws Exception {
+        FileUtils.deleteDirectory(spoolDir);
+    }
+
+    /**
+     * A source file that counts how many times it's been opened.
+     */
+    private static SourceFile countingSourceFile(final byte[] contents, final AtomicInteger opens) {
+        final SourceFile wrapped = TestUtil.byteArraySourceFile("file", contents, 0);
+        return new SourceFile() {
+            @Override
+            public InputStream getFullInputStream() throws IOException {
+                opens.incrementAndGet();
+                return wrapped.getFullInputStream();
+            }
+
+            @Override
+            public InputStream getPartialInputStream(long offset, long len) throws IOException {
+                opens.incrementAndGet();
+                return wrapped.getPartialInputStream(offset, len);
+            }
+
+            @Override
+            public String getRelativePath() {
+                return wrapped.getRelativePath();
+            }
+
+            @Override
+            public long getMTime() throws IOException {
+                return wrapped.getMTime();
+            }
+
+            @Override
+            public long getLength() {
+                return wrapped.getLength();
+            }
+        };
+    }
+
+    @Test
+    public void retryReadsFromSpoolTest() throws Exception {
+        final byte[] contents = TestUtil.getRandomBuf(10000);
+        AtomicInteger opens = new AtomicInteger(0);
+        Spool spool = new Spool(spoolDir, 1000000, 1, 0, new BufferPool(BufferPool.MIN_MAX_BYTES), stats);
+        final SourceFile spooled = spool.wrap(countingSourceFile(contents, opens));
+
+        final byte[] expected = Arrays.copyOfRange(contents, 2000, 5000);
+        spool.wrap(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // Read the same range twice, like a chunk that's retried
+                    for(int i=0; i<2; i++) {
+                        Assert.assertArrayEquals(expected,
+                                IOUtils.toByteArray(spooled.getPartialInputStream(2000, 3000)));
+                    }
+                    Assert.assertEquals(1, spoolDir.list().length);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }).run();
+
+        Assert.assertEquals(1, opens.get());
+        Assert.assertEquals(3000, stats.numBytesSpooled.get());
+        Assert.assertEquals(1, stats.numSpoolReads.get());
+        // The chunk is done, so its spool file should be gone
+        Assert.assertEquals(0, spoolDir.list().length);
+    }
+
+    @Test
+    public void tooBigBypassesSpoolTest() throws Exception {
+        final byte[] contents = TestUtil.getRandomBuf(10000);
+        AtomicInteger opens = new AtomicInteger(0);
+        Spool spool = new Spool(spoolDir, 1000, 0, 0, new BufferPool(BufferPool.MIN_MAX_BYTES), stats);
+        final SourceFile spooled = spool.wrap(countingSourceFile(contents, opens));
+
+        spool.wrap(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Assert.assertArrayEquals(contents, IOUtils.toByteArray(spooled.getFullInputStream()));
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }).run();
+
+        Assert.assertEquals(1, opens.get());
+        Assert.assertEquals(0, stats.numBytesSpooled.get());
+        Assert.assertEquals(1, stats.numSpoolBypasses.get());
+    }
+
+    @Test
+    public void retryReadsFromMemoryTest() throws Exception {
+        final byte[] contents = TestUtil.getRandomBuf(10000);
+        AtomicInteger opens = new AtomicInteger(0);
+        BufferPool pool = new BufferPool(BufferPool.MIN_MAX_BYTES);
+        Spool spool = new Spool(null, 0, 0, contents.length, pool, stats);
+        final SourceFile spooled = spool.wrap(countingSourceFile(contents, opens));
+
+        final BufferPool checkPool = pool;
+        spool.wrap(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for(int i=0; i<2; i++) {
+                        Assert.assertArrayEquals(contents, IOUtils.toByteArray(spooled.getFullInputStream()));
+                    }
+                    Assert.assertEquals(BufferPool.MIN_BUFFER_SIZE, checkPool.getBytesInUse());
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }).run();
+
+        Assert.assertEquals(1, opens.get());
+        Assert.assertEquals(contents.length, stats.numBytesBuffered.get());
+        Assert.assertEquals(0, pool.getBytesInUse());
+    }
+}
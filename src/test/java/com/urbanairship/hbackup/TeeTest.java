@@ -0,0 +1,123 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TeeTest {
+    /**
+     * A file that counts how many bytes are read from it.
+     */
+    private static SourceFile countingFile(final byte[] contents, final AtomicLong bytesRead) {
+        final SourceFile file = TestUtil.byteArraySourceFile("file", contents, 0);
+        return new SourceFileWrapper() {
+            @Override
+            public SourceFile getWrapped() {
+                return file;
+            }
+
+            @Override
+            public InputStream getFullInputStream() throws IOException {
+                bytesRead.addAndGet(contents.length);
+                return file.getFullInputStream();
+            }
+
+            @Override
+            public InputStream getPartialInputStream(long offset, long len) throws IOException {
+                bytesRead.addAndGet(len);
+                return file.getPartialInputStream(offset, len);
+            }
+
+            @Override
+            public String getRelativePath() {
+                return file.getRelativePath();
+            }
+
+            @Override
+            public long getMTime() throws IOException {
+                return file.getMTime();
+            }
+
+            @Override
+            public long getLength() {
+                return contents.length;
+            }
+        };
+    }
+
+    private static byte[] read(SourceFile file, long offset, int len) throws IOException {
+        InputStream is = file.getPartialInputStream(offset, len);
+        try {
+            return IOUtils.toByteArray(is);
+        } finally {
+            is.close();
+        }
+    }
+
+    private static byte[] range(byte[] contents, int offset, int len) {
+        byte[] result = new byte[len];
+        System.arraycopy(contents, offset, result, 0, len);
+        return result;
+    }
+
+    /**
+     * Sinks that read the file in different chunks should still only read it from the source once, and
+     * the segments should be freed once both have read them.
+     */
+    @Test
+    public void sharedReadTest() throws Exception {
+        byte[] contents = TestUtil.getRandomBuf(10000);
+        AtomicLong bytesRead = new AtomicLong(0);
+        Stats stats = new Stats();
+        Tee tee = new Tee(countingFile(contents, bytesRead), 2, 3000, BufferPool.getInstance(), stats);
+        SourceFile first = tee.getFile(0);
+        SourceFile second = tee.getFile(1);
+        ((SharedHandleFile)first).retainHandle();
+        ((SharedHandleFile)second).retainHandle();
+
+        // The first sink reads it in halves, the second all at once
+        Assert.assertArrayEquals(range(contents, 0, 5000), read(first, 0, 5000));
+        Assert.assertArrayEquals(range(contents, 5000, 5000), read(first, 5000, 5000));
+        Assert.assertEquals(4, tee.getNumSegments());
+        Assert.assertArrayEquals(contents, read(second, 0, contents.length));
+        Assert.assertEquals(contents.length, bytesRead.get());
+        Assert.assertEquals(contents.length, stats.numFanOutBytesRead.get());
+        Assert.assertEquals(0, tee.getNumSegments());
+
+        // A retry after the segments are freed goes to the source
+        Assert.assertArrayEquals(range(contents, 2000, 2000), read(first, 2000, 2000));
+        Assert.assertEquals(2000, stats.numFanOutBytesReread.get());
+        ((SharedHandleFile)first).releaseHandle();
+        ((SharedHandleFile)second).releaseHandle();
+    }
+
+    /**
+     * A sink that finishes with the file without reading all of it, like one that failed, shouldn't keep
+     * the segments it didn't read.
+     */
+    @Test
+    public void releaseTest() throws Exception {
+        byte[] contents = TestUtil.getRandomBuf(10000);
+        Tee tee = new Tee(countingFile(contents, new AtomicLong(0)), 2, 3000, BufferPool.getInstance(),
+                new Stats());
+        SourceFile first = tee.getFile(0);
+        SourceFile second = tee.getFile(1);
+        ((SharedHandleFile)first).retainHandle();
+        ((SharedHandleFile)second).retainHandle();
+
+        Assert.assertArrayEquals(range(contents, 0, 4000), read(second, 0, 4000));
+        Assert.assertEquals(2, tee.getNumSegments());
+        ((SharedHandleFile)second).releaseHandle();
+        Assert.assertArrayEquals(contents, read(first, 0, contents.length));
+        Assert.assertEquals(0, tee.getNumSegments());
+        ((SharedHandleFile)first).releaseHandle();
+    }
+}
@@ -4,6 +4,7 @@ Copyright 2012 Urban Airship and Contributors
 
 package com.urbanairship.hbackup;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -115,5 +116,36 @@ public abstract class TestUtil {
         os.close();
     }
     
+    /**
+     * A SourceFile whose contents are the given byte array.
+     */
+    public static SourceFile byteArraySourceFile(final String relativePath, final byte[] contents, 
+            final long mtime) {
+        return new SourceFile() {
+            @Override
+            public InputStream getFullInputStream() throws IOException {
+                return new ByteArrayInputStream(contents);
+            }
+
+            @Override
+            public InputStream getPartialInputStream(long offset, long len) throws IOException {
+                return new ByteArrayInputStream(contents, (int)offset, (int)len);
+            }
+
+            @Override
+            public String getRelativePath() {
+                return relativePath;
+            }
 
+            @Override
+            public long getMTime() throws IOException {
+                return mtime;
+            }
+
+            @Override
+            public long getLength() {
+                return contents.length;
+            }
+        };
+    }
 }
@@ -0,0 +1,125 @@
+/*
+Copyright 2012 Urban Airship and Contributors
+*/
+
+package com.urbanairship.hbackup;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class WorkersTest {
+    /**
+     * A task that records the most tasks that were ever running at once.
+     */
+    private static class CountingTask implements Runnable {
+        final AtomicInteger running;
+        final AtomicInteger maxRunning;
+
+        CountingTask(AtomicInteger running, AtomicInteger maxRunning) {
+            this.running = running;
+            this.maxRunning = maxRunning;
+        }
+
+        @Override
+        public void run() {
+            int now = running.incrementAndGet();
+            synchronized(maxRunning) {
+                maxRunning.set(Math.max(maxRunning.get(), now));
+            }
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            running.decrementAndGet();
+        }
+    }
+
+    private static int maxRunning(Workers workers, int numTasks, long bytesPerTask) throws Exception {
+        AtomicInteger running = new AtomicInteger(0);
+        AtomicInteger maxRunning = new AtomicInteger(0);
+        for(int i=0; i<numTasks; i++) {
+            workers.execute(workers.withBytes(new CountingTask(running, maxRunning), bytesPerTask));
+        }
+        workers.shutdown();
+        Assert.assertTrue(workers.awaitTermination(10, TimeUnit.SECONDS));
+        return maxRunning.get();
+    }
+
+    @Test
+    public void requestLimitTest() throws Exception {
+        Workers workers = new Workers(Executors.newCachedThreadPool(), 3, 1024*1024);
+        int max = maxRunning(workers, 20, 1024);
+        Assert.assertTrue(max <= 3);
+        Assert.assertTrue(max >= 2);
+    }
+
+    @Test
+    public void byteLimitTest() throws Exception {
+        // Room for 100 requests, but only two 4KB tasks' worth of bytes
+        Workers workers = new Workers(Executors.newCachedThreadPool(), 100, 8192);
+        Assert.assertTrue(maxRunning(workers, 20, 4096) <= 2);
+        
+        // A task bigger than the whole limit still runs, alone
+        workers = new Workers(Executors.newCachedThreadPool(), 100, 8192);
+        Assert.assertEquals(1, maxRunning(workers, 5, 1024*1024));
+    }
+
+    /**
+     * A task interrupted while waiting for room must still run, so the chunk it carries finishes one way
+     * or the other instead of vanishing.
+     */
+    @Test
+    public void interruptedWaitTest() throws Exception {
+        Workers workers = new Workers(Executors.newCachedThreadPool(), 100, 8192);
+        final CountDownLatch holding = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        workers.execute(workers.withBytes(new Runnable() {
+            @Override
+            public void run() {
+                holding.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, 8192));
+        Assert.assertTrue(holding.await(10, TimeUnit.SECONDS));
+        
+        final AtomicBoolean ranInterrupted = new AtomicBoolean(false);
+        Thread waiter = new Thread(workers.withBytes(new Runnable() {
+            @Override
+            public void run() {
+                ranInterrupted.set(Thread.currentThread().isInterrupted());
+            }
+        }, 8192));
+        waiter.start();
+        waiter.interrupt();
+        waiter.join(10000);
+        Assert.assertFalse(waiter.isAlive());
+        Assert.assertTrue(ranInterrupted.get());
+        
+        release.countDown();
+        workers.shutdown();
+        Assert.assertTrue(workers.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Without virtual threads, the workers are a plain pool of concurrentFiles threads.
+     */
+    @Test
+    public void platformThreadsTest() throws Exception {
+        HBackupConfig conf = HBackupConfig.forTests("file:///tmp/a", "file:///tmp/b", null);
+        Workers workers = new Workers(conf);
+        Assert.assertFalse(workers.isVirtual());
+        Assert.assertEquals(conf.concurrentFiles, workers.getConcurrency());
+        Assert.assertTrue(maxRunning(workers, 10, 1024*1024) <= conf.concurrentFiles);
+    }
+}
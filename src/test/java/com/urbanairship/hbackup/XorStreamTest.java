@@ -43,6 +43,22 @@ public class XorStreamTest {
         Assert.assertEquals(TestUtil.expectedXor(bytes), streamingXor.getXorHex());
     }
     
+    @Test
+    public void fromHexTest() throws Exception {
+        // A tail's xor is kept as hex between runs, then combined with the parts sent later
+        byte[] bytes = randomBytes(1000);
+        String sentHex = streamingXor(bytes, 0, 333).getXorHex();
+        StreamingXor streamingXor = StreamingXor.fromHex(sentHex);
+        Assert.assertEquals(sentHex, streamingXor.getXorHex());
+        streamingXor.update(streamingXor(bytes, 333, bytes.length - 333));
+        Assert.assertEquals(TestUtil.expectedXor(bytes), streamingXor.getXorHex());
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void fromBadHexTest() throws Exception {
+        StreamingXor.fromHex("0123");
+    }
+    
     private static byte[] randomBytes(int size) {
         Random rng = new Random(0);
         byte[] bytes = new byte[size];